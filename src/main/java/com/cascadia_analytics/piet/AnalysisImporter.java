@@ -0,0 +1,117 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisImportReport;
+import com.cascadia_analytics.piet.domain.BatchItemResult;
+import com.cascadia_analytics.piet.repository.AnalysisNearCache;
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Imports analyses exported by GET /analyses/export, for both {@link PietRestController} and {@link ReactiveAnalysisHandler}.
+ */
+@Component
+public class AnalysisImporter {
+
+	private static final int IMPORT_BATCH_SIZE = 500;
+
+	@Autowired
+	private AnalysisRepository analysisRepository;
+
+	@Autowired
+	private AnalysisNearCache analysisNearCache;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	/**
+	 * Import newline-delimited json (gzipped or not), parsing it incrementally and writing it in bulk batches. Analyses replace
+	 * any existing analysis with the same id, whatever its version; their dates are kept as exported, as are the read counts of
+	 * analyses new to this environment (existing analyses keep their own counts).
+	 */
+	public AnalysisImportReport importAnalyses(InputStream inputStream) throws IOException {
+		AnalysisImportReport report = new AnalysisImportReport();
+		List<Analysis> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+		try (MappingIterator<Analysis> analyses = objectMapper.readerFor(Analysis.class).readValues(decompressIfGzipped(inputStream))) {
+			while (analyses.hasNextValue()) {
+				Analysis analysis = analyses.nextValue();
+				// the version in the target environment is unrelated to the exported one
+				analysis.setVersion(null);
+				batch.add(analysis);
+				if (batch.size() == IMPORT_BATCH_SIZE) {
+					importBatch(batch, report);
+				}
+			}
+		} catch (JsonProcessingException e) {
+			importBatch(batch, report);
+			// not every parse failure has a location (mapping failures may not)
+			String line = e.getLocation() == null ? "unknown line" : "line " + e.getLocation().getLineNr();
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed analysis at " + line
+					+ "; the " + report.getImported() + " analyses before it were imported", e);
+		}
+		importBatch(batch, report);
+		return report;
+	}
+
+	private void importBatch(List<Analysis> batch, AnalysisImportReport report) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		List<String> errors = analysisRepository.bulkSave(batch);
+		analysisNearCache.invalidate(batch.stream().map(Analysis::getId).collect(Collectors.toList()));
+		for (int i=0;i < errors.size();i++) {
+			if (errors.get(i) == null) {
+				report.setImported(report.getImported() + 1);
+			} else {
+				BatchItemResult failure = new BatchItemResult(batch.get(i).getId(), BatchItemResult.STATUS_FAILED);
+				failure.setMessage(errors.get(i));
+				report.addFailure(failure);
+			}
+		}
+		batch.clear();
+	}
+
+	private static InputStream decompressIfGzipped(InputStream inputStream) throws IOException {
+		PushbackInputStream ret = new PushbackInputStream(inputStream, 2);
+		byte[] magic = new byte[2];
+		int read = ret.read(magic);
+		if (read > 0) {
+			ret.unread(magic, 0, read);
+		}
+		if (read == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+			return new GZIPInputStream(ret, PietRestController.TRANSFER_BUFFER_SIZE);
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,115 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.cascadia_analytics.piet.domain.Dashboard;
+import com.cascadia_analytics.piet.domain.DashboardTile;
+import com.cascadia_analytics.piet.domain.IdContainer;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.query.DashboardService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Stores dashboards, and loads a dashboard with the results of all of its analyses in one request.
+ */
+@RestController
+@Profile("!" + PietApplication.REACTIVE_PROFILE)
+public class DashboardRestController {
+
+	@Autowired
+	private DashboardService dashboardService;
+
+	@Autowired
+	private PietConfiguration pietConfiguration;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@GetMapping(path="/dashboards", produces="application/json")
+	public Dashboard[] getDashboards() throws Exception {
+		return dashboardService.findAll().toArray(new Dashboard[0]);
+	}
+
+	@PostMapping(path="/dashboard", consumes="application/json", produces="application/json")
+	public IdContainer saveDashboard(@RequestBody Dashboard dashboard) throws Exception {
+		try {
+			return new IdContainer(dashboardService.save(dashboard).getId());
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+	}
+
+	@DeleteMapping(path="/dashboard/{id}")
+	public void deleteDashboard(@PathVariable String id) throws Exception {
+		dashboardService.delete(id);
+	}
+
+	/**
+	 * The dashboard with every tile's analysis and result. Clients that accept application/x-ndjson instead get each tile
+	 * on its own line as soon as it is loaded, so they can draw tiles without waiting for the slowest.
+	 */
+	@GetMapping(path="/dashboard/{id}")
+	public ResponseEntity<?> getDashboard(@PathVariable String id, @RequestHeader(name=HttpHeaders.ACCEPT, required=false) String accept,
+			HttpServletRequest request) throws Exception {
+		Dashboard dashboard = dashboardService.findById(id).orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No dashboard with id " + id));
+		String user = QueryRestController.queryUser(request, pietConfiguration);
+		if (accept == null || MediaType.parseMediaTypes(accept).stream().noneMatch(PietRestController.APPLICATION_NDJSON::equalsTypeAndSubtype)) {
+			return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(dashboardService.load(dashboard, user, tile -> {}));
+		}
+		ObjectWriter writer = objectMapper.writerFor(DashboardTile.class);
+		StreamingResponseBody body = outputStream -> {
+			try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+				generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				dashboardService.load(dashboard, user, tile -> {
+					try {
+						writer.writeValue(generator, tile);
+						generator.writeRaw('\n');
+						generator.flush();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		return ResponseEntity.ok().contentType(PietRestController.APPLICATION_NDJSON).body(body);
+	}
+
+}
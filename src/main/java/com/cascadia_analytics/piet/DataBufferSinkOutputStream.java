@@ -0,0 +1,107 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import reactor.core.publisher.FluxSink;
+
+/**
+ * Adapts a blocking writer to a reactive response body: bytes are gathered into chunks, and each chunk is emitted only
+ * once the subscriber has asked for it, so a slow client holds up the writer rather than buffering in memory. Write from
+ * a thread that may block.
+ */
+final class DataBufferSinkOutputStream extends OutputStream {
+
+	private static final int CHUNK_SIZE = 32 * 1024;
+	private static final DefaultDataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+	private final FluxSink<DataBuffer> sink;
+	private final Semaphore demand = new Semaphore(0);
+	private volatile boolean unbounded;
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private int count;
+
+	DataBufferSinkOutputStream(FluxSink<DataBuffer> sink) {
+		this.sink = sink;
+		sink.onRequest(n -> {
+			if (n >= Integer.MAX_VALUE) {
+				unbounded = true;
+			}
+			demand.release(unbounded ? 1 : (int) n);
+		});
+		// wake the writer, so that it finds the sink cancelled
+		sink.onDispose(demand::release);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == chunk.length) {
+			emit();
+		}
+		chunk[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == chunk.length) {
+				emit();
+			}
+			int n = Math.min(len, chunk.length - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			emit();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void emit() throws IOException {
+		if (!unbounded) {
+			try {
+				demand.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted awaiting demand");
+			}
+		}
+		if (sink.isCancelled()) {
+			throw new IOException("The response was cancelled");
+		}
+		sink.next(BUFFER_FACTORY.wrap(Arrays.copyOf(chunk, count)));
+		count = 0;
+	}
+
+}
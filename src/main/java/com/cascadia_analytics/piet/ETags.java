@@ -0,0 +1,95 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet;
+
+import java.util.Objects;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+
+/**
+ * Entity tags for the resources served by both the servlet and the reactive stacks.
+ */
+final class ETags {
+
+	static final String ANY = "*";
+
+	private ETags() {}
+
+	/**
+	 * @return a strong tag for the stored version of the analysis, or null if it has no version
+	 */
+	static String analysis(Analysis analysis) {
+		return analysis.getVersion() == null ? null : "\"" + analysis.getId() + "-" + analysis.getVersion() + "\"";
+	}
+
+	/**
+	 * @return a weak tag for the list of all analyses, weak because read counters can change without changing the fingerprint
+	 */
+	static String analyses(String collectionFingerprint) {
+		return "W/\"" + collectionFingerprint + "\"";
+	}
+
+	/**
+	 * @return a strong tag for a stored result snapshot, which changes whenever it is retaken
+	 */
+	static String resultSnapshot(ResultSnapshot snapshot) {
+		return "\"" + snapshot.getId() + "-" + snapshot.getAnalysisVersion() + "-" + snapshot.getCreateDateTime().getTime() + "\"";
+	}
+
+	/**
+	 * @return a strong tag for the dataset catalog, from the hash of its json
+	 */
+	static String datasets(String catalogFingerprint) {
+		return "\"" + catalogFingerprint + "\"";
+	}
+
+	static String configuration(PietConfiguration configuration) {
+		return "\"" + Integer.toHexString(Objects.hash(configuration.getApiVersion(), configuration.getApplicationTitle(),
+				configuration.getLogoImageUrl(), configuration.getLogLevel(), configuration.getMondrianRestUrl(),
+				configuration.getTableFontIncrease())) + "\"";
+	}
+
+	/**
+	 * Parse the If-Match header of a save of an analysis. If-Match requires strong comparison, so weak tags never match.
+	 * @param ifMatch the header value
+	 * @param id the id of the analysis being saved
+	 * @return the version the stored analysis must have, or null if the header is * (any version will do)
+	 * @throws ResponseStatusException (412) if the header cannot match the analysis
+	 */
+	static Long ifMatchVersion(String ifMatch, String id) {
+		String value = ifMatch.trim();
+		if (ANY.equals(value)) {
+			return null;
+		}
+		int separator = value.lastIndexOf('-');
+		if (id != null && value.length() > 2 && value.startsWith("\"") && value.endsWith("\"") && separator > 0
+				&& value.substring(1, separator).equals(id)) {
+			try {
+				return Long.parseLong(value.substring(separator + 1, value.length() - 1));
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+		throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "If-Match " + ifMatch + " does not match analysis " + id);
+	}
+
+}
@@ -0,0 +1,40 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+
+/**
+ * Modules Boot registers with every ObjectMapper it builds (json, and the Smile mapper of {@link WebMvcConfiguration}).
+ */
+@Configuration
+public class JacksonConfiguration {
+
+	/**
+	 * Replaces reflective getter and setter calls on the domain classes with generated bytecode.
+	 */
+	@Bean
+	@ConditionalOnProperty(name="piet.json.afterburner", havingValue="true", matchIfMissing=true)
+	public Module afterburnerModule() {
+		return new AfterburnerModule();
+	}
+
+}
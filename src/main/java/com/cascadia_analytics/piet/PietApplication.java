@@ -19,11 +19,19 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
 import org.springframework.retry.annotation.EnableRetry;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EnableRetry
+@EnableScheduling
 public class PietApplication extends SpringBootServletInitializer {
 
+	/**
+	 * Profile that serves the API from WebFlux handlers and reactive mongo repositories instead of the servlet controllers.
+	 * Only meaningful when running the executable war; a war deployed to a servlet container is always servlet-based.
+	 */
+	public static final String REACTIVE_PROFILE = "reactive";
+
 	public static void main(String ... args) {
 		SpringApplication.run(PietApplication.class, args);
 	}
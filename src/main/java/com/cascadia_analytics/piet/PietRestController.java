@@ -15,38 +15,99 @@
 
 package com.cascadia_analytics.piet;
 
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.retry.annotation.Retryable;
 import org.springframework.retry.annotation.Backoff;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisImportReport;
+import com.cascadia_analytics.piet.domain.AnalysisSummaryPage;
+import com.cascadia_analytics.piet.domain.BatchItemResult;
+import com.cascadia_analytics.piet.domain.DatasetRef;
 import com.cascadia_analytics.piet.domain.IdContainer;
+import com.cascadia_analytics.piet.domain.IdsContainer;
 import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.query.ResultSnapshotService;
+import com.cascadia_analytics.piet.repository.AnalysisNearCache;
+import com.cascadia_analytics.piet.repository.AnalysisPatch;
 import com.cascadia_analytics.piet.repository.AnalysisRepository;
+import com.cascadia_analytics.piet.repository.AnalysisRepositoryCustom;
+import com.cascadia_analytics.piet.repository.AnalysisSummarySort;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 @RestController
+@Profile("!" + PietApplication.REACTIVE_PROFILE)
 public class PietRestController {
 
 	private final Log log = LogFactory.getLog(PietRestController.class);
 	private static final int MONGO_RETRY_ATTEMPTS = 3;
 	private static final int MONGO_RETRY_WAIT = 3000;
+	static final int DEFAULT_SUMMARY_PAGE_SIZE = 50;
+	static final int MAX_SUMMARY_PAGE_SIZE = 500;
+	static final int MAX_BATCH_SIZE = 1000;
+	static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+	static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+	static final String APPLICATION_JSON_PATCH_VALUE = "application/json-patch+json";
+	static final String APPLICATION_MERGE_PATCH_VALUE = "application/merge-patch+json";
+	static final MediaType APPLICATION_GZIP = MediaType.parseMediaType("application/gzip");
 
 	private AnalysisRepository analysisRepository;
 
 	@Autowired
 	private PietConfiguration pietConfiguration;
 
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private AnalysisNearCache analysisNearCache;
+
+	@Autowired
+	private ResultSnapshotService resultSnapshotService;
+
+	@Autowired
+	private AnalysisImporter analysisImporter;
+
 	public PietRestController() {
 		log.info("PietRestController initializing.");
 		log.info("NOTE: If mongodb is not available, you will see a stack trace in the logs immediately below. " + MONGO_RETRY_ATTEMPTS + " reconnection attempt(s) will be made every " + MONGO_RETRY_WAIT + " milliseconds. (This typically happens when running under docker-compose).");
@@ -59,52 +120,269 @@ public class PietRestController {
 	}
 
 	@GetMapping(path="/config", produces="application/json")
-	public PietConfiguration getConfiguration() throws Exception {
-		return pietConfiguration;
+	public ResponseEntity<PietConfiguration> getConfiguration() throws Exception {
+		// configuration only changes when the application is restarted, so let browsers cache it
+		return ResponseEntity.ok()
+				.cacheControl(CacheControl.maxAge(pietConfiguration.getConfigMaxAgeSeconds(), TimeUnit.SECONDS))
+				.eTag(ETags.configuration(pietConfiguration))
+				.body(pietConfiguration);
 	}
 
-	@GetMapping(path="/analyses", produces="application/json")
-	public Analysis[] getAnalyses() throws Exception {
+	@GetMapping(path="/analyses", produces={ "application/json", Smile.APPLICATION_SMILE_VALUE })
+	public Analysis[] getAnalyses(WebRequest request) throws Exception {
+		// the fingerprint is far cheaper than loading every analysis, so polling clients that already have the list get a 304
+		if (request.checkNotModified(ETags.analyses(analysisRepository.getCollectionFingerprint()))) {
+			return null;
+		}
+		// clients that only need to list analyses should use /analyses/summary, and GET /analysis for the one the user opens
 		Analysis[] ret = analysisRepository.findAll().toArray(new Analysis[0]);
-		// TODO: handle read counter...actually need to rethink this and return just "summary attributes"
-		//  on browseAnalyses(), then use GET /analysis by id to get the specific one requested by user.
 		return ret;
 	}
 
-	@GetMapping(path="/analysis", produces="application/json")
-	public Analysis getAnalysis(String id) throws Exception {
-		Analysis ret = null;
-		Optional<Analysis> foundAnalysis = analysisRepository.findById(id);
-		if (foundAnalysis.isPresent()) {
-			ret = saveAnalysis(foundAnalysis.get(), true, false);
+	@GetMapping(path="/analyses/summary", produces="application/json")
+	public AnalysisSummaryPage getAnalysisSummaries(
+			@RequestParam(defaultValue="UPDATE_DATE_TIME") AnalysisSummarySort sort,
+			@RequestParam(required=false) String cursor,
+			@RequestParam(defaultValue="" + DEFAULT_SUMMARY_PAGE_SIZE) int limit) throws Exception {
+		if (limit < 1 || limit > MAX_SUMMARY_PAGE_SIZE) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_SUMMARY_PAGE_SIZE);
+		}
+		try {
+			return analysisRepository.findSummaries(sort, cursor, limit);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+	}
+
+	@GetMapping(path="/analyses/search", produces="application/json")
+	public AnalysisSummaryPage searchAnalyses(
+			@RequestParam String q,
+			@RequestParam(required=false) String datasetId,
+			@RequestParam(required=false) String cube,
+			@RequestParam(required=false) String cursor,
+			@RequestParam(defaultValue="" + DEFAULT_SUMMARY_PAGE_SIZE) int limit) throws Exception {
+		if (limit < 1 || limit > MAX_SUMMARY_PAGE_SIZE) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_SUMMARY_PAGE_SIZE);
+		}
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId(datasetId);
+		datasetRef.setCube(cube);
+		try {
+			return analysisRepository.searchSummaries(q, datasetRef, cursor, limit);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+	}
+
+	@GetMapping(path="/analysis", produces={ "application/json", Smile.APPLICATION_SMILE_VALUE })
+	public Analysis getAnalysis(String id, WebRequest request) throws Exception {
+		Analysis ret = analysisNearCache.findAndIncrementReadCounter(id);
+		// the read still counts when the client's copy is current; the counter is not part of the ETag
+		if (ret != null && request.checkNotModified(ETags.analysis(ret), ret.getUpdateDateTime() == null ? -1 : ret.getUpdateDateTime().getTime())) {
+			return null;
 		}
 		return ret;
 	}
 
 	@PostMapping(path="/analysis", consumes="application/json", produces="application/json")
-	public IdContainer saveAnalysis(@RequestBody Analysis analysis) throws Exception {
-		Analysis savedAnalysis = saveAnalysis(analysis, false, true);
-		return new IdContainer(savedAnalysis.getId());
+	public ResponseEntity<IdContainer> saveAnalysis(@RequestBody Analysis analysis,
+			@RequestHeader(name=HttpHeaders.IF_MATCH, required=false) String ifMatch) throws Exception {
+		if (ifMatch != null) {
+			applyIfMatch(analysis, ifMatch);
+		} else if (analysis.getId() != null && analysis.getVersion() == null) {
+			// clients that predate versioning keep last-writer-wins behavior
+			analysisRepository.findById(analysis.getId()).ifPresent(current -> analysis.setVersion(AnalysisRepositoryCustom.storedVersion(current)));
+		}
+		stampClientSave(analysis, new Date());
+		Analysis savedAnalysis;
+		try {
+			savedAnalysis = analysisRepository.saveExceptReadCounter(analysis);
+		} catch (OptimisticLockingFailureException | DuplicateKeyException e) {
+			throw new ResponseStatusException(ifMatch == null ? HttpStatus.CONFLICT : HttpStatus.PRECONDITION_FAILED,
+					"Analysis " + analysis.getId() + " was modified by another client", e);
+		}
+		analysisNearCache.invalidate(savedAnalysis.getId());
+		return ResponseEntity.ok()
+				.eTag(ETags.analysis(savedAnalysis))
+				.body(new IdContainer(savedAnalysis.getId(), savedAnalysis.getVersion()));
 	}
 
-	private Analysis saveAnalysis(Analysis analysis, boolean updateReadCounter, boolean updateTime) {
-		Date now = new Date();
-		if (analysis.getCreateDateTime() == null) {
-			analysis.setCreateDateTime(now);
-		}
-		if (updateTime) {
-			analysis.setUpdateDateTime(now);
+	/**
+	 * Partially update an analysis with a JSON Patch or a merge patch, which is translated into an update of just the fields
+	 * it changes where possible. If-Match is required, so a patch only applies to the version the client has seen (or, with *,
+	 * to whatever version is stored).
+	 */
+	@PatchMapping(path="/analysis/{id}", consumes={ APPLICATION_JSON_PATCH_VALUE, APPLICATION_MERGE_PATCH_VALUE }, produces="application/json")
+	public ResponseEntity<IdContainer> patchAnalysis(@PathVariable String id, @RequestBody JsonNode body,
+			@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+			@RequestHeader(name=HttpHeaders.IF_MATCH, required=false) String ifMatch) throws Exception {
+		Long version = patchVersion(ifMatch, id);
+		AnalysisPatch patch = readPatch(MediaType.parseMediaType(contentType), body);
+		Analysis patchedAnalysis;
+		try {
+			patchedAnalysis = analysisRepository.patch(id, version, patch, new Date());
+		} catch (AnalysisPatch.NotApplicableException e) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage(), e);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
 		}
-		if (updateReadCounter) {
-			analysis.setReadCounter(analysis.getReadCounter() + 1);
+		if (patchedAnalysis == null) {
+			throw analysisRepository.existsById(id) ? new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "Analysis " + id + " was modified by another client")
+					: new ResponseStatusException(HttpStatus.NOT_FOUND, "Analysis " + id + " does not exist");
 		}
-		Analysis savedAnalysis = analysisRepository.save(analysis);
-		return savedAnalysis;
+		analysisNearCache.invalidate(id);
+		return ResponseEntity.ok()
+				.eTag(ETags.analysis(patchedAnalysis))
+				.body(new IdContainer(id, patchedAnalysis.getVersion()));
 	}
 
 	@DeleteMapping(path="/analysis/{id}")
 	public void deleteAnalysis(@PathVariable String id) throws Exception {
 		analysisRepository.deleteById(id);
+		analysisNearCache.invalidate(id);
+		resultSnapshotService.delete(id);
+	}
+
+	/**
+	 * Retrieve a batch of analyses, counting a read of each unless countReads is false (for lookups, like listing search
+	 * results, that aren't someone opening the analysis).
+	 */
+	@PostMapping(path="/analyses:batchGet", consumes="application/json", produces={ "application/json", Smile.APPLICATION_SMILE_VALUE })
+	public BatchItemResult[] batchGetAnalyses(@RequestBody IdsContainer ids, @RequestParam(defaultValue="true") boolean countReads) throws Exception {
+		List<String> idList = checkBatch(ids.getIds());
+		Iterable<Analysis> analyses = countReads ? analysisRepository.findAllAndIncrementReadCounters(idList) : analysisRepository.findAllById(idList);
+		Map<String, Analysis> found = StreamSupport.stream(analyses.spliterator(), false)
+				.collect(Collectors.toMap(Analysis::getId, Function.identity()));
+		return idList.stream().map(id -> {
+			Analysis analysis = found.get(id);
+			BatchItemResult ret = new BatchItemResult(id, analysis == null ? BatchItemResult.STATUS_NOT_FOUND : BatchItemResult.STATUS_OK);
+			ret.setAnalysis(analysis);
+			return ret;
+		}).toArray(BatchItemResult[]::new);
+	}
+
+	@PostMapping(path="/analyses:batchSave", consumes="application/json", produces="application/json")
+	public BatchItemResult[] batchSaveAnalyses(@RequestBody Analysis[] analyses) throws Exception {
+		List<Analysis> analysisList = checkBatch(analyses);
+		Date now = new Date();
+		analysisList.forEach(analysis -> stampClientSave(analysis, now));
+		List<String> errors = analysisRepository.bulkSave(analysisList);
+		analysisNearCache.invalidate(analysisList.stream().map(Analysis::getId).collect(Collectors.toList()));
+		BatchItemResult[] ret = new BatchItemResult[analyses.length];
+		for (int i=0;i < ret.length;i++) {
+			ret[i] = new BatchItemResult(analyses[i].getId(), errors.get(i) == null ? BatchItemResult.STATUS_OK : BatchItemResult.STATUS_FAILED);
+			ret[i].setMessage(errors.get(i));
+		}
+		return ret;
+	}
+
+	@PostMapping(path="/analyses:batchDelete", consumes="application/json", produces="application/json")
+	public BatchItemResult[] batchDeleteAnalyses(@RequestBody IdsContainer ids) throws Exception {
+		List<String> idList = checkBatch(ids.getIds());
+		Set<String> deleted = analysisRepository.bulkDelete(idList);
+		analysisNearCache.invalidate(deleted);
+		resultSnapshotService.delete(deleted);
+		return idList.stream()
+				.map(id -> new BatchItemResult(id, deleted.contains(id) ? BatchItemResult.STATUS_OK : BatchItemResult.STATUS_NOT_FOUND))
+				.toArray(BatchItemResult[]::new);
+	}
+
+	/**
+	 * Stream every analysis as newline-delimited json, straight from a mongo cursor, so the export runs in constant memory.
+	 */
+	@GetMapping(path="/analyses/export")
+	public ResponseEntity<StreamingResponseBody> exportAnalyses(@RequestParam(defaultValue="false") boolean gzip) throws Exception {
+		// flushing after each analysis would send a chunk per analysis
+		ObjectWriter writer = objectMapper.writerFor(Analysis.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		StreamingResponseBody body = outputStream -> {
+			GZIPOutputStream gzipOutputStream = gzip ? new GZIPOutputStream(outputStream, TRANSFER_BUFFER_SIZE) : null;
+			try (CloseableIterator<Analysis> analyses = analysisRepository.streamAll();
+					JsonGenerator generator = objectMapper.getFactory().createGenerator(gzip ? gzipOutputStream : outputStream)) {
+				// the servlet container owns the response stream
+				generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				while (analyses.hasNext()) {
+					writer.writeValue(generator, analyses.next());
+					generator.writeRaw('\n');
+				}
+			}
+			if (gzipOutputStream != null) {
+				gzipOutputStream.finish();
+			}
+		};
+		return ResponseEntity.ok()
+				.contentType(gzip ? APPLICATION_GZIP : APPLICATION_NDJSON)
+				.header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+						.filename(gzip ? "analyses.ndjson.gz" : "analyses.ndjson").build().toString())
+				.body(body);
+	}
+
+	/**
+	 * Import newline-delimited json, as produced by export (see {@link AnalysisImporter}).
+	 */
+	@PostMapping(path="/analyses/import", consumes={ "application/x-ndjson", "application/gzip", "application/octet-stream" }, produces="application/json")
+	public AnalysisImportReport importAnalyses(InputStream inputStream) throws Exception {
+		return analysisImporter.importAnalyses(inputStream);
+	}
+
+	/**
+	 * Make the save conditional on the If-Match header: * requires that the analysis exists, and an ETag from GET /analysis
+	 * requires that it is still at that version. The save itself enforces the version, so there's no race.
+	 */
+	private void applyIfMatch(Analysis analysis, String ifMatch) {
+		Long version = ETags.ifMatchVersion(ifMatch, analysis.getId());
+		if (version != null) {
+			analysis.setVersion(version);
+			return;
+		}
+		Analysis current = analysis.getId() == null ? null : analysisRepository.findById(analysis.getId()).orElse(null);
+		if (current == null) {
+			throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "Analysis does not exist");
+		}
+		if (analysis.getVersion() == null) {
+			analysis.setVersion(AnalysisRepositoryCustom.storedVersion(current));
+		}
+	}
+
+	/**
+	 * @return the version a patch applies to, from the (required) If-Match header, or null if it applies to any version
+	 */
+	static Long patchVersion(String ifMatch, String id) {
+		if (ifMatch == null) {
+			throw new ResponseStatusException(HttpStatus.PRECONDITION_REQUIRED, "Patching an analysis requires an If-Match header");
+		}
+		return ETags.ifMatchVersion(ifMatch, id);
+	}
+
+	static AnalysisPatch readPatch(MediaType contentType, JsonNode body) {
+		try {
+			if (contentType.isCompatibleWith(MediaType.parseMediaType(APPLICATION_MERGE_PATCH_VALUE))) {
+				return AnalysisPatch.mergePatch(body);
+			} else if (contentType.isCompatibleWith(MediaType.parseMediaType(APPLICATION_JSON_PATCH_VALUE))) {
+				return AnalysisPatch.jsonPatch(body);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+		throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "An analysis patch must be " + APPLICATION_JSON_PATCH_VALUE + " or " + APPLICATION_MERGE_PATCH_VALUE);
+	}
+
+	/**
+	 * Set the dates of an analysis a client is saving. The read counter is the server's: a client's value is ignored, and the
+	 * stored counter is kept (or starts at 0 for a new analysis).
+	 */
+	static void stampClientSave(Analysis analysis, Date now) {
+		if (analysis.getCreateDateTime() == null) {
+			analysis.setCreateDateTime(now);
+		}
+		analysis.setUpdateDateTime(now);
+		analysis.setReadCounter(0);
+	}
+
+	static <T> List<T> checkBatch(T[] items) {
+		if (items == null || items.length > MAX_BATCH_SIZE) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A batch must contain at most " + MAX_BATCH_SIZE + " items");
+		}
+		return Arrays.asList(items);
 	}
 
 
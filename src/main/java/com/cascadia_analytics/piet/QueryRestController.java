@@ -0,0 +1,291 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.MondrianQuery;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.PrewarmReport;
+import com.cascadia_analytics.piet.domain.QueryCacheStatistics;
+import com.cascadia_analytics.piet.domain.ResultHandle;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+import com.cascadia_analytics.piet.domain.ResultWindow;
+import com.cascadia_analytics.piet.query.DatasetCatalog;
+import com.cascadia_analytics.piet.query.DatasetMetadataService;
+import com.cascadia_analytics.piet.query.MondrianQueryService;
+import com.cascadia_analytics.piet.query.MondrianRestException;
+import com.cascadia_analytics.piet.query.QueryAdmissionController;
+import com.cascadia_analytics.piet.query.QueryCachePrewarmer;
+import com.cascadia_analytics.piet.query.QueryRejectedException;
+import com.cascadia_analytics.piet.query.ResultExport;
+import com.cascadia_analytics.piet.query.ResultSnapshotService;
+import com.cascadia_analytics.piet.query.ResultWindowService;
+import com.cascadia_analytics.piet.repository.AnalysisNearCache;
+
+/**
+ * Proxies MDX queries to mondrian-rest, and executes the queries of saved analyses, so that results can be shared
+ * across users via the server-side cache (or from a stored snapshot of the result). Also serves the (cached) metadata of
+ * the datasets mondrian-rest exposes.
+ */
+@RestController
+@Profile("!" + PietApplication.REACTIVE_PROFILE)
+public class QueryRestController {
+
+	@Autowired
+	private MondrianQueryService mondrianQueryService;
+
+	@Autowired
+	private PietConfiguration pietConfiguration;
+
+	@Autowired
+	private QueryCachePrewarmer queryCachePrewarmer;
+
+	@Autowired
+	private AnalysisNearCache analysisNearCache;
+
+	@Autowired
+	private DatasetMetadataService datasetMetadataService;
+
+	@Autowired
+	private ResultSnapshotService resultSnapshotService;
+
+	@Autowired
+	private ResultWindowService resultWindowService;
+
+	@PostMapping(path="/query", consumes="application/json", produces={ "application/json", Smile.APPLICATION_SMILE_VALUE })
+	public String executeQuery(@RequestBody MondrianQuery query, HttpServletRequest request) throws Exception {
+		if (query.getConnectionName() == null || query.getQuery() == null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "connectionName and query are required");
+		}
+		return mondrianQueryService.executeQuery(query.getConnectionName(), query.getQuery(), queryUser(request, pietConfiguration));
+	}
+
+	/**
+	 * Execute a query and hold its result on the server, to be read in windows with GET /result/{handle}.
+	 */
+	@PostMapping(path="/result", consumes="application/json", produces="application/json")
+	public ResponseEntity<ResultHandle> openResult(@RequestBody MondrianQuery query, HttpServletRequest request) throws Exception {
+		if (query.getConnectionName() == null || query.getQuery() == null) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "connectionName and query are required");
+		}
+		ResultHandle handle;
+		try {
+			handle = resultWindowService.open(query.getConnectionName(), query.getQuery(), queryUser(request, pietConfiguration));
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e);
+		}
+		return ResponseEntity.created(ServletUriComponentsBuilder.fromCurrentRequest().path("/{handle}").buildAndExpand(handle.getHandle()).toUri())
+				.body(handle);
+	}
+
+	@GetMapping(path="/result/{handle}", produces={ "application/json", Smile.APPLICATION_SMILE_VALUE })
+	public ResultWindow getResultWindow(@PathVariable String handle,
+			@RequestParam(defaultValue="0") int rowOffset, @RequestParam(required=false) Integer rowLimit,
+			@RequestParam(defaultValue="0") int columnOffset, @RequestParam(required=false) Integer columnLimit) throws Exception {
+		ResultWindow ret;
+		try {
+			ret = resultWindowService.getWindow(handle, rowOffset, rowLimit, columnOffset, columnLimit);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+		if (ret == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No result with handle " + handle + "; it may have expired");
+		}
+		return ret;
+	}
+
+	@DeleteMapping(path="/result/{handle}")
+	public void releaseResult(@PathVariable String handle) throws Exception {
+		resultWindowService.release(handle);
+	}
+
+	@GetMapping(path="/analysis/{id}/result", produces={ "application/json", Smile.APPLICATION_SMILE_VALUE })
+	public ResponseEntity<String> getAnalysisResult(@PathVariable String id, WebRequest request, HttpServletRequest servletRequest) throws Exception {
+		Analysis analysis = findAnalysis(id);
+		Optional<ResultSnapshot> snapshot = resultSnapshotService.findCurrent(analysis);
+		if (snapshot.isPresent()) {
+			if (request.checkNotModified(ETags.resultSnapshot(snapshot.get()), snapshot.get().getCreateDateTime().getTime())) {
+				return null;
+			}
+			return ResponseEntity.ok(resultSnapshotService.getResult(snapshot.get()));
+		}
+		String result;
+		try {
+			result = mondrianQueryService.executeAnalysisQuery(analysis, queryUser(servletRequest, pietConfiguration));
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e);
+		}
+		return result == null ? ResponseEntity.noContent().build() : ResponseEntity.ok(result);
+	}
+
+	/**
+	 * Export the analysis's result (its snapshot, if it has a current one) as csv or an xlsx workbook, flattened to one
+	 * row per position of the rows axis. The result is streamed to the response as it is flattened.
+	 */
+	@GetMapping("/analysis/{id}/export")
+	public ResponseEntity<StreamingResponseBody> exportAnalysisResult(@PathVariable String id, @RequestParam(defaultValue="csv") String format,
+			HttpServletRequest servletRequest) throws Exception {
+		ResultExport.Format exportFormat;
+		try {
+			exportFormat = ResultExport.Format.of(format);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+		Analysis analysis = findAnalysis(id);
+		Optional<ResultSnapshot> snapshot = resultSnapshotService.findCurrent(analysis);
+		ResultExport export;
+		try {
+			String result = snapshot.isPresent() ? resultSnapshotService.getResult(snapshot.get()) :
+				mondrianQueryService.executeAnalysisQuery(analysis, queryUser(servletRequest, pietConfiguration));
+			if (result == null) {
+				return ResponseEntity.noContent().build();
+			}
+			export = ResultExport.of(result);
+			export.checkFits(exportFormat);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e);
+		} catch (IOException e) {
+			throw new MondrianRestException(HttpStatus.BAD_GATEWAY.value(), "{\"error\":\"unreadable mondrian-rest result\"}", e.getMessage(), e);
+		}
+		return ResponseEntity.ok()
+				.contentType(MediaType.parseMediaType(exportFormat.getMediaType()))
+				.header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+						.filename(ResultExport.fileName(analysis.getName(), exportFormat), StandardCharsets.UTF_8).build().toString())
+				.body(out -> export.write(exportFormat, out));
+	}
+
+	@GetMapping(path="/analysis/{id}/snapshot", produces="application/json")
+	public ResultSnapshot getResultSnapshot(@PathVariable String id) throws Exception {
+		return resultSnapshotService.findById(id).orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Analysis " + id + " has no result snapshot"));
+	}
+
+	/**
+	 * Snapshot the analysis's result now; GET /analysis/{id}/result serves the snapshot from then on, until the analysis is
+	 * next saved.
+	 */
+	@PutMapping(path="/analysis/{id}/snapshot", produces="application/json")
+	public ResultSnapshot takeResultSnapshot(@PathVariable String id, @RequestParam(required=false) Integer refreshIntervalSeconds,
+			@RequestParam(required=false) String dataVersion) throws Exception {
+		try {
+			return resultSnapshotService.takeSnapshot(findAnalysis(id), refreshIntervalSeconds, dataVersion);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e);
+		}
+	}
+
+	@DeleteMapping(path="/analysis/{id}/snapshot")
+	public void deleteResultSnapshot(@PathVariable String id) throws Exception {
+		resultSnapshotService.delete(id);
+	}
+
+	/**
+	 * Tell us that the data of a connection (or of all connections) has changed, so that snapshots taken from other versions
+	 * of the data are refreshed.
+	 */
+	@PostMapping(path="/snapshots:refresh", produces="application/json")
+	public ResultSnapshot[] refreshResultSnapshots(@RequestParam(required=false) String connectionName, @RequestParam String dataVersion) throws Exception {
+		return resultSnapshotService.refresh(connectionName, dataVersion).toArray(new ResultSnapshot[0]);
+	}
+
+	@GetMapping(path="/datasets", produces="application/json")
+	public String getDatasets(WebRequest request) throws Exception {
+		DatasetCatalog catalog = datasetMetadataService.getCatalog();
+		if (request.checkNotModified(ETags.datasets(catalog.getFingerprint()))) {
+			return null;
+		}
+		return catalog.getJson();
+	}
+
+	@GetMapping(path="/query/cache", produces="application/json")
+	public QueryCacheStatistics getCacheStatistics() throws Exception {
+		return mondrianQueryService.getCacheStatistics();
+	}
+
+	@DeleteMapping(path="/query/cache")
+	public void invalidateCache() throws Exception {
+		mondrianQueryService.invalidateAll();
+	}
+
+	@DeleteMapping(path="/query/cache/{connectionName}")
+	public void invalidateCache(@PathVariable String connectionName) throws Exception {
+		mondrianQueryService.invalidate(connectionName);
+	}
+
+	@GetMapping(path="/query/prewarm", produces="application/json")
+	public ResponseEntity<PrewarmReport> getPrewarmReport() throws Exception {
+		PrewarmReport report = queryCachePrewarmer.getLastReport();
+		return report == null ? ResponseEntity.noContent().build() : ResponseEntity.ok(report);
+	}
+
+	@PostMapping(path="/query/prewarm", produces="application/json")
+	public PrewarmReport prewarm() throws Exception {
+		return queryCachePrewarmer.prewarm();
+	}
+
+	private Analysis findAnalysis(String id) {
+		return analysisNearCache.findById(id).orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No analysis with id " + id));
+	}
+
+	/**
+	 * Identify the user a query is run for, so that admission control can share mondrian-rest fairly between users. The client
+	 * address is no use for this, as behind a proxy every user has the same one.
+	 */
+	static String queryUser(HttpServletRequest request, PietConfiguration pietConfiguration) {
+		String header = pietConfiguration.getAdmissionUserHeader();
+		String ret = header.isEmpty() ? null : request.getHeader(header);
+		if (ret == null) {
+			ret = request.getRemoteUser();
+		}
+		return ret == null ? QueryAdmissionController.ANONYMOUS_USER : ret;
+	}
+
+	@ExceptionHandler(MondrianRestException.class)
+	public ResponseEntity<String> handleMondrianRestException(MondrianRestException e) {
+		ResponseEntity.BodyBuilder builder = ResponseEntity.status(e.getStatus()).contentType(MediaType.APPLICATION_JSON);
+		if (e instanceof QueryRejectedException) {
+			builder.header(HttpHeaders.RETRY_AFTER, String.valueOf(((QueryRejectedException) e).getRetryAfterSeconds()));
+		}
+		return builder.body(e.getResponseBody());
+	}
+
+}
@@ -0,0 +1,420 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisSummaryPage;
+import com.cascadia_analytics.piet.domain.BatchItemResult;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.IdContainer;
+import com.cascadia_analytics.piet.domain.IdsContainer;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+import com.cascadia_analytics.piet.repository.AnalysisNearCache;
+import com.cascadia_analytics.piet.repository.AnalysisPatch;
+import com.cascadia_analytics.piet.repository.AnalysisRepositoryCustom;
+import com.cascadia_analytics.piet.repository.AnalysisSummarySort;
+import com.cascadia_analytics.piet.repository.ReactiveAnalysisRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Non-blocking counterpart of {@link PietRestController}, for the reactive profile. Behavior (status codes, ETags,
+ * versioning) is the same; in addition, the full list of analyses can be streamed as newline-delimited json. Single reads go
+ * through the same {@link AnalysisNearCache} as the servlet controller, so reads are counted the same way in both modes.
+ */
+@Component
+@Profile(PietApplication.REACTIVE_PROFILE)
+public class ReactiveAnalysisHandler {
+
+	static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+	// saves in a batch run concurrently, as the reactive template has no bulk write
+	private static final int BATCH_SAVE_CONCURRENCY = 16;
+
+	@Autowired
+	private ReactiveAnalysisRepository analysisRepository;
+
+	@Autowired
+	private PietConfiguration pietConfiguration;
+
+	@Autowired
+	private ReactiveMongoOperations reactiveMongoOperations;
+
+	@Autowired
+	private AnalysisNearCache analysisNearCache;
+
+	@Autowired
+	private AnalysisImporter analysisImporter;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	public Mono<ServerResponse> getConfiguration(ServerRequest request) {
+		return ServerResponse.ok()
+				.cacheControl(CacheControl.maxAge(pietConfiguration.getConfigMaxAgeSeconds(), TimeUnit.SECONDS))
+				.eTag(ETags.configuration(pietConfiguration))
+				.contentType(MediaType.APPLICATION_JSON)
+				.bodyValue(pietConfiguration);
+	}
+
+	public Mono<ServerResponse> getAnalyses(ServerRequest request) {
+		return analysisRepository.getCollectionFingerprint().flatMap(fingerprint -> {
+			String eTag = ETags.analyses(fingerprint);
+			if (request.exchange().checkNotModified(eTag)) {
+				return ServerResponse.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+			}
+			// stream analyses to clients that accept it, rather than buffering the whole list
+			boolean stream = request.headers().accept().stream().anyMatch(APPLICATION_NDJSON::isCompatibleWith);
+			return ServerResponse.ok()
+					.eTag(eTag)
+					.varyBy(HttpHeaders.ACCEPT)
+					.contentType(stream ? APPLICATION_NDJSON : jsonOrSmile(request))
+					.body(analysisRepository.findAll(), Analysis.class);
+		});
+	}
+
+	public Mono<ServerResponse> getAnalysisSummaries(ServerRequest request) {
+		return Mono.fromCallable(() -> AnalysisSummarySort.valueOf(request.queryParam("sort").orElse(AnalysisSummarySort.UPDATE_DATE_TIME.name())))
+				.flatMap(sort -> analysisRepository.findSummaries(sort, request.queryParam("cursor").orElse(null), limit(request)))
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+				.flatMap(page -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(page));
+	}
+
+	public Mono<ServerResponse> searchAnalyses(ServerRequest request) {
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId(request.queryParam("datasetId").orElse(null));
+		datasetRef.setCube(request.queryParam("cube").orElse(null));
+		Mono<AnalysisSummaryPage> page = Mono.defer(() -> {
+			String q = request.queryParam("q").orElseThrow(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "q is required"));
+			return analysisRepository.searchSummaries(q, datasetRef, request.queryParam("cursor").orElse(null), limit(request));
+		});
+		return page
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+				.flatMap(p -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(p));
+	}
+
+	public Mono<ServerResponse> getAnalysis(ServerRequest request) {
+		return Mono.justOrEmpty(request.queryParam("id"))
+				.flatMap(id -> analysisNearCache.findAndIncrementReadCounter(id, analysisRepository))
+				.flatMap(analysis -> {
+					// conditional GETs are evaluated by the response itself, from its ETag and Last-Modified
+					ServerResponse.BodyBuilder builder = ServerResponse.ok().contentType(jsonOrSmile(request)).varyBy(HttpHeaders.ACCEPT);
+					if (analysis.getVersion() != null) {
+						builder.eTag(ETags.analysis(analysis));
+					}
+					if (analysis.getUpdateDateTime() != null) {
+						builder.lastModified(Instant.ofEpochMilli(analysis.getUpdateDateTime().getTime()));
+					}
+					return builder.bodyValue(analysis);
+				})
+				// as with the servlet controller, a missing analysis is an empty 200
+				.switchIfEmpty(ServerResponse.ok().build());
+	}
+
+	public Mono<ServerResponse> saveAnalysis(ServerRequest request) {
+		String ifMatch = request.headers().asHttpHeaders().getFirst(HttpHeaders.IF_MATCH);
+		return request.bodyToMono(Analysis.class)
+				.flatMap(analysis -> resolveVersion(analysis, ifMatch))
+				.flatMap(analysis -> {
+					PietRestController.stampClientSave(analysis, new Date());
+					return analysisRepository.saveExceptReadCounter(analysis)
+							.doOnNext(saved -> analysisNearCache.invalidate(saved.getId()))
+							.onErrorMap(e -> e instanceof OptimisticLockingFailureException || e instanceof DuplicateKeyException,
+									e -> new ResponseStatusException(ifMatch == null ? HttpStatus.CONFLICT : HttpStatus.PRECONDITION_FAILED,
+											"Analysis " + analysis.getId() + " was modified by another client", e));
+				})
+				.flatMap(saved -> ServerResponse.ok()
+						.eTag(ETags.analysis(saved))
+						.contentType(MediaType.APPLICATION_JSON)
+						.bodyValue(new IdContainer(saved.getId(), saved.getVersion())));
+	}
+
+	public Mono<ServerResponse> patchAnalysis(ServerRequest request) {
+		String id = request.pathVariable("id");
+		String ifMatch = request.headers().asHttpHeaders().getFirst(HttpHeaders.IF_MATCH);
+		MediaType contentType = request.headers().contentType().orElse(MediaType.APPLICATION_JSON);
+		return request.bodyToMono(JsonNode.class)
+				.flatMap(body -> {
+					Long version = PietRestController.patchVersion(ifMatch, id);
+					return analysisRepository.patch(id, version, PietRestController.readPatch(contentType, body), new Date());
+				})
+				.doOnNext(patched -> analysisNearCache.invalidate(id))
+				.onErrorMap(AnalysisPatch.NotApplicableException.class, e -> new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage(), e))
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+				.switchIfEmpty(Mono.defer(() -> analysisRepository.existsById(id).flatMap(exists -> Mono.error(exists
+						? new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "Analysis " + id + " was modified by another client")
+						: new ResponseStatusException(HttpStatus.NOT_FOUND, "Analysis " + id + " does not exist")))))
+				.flatMap(patched -> ServerResponse.ok()
+						.eTag(ETags.analysis(patched))
+						.contentType(MediaType.APPLICATION_JSON)
+						.bodyValue(new IdContainer(id, patched.getVersion())));
+	}
+
+	public Mono<ServerResponse> deleteAnalysis(ServerRequest request) {
+		String id = request.pathVariable("id");
+		return analysisRepository.deleteById(id)
+				.doOnSuccess(v -> analysisNearCache.invalidate(id))
+				.then(deleteResultSnapshots(Collections.singleton(id)))
+				.then(ServerResponse.ok().build());
+	}
+
+	public Mono<ServerResponse> batchGetAnalyses(ServerRequest request) {
+		return request.bodyToMono(IdsContainer.class)
+				.map(ids -> PietRestController.checkBatch(ids.getIds()))
+				.flatMap(idList -> (countReads(request) ? analysisRepository.findAllAndIncrementReadCounters(idList) : analysisRepository.findAllById(idList))
+						.collectMap(Analysis::getId)
+						.map(found -> idList.stream().map(id -> {
+							Analysis analysis = found.get(id);
+							BatchItemResult ret = new BatchItemResult(id, analysis == null ? BatchItemResult.STATUS_NOT_FOUND : BatchItemResult.STATUS_OK);
+							ret.setAnalysis(analysis);
+							return ret;
+						}).toArray(BatchItemResult[]::new)))
+				.flatMap(results -> ServerResponse.ok().contentType(jsonOrSmile(request)).varyBy(HttpHeaders.ACCEPT).bodyValue(results));
+	}
+
+	private static boolean countReads(ServerRequest request) {
+		return request.queryParam("countReads").map(Boolean::parseBoolean).orElse(true);
+	}
+
+	public Mono<ServerResponse> batchSaveAnalyses(ServerRequest request) {
+		Date now = new Date();
+		return request.bodyToMono(Analysis[].class)
+				.map(PietRestController::checkBatch)
+				.flatMapMany(analyses -> Flux.fromIterable(analyses).flatMapSequential(analysis -> {
+					PietRestController.stampClientSave(analysis, now);
+					return resolveVersion(analysis, null)
+							.flatMap(analysisRepository::saveExceptReadCounter)
+							.doOnNext(saved -> analysisNearCache.invalidate(saved.getId()))
+							.map(saved -> new BatchItemResult(saved.getId(), BatchItemResult.STATUS_OK))
+							.onErrorResume(e -> {
+								BatchItemResult ret = new BatchItemResult(analysis.getId(), BatchItemResult.STATUS_FAILED);
+								ret.setMessage(e instanceof OptimisticLockingFailureException || e instanceof DuplicateKeyException ?
+										"Version conflict: the analysis was modified by another client" : e.getMessage());
+								return Mono.just(ret);
+							});
+				}, BATCH_SAVE_CONCURRENCY))
+				.collectList()
+				.flatMap(results -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(results));
+	}
+
+	public Mono<ServerResponse> batchDeleteAnalyses(ServerRequest request) {
+		return request.bodyToMono(IdsContainer.class)
+				.map(ids -> PietRestController.checkBatch(ids.getIds()))
+				.flatMap(idList -> analysisRepository.bulkDelete(idList)
+						.doOnNext(analysisNearCache::invalidate)
+						.flatMap(deleted -> deleteResultSnapshots(deleted).thenReturn(deleted))
+						.map(deleted -> idList.stream()
+								.map(id -> new BatchItemResult(id, deleted.contains(id) ? BatchItemResult.STATUS_OK : BatchItemResult.STATUS_NOT_FOUND))
+								.toArray(BatchItemResult[]::new)))
+				.flatMap(results -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(results));
+	}
+
+	/**
+	 * Stream every analysis as newline-delimited json, optionally gzipped, straight from a mongo cursor.
+	 */
+	public Mono<ServerResponse> exportAnalyses(ServerRequest request) {
+		boolean gzip = request.queryParam("gzip").map(Boolean::parseBoolean).orElse(false);
+		ObjectWriter writer = objectMapper.writerFor(Analysis.class);
+		Flux<byte[]> lines = analysisRepository.findAll().map(analysis -> {
+			try {
+				ByteArrayOutputStream line = new ByteArrayOutputStream();
+				writer.writeValue(line, analysis);
+				line.write('\n');
+				return line.toByteArray();
+			} catch (Exception e) {
+				throw Exceptions.propagate(e);
+			}
+		});
+		DataBufferFactory bufferFactory = request.exchange().getResponse().bufferFactory();
+		return ServerResponse.ok()
+				.contentType(gzip ? PietRestController.APPLICATION_GZIP : APPLICATION_NDJSON)
+				.header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+						.filename(gzip ? "analyses.ndjson.gz" : "analyses.ndjson").build().toString())
+				.body(BodyInserters.fromDataBuffers((gzip ? gzip(lines) : lines).map(bufferFactory::wrap)));
+	}
+
+	/**
+	 * Compress chunks into one gzip stream, emitting compressed bytes as the deflater produces them.
+	 */
+	private static Flux<byte[]> gzip(Flux<byte[]> chunks) {
+		return Flux.defer(() -> {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			return Flux.using(() -> new GZIPOutputStream(compressed, PietRestController.TRANSFER_BUFFER_SIZE),
+					gzipOutputStream -> chunks
+							.concatMap(chunk -> Mono.fromCallable(() -> {
+								gzipOutputStream.write(chunk);
+								return drain(compressed);
+							}))
+							.concatWith(Mono.fromCallable(() -> {
+								gzipOutputStream.finish();
+								return drain(compressed);
+							}))
+							.filter(bytes -> bytes.length > 0),
+					gzipOutputStream -> {
+						try {
+							gzipOutputStream.close();
+						} catch (Exception e) {
+							// nothing left to write to
+						}
+					});
+		});
+	}
+
+	private static byte[] drain(ByteArrayOutputStream bytes) {
+		byte[] ret = bytes.toByteArray();
+		bytes.reset();
+		return ret;
+	}
+
+	/**
+	 * Import newline-delimited json, as produced by export (see {@link AnalysisImporter}). The body is parsed incrementally
+	 * and written in bulk batches, but not reactively: the import holds a boundedElastic worker thread, blocked on the body and
+	 * on mongo, until it completes. Imports are occasional admin operations, so that's a worker for the length of one import,
+	 * not one per request.
+	 */
+	public Mono<ServerResponse> importAnalyses(ServerRequest request) {
+		MediaType contentType = request.headers().contentType().orElse(MediaType.APPLICATION_OCTET_STREAM);
+		if (!(APPLICATION_NDJSON.includes(contentType) || PietRestController.APPLICATION_GZIP.includes(contentType)
+				|| MediaType.APPLICATION_OCTET_STREAM.includes(contentType))) {
+			return Mono.error(new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "Imports are newline-delimited json, optionally gzipped"));
+		}
+		Flux<byte[]> body = request.body(BodyExtractors.toDataBuffers()).map(buffer -> {
+			byte[] ret = new byte[buffer.readableByteCount()];
+			buffer.read(ret);
+			DataBufferUtils.release(buffer);
+			return ret;
+		});
+		return blocking(() -> analysisImporter.importAnalyses(inputStream(body)))
+				.flatMap(report -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(report));
+	}
+
+	private static InputStream inputStream(Flux<byte[]> chunks) {
+		Iterator<byte[]> iterator = chunks.toIterable().iterator();
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			@Override
+			public boolean hasMoreElements() {
+				return iterator.hasNext();
+			}
+			@Override
+			public InputStream nextElement() {
+				return new ByteArrayInputStream(iterator.next());
+			}
+		});
+	}
+
+	private Mono<Void> deleteResultSnapshots(Collection<String> analysisIds) {
+		return reactiveMongoOperations.remove(Query.query(Criteria.where("_id").in(analysisIds)), ResultSnapshot.class).then();
+	}
+
+	/**
+	 * Same rules as the servlet controller: If-Match wins over the version in the body, and a body without a version
+	 * (from a client that predates versioning) replaces whatever is stored.
+	 */
+	private Mono<Analysis> resolveVersion(Analysis analysis, String ifMatch) {
+		if (ifMatch != null) {
+			Long version = ETags.ifMatchVersion(ifMatch, analysis.getId());
+			if (version != null) {
+				analysis.setVersion(version);
+				return Mono.just(analysis);
+			}
+			return (analysis.getId() == null ? Mono.<Analysis>empty() : analysisRepository.findById(analysis.getId()))
+					.switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "Analysis does not exist")))
+					.map(current -> {
+						if (analysis.getVersion() == null) {
+							analysis.setVersion(AnalysisRepositoryCustom.storedVersion(current));
+						}
+						return analysis;
+					});
+		}
+		if (analysis.getId() != null && analysis.getVersion() == null) {
+			return analysisRepository.findById(analysis.getId())
+					.map(current -> {
+						analysis.setVersion(AnalysisRepositoryCustom.storedVersion(current));
+						return analysis;
+					})
+					.defaultIfEmpty(analysis);
+		}
+		return Mono.just(analysis);
+	}
+
+	private static int limit(ServerRequest request) {
+		int ret;
+		try {
+			ret = request.queryParam("limit").map(Integer::parseInt).orElse(PietRestController.DEFAULT_SUMMARY_PAGE_SIZE);
+		} catch (NumberFormatException e) {
+			ret = -1;
+		}
+		if (ret < 1 || ret > PietRestController.MAX_SUMMARY_PAGE_SIZE) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + PietRestController.MAX_SUMMARY_PAGE_SIZE);
+		}
+		return ret;
+	}
+
+	private static <T> Mono<T> blocking(Callable<T> callable) {
+		return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+	}
+
+	/**
+	 * Analyses are also offered as Smile (see {@link Smile}).
+	 */
+	static MediaType jsonOrSmile(ServerRequest request) {
+		return Smile.accepted(request.headers().accept()) ? Smile.APPLICATION_SMILE : MediaType.APPLICATION_JSON;
+	}
+
+}
@@ -0,0 +1,170 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.domain.EntityScanner;
+import org.springframework.boot.autoconfigure.mongo.MongoProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.annotation.Persistent;
+import org.springframework.data.mapping.model.FieldNamingStrategy;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.index.ReactiveMongoPersistentEntityIndexCreator;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Routes and infrastructure for the reactive profile. Routes mirror the request mappings of the servlet controllers.
+ */
+@Configuration
+@Profile(PietApplication.REACTIVE_PROFILE)
+public class ReactiveConfiguration implements WebFluxConfigurer {
+
+	private final Log log = LogFactory.getLog(ReactiveConfiguration.class);
+
+	private static final int INDEX_CREATION_RETRY_ATTEMPTS = 5;
+	private static final Duration INDEX_CREATION_RETRY_WAIT = Duration.ofSeconds(3);
+
+	private final ObjectMapper objectMapper;
+
+	@Autowired
+	private MongoMappingContext mongoMappingContext;
+
+	@Autowired
+	private ReactiveMongoTemplate reactiveMongoTemplate;
+
+	public ReactiveConfiguration(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * Replaces Boot's mapping context (Boot 2.2 has no property for this) with one that has automatic index creation
+	 * turned off, so that neither template blocks startup creating indexes until mongo is reachable; see createIndexes().
+	 * Otherwise configured as Boot configures it.
+	 */
+	@Bean
+	public static MongoMappingContext mongoMappingContext(ApplicationContext applicationContext, MongoProperties properties,
+			MongoCustomConversions conversions) throws ClassNotFoundException {
+		MongoMappingContext context = new MongoMappingContext();
+		context.setAutoIndexCreation(false);
+		context.setInitialEntitySet(new EntityScanner(applicationContext).scan(Document.class, Persistent.class));
+		Class<?> fieldNamingStrategy = properties.getFieldNamingStrategy();
+		if (fieldNamingStrategy != null) {
+			context.setFieldNamingStrategy((FieldNamingStrategy) BeanUtils.instantiateClass(fieldNamingStrategy));
+		}
+		context.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+		return context;
+	}
+
+	/**
+	 * Automatic index creation is off in this profile (see mongoMappingContext()), so indexes are created in the
+	 * background once the application is up, with retries.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void createIndexes() {
+		ReactiveMongoPersistentEntityIndexCreator indexCreator = new ReactiveMongoPersistentEntityIndexCreator(mongoMappingContext, reactiveMongoTemplate::indexOps);
+		indexCreator.checkForIndexes(mongoMappingContext.getRequiredPersistentEntity(Analysis.class))
+				.then(indexCreator.checkForIndexes(mongoMappingContext.getRequiredPersistentEntity(ResultSnapshot.class)))
+				.retryBackoff(INDEX_CREATION_RETRY_ATTEMPTS, INDEX_CREATION_RETRY_WAIT)
+				.subscribe(null, e -> log.error("Unable to create indexes", e), () -> log.info("Indexes verified"));
+	}
+
+	/**
+	 * Tomcat is also on the classpath (for the servlet build), and Boot would otherwise prefer it.
+	 */
+	@Bean
+	public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+		return new NettyReactiveWebServerFactory();
+	}
+
+	@Bean
+	public RouterFunction<ServerResponse> pietRoutes(ReactiveAnalysisHandler analysisHandler, ReactiveQueryHandler queryHandler,
+			ReactiveDashboardHandler dashboardHandler) {
+		return RouterFunctions.route()
+				.GET("/config", analysisHandler::getConfiguration)
+				.GET("/analyses", analysisHandler::getAnalyses)
+				.GET("/analyses/summary", analysisHandler::getAnalysisSummaries)
+				.GET("/analyses/search", analysisHandler::searchAnalyses)
+				.GET("/analysis", analysisHandler::getAnalysis)
+				.POST("/analysis", analysisHandler::saveAnalysis)
+				.PATCH("/analysis/{id}", analysisHandler::patchAnalysis)
+				.DELETE("/analysis/{id}", analysisHandler::deleteAnalysis)
+				.POST("/analyses:batchGet", analysisHandler::batchGetAnalyses)
+				.POST("/analyses:batchSave", analysisHandler::batchSaveAnalyses)
+				.POST("/analyses:batchDelete", analysisHandler::batchDeleteAnalyses)
+				.GET("/analyses/export", analysisHandler::exportAnalyses)
+				.POST("/analyses/import", analysisHandler::importAnalyses)
+				.POST("/query", queryHandler::executeQuery)
+				.POST("/result", queryHandler::openResult)
+				.GET("/result/{handle}", queryHandler::getResultWindow)
+				.DELETE("/result/{handle}", queryHandler::releaseResult)
+				.GET("/analysis/{id}/result", queryHandler::getAnalysisResult)
+				.GET("/analysis/{id}/export", queryHandler::exportAnalysisResult)
+				.GET("/analysis/{id}/snapshot", queryHandler::getResultSnapshot)
+				.PUT("/analysis/{id}/snapshot", queryHandler::takeResultSnapshot)
+				.DELETE("/analysis/{id}/snapshot", queryHandler::deleteResultSnapshot)
+				.POST("/snapshots:refresh", queryHandler::refreshResultSnapshots)
+				.GET("/datasets", queryHandler::getDatasets)
+				.GET("/query/cache", queryHandler::getCacheStatistics)
+				.DELETE("/query/cache", queryHandler::invalidateCache)
+				.DELETE("/query/cache/{connectionName}", queryHandler::invalidateCache)
+				.GET("/query/prewarm", queryHandler::getPrewarmReport)
+				.POST("/query/prewarm", queryHandler::prewarm)
+				.GET("/dashboards", dashboardHandler::getDashboards)
+				.POST("/dashboard", dashboardHandler::saveDashboard)
+				.GET("/dashboard/{id}", dashboardHandler::getDashboard)
+				.DELETE("/dashboard/{id}", dashboardHandler::deleteDashboard)
+				.build();
+	}
+
+	/**
+	 * Spring 5.2 only streams application/stream+json; register application/x-ndjson as a streaming type too, so that
+	 * each analysis is written (and flushed) as its own line.
+	 */
+	@Override
+	public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+		Jackson2JsonEncoder encoder = new Jackson2JsonEncoder(objectMapper,
+				MediaType.APPLICATION_JSON, new MediaType("application", "*+json"), ReactiveAnalysisHandler.APPLICATION_NDJSON);
+		encoder.setStreamingMediaTypes(Arrays.asList(MediaType.APPLICATION_STREAM_JSON, ReactiveAnalysisHandler.APPLICATION_NDJSON));
+		configurer.defaultCodecs().jackson2JsonEncoder(encoder);
+	}
+
+}
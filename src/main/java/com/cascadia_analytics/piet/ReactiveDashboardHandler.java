@@ -0,0 +1,105 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.util.concurrent.Callable;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.cascadia_analytics.piet.domain.Dashboard;
+import com.cascadia_analytics.piet.domain.DashboardTile;
+import com.cascadia_analytics.piet.domain.IdContainer;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.query.DashboardService;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Counterpart of {@link DashboardRestController} for the reactive profile. Dashboards are loaded by the (blocking)
+ * {@link DashboardService} on the bounded elastic scheduler.
+ */
+@Component
+@Profile(PietApplication.REACTIVE_PROFILE)
+public class ReactiveDashboardHandler {
+
+	@Autowired
+	private DashboardService dashboardService;
+
+	@Autowired
+	private PietConfiguration pietConfiguration;
+
+	public Mono<ServerResponse> getDashboards(ServerRequest request) {
+		return blocking(() -> dashboardService.findAll().toArray(new Dashboard[0]))
+				.flatMap(dashboards -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(dashboards));
+	}
+
+	public Mono<ServerResponse> saveDashboard(ServerRequest request) {
+		return request.bodyToMono(Dashboard.class)
+				.flatMap(dashboard -> blocking(() -> dashboardService.save(dashboard)))
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+				.flatMap(saved -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(new IdContainer(saved.getId())));
+	}
+
+	public Mono<ServerResponse> deleteDashboard(ServerRequest request) {
+		String id = request.pathVariable("id");
+		return blocking(() -> {
+			dashboardService.delete(id);
+			return id;
+		}).then(ServerResponse.ok().build());
+	}
+
+	/**
+	 * @see DashboardRestController#getDashboard
+	 */
+	public Mono<ServerResponse> getDashboard(ServerRequest request) {
+		String id = request.pathVariable("id");
+		String user = ReactiveQueryHandler.queryUser(request, pietConfiguration);
+		boolean stream = request.headers().accept().stream().anyMatch(ReactiveAnalysisHandler.APPLICATION_NDJSON::equalsTypeAndSubtype);
+		return blocking(() -> dashboardService.findById(id))
+				.flatMap(dashboard -> {
+					if (!dashboard.isPresent()) {
+						return Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No dashboard with id " + id));
+					}
+					if (!stream) {
+						return blocking(() -> dashboardService.load(dashboard.get(), user, tile -> {}))
+								.flatMap(result -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(result));
+					}
+					Flux<DashboardTile> tiles = Flux.<DashboardTile>create(sink -> {
+						try {
+							dashboardService.load(dashboard.get(), user, sink::next);
+							sink.complete();
+						} catch (Exception e) {
+							sink.error(e);
+						}
+					}).subscribeOn(Schedulers.boundedElastic());
+					return ServerResponse.ok().contentType(ReactiveAnalysisHandler.APPLICATION_NDJSON).body(tiles, DashboardTile.class);
+				});
+	}
+
+	private static <T> Mono<T> blocking(Callable<T> callable) {
+		return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+	}
+
+}
@@ -0,0 +1,323 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.MondrianQuery;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+import com.cascadia_analytics.piet.query.DatasetMetadataService;
+import com.cascadia_analytics.piet.query.MondrianQueryService;
+import com.cascadia_analytics.piet.query.MondrianRestException;
+import com.cascadia_analytics.piet.query.QueryAdmissionController;
+import com.cascadia_analytics.piet.query.QueryCachePrewarmer;
+import com.cascadia_analytics.piet.query.QueryRejectedException;
+import com.cascadia_analytics.piet.query.ResultExport;
+import com.cascadia_analytics.piet.query.ResultSnapshotService;
+import com.cascadia_analytics.piet.query.ResultWindowService;
+import com.cascadia_analytics.piet.repository.ReactiveAnalysisRepository;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Counterpart of {@link QueryRestController} for the reactive profile. Calls to mondrian-rest (and the prewarmer) are
+ * still blocking, so they run on the bounded elastic scheduler and never tie up the event loop.
+ */
+@Component
+@Profile(PietApplication.REACTIVE_PROFILE)
+public class ReactiveQueryHandler {
+
+	@Autowired
+	private MondrianQueryService mondrianQueryService;
+
+	@Autowired
+	private PietConfiguration pietConfiguration;
+
+	@Autowired
+	private QueryCachePrewarmer queryCachePrewarmer;
+
+	@Autowired
+	private ReactiveAnalysisRepository analysisRepository;
+
+	@Autowired
+	private DatasetMetadataService datasetMetadataService;
+
+	@Autowired
+	private ResultSnapshotService resultSnapshotService;
+
+	@Autowired
+	private ResultWindowService resultWindowService;
+
+	public Mono<ServerResponse> executeQuery(ServerRequest request) {
+		return request.bodyToMono(MondrianQuery.class)
+				.flatMap(query -> {
+					if (query.getConnectionName() == null || query.getQuery() == null) {
+						return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "connectionName and query are required"));
+					}
+					String user = queryUser(request, pietConfiguration);
+					return blocking(() -> mondrianQueryService.executeQuery(query.getConnectionName(), query.getQuery(), user));
+				})
+				.flatMap(result -> queryResult(request, ServerResponse.ok(), result))
+				.onErrorResume(MondrianRestException.class, ReactiveQueryHandler::relay);
+	}
+
+	public Mono<ServerResponse> openResult(ServerRequest request) {
+		return request.bodyToMono(MondrianQuery.class)
+				.flatMap(query -> {
+					if (query.getConnectionName() == null || query.getQuery() == null) {
+						return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "connectionName and query are required"));
+					}
+					String user = queryUser(request, pietConfiguration);
+					return blocking(() -> resultWindowService.open(query.getConnectionName(), query.getQuery(), user));
+				})
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e))
+				.flatMap(handle -> ServerResponse.created(request.uriBuilder().path("/{handle}").build(handle.getHandle()))
+						.contentType(MediaType.APPLICATION_JSON)
+						.bodyValue(handle))
+				.onErrorResume(MondrianRestException.class, ReactiveQueryHandler::relay);
+	}
+
+	public Mono<ServerResponse> getResultWindow(ServerRequest request) {
+		String handle = request.pathVariable("handle");
+		return Mono.fromCallable(() -> resultWindowService.getWindow(handle, intParam(request, "rowOffset", 0), intParam(request, "rowLimit", null),
+						intParam(request, "columnOffset", 0), intParam(request, "columnLimit", null)))
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+				.switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No result with handle " + handle + "; it may have expired")))
+				.flatMap(window -> ServerResponse.ok()
+						.contentType(ReactiveAnalysisHandler.jsonOrSmile(request))
+						.varyBy(HttpHeaders.ACCEPT)
+						.bodyValue(window));
+	}
+
+	public Mono<ServerResponse> releaseResult(ServerRequest request) {
+		resultWindowService.release(request.pathVariable("handle"));
+		return ServerResponse.ok().build();
+	}
+
+	private static Integer intParam(ServerRequest request, String name, Integer defaultValue) {
+		try {
+			return request.queryParam(name).map(Integer::valueOf).orElse(defaultValue);
+		} catch (NumberFormatException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, name + " must be a number", e);
+		}
+	}
+
+	public Mono<ServerResponse> getAnalysisResult(ServerRequest request) {
+		return findAnalysis(request)
+				.flatMap(analysis -> blocking(() -> resultSnapshotService.findCurrent(analysis))
+						.flatMap(snapshot -> snapshot.isPresent() ? snapshotResult(request, snapshot.get()) : liveResult(request, analysis)))
+				.onErrorResume(MondrianRestException.class, ReactiveQueryHandler::relay);
+	}
+
+	private Mono<ServerResponse> snapshotResult(ServerRequest request, ResultSnapshot snapshot) {
+		// conditional GETs are evaluated by the response itself, from its ETag and Last-Modified
+		return blocking(() -> resultSnapshotService.getResult(snapshot))
+				.flatMap(result -> queryResult(request, ServerResponse.ok()
+						.eTag(ETags.resultSnapshot(snapshot))
+						.lastModified(snapshot.getCreateDateTime().toInstant()), result));
+	}
+
+	private Mono<ServerResponse> liveResult(ServerRequest request, Analysis analysis) {
+		String user = queryUser(request, pietConfiguration);
+		return blocking(() -> mondrianQueryService.executeAnalysisQuery(analysis, user))
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e))
+				.flatMap(result -> queryResult(request, ServerResponse.ok(), result))
+				// no mdx for the analysis
+				.switchIfEmpty(ServerResponse.noContent().build());
+	}
+
+	/**
+	 * @see QueryRestController#exportAnalysisResult
+	 */
+	public Mono<ServerResponse> exportAnalysisResult(ServerRequest request) {
+		ResultExport.Format format;
+		try {
+			format = ResultExport.Format.of(request.queryParam("format").orElse("csv"));
+		} catch (IllegalArgumentException e) {
+			return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+		}
+		String user = queryUser(request, pietConfiguration);
+		return findAnalysis(request)
+				.flatMap(analysis -> blocking(() -> resultSnapshotService.findCurrent(analysis))
+						.flatMap(snapshot -> blocking(() -> snapshot.isPresent() ? resultSnapshotService.getResult(snapshot.get()) :
+							mondrianQueryService.executeAnalysisQuery(analysis, user)))
+						.flatMap(result -> blocking(() -> {
+							ResultExport export = ResultExport.of(result);
+							export.checkFits(format);
+							return export;
+						}))
+						.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e))
+						.onErrorMap(IOException.class, e -> new MondrianRestException(HttpStatus.BAD_GATEWAY.value(),
+								"{\"error\":\"unreadable mondrian-rest result\"}", e.getMessage(), e))
+						.flatMap(export -> ServerResponse.ok()
+								.contentType(MediaType.parseMediaType(format.getMediaType()))
+								.header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+										.filename(ResultExport.fileName(analysis.getName(), format), StandardCharsets.UTF_8).build().toString())
+								.body(exportBody(export, format), DataBuffer.class))
+						// no mdx for the analysis
+						.switchIfEmpty(ServerResponse.noContent().build()))
+				.onErrorResume(MondrianRestException.class, ReactiveQueryHandler::relay);
+	}
+
+	private static Flux<DataBuffer> exportBody(ResultExport export, ResultExport.Format format) {
+		// requests mustn't be queued behind the writer, which blocks its thread awaiting them
+		return Flux.<DataBuffer>create(sink -> {
+			try (OutputStream out = new DataBufferSinkOutputStream(sink)) {
+				export.write(format, out);
+			} catch (Exception e) {
+				if (!sink.isCancelled()) {
+					sink.error(e);
+				}
+				return;
+			}
+			sink.complete();
+		}).subscribeOn(Schedulers.boundedElastic(), false);
+	}
+
+	public Mono<ServerResponse> getResultSnapshot(ServerRequest request) {
+		String id = request.pathVariable("id");
+		return blocking(() -> resultSnapshotService.findById(id))
+				.flatMap(snapshot -> snapshot.isPresent() ?
+						ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(snapshot.get()) :
+						Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Analysis " + id + " has no result snapshot")));
+	}
+
+	public Mono<ServerResponse> takeResultSnapshot(ServerRequest request) {
+		Integer refreshIntervalSeconds;
+		try {
+			refreshIntervalSeconds = request.queryParam("refreshIntervalSeconds").map(Integer::valueOf).orElse(null);
+		} catch (NumberFormatException e) {
+			return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "refreshIntervalSeconds must be a number", e));
+		}
+		String dataVersion = request.queryParam("dataVersion").orElse(null);
+		return findAnalysis(request)
+				.flatMap(analysis -> blocking(() -> resultSnapshotService.takeSnapshot(analysis, refreshIntervalSeconds, dataVersion)))
+				.onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, e.getMessage(), e))
+				.flatMap(snapshot -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(snapshot))
+				.onErrorResume(MondrianRestException.class, ReactiveQueryHandler::relay);
+	}
+
+	public Mono<ServerResponse> deleteResultSnapshot(ServerRequest request) {
+		String id = request.pathVariable("id");
+		return blocking(() -> {
+			resultSnapshotService.delete(id);
+			return id;
+		}).then(ServerResponse.ok().build());
+	}
+
+	public Mono<ServerResponse> refreshResultSnapshots(ServerRequest request) {
+		String dataVersion = request.queryParam("dataVersion").orElse(null);
+		if (dataVersion == null) {
+			return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "dataVersion is required"));
+		}
+		return blocking(() -> resultSnapshotService.refresh(request.queryParam("connectionName").orElse(null), dataVersion).toArray(new ResultSnapshot[0]))
+				.flatMap(snapshots -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(snapshots));
+	}
+
+	private Mono<Analysis> findAnalysis(ServerRequest request) {
+		String id = request.pathVariable("id");
+		return analysisRepository.findById(id)
+				.switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No analysis with id " + id)));
+	}
+
+	public Mono<ServerResponse> getDatasets(ServerRequest request) {
+		// blocks only until the catalog has been read for the first time
+		return blocking(datasetMetadataService::getCatalog)
+				.flatMap(catalog -> ServerResponse.ok()
+						.contentType(MediaType.APPLICATION_JSON)
+						.eTag(ETags.datasets(catalog.getFingerprint()))
+						.bodyValue(catalog.getJson()))
+				.onErrorResume(MondrianRestException.class, ReactiveQueryHandler::relay);
+	}
+
+	public Mono<ServerResponse> getCacheStatistics(ServerRequest request) {
+		return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(mondrianQueryService.getCacheStatistics());
+	}
+
+	public Mono<ServerResponse> invalidateCache(ServerRequest request) {
+		if (request.pathVariables().containsKey("connectionName")) {
+			mondrianQueryService.invalidate(request.pathVariable("connectionName"));
+		} else {
+			mondrianQueryService.invalidateAll();
+		}
+		return ServerResponse.ok().build();
+	}
+
+	public Mono<ServerResponse> getPrewarmReport(ServerRequest request) {
+		return Mono.justOrEmpty(queryCachePrewarmer.getLastReport())
+				.flatMap(report -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(report))
+				.switchIfEmpty(ServerResponse.noContent().build());
+	}
+
+	public Mono<ServerResponse> prewarm(ServerRequest request) {
+		return blocking(queryCachePrewarmer::prewarm)
+				.flatMap(report -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(report));
+	}
+
+	/**
+	 * A mondrian-rest result, as json or, if the client asked for it, transcoded to Smile.
+	 */
+	private static Mono<ServerResponse> queryResult(ServerRequest request, ServerResponse.BodyBuilder builder, String json) {
+		builder.varyBy(HttpHeaders.ACCEPT);
+		if (Smile.accepted(request.headers().accept())) {
+			return Mono.fromCallable(() -> Smile.transcode(json))
+					.flatMap(smile -> builder.contentType(Smile.APPLICATION_SMILE).bodyValue(smile));
+		}
+		return builder.contentType(MediaType.APPLICATION_JSON).bodyValue(json);
+	}
+
+	private static <T> Mono<T> blocking(Callable<T> callable) {
+		return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+	}
+
+	/**
+	 * @see QueryRestController
+	 */
+	static String queryUser(ServerRequest request, PietConfiguration pietConfiguration) {
+		String header = pietConfiguration.getAdmissionUserHeader();
+		String ret = header.isEmpty() ? null : request.headers().asHttpHeaders().getFirst(header);
+		return ret == null ? QueryAdmissionController.ANONYMOUS_USER : ret;
+	}
+
+	private static Mono<ServerResponse> relay(MondrianRestException e) {
+		ServerResponse.BodyBuilder builder = ServerResponse.status(e.getStatus()).contentType(MediaType.APPLICATION_JSON);
+		if (e instanceof QueryRejectedException) {
+			builder.header(HttpHeaders.RETRY_AFTER, String.valueOf(((QueryRejectedException) e).getRetryAfterSeconds()));
+		}
+		return builder.bodyValue(e.getResponseBody());
+	}
+
+}
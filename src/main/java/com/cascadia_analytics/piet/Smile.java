@@ -0,0 +1,68 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.springframework.http.MediaType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Smile (binary json) representations, offered alongside json for analyses and query results to clients that ask for
+ * application/x-jackson-smile. Domain objects are written by the Smile message converter or codec; results from
+ * mondrian-rest arrive as json text and are transcoded here.
+ */
+final class Smile {
+
+	static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+	static final MediaType APPLICATION_SMILE = MediaType.parseMediaType(APPLICATION_SMILE_VALUE);
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+
+	private Smile() {}
+
+	/**
+	 * @return whether the client explicitly asked for Smile (a wildcard doesn't count)
+	 */
+	static boolean accepted(List<MediaType> accept) {
+		return accept.stream().anyMatch(APPLICATION_SMILE::equalsTypeAndSubtype);
+	}
+
+	static void transcode(String json, OutputStream outputStream) throws IOException {
+		try (JsonParser parser = JSON_FACTORY.createParser(json);
+				JsonGenerator generator = SMILE_FACTORY.createGenerator(outputStream)) {
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			while (parser.nextToken() != null) {
+				generator.copyCurrentStructure(parser);
+			}
+		}
+	}
+
+	static byte[] transcode(String json) throws IOException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream(json.length() / 2);
+		transcode(json, ret);
+		return ret.toByteArray();
+	}
+
+}
@@ -0,0 +1,114 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+
+/**
+ * Opt-in (piet.threads.virtual=true) mode that runs servlet requests, and everything they block on (mongo, mondrian-rest),
+ * on a new virtual thread each instead of Tomcat's bounded worker pool. Needs a Java 21+ runtime; the build stays at
+ * Java 8, so the executor is looked up reflectively, and on an older runtime the setting is ignored with a warning.
+ *
+ * <p>Only the embedded Tomcat of the executable war (java -jar piet-executable.war) can be given the executor. Deployed to
+ * an external container, as the Docker image does, requests run on that container's connector threads whatever this is
+ * set to, and only MVC async work moves to virtual threads; a warning says so at startup.</p>
+ *
+ * <p>With no thread pool to queue in, the mongo connection pool becomes the limit: the driver rejects more than
+ * maxPoolSize * waitQueueMultiple (100 * 5 by default) waiting requests, which can be raised on spring.data.mongodb.uri.</p>
+ */
+@Configuration
+@Profile("!" + PietApplication.REACTIVE_PROFILE)
+@Conditional(VirtualThreadsConfiguration.VirtualThreadsEnabled.class)
+public class VirtualThreadsConfiguration {
+
+	private static final Log log = LogFactory.getLog(VirtualThreadsConfiguration.class);
+
+	static final String PROPERTY = "piet.threads.virtual";
+
+	private final ExecutorService executor = newVirtualThreadPerTaskExecutor();
+
+	@Bean
+	public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadsTomcatCustomizer() {
+		return factory -> factory.addConnectorCustomizers(connector -> connector.getProtocolHandler().setExecutor(executor));
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void warnIfDeployedToContainer(ApplicationReadyEvent event) {
+		ApplicationContext context = event.getApplicationContext();
+		if (context instanceof WebServerApplicationContext && ((WebServerApplicationContext) context).getWebServer() == null) {
+			log.warn(PROPERTY + " is set, but requests are served by the servlet container's own threads; it only applies to the embedded server (java -jar)");
+		}
+	}
+
+	/**
+	 * Replaces Boot's pool for MVC async processing, which streamed exports (StreamingResponseBody) run on.
+	 */
+	@Bean(name=TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+	public TaskExecutorAdapter applicationTaskExecutor() {
+		return new TaskExecutorAdapter(executor);
+	}
+
+	/**
+	 * @return null before Java 21
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	static class VirtualThreadsEnabled implements Condition {
+
+		@Override
+		public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+			if (!context.getEnvironment().getProperty(PROPERTY, Boolean.class, PietConfiguration.DEFAULT_THREADS_VIRTUAL)) {
+				return false;
+			}
+			ExecutorService executor = newVirtualThreadPerTaskExecutor();
+			if (executor == null) {
+				log.warn(PROPERTY + " is set, but virtual threads need Java 21 or later (running " + System.getProperty("java.version") + "); using platform threads");
+				return false;
+			}
+			executor.shutdown();
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,115 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Message converters for the servlet profile's Smile representations (see {@link Smile}).
+ */
+@Configuration
+@Profile("!" + PietApplication.REACTIVE_PROFILE)
+public class WebMvcConfiguration implements WebMvcConfigurer {
+
+	@Autowired
+	private Jackson2ObjectMapperBuilder objectMapperBuilder;
+
+	@Override
+	public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+		// Spring adds a Smile converter of its own, but with a plain mapper rather than one configured like Boot's json mapper
+		converters.removeIf(converter -> converter instanceof MappingJackson2SmileHttpMessageConverter);
+		converters.add(new MappingJackson2SmileHttpMessageConverter(objectMapperBuilder.factory(new SmileFactory()).build()));
+		// ahead of the String converter, which would otherwise write json text under the Smile content type
+		converters.add(0, new JsonToSmileHttpMessageConverter());
+	}
+
+	/**
+	 * Responses of endpoints that offer Smile depend on the Accept header, which caches need to know.
+	 */
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(new HandlerInterceptor() {
+			@Override
+			public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+				if (handler instanceof HandlerMethod) {
+					RequestMapping mapping = AnnotatedElementUtils.findMergedAnnotation(((HandlerMethod) handler).getMethod(), RequestMapping.class);
+					if (mapping != null && Arrays.asList(mapping.produces()).contains(Smile.APPLICATION_SMILE_VALUE)) {
+						response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Writes json text (query results from mondrian-rest) as Smile.
+	 */
+	static class JsonToSmileHttpMessageConverter extends AbstractHttpMessageConverter<String> {
+
+		JsonToSmileHttpMessageConverter() {
+			super(Smile.APPLICATION_SMILE);
+		}
+
+		@Override
+		protected boolean supports(Class<?> clazz) {
+			return String.class == clazz;
+		}
+
+		@Override
+		protected boolean canRead(MediaType mediaType) {
+			return false;
+		}
+
+		@Override
+		protected String readInternal(Class<? extends String> clazz, HttpInputMessage inputMessage) throws IOException {
+			throw new HttpMessageNotReadableException("Smile request bodies are not read as text", inputMessage);
+		}
+
+		@Override
+		protected void writeInternal(String json, HttpOutputMessage outputMessage) throws IOException {
+			Smile.transcode(json, outputMessage.getBody());
+		}
+
+	}
+
+}
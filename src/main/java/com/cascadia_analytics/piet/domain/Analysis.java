@@ -18,18 +18,35 @@ package com.cascadia_analytics.piet.domain;
 import java.util.Date;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.TextIndexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 @Document(collection="analysis")
+@CompoundIndexes({
+	// support keyset pagination of summaries (see AnalysisSummarySort)
+	@CompoundIndex(name="name_id", def="{'name': 1, '_id': 1}"),
+	@CompoundIndex(name="updateDateTime_id", def="{'updateDateTime': -1, '_id': -1}"),
+	// supports selection of the most-read analyses for query cache prewarming
+	@CompoundIndex(name="readCounter_updateDateTime", def="{'readCounter': -1, 'updateDateTime': -1}"),
+	// narrows searches to a dataset
+	@CompoundIndex(name="datasetRef", def="{'datasetRef.id': 1, 'datasetRef.cube': 1}")
+})
 public class Analysis {
 
 	@Id
 	private String id;
 
+	@TextIndexed(weight=2)
 	private String name;
+
+	@TextIndexed
 	private String description;
+
 	private DatasetRef datasetRef;
 
 	@JsonProperty("_query")
@@ -39,6 +56,10 @@ public class Analysis {
 	private Date updateDateTime;
 	private long readCounter;
 
+	// incremented on every save; a save carrying a stale version fails, so concurrent edits can't silently clobber each other
+	@Version
+	private Long version;
+
 	public String getId() {
 		return id;
 	}
@@ -103,4 +124,28 @@ public class Analysis {
 		this.readCounter = readCounter;
 	}
 
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return a deep copy, sharing only immutable values, so that an analysis held by a cache can be handed out safely
+	 */
+	public Analysis copy() {
+		Analysis ret = new Analysis();
+		ret.id = id;
+		ret.name = name;
+		ret.description = description;
+		ret.datasetRef = datasetRef == null ? null : datasetRef.copy();
+		ret.query = query == null ? null : query.copy();
+		ret.createDateTime = createDateTime == null ? null : new Date(createDateTime.getTime());
+		ret.updateDateTime = updateDateTime == null ? null : new Date(updateDateTime.getTime());
+		ret.readCounter = readCounter;
+		ret.version = version;
+		return ret;
+	}
 }
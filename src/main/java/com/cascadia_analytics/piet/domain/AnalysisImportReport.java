@@ -0,0 +1,64 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of an import of analyses. Only the first failures are itemized, so the report stays small however large the import.
+ */
+public class AnalysisImportReport {
+
+	public static final int MAX_REPORTED_FAILURES = 100;
+
+	private long imported;
+	private long failed;
+	private List<BatchItemResult> failures = new ArrayList<>();
+
+	public long getImported() {
+		return imported;
+	}
+
+	public void setImported(long imported) {
+		this.imported = imported;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public void setFailed(long failed) {
+		this.failed = failed;
+	}
+
+	public List<BatchItemResult> getFailures() {
+		return failures;
+	}
+
+	public void setFailures(List<BatchItemResult> failures) {
+		this.failures = failures;
+	}
+
+	public void addFailure(BatchItemResult failure) {
+		failed++;
+		if (failures.size() < MAX_REPORTED_FAILURES) {
+			failures.add(failure);
+		}
+	}
+
+}
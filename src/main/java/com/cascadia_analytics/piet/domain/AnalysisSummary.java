@@ -0,0 +1,111 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.TextScore;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Read-only view of an {@link Analysis} carrying only the attributes needed to browse or search the repository. Populated
+ * directly from the analysis collection via a field projection, so the (potentially large) query is never loaded.
+ */
+public class AnalysisSummary {
+
+	@Id
+	private String id;
+
+	private String name;
+	private String description;
+	private DatasetRef datasetRef;
+	private Date createDateTime;
+	private Date updateDateTime;
+	private long readCounter;
+
+	// relevance to the search text, when the summary is a search result
+	@TextScore
+	@JsonInclude(Include.NON_NULL)
+	private Float score;
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public DatasetRef getDatasetRef() {
+		return datasetRef;
+	}
+
+	public Date getCreateDateTime() {
+		return createDateTime;
+	}
+
+	public Date getUpdateDateTime() {
+		return updateDateTime;
+	}
+
+	public long getReadCounter() {
+		return readCounter;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	public void setDatasetRef(DatasetRef datasetRef) {
+		this.datasetRef = datasetRef;
+	}
+
+	public void setCreateDateTime(Date createDateTime) {
+		this.createDateTime = createDateTime;
+	}
+
+	public void setUpdateDateTime(Date updateDateTime) {
+		this.updateDateTime = updateDateTime;
+	}
+
+	public void setReadCounter(long readCounter) {
+		this.readCounter = readCounter;
+	}
+
+	public Float getScore() {
+		return score;
+	}
+
+	public void setScore(Float score) {
+		this.score = score;
+	}
+
+}
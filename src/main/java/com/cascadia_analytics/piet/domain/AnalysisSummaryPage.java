@@ -0,0 +1,50 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+/**
+ * One page of analysis summaries. When more results are available, nextCursor is an opaque token that, passed back
+ * to the server, returns the page that follows; it is null on the last page.
+ */
+public class AnalysisSummaryPage {
+
+	private AnalysisSummary[] summaries;
+	private String nextCursor;
+
+	public AnalysisSummaryPage() {}
+
+	public AnalysisSummaryPage(AnalysisSummary[] summaries, String nextCursor) {
+		this.summaries = summaries;
+		this.nextCursor = nextCursor;
+	}
+
+	public AnalysisSummary[] getSummaries() {
+		return summaries;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setSummaries(AnalysisSummary[] summaries) {
+		this.summaries = summaries;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+
+}
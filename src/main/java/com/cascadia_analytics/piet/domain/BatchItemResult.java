@@ -0,0 +1,75 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Outcome of one item of a batch request. Results are returned in the same order as the items in the request.
+ */
+@JsonInclude(Include.NON_NULL)
+public class BatchItemResult {
+
+	public static final String STATUS_OK = "ok";
+	public static final String STATUS_NOT_FOUND = "not-found";
+	public static final String STATUS_FAILED = "failed";
+
+	private String id;
+	private String status;
+	private String message;
+	private Analysis analysis;
+
+	public BatchItemResult() {}
+
+	public BatchItemResult(String id, String status) {
+		this.id = id;
+		this.status = status;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public Analysis getAnalysis() {
+		return analysis;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public void setAnalysis(Analysis analysis) {
+		this.analysis = analysis;
+	}
+
+}
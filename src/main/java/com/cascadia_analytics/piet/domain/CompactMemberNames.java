@@ -0,0 +1,130 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A front-coded form of a filter's member names: each name is stored as the length of the prefix it shares with the previous
+ * name, plus the rest of the name. Member lists come from the UI in level order, so neighbors (dates, codes, numbered members)
+ * tend to share long prefixes. The deflated form is what gets stored in Mongo.
+ */
+public class CompactMemberNames {
+
+	private static final byte DEFLATED_FORMAT_VERSION = 1;
+
+	private int[] sharedPrefixLengths;
+	private String[] suffixes;
+
+	public int[] getSharedPrefixLengths() {
+		return sharedPrefixLengths;
+	}
+
+	public void setSharedPrefixLengths(int[] sharedPrefixLengths) {
+		this.sharedPrefixLengths = sharedPrefixLengths;
+	}
+
+	public String[] getSuffixes() {
+		return suffixes;
+	}
+
+	public void setSuffixes(String[] suffixes) {
+		this.suffixes = suffixes;
+	}
+
+	public static CompactMemberNames encode(String[] names) {
+		CompactMemberNames ret = new CompactMemberNames();
+		ret.sharedPrefixLengths = new int[names.length];
+		ret.suffixes = new String[names.length];
+		String previous = "";
+		for (int i = 0; i < names.length; i++) {
+			int shared = sharedPrefixLength(previous, names[i]);
+			ret.sharedPrefixLengths[i] = shared;
+			ret.suffixes[i] = names[i].substring(shared);
+			previous = names[i];
+		}
+		return ret;
+	}
+
+	public String[] decode() {
+		String[] ret = new String[suffixes.length];
+		String previous = "";
+		for (int i = 0; i < suffixes.length; i++) {
+			int shared = sharedPrefixLengths[i];
+			ret[i] = shared == 0 ? suffixes[i] : new StringBuilder(shared + suffixes[i].length()).append(previous, 0, shared).append(suffixes[i]).toString();
+			previous = ret[i];
+		}
+		return ret;
+	}
+
+	public byte[] toDeflatedBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+			out.writeByte(DEFLATED_FORMAT_VERSION);
+			out.writeInt(suffixes.length);
+			for (int i = 0; i < suffixes.length; i++) {
+				out.writeShort(sharedPrefixLengths[i]);
+				out.writeUTF(suffixes[i]);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static CompactMemberNames fromDeflatedBytes(byte[] bytes) {
+		CompactMemberNames ret = new CompactMemberNames();
+		try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+			byte version = in.readByte();
+			if (version != DEFLATED_FORMAT_VERSION) {
+				throw new IllegalArgumentException("Unsupported compact member names format version " + version);
+			}
+			int length = in.readInt();
+			ret.sharedPrefixLengths = new int[length];
+			ret.suffixes = new String[length];
+			for (int i = 0; i < length; i++) {
+				ret.sharedPrefixLengths[i] = in.readUnsignedShort();
+				ret.suffixes[i] = in.readUTF();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return ret;
+	}
+
+	private static int sharedPrefixLength(String a, String b) {
+		// capped so it fits the deflated format's unsigned short (member names are nowhere near this long)
+		int max = Math.min(Math.min(a.length(), b.length()), 0xFFFF);
+		int ret = 0;
+		while (ret < max && a.charAt(ret) == b.charAt(ret)) {
+			ret++;
+		}
+		// never split a surrogate pair, since a lone surrogate in a suffix wouldn't survive being written as JSON or BSON
+		if (ret > 0 && Character.isHighSurrogate(a.charAt(ret - 1))) {
+			ret--;
+		}
+		return ret;
+	}
+
+}
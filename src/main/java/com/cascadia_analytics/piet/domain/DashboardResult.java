@@ -0,0 +1,51 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+/**
+ * A dashboard with all of its tiles loaded, in the dashboard's order.
+ */
+public class DashboardResult {
+
+	private Dashboard dashboard;
+	private DashboardTile[] tiles;
+	private long elapsedMillis;
+
+	public Dashboard getDashboard() {
+		return dashboard;
+	}
+
+	public DashboardTile[] getTiles() {
+		return tiles;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public void setDashboard(Dashboard dashboard) {
+		this.dashboard = dashboard;
+	}
+
+	public void setTiles(DashboardTile[] tiles) {
+		this.tiles = tiles;
+	}
+
+	public void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+}
@@ -0,0 +1,125 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+
+/**
+ * One tile of a loaded dashboard: the analysis and the result of its query. A tile whose analysis has nothing to query is ok
+ * with no result. When tiles are streamed, they arrive in the order they finished, so each carries its position.
+ */
+@JsonInclude(Include.NON_NULL)
+public class DashboardTile {
+
+	public static final String STATUS_OK = "ok";
+	public static final String STATUS_NOT_FOUND = "not-found";
+	public static final String STATUS_FAILED = "failed";
+
+	private int index;
+	private String analysisId;
+	private String status;
+	// the http status the query failed with
+	private Integer errorStatus;
+	private String message;
+	private Analysis analysis;
+	private String result;
+	private boolean fromSnapshot;
+	private long elapsedMillis;
+
+	public DashboardTile() {}
+
+	public DashboardTile(int index, String analysisId) {
+		this.index = index;
+		this.analysisId = analysisId;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getAnalysisId() {
+		return analysisId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public Integer getErrorStatus() {
+		return errorStatus;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public Analysis getAnalysis() {
+		return analysis;
+	}
+
+	// the mondrian-rest result json, embedded as is
+	@JsonRawValue
+	public String getResult() {
+		return result;
+	}
+
+	public boolean isFromSnapshot() {
+		return fromSnapshot;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
+	public void setAnalysisId(String analysisId) {
+		this.analysisId = analysisId;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public void setErrorStatus(Integer errorStatus) {
+		this.errorStatus = errorStatus;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public void setAnalysis(Analysis analysis) {
+		this.analysis = analysis;
+	}
+
+	public void setResult(String result) {
+		this.result = result;
+	}
+
+	public void setFromSnapshot(boolean fromSnapshot) {
+		this.fromSnapshot = fromSnapshot;
+	}
+
+	public void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+}
@@ -15,8 +15,20 @@
 
 package com.cascadia_analytics.piet.domain;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.data.annotation.Transient;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class DatasetRef {
 
+	// the UI identifies datasets by the mondrian-rest metadata url they were loaded from, e.g. /mondrian-rest/getMetadata?connectionName=foodmart
+	private static final Pattern CONNECTION_NAME_PATTERN = Pattern.compile("[?&]connectionName=([^&]+)");
+
 	private String id;
 	private String cube;
 
@@ -36,4 +48,30 @@ public class DatasetRef {
 		this.cube = cube;
 	}
 
+	/**
+	 * @return the name of the mondrian-rest connection this dataset belongs to, or null if the id does not identify one
+	 */
+	@JsonIgnore
+	@Transient
+	public String getConnectionName() {
+		String ret = null;
+		if (id != null) {
+			Matcher m = CONNECTION_NAME_PATTERN.matcher(id);
+			if (m.find()) {
+				try {
+					ret = URLDecoder.decode(m.group(1), "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return ret;
+	}
+
+	public DatasetRef copy() {
+		DatasetRef ret = new DatasetRef();
+		ret.id = id;
+		ret.cube = cube;
+		return ret;
+	}
 }
@@ -18,6 +18,7 @@ package com.cascadia_analytics.piet.domain;
 public class IdContainer {
 
 	private String id;
+	private Long version;
 
 	public IdContainer() {}
 
@@ -25,6 +26,11 @@ public class IdContainer {
 		this.id = id;
 	}
 
+	public IdContainer(String id, Long version) {
+		this.id = id;
+		this.version = version;
+	}
+
 	public String getId() {
 		return id;
 	}
@@ -33,4 +39,12 @@ public class IdContainer {
 		this.id = id;
 	}
 
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
 }
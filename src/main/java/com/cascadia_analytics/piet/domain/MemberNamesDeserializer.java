@@ -0,0 +1,45 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.domain;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+/**
+ * Reads member names either as a plain array or in CompactMemberNames form.
+ */
+public class MemberNamesDeserializer extends StdDeserializer<String[]> {
+
+	private static final long serialVersionUID = 1L;
+
+	public MemberNamesDeserializer() {
+		super(String[].class);
+	}
+
+	@Override
+	public String[] deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+			return context.readValue(parser, CompactMemberNames.class).decode();
+		}
+		return context.readValue(parser, String[].class);
+	}
+
+}
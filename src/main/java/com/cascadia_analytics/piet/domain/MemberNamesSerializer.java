@@ -0,0 +1,56 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.domain;
+
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/**
+ * Writes large member name lists in CompactMemberNames form, when enabled. Spring autowires the configuration into
+ * serializers created by the application's ObjectMapper; anywhere else (plain ObjectMappers) names are written as arrays.
+ */
+public class MemberNamesSerializer extends StdSerializer<String[]> {
+
+	private static final long serialVersionUID = 1L;
+
+	@Autowired(required=false)
+	private transient PietConfiguration pietConfiguration;
+
+	public MemberNamesSerializer() {
+		super(String[].class);
+	}
+
+	@Override
+	public void serialize(String[] names, JsonGenerator generator, SerializerProvider provider) throws IOException {
+		int minSize = pietConfiguration == null ? 0 : pietConfiguration.getJsonCompactMemberNamesMinSize();
+		if (minSize > 0 && names.length >= minSize) {
+			provider.defaultSerializeValue(CompactMemberNames.encode(names), generator);
+		} else {
+			generator.writeStartArray(names.length);
+			for (String name : names) {
+				generator.writeString(name);
+			}
+			generator.writeEndArray();
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+/**
+ * An MDX query against a mondrian-rest connection, in the form mondrian-rest's /query endpoint accepts.
+ */
+public class MondrianQuery {
+
+	private String connectionName;
+	private String query;
+
+	public MondrianQuery() {}
+
+	public MondrianQuery(String connectionName, String query) {
+		this.connectionName = connectionName;
+		this.query = query;
+	}
+
+	public String getConnectionName() {
+		return connectionName;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public void setConnectionName(String connectionName) {
+		this.connectionName = connectionName;
+	}
+
+	public void setQuery(String query) {
+		this.query = query;
+	}
+
+}
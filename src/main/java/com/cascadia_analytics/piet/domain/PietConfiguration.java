@@ -19,6 +19,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 @Component
 @PropertySource("classpath:mvn-resources-application.properties")
 public class PietConfiguration {
@@ -28,6 +30,39 @@ public class PietConfiguration {
 	public static final String DEFAULT_LOG_LEVEL = "error";
 	public static final String DEFAULT_MONDRIAN_REST_URL = "/mondrian-rest";
 	public static final int DEFAULT_TABLE_FONT_INCREASE = 1;
+	public static final String DEFAULT_MONDRIAN_REST_SERVER_URL = "http://localhost:8080/mondrian-rest";
+	public static final int DEFAULT_MONDRIAN_REST_READ_TIMEOUT_SECONDS = 120;
+	public static final int DEFAULT_QUERY_CACHE_MAX_SIZE_MB = 64;
+	public static final int DEFAULT_QUERY_CACHE_TTL_SECONDS = 600;
+	public static final boolean DEFAULT_PREWARM_ENABLED = false;
+	public static final String DEFAULT_PREWARM_CRON = "0 0 * * * *";
+	public static final int DEFAULT_PREWARM_TOP_N = 20;
+	public static final int DEFAULT_PREWARM_CONCURRENCY = 2;
+	public static final int DEFAULT_PREWARM_TIME_BUDGET_SECONDS = 600;
+	public static final int DEFAULT_PREWARM_RESULT_TTL_SECONDS = 7200;
+	public static final int DEFAULT_CONFIG_MAX_AGE_SECONDS = 300;
+	public static final int DEFAULT_STORAGE_COMPACT_MEMBER_NAMES_MIN_SIZE = 0;
+	public static final int DEFAULT_JSON_COMPACT_MEMBER_NAMES_MIN_SIZE = 0;
+	public static final boolean DEFAULT_ANALYSIS_CACHE_ENABLED = true;
+	public static final int DEFAULT_ANALYSIS_CACHE_MAX_SIZE_MB = 32;
+	public static final int DEFAULT_ANALYSIS_CACHE_TTL_SECONDS = 600;
+	public static final long DEFAULT_ANALYSIS_CACHE_READ_COUNTER_FLUSH_MILLIS = 5000L;
+	public static final long DEFAULT_DATASETS_REFRESH_MILLIS = 300000L;
+	public static final int DEFAULT_QUERY_COALESCE_TIMEOUT_SECONDS = 120;
+	public static final long DEFAULT_SNAPSHOT_REFRESH_CHECK_MILLIS = 60000L;
+	public static final boolean DEFAULT_ADMISSION_ENABLED = true;
+	public static final int DEFAULT_ADMISSION_MAX_CONCURRENT = 8;
+	public static final int DEFAULT_ADMISSION_MAX_QUEUED = 32;
+	public static final int DEFAULT_ADMISSION_MAX_PER_USER = 4;
+	public static final int DEFAULT_ADMISSION_QUEUE_TIMEOUT_SECONDS = 30;
+	public static final int DEFAULT_ADMISSION_RETRY_AFTER_SECONDS = 5;
+	public static final String DEFAULT_ADMISSION_USER_HEADER = "";
+	public static final boolean DEFAULT_THREADS_VIRTUAL = false;
+	public static final int DEFAULT_DASHBOARD_CONCURRENCY = 16;
+	public static final int DEFAULT_DASHBOARD_TILE_CONCURRENCY = 4;
+	public static final boolean DEFAULT_JSON_AFTERBURNER = true;
+	public static final int DEFAULT_QUERY_WINDOW_MAX_SIZE_MB = 128;
+	public static final int DEFAULT_QUERY_WINDOW_IDLE_SECONDS = 300;
 
 	@Value("${piet.ui.applicationTitle:" + DEFAULT_APPLICATION_TITLE + "}")
 	private String applicationTitle;
@@ -46,7 +81,162 @@ public class PietConfiguration {
 	
 	@Value("${piet.ui.tableFontIncrease:" + DEFAULT_TABLE_FONT_INCREASE + "}")
 	private int tableFontIncrease;
-	
+
+	// server-side settings below are not sent to the UI
+
+	// mondrianRestUrl is resolved by the browser (and is typically relative); this is how the server itself reaches mondrian-rest
+	@JsonIgnore
+	@Value("${piet.mondrian.rest.serverUrl:" + DEFAULT_MONDRIAN_REST_SERVER_URL + "}")
+	private String mondrianRestServerUrl;
+
+	@JsonIgnore
+	@Value("${piet.mondrian.rest.readTimeoutSeconds:" + DEFAULT_MONDRIAN_REST_READ_TIMEOUT_SECONDS + "}")
+	private int mondrianRestReadTimeoutSeconds;
+
+	@JsonIgnore
+	@Value("${piet.query.cache.maxSizeMb:" + DEFAULT_QUERY_CACHE_MAX_SIZE_MB + "}")
+	private int queryCacheMaxSizeMb;
+
+	@JsonIgnore
+	@Value("${piet.query.cache.ttlSeconds:" + DEFAULT_QUERY_CACHE_TTL_SECONDS + "}")
+	private int queryCacheTtlSeconds;
+
+	@JsonIgnore
+	@Value("${piet.prewarm.enabled:" + DEFAULT_PREWARM_ENABLED + "}")
+	private boolean prewarmEnabled;
+
+	@JsonIgnore
+	@Value("${piet.prewarm.cron:" + DEFAULT_PREWARM_CRON + "}")
+	private String prewarmCron;
+
+	@JsonIgnore
+	@Value("${piet.prewarm.topN:" + DEFAULT_PREWARM_TOP_N + "}")
+	private int prewarmTopN;
+
+	@JsonIgnore
+	@Value("${piet.prewarm.concurrency:" + DEFAULT_PREWARM_CONCURRENCY + "}")
+	private int prewarmConcurrency;
+
+	@JsonIgnore
+	@Value("${piet.prewarm.timeBudgetSeconds:" + DEFAULT_PREWARM_TIME_BUDGET_SECONDS + "}")
+	private int prewarmTimeBudgetSeconds;
+
+	// prewarmed results outlive ordinary cached results, so they are still there when users arrive
+	@JsonIgnore
+	@Value("${piet.prewarm.resultTtlSeconds:" + DEFAULT_PREWARM_RESULT_TTL_SECONDS + "}")
+	private int prewarmResultTtlSeconds;
+
+	// how long browsers may cache /config without revalidating
+	@JsonIgnore
+	@Value("${piet.ui.configMaxAgeSeconds:" + DEFAULT_CONFIG_MAX_AGE_SECONDS + "}")
+	private int configMaxAgeSeconds;
+
+	// filters with at least this many members are stored in Mongo front-coded and deflated (0 stores them all as plain arrays)
+	@JsonIgnore
+	@Value("${piet.storage.compactMemberNames.minSize:" + DEFAULT_STORAGE_COMPACT_MEMBER_NAMES_MIN_SIZE + "}")
+	private int storageCompactMemberNamesMinSize;
+
+	// same for analyses in JSON responses (front-coded only); requests are accepted in either form regardless
+	@JsonIgnore
+	@Value("${piet.json.compactMemberNames.minSize:" + DEFAULT_JSON_COMPACT_MEMBER_NAMES_MIN_SIZE + "}")
+	private int jsonCompactMemberNamesMinSize;
+
+	// in-process cache of analyses read by id, kept coherent across replicas with a mongo change stream
+	@JsonIgnore
+	@Value("${piet.analysis.cache.enabled:" + DEFAULT_ANALYSIS_CACHE_ENABLED + "}")
+	private boolean analysisCacheEnabled;
+
+	@JsonIgnore
+	@Value("${piet.analysis.cache.maxSizeMb:" + DEFAULT_ANALYSIS_CACHE_MAX_SIZE_MB + "}")
+	private int analysisCacheMaxSizeMb;
+
+	// the upper bound on staleness if change stream events are missed (or mongo is not a replica set, so there are none)
+	@JsonIgnore
+	@Value("${piet.analysis.cache.ttlSeconds:" + DEFAULT_ANALYSIS_CACHE_TTL_SECONDS + "}")
+	private int analysisCacheTtlSeconds;
+
+	// reads of cached analyses are counted in memory and written to mongo in batches this often
+	@JsonIgnore
+	@Value("${piet.analysis.cache.readCounterFlushMillis:" + DEFAULT_ANALYSIS_CACHE_READ_COUNTER_FLUSH_MILLIS + "}")
+	private long analysisCacheReadCounterFlushMillis;
+
+	// dataset metadata is re-read from mondrian-rest this often, in the background
+	@JsonIgnore
+	@Value("${piet.datasets.refreshMillis:" + DEFAULT_DATASETS_REFRESH_MILLIS + "}")
+	private long datasetsRefreshMillis;
+
+	// how long a query waits for an identical query already sent to mondrian-rest before giving up
+	@JsonIgnore
+	@Value("${piet.query.coalesce.timeoutSeconds:" + DEFAULT_QUERY_COALESCE_TIMEOUT_SECONDS + "}")
+	private int queryCoalesceTimeoutSeconds;
+
+	// how often to look for result snapshots due a scheduled refresh
+	@JsonIgnore
+	@Value("${piet.snapshot.refreshCheckMillis:" + DEFAULT_SNAPSHOT_REFRESH_CHECK_MILLIS + "}")
+	private long snapshotRefreshCheckMillis;
+
+	// limits on the queries sent to mondrian-rest at once, per connection
+	@JsonIgnore
+	@Value("${piet.query.admission.enabled:" + DEFAULT_ADMISSION_ENABLED + "}")
+	private boolean admissionEnabled;
+
+	@JsonIgnore
+	@Value("${piet.query.admission.maxConcurrent:" + DEFAULT_ADMISSION_MAX_CONCURRENT + "}")
+	private int admissionMaxConcurrent;
+
+	@JsonIgnore
+	@Value("${piet.query.admission.maxQueued:" + DEFAULT_ADMISSION_MAX_QUEUED + "}")
+	private int admissionMaxQueued;
+
+	// queries one user may have running or queued, per connection
+	@JsonIgnore
+	@Value("${piet.query.admission.maxPerUser:" + DEFAULT_ADMISSION_MAX_PER_USER + "}")
+	private int admissionMaxPerUser;
+
+	@JsonIgnore
+	@Value("${piet.query.admission.queueTimeoutSeconds:" + DEFAULT_ADMISSION_QUEUE_TIMEOUT_SECONDS + "}")
+	private int admissionQueueTimeoutSeconds;
+
+	@JsonIgnore
+	@Value("${piet.query.admission.retryAfterSeconds:" + DEFAULT_ADMISSION_RETRY_AFTER_SECONDS + "}")
+	private int admissionRetryAfterSeconds;
+
+	// identifies the user when set (e.g. a header added by an authenticating proxy); otherwise the authenticated user. Queries
+	// with neither aren't held to maxPerUser, so set this for per-user limits when users aren't authenticated by the server
+	@JsonIgnore
+	@Value("${piet.query.admission.userHeader:" + DEFAULT_ADMISSION_USER_HEADER + "}")
+	private String admissionUserHeader;
+
+	// serve servlet requests on virtual threads (Java 21+, embedded Tomcat only); see VirtualThreadsConfiguration
+	@JsonIgnore
+	@Value("${piet.threads.virtual:" + DEFAULT_THREADS_VIRTUAL + "}")
+	private boolean threadsVirtual;
+
+	// threads shared by all dashboards for running tile queries
+	@JsonIgnore
+	@Value("${piet.dashboard.concurrency:" + DEFAULT_DASHBOARD_CONCURRENCY + "}")
+	private int dashboardConcurrency;
+
+	// how many tiles of one dashboard run at once (also capped at the admission per-user limit)
+	@JsonIgnore
+	@Value("${piet.dashboard.tileConcurrency:" + DEFAULT_DASHBOARD_TILE_CONCURRENCY + "}")
+	private int dashboardTileConcurrency;
+
+	// generate bytecode for Jackson property access (see JacksonConfiguration)
+	@JsonIgnore
+	@Value("${piet.json.afterburner:" + DEFAULT_JSON_AFTERBURNER + "}")
+	private boolean jsonAfterburner;
+
+	// results held for windowed reads (POST /result), bounded by their approximate total size and released when idle; a single
+	// result larger than this is refused
+	@JsonIgnore
+	@Value("${piet.query.window.maxSizeMb:" + DEFAULT_QUERY_WINDOW_MAX_SIZE_MB + "}")
+	private int queryWindowMaxSizeMb;
+
+	@JsonIgnore
+	@Value("${piet.query.window.idleSeconds:" + DEFAULT_QUERY_WINDOW_IDLE_SECONDS + "}")
+	private int queryWindowIdleSeconds;
+
 	public String getApplicationTitle() {
 		return applicationTitle;
 	}
@@ -95,4 +285,268 @@ public class PietConfiguration {
 		this.tableFontIncrease = tableFontIncrease;
 	}
 
+	public String getMondrianRestServerUrl() {
+		return mondrianRestServerUrl;
+	}
+
+	public void setMondrianRestServerUrl(String mondrianRestServerUrl) {
+		this.mondrianRestServerUrl = mondrianRestServerUrl;
+	}
+
+	public int getMondrianRestReadTimeoutSeconds() {
+		return mondrianRestReadTimeoutSeconds;
+	}
+
+	public void setMondrianRestReadTimeoutSeconds(int mondrianRestReadTimeoutSeconds) {
+		this.mondrianRestReadTimeoutSeconds = mondrianRestReadTimeoutSeconds;
+	}
+
+	public int getQueryCacheMaxSizeMb() {
+		return queryCacheMaxSizeMb;
+	}
+
+	public void setQueryCacheMaxSizeMb(int queryCacheMaxSizeMb) {
+		this.queryCacheMaxSizeMb = queryCacheMaxSizeMb;
+	}
+
+	public int getQueryCacheTtlSeconds() {
+		return queryCacheTtlSeconds;
+	}
+
+	public void setQueryCacheTtlSeconds(int queryCacheTtlSeconds) {
+		this.queryCacheTtlSeconds = queryCacheTtlSeconds;
+	}
+
+	public boolean isPrewarmEnabled() {
+		return prewarmEnabled;
+	}
+
+	public void setPrewarmEnabled(boolean prewarmEnabled) {
+		this.prewarmEnabled = prewarmEnabled;
+	}
+
+	public String getPrewarmCron() {
+		return prewarmCron;
+	}
+
+	public void setPrewarmCron(String prewarmCron) {
+		this.prewarmCron = prewarmCron;
+	}
+
+	public int getPrewarmTopN() {
+		return prewarmTopN;
+	}
+
+	public void setPrewarmTopN(int prewarmTopN) {
+		this.prewarmTopN = prewarmTopN;
+	}
+
+	public int getPrewarmConcurrency() {
+		return prewarmConcurrency;
+	}
+
+	public void setPrewarmConcurrency(int prewarmConcurrency) {
+		this.prewarmConcurrency = prewarmConcurrency;
+	}
+
+	public int getPrewarmTimeBudgetSeconds() {
+		return prewarmTimeBudgetSeconds;
+	}
+
+	public void setPrewarmTimeBudgetSeconds(int prewarmTimeBudgetSeconds) {
+		this.prewarmTimeBudgetSeconds = prewarmTimeBudgetSeconds;
+	}
+
+	public int getPrewarmResultTtlSeconds() {
+		return prewarmResultTtlSeconds;
+	}
+
+	public void setPrewarmResultTtlSeconds(int prewarmResultTtlSeconds) {
+		this.prewarmResultTtlSeconds = prewarmResultTtlSeconds;
+	}
+
+	public int getConfigMaxAgeSeconds() {
+		return configMaxAgeSeconds;
+	}
+
+	public void setConfigMaxAgeSeconds(int configMaxAgeSeconds) {
+		this.configMaxAgeSeconds = configMaxAgeSeconds;
+	}
+
+	public int getStorageCompactMemberNamesMinSize() {
+		return storageCompactMemberNamesMinSize;
+	}
+
+	public void setStorageCompactMemberNamesMinSize(int storageCompactMemberNamesMinSize) {
+		this.storageCompactMemberNamesMinSize = storageCompactMemberNamesMinSize;
+	}
+
+	public int getJsonCompactMemberNamesMinSize() {
+		return jsonCompactMemberNamesMinSize;
+	}
+
+	public void setJsonCompactMemberNamesMinSize(int jsonCompactMemberNamesMinSize) {
+		this.jsonCompactMemberNamesMinSize = jsonCompactMemberNamesMinSize;
+	}
+
+	public boolean isAnalysisCacheEnabled() {
+		return analysisCacheEnabled;
+	}
+
+	public void setAnalysisCacheEnabled(boolean analysisCacheEnabled) {
+		this.analysisCacheEnabled = analysisCacheEnabled;
+	}
+
+	public int getAnalysisCacheMaxSizeMb() {
+		return analysisCacheMaxSizeMb;
+	}
+
+	public void setAnalysisCacheMaxSizeMb(int analysisCacheMaxSizeMb) {
+		this.analysisCacheMaxSizeMb = analysisCacheMaxSizeMb;
+	}
+
+	public int getAnalysisCacheTtlSeconds() {
+		return analysisCacheTtlSeconds;
+	}
+
+	public void setAnalysisCacheTtlSeconds(int analysisCacheTtlSeconds) {
+		this.analysisCacheTtlSeconds = analysisCacheTtlSeconds;
+	}
+
+	public long getAnalysisCacheReadCounterFlushMillis() {
+		return analysisCacheReadCounterFlushMillis;
+	}
+
+	public void setAnalysisCacheReadCounterFlushMillis(long analysisCacheReadCounterFlushMillis) {
+		this.analysisCacheReadCounterFlushMillis = analysisCacheReadCounterFlushMillis;
+	}
+
+	public long getDatasetsRefreshMillis() {
+		return datasetsRefreshMillis;
+	}
+
+	public void setDatasetsRefreshMillis(long datasetsRefreshMillis) {
+		this.datasetsRefreshMillis = datasetsRefreshMillis;
+	}
+
+	public int getQueryCoalesceTimeoutSeconds() {
+		return queryCoalesceTimeoutSeconds;
+	}
+
+	public void setQueryCoalesceTimeoutSeconds(int queryCoalesceTimeoutSeconds) {
+		this.queryCoalesceTimeoutSeconds = queryCoalesceTimeoutSeconds;
+	}
+
+	public long getSnapshotRefreshCheckMillis() {
+		return snapshotRefreshCheckMillis;
+	}
+
+	public void setSnapshotRefreshCheckMillis(long snapshotRefreshCheckMillis) {
+		this.snapshotRefreshCheckMillis = snapshotRefreshCheckMillis;
+	}
+
+	public boolean isAdmissionEnabled() {
+		return admissionEnabled;
+	}
+
+	public void setAdmissionEnabled(boolean admissionEnabled) {
+		this.admissionEnabled = admissionEnabled;
+	}
+
+	public int getAdmissionMaxConcurrent() {
+		return admissionMaxConcurrent;
+	}
+
+	public void setAdmissionMaxConcurrent(int admissionMaxConcurrent) {
+		this.admissionMaxConcurrent = admissionMaxConcurrent;
+	}
+
+	public int getAdmissionMaxQueued() {
+		return admissionMaxQueued;
+	}
+
+	public void setAdmissionMaxQueued(int admissionMaxQueued) {
+		this.admissionMaxQueued = admissionMaxQueued;
+	}
+
+	public int getAdmissionMaxPerUser() {
+		return admissionMaxPerUser;
+	}
+
+	public void setAdmissionMaxPerUser(int admissionMaxPerUser) {
+		this.admissionMaxPerUser = admissionMaxPerUser;
+	}
+
+	public int getAdmissionQueueTimeoutSeconds() {
+		return admissionQueueTimeoutSeconds;
+	}
+
+	public void setAdmissionQueueTimeoutSeconds(int admissionQueueTimeoutSeconds) {
+		this.admissionQueueTimeoutSeconds = admissionQueueTimeoutSeconds;
+	}
+
+	public int getAdmissionRetryAfterSeconds() {
+		return admissionRetryAfterSeconds;
+	}
+
+	public void setAdmissionRetryAfterSeconds(int admissionRetryAfterSeconds) {
+		this.admissionRetryAfterSeconds = admissionRetryAfterSeconds;
+	}
+
+	public String getAdmissionUserHeader() {
+		return admissionUserHeader;
+	}
+
+	public void setAdmissionUserHeader(String admissionUserHeader) {
+		this.admissionUserHeader = admissionUserHeader;
+	}
+
+	public boolean isThreadsVirtual() {
+		return threadsVirtual;
+	}
+
+	public void setThreadsVirtual(boolean threadsVirtual) {
+		this.threadsVirtual = threadsVirtual;
+	}
+
+	public int getDashboardConcurrency() {
+		return dashboardConcurrency;
+	}
+
+	public void setDashboardConcurrency(int dashboardConcurrency) {
+		this.dashboardConcurrency = dashboardConcurrency;
+	}
+
+	public int getDashboardTileConcurrency() {
+		return dashboardTileConcurrency;
+	}
+
+	public void setDashboardTileConcurrency(int dashboardTileConcurrency) {
+		this.dashboardTileConcurrency = dashboardTileConcurrency;
+	}
+
+	public boolean isJsonAfterburner() {
+		return jsonAfterburner;
+	}
+
+	public void setJsonAfterburner(boolean jsonAfterburner) {
+		this.jsonAfterburner = jsonAfterburner;
+	}
+
+	public int getQueryWindowMaxSizeMb() {
+		return queryWindowMaxSizeMb;
+	}
+
+	public void setQueryWindowMaxSizeMb(int queryWindowMaxSizeMb) {
+		this.queryWindowMaxSizeMb = queryWindowMaxSizeMb;
+	}
+
+	public int getQueryWindowIdleSeconds() {
+		return queryWindowIdleSeconds;
+	}
+
+	public void setQueryWindowIdleSeconds(int queryWindowIdleSeconds) {
+		this.queryWindowIdleSeconds = queryWindowIdleSeconds;
+	}
+
 }
@@ -0,0 +1,65 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+import java.util.Date;
+
+/**
+ * What a run of the query cache prewarmer did: which analyses it executed, and how each went.
+ */
+public class PrewarmReport {
+
+	private Date startDateTime;
+	private Date endDateTime;
+	private PrewarmReportEntry[] entries;
+	private String message;
+
+	public Date getStartDateTime() {
+		return startDateTime;
+	}
+
+	public Date getEndDateTime() {
+		return endDateTime;
+	}
+
+	public PrewarmReportEntry[] getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return why the run executed nothing, or null if it ran
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	public void setStartDateTime(Date startDateTime) {
+		this.startDateTime = startDateTime;
+	}
+
+	public void setEndDateTime(Date endDateTime) {
+		this.endDateTime = endDateTime;
+	}
+
+	public void setEntries(PrewarmReportEntry[] entries) {
+		this.entries = entries;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+}
@@ -0,0 +1,78 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+public class PrewarmReportEntry {
+
+	public static final String STATUS_WARMED = "warmed";
+	public static final String STATUS_NOTHING_TO_QUERY = "nothing-to-query";
+	public static final String STATUS_FAILED = "failed";
+	public static final String STATUS_OUT_OF_TIME = "out-of-time";
+
+	private String analysisId;
+	private String analysisName;
+	private String status;
+	private long elapsedMillis;
+	private String message;
+
+	public PrewarmReportEntry() {}
+
+	public PrewarmReportEntry(String analysisId, String analysisName) {
+		this.analysisId = analysisId;
+		this.analysisName = analysisName;
+	}
+
+	public String getAnalysisId() {
+		return analysisId;
+	}
+
+	public String getAnalysisName() {
+		return analysisName;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setAnalysisId(String analysisId) {
+		this.analysisId = analysisId;
+	}
+
+	public void setAnalysisName(String analysisName) {
+		this.analysisName = analysisName;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+}
@@ -15,6 +15,8 @@
 
 package com.cascadia_analytics.piet.domain;
 
+import java.util.Arrays;
+
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class Query {
@@ -71,4 +73,16 @@ public class Query {
 		this.filters = filters;
 	}
 
+	/**
+	 * @return a deep copy, down to each measure, level and filter
+	 */
+	public Query copy() {
+		Query ret = new Query();
+		ret.nonEmpty = nonEmpty;
+		ret.filterParentAggregates = filterParentAggregates;
+		ret.measures = measures == null ? null : Arrays.stream(measures).map(measure -> measure == null ? null : measure.copy()).toArray(QueryMeasure[]::new);
+		ret.levels = levels == null ? null : Arrays.stream(levels).map(level -> level == null ? null : level.copy()).toArray(QueryLevel[]::new);
+		ret.filters = filters == null ? null : Arrays.stream(filters).map(filter -> filter == null ? null : filter.copy()).toArray(QueryFilter[]::new);
+		return ret;
+	}
 }
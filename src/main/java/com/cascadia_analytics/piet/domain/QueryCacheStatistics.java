@@ -0,0 +1,84 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+public class QueryCacheStatistics {
+
+	private long entryCount;
+	private long hitCount;
+	private long missCount;
+	private double hitRate;
+	private long evictionCount;
+	private int inFlightCount;
+	private long coalescedCount;
+
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public double getHitRate() {
+		return hitRate;
+	}
+
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public int getInFlightCount() {
+		return inFlightCount;
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	public void setEntryCount(long entryCount) {
+		this.entryCount = entryCount;
+	}
+
+	public void setHitCount(long hitCount) {
+		this.hitCount = hitCount;
+	}
+
+	public void setMissCount(long missCount) {
+		this.missCount = missCount;
+	}
+
+	public void setHitRate(double hitRate) {
+		this.hitRate = hitRate;
+	}
+
+	public void setEvictionCount(long evictionCount) {
+		this.evictionCount = evictionCount;
+	}
+
+	public void setInFlightCount(int inFlightCount) {
+		this.inFlightCount = inFlightCount;
+	}
+
+	public void setCoalescedCount(long coalescedCount) {
+		this.coalescedCount = coalescedCount;
+	}
+
+}
@@ -16,6 +16,8 @@
 package com.cascadia_analytics.piet.domain;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 public class QueryFilter {
 
@@ -28,6 +30,9 @@ public class QueryFilter {
 	@JsonProperty("_include")
 	private boolean include;
 
+	// may be compacted on the wire (and in Mongo, see QueryFilterWriteConverter)
+	@JsonSerialize(using=MemberNamesSerializer.class)
+	@JsonDeserialize(using=MemberNamesDeserializer.class)
 	private String[] levelMemberNames;
 
 	public String getLevelUniqueName() {
@@ -62,4 +67,15 @@ public class QueryFilter {
 		this.levelMemberNames = levelMemberNames;
 	}
 
+	/**
+	 * @return a copy with its own array of member names
+	 */
+	public QueryFilter copy() {
+		QueryFilter ret = new QueryFilter();
+		ret.levelUniqueName = levelUniqueName;
+		ret.filterOnlyHierarchy = filterOnlyHierarchy;
+		ret.include = include;
+		ret.levelMemberNames = levelMemberNames == null ? null : levelMemberNames.clone();
+		return ret;
+	}
 }
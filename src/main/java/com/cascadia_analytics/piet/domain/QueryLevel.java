@@ -41,4 +41,10 @@ public class QueryLevel {
 		this.rowOrientation = rowOrientation;
 	}
 
+	public QueryLevel copy() {
+		QueryLevel ret = new QueryLevel();
+		ret.uniqueName = uniqueName;
+		ret.rowOrientation = rowOrientation;
+		return ret;
+	}
 }
@@ -30,4 +30,9 @@ public class QueryMeasure {
 		this.uniqueName = uniqueName;
 	}
 
+	public QueryMeasure copy() {
+		QueryMeasure ret = new QueryMeasure();
+		ret.uniqueName = uniqueName;
+		return ret;
+	}
 }
@@ -0,0 +1,61 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+/**
+ * A query result held by the server, to be read in windows of rows and columns (see ResultWindow).
+ */
+public class ResultHandle {
+
+	private String handle;
+	private int rowCount;
+	private int columnCount;
+	// the result is released once it has not been read for this long
+	private int idleSeconds;
+
+	public String getHandle() {
+		return handle;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	public int getIdleSeconds() {
+		return idleSeconds;
+	}
+
+	public void setHandle(String handle) {
+		this.handle = handle;
+	}
+
+	public void setRowCount(int rowCount) {
+		this.rowCount = rowCount;
+	}
+
+	public void setColumnCount(int columnCount) {
+		this.columnCount = columnCount;
+	}
+
+	public void setIdleSeconds(int idleSeconds) {
+		this.idleSeconds = idleSeconds;
+	}
+
+}
@@ -0,0 +1,143 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * A stored result of an analysis's query, served in place of executing the query until the snapshot is refreshed or
+ * deleted. A snapshot is only served for the version of the analysis it was taken from.
+ */
+@Document(collection="resultSnapshot")
+public class ResultSnapshot {
+
+	// the id of the analysis
+	@Id
+	private String id;
+
+	private Long analysisVersion;
+
+	// identifies the state of the underlying data (e.g. an ETL batch), as told to us by whoever asked for the snapshot
+	@Indexed(sparse=true)
+	private String dataVersion;
+
+	private String connectionName;
+	private String mdx;
+
+	// the gzipped mondrian-rest result json
+	@JsonIgnore
+	private byte[] compressedResult;
+
+	private int resultLength;
+	private Date createDateTime;
+
+	// null if the snapshot is only refreshed on request
+	private Integer refreshIntervalSeconds;
+
+	@Indexed(sparse=true)
+	private Date nextRefreshDateTime;
+
+	public String getId() {
+		return id;
+	}
+
+	public Long getAnalysisVersion() {
+		return analysisVersion;
+	}
+
+	public String getDataVersion() {
+		return dataVersion;
+	}
+
+	public String getConnectionName() {
+		return connectionName;
+	}
+
+	public String getMdx() {
+		return mdx;
+	}
+
+	public byte[] getCompressedResult() {
+		return compressedResult;
+	}
+
+	public int getResultLength() {
+		return resultLength;
+	}
+
+	public int getCompressedResultLength() {
+		return compressedResult == null ? 0 : compressedResult.length;
+	}
+
+	public Date getCreateDateTime() {
+		return createDateTime;
+	}
+
+	public Integer getRefreshIntervalSeconds() {
+		return refreshIntervalSeconds;
+	}
+
+	public Date getNextRefreshDateTime() {
+		return nextRefreshDateTime;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public void setAnalysisVersion(Long analysisVersion) {
+		this.analysisVersion = analysisVersion;
+	}
+
+	public void setDataVersion(String dataVersion) {
+		this.dataVersion = dataVersion;
+	}
+
+	public void setConnectionName(String connectionName) {
+		this.connectionName = connectionName;
+	}
+
+	public void setMdx(String mdx) {
+		this.mdx = mdx;
+	}
+
+	public void setCompressedResult(byte[] compressedResult) {
+		this.compressedResult = compressedResult;
+	}
+
+	public void setResultLength(int resultLength) {
+		this.resultLength = resultLength;
+	}
+
+	public void setCreateDateTime(Date createDateTime) {
+		this.createDateTime = createDateTime;
+	}
+
+	public void setRefreshIntervalSeconds(Integer refreshIntervalSeconds) {
+		this.refreshIntervalSeconds = refreshIntervalSeconds;
+	}
+
+	public void setNextRefreshDateTime(Date nextRefreshDateTime) {
+		this.nextRefreshDateTime = nextRefreshDateTime;
+	}
+
+}
@@ -0,0 +1,110 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.domain;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A window of rows and columns of a held query result. Cell values are column-major: values[c][r] is the cell in
+ * the window's column c and row r, null if empty. The positions are those of mondrian-rest's axes, for the window only.
+ */
+public class ResultWindow {
+
+	private String handle;
+	// of the whole result
+	private int rowCount;
+	private int columnCount;
+	private int rowOffset;
+	private int columnOffset;
+	private JsonNode columnPositions;
+	private JsonNode rowPositions;
+	private Double[][] values;
+	// as mondrian-rest formatted them, or the cell's error if it has one
+	private String[][] formattedValues;
+
+	public String getHandle() {
+		return handle;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	public int getRowOffset() {
+		return rowOffset;
+	}
+
+	public int getColumnOffset() {
+		return columnOffset;
+	}
+
+	public JsonNode getColumnPositions() {
+		return columnPositions;
+	}
+
+	public JsonNode getRowPositions() {
+		return rowPositions;
+	}
+
+	public Double[][] getValues() {
+		return values;
+	}
+
+	public String[][] getFormattedValues() {
+		return formattedValues;
+	}
+
+	public void setHandle(String handle) {
+		this.handle = handle;
+	}
+
+	public void setRowCount(int rowCount) {
+		this.rowCount = rowCount;
+	}
+
+	public void setColumnCount(int columnCount) {
+		this.columnCount = columnCount;
+	}
+
+	public void setRowOffset(int rowOffset) {
+		this.rowOffset = rowOffset;
+	}
+
+	public void setColumnOffset(int columnOffset) {
+		this.columnOffset = columnOffset;
+	}
+
+	public void setColumnPositions(JsonNode columnPositions) {
+		this.columnPositions = columnPositions;
+	}
+
+	public void setRowPositions(JsonNode rowPositions) {
+		this.rowPositions = rowPositions;
+	}
+
+	public void setValues(Double[][] values) {
+		this.values = values;
+	}
+
+	public void setFormattedValues(String[][] formattedValues) {
+		this.formattedValues = formattedValues;
+	}
+
+}
@@ -0,0 +1,57 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.metrics;
+
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.mongodb.MongoClientOptions;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
+
+/**
+ * Registers Micrometer's mongo driver listeners: command latencies (mongodb.driver.commands) and connection pool
+ * size, checked-out connections and wait queue (mongodb.driver.pool.*). Boot 2.2 doesn't do this itself.
+ */
+@Configuration
+public class MongoMetricsConfiguration {
+
+	/**
+	 * Options for the blocking client; Boot applies spring.data.mongodb.* settings on top of these.
+	 */
+	@Bean
+	public MongoClientOptions mongoClientOptions(MeterRegistry meterRegistry) {
+		return MongoClientOptions.builder()
+				.addCommandListener(new MongoMetricsCommandListener(meterRegistry))
+				.addConnectionPoolListener(new MongoMetricsConnectionPoolListener(meterRegistry))
+				.build();
+	}
+
+	/**
+	 * Same listeners for the reactive client, which only exists in the reactive profile.
+	 */
+	@Bean
+	public MongoClientSettingsBuilderCustomizer mongoMetricsCustomizer(MeterRegistry meterRegistry) {
+		return builder -> builder
+				.addCommandListener(new MongoMetricsCommandListener(meterRegistry))
+				.applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(new MongoMetricsConnectionPoolListener(meterRegistry)));
+	}
+
+}
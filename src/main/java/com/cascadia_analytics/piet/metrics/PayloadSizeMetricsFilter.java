@@ -0,0 +1,163 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import com.cascadia_analytics.piet.PietApplication;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Records request and response body sizes (piet.http.request.size, piet.http.response.size), tagged like
+ * http.server.requests with the method and uri template. Response bytes are counted as they are written, so streamed
+ * responses are measured without being buffered.
+ */
+@Component
+@Profile("!" + PietApplication.REACTIVE_PROFILE)
+public class PayloadSizeMetricsFilter extends OncePerRequestFilter {
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+		CountingResponseWrapper countingResponse = new CountingResponseWrapper(response);
+		try {
+			filterChain.doFilter(request, countingResponse);
+		} finally {
+			if (request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new AsyncListener() {
+					@Override
+					public void onComplete(AsyncEvent event) {
+						record(request, countingResponse);
+					}
+					@Override
+					public void onTimeout(AsyncEvent event) {}
+					@Override
+					public void onError(AsyncEvent event) {}
+					@Override
+					public void onStartAsync(AsyncEvent event) {}
+				});
+			} else {
+				record(request, countingResponse);
+			}
+		}
+	}
+
+	private void record(HttpServletRequest request, CountingResponseWrapper response) {
+		Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+		String uri = pattern == null ? "UNKNOWN" : pattern.toString();
+		if (request.getContentLengthLong() > 0) {
+			summary("piet.http.request.size", request, uri).record(request.getContentLengthLong());
+		}
+		summary("piet.http.response.size", request, uri).record(response.getByteCount());
+	}
+
+	private DistributionSummary summary(String name, HttpServletRequest request, String uri) {
+		return DistributionSummary.builder(name)
+				.baseUnit("bytes")
+				.tag("method", request.getMethod())
+				.tag("uri", uri)
+				.register(meterRegistry);
+	}
+
+	private static class CountingResponseWrapper extends HttpServletResponseWrapper {
+
+		private CountingOutputStream outputStream;
+
+		CountingResponseWrapper(HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (outputStream == null) {
+				outputStream = new CountingOutputStream(super.getOutputStream());
+			}
+			return outputStream;
+		}
+
+		// writers are only used for error pages, which aren't worth counting
+
+		long getByteCount() {
+			return outputStream == null ? 0 : outputStream.count;
+		}
+
+	}
+
+	private static class CountingOutputStream extends ServletOutputStream {
+
+		private final ServletOutputStream delegate;
+		private volatile long count;
+
+		CountingOutputStream(ServletOutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			delegate.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			delegate.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+
+		@Override
+		public boolean isReady() {
+			return delegate.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			delegate.setWriteListener(writeListener);
+		}
+
+	}
+
+}
@@ -0,0 +1,98 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.metrics;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+import com.cascadia_analytics.piet.repository.ReactiveAnalysisRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Times every operation of the analysis repositories (piet.repository), tagged with the repository, method and outcome.
+ * Reactive operations are timed from subscription to termination.
+ */
+@Aspect
+@Component
+public class RepositoryMetricsAspect {
+
+	public static final String METRIC_NAME = "piet.repository";
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Around("execution(* com.cascadia_analytics.piet.repository.AnalysisRepository+.*(..)) || execution(* com.cascadia_analytics.piet.repository.ReactiveAnalysisRepository+.*(..))")
+	public Object time(ProceedingJoinPoint joinPoint) throws Throwable {
+		Timer.Sample sample = Timer.start(meterRegistry);
+		Object ret;
+		try {
+			ret = joinPoint.proceed();
+		} catch (Throwable t) {
+			stop(sample, joinPoint, "error");
+			throw t;
+		}
+		if (ret instanceof Mono) {
+			return Mono.defer(() -> {
+				Timer.Sample subscribed = Timer.start(meterRegistry);
+				return ((Mono<?>) ret).doFinally(signal -> stop(subscribed, joinPoint, outcome(signal)));
+			});
+		}
+		if (ret instanceof Flux) {
+			return Flux.defer(() -> {
+				Timer.Sample subscribed = Timer.start(meterRegistry);
+				return ((Flux<?>) ret).doFinally(signal -> stop(subscribed, joinPoint, outcome(signal)));
+			});
+		}
+		stop(sample, joinPoint, "success");
+		return ret;
+	}
+
+	private void stop(Timer.Sample sample, ProceedingJoinPoint joinPoint, String outcome) {
+		sample.stop(Timer.builder(METRIC_NAME)
+				.description("Analysis repository operations")
+				.tag("repository", repositoryName(joinPoint))
+				.tag("method", joinPoint.getSignature().getName())
+				.tag("outcome", outcome)
+				.register(meterRegistry));
+	}
+
+	private static String repositoryName(ProceedingJoinPoint joinPoint) {
+		// the declaring type of inherited methods is a Spring Data interface, so name the repository by what's being called
+		return (joinPoint.getThis() instanceof ReactiveAnalysisRepository ? ReactiveAnalysisRepository.class : AnalysisRepository.class).getSimpleName();
+	}
+
+	private static String outcome(SignalType signal) {
+		switch (signal) {
+		case ON_ERROR:
+			return "error";
+		case CANCEL:
+			return "cancelled";
+		default:
+			return "success";
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.Dashboard;
+import com.cascadia_analytics.piet.domain.DashboardResult;
+import com.cascadia_analytics.piet.domain.DashboardTile;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+import com.cascadia_analytics.piet.repository.DashboardRepository;
+
+/**
+ * Stores dashboards, and loads them whole: the dashboard's analyses (and their snapshots) are read in one query each, and
+ * the tiles' queries run in parallel, so a dashboard takes about as long as its slowest tile rather than the sum of them.
+ *
+ * <p>Tile queries run on a pool shared by all dashboards. At most tileConcurrency tiles of one dashboard run at once, and
+ * never more than admission control lets one user run, so a large dashboard doesn't get its own tiles rejected.</p>
+ */
+@Service
+public class DashboardService {
+
+	private final Log log = LogFactory.getLog(DashboardService.class);
+
+	public static final int MAX_TILES = 100;
+
+	private final DashboardRepository dashboardRepository;
+	private final AnalysisRepository analysisRepository;
+	private final MondrianQueryService mondrianQueryService;
+	private final ResultSnapshotService resultSnapshotService;
+	private final PietConfiguration pietConfiguration;
+	private final ExecutorService executor;
+
+	@Autowired
+	public DashboardService(DashboardRepository dashboardRepository, AnalysisRepository analysisRepository, MondrianQueryService mondrianQueryService,
+			ResultSnapshotService resultSnapshotService, PietConfiguration pietConfiguration) {
+		this.dashboardRepository = dashboardRepository;
+		this.analysisRepository = analysisRepository;
+		this.mondrianQueryService = mondrianQueryService;
+		this.resultSnapshotService = resultSnapshotService;
+		this.pietConfiguration = pietConfiguration;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(pietConfiguration.getDashboardConcurrency(), r -> {
+			Thread t = new Thread(r, "piet-dashboard-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public Optional<Dashboard> findById(String id) {
+		return dashboardRepository.findById(id);
+	}
+
+	public List<Dashboard> findAll() {
+		return dashboardRepository.findAll(Sort.by("name"));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the dashboard has too many tiles
+	 */
+	public Dashboard save(Dashboard dashboard) {
+		if (dashboard.getAnalysisIds() != null && dashboard.getAnalysisIds().length > MAX_TILES) {
+			throw new IllegalArgumentException("A dashboard can have at most " + MAX_TILES + " tiles");
+		}
+		Date now = new Date();
+		if (dashboard.getCreateDateTime() == null) {
+			dashboard.setCreateDateTime(now);
+		}
+		dashboard.setUpdateDateTime(now);
+		return dashboardRepository.save(dashboard);
+	}
+
+	public void delete(String id) {
+		dashboardRepository.deleteById(id);
+	}
+
+	/**
+	 * Load every tile of a dashboard.
+	 * @param dashboard the dashboard
+	 * @param user who the tiles' queries are for (see {@link QueryAdmissionController})
+	 * @param listener told of each tile as soon as it is loaded, on the calling thread
+	 * @return the dashboard with its tiles, in order; tiles that failed say why rather than failing the dashboard
+	 */
+	public DashboardResult load(Dashboard dashboard, String user, Consumer<DashboardTile> listener) throws InterruptedException {
+		long start = System.nanoTime();
+		String[] analysisIds = dashboard.getAnalysisIds() == null ? new String[0] : dashboard.getAnalysisIds();
+		Map<String, Analysis> analyses = new HashMap<>();
+		analysisRepository.findAllById(new LinkedHashSet<>(Arrays.asList(analysisIds))).forEach(analysis -> analyses.put(analysis.getId(), analysis));
+		Map<String, ResultSnapshot> snapshots = resultSnapshotService.findCurrent(analyses.values());
+		DashboardResult ret = new DashboardResult();
+		ret.setDashboard(dashboard);
+		ret.setTiles(loadTiles(analysisIds, analyses, snapshots, user, listener));
+		ret.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return ret;
+	}
+
+	DashboardTile[] loadTiles(String[] analysisIds, Map<String, Analysis> analyses, Map<String, ResultSnapshot> snapshots, String user,
+			Consumer<DashboardTile> listener) throws InterruptedException {
+		DashboardTile[] ret = new DashboardTile[analysisIds.length];
+		List<Integer> queries = new ArrayList<>();
+		for (int i = 0; i < analysisIds.length; i++) {
+			Analysis analysis = analyses.get(analysisIds[i]);
+			if (analysis == null || snapshots.containsKey(analysis.getId())) {
+				ret[i] = loadTile(i, analysisIds[i], analysis, snapshots.get(analysisIds[i]), user);
+				listener.accept(ret[i]);
+			} else {
+				queries.add(i);
+			}
+		}
+		int tileConcurrency = Math.max(1, pietConfiguration.getDashboardTileConcurrency());
+		if (pietConfiguration.isAdmissionEnabled() && !QueryAdmissionController.ANONYMOUS_USER.equals(user)) {
+			tileConcurrency = Math.min(tileConcurrency, pietConfiguration.getAdmissionMaxPerUser());
+		}
+		CompletionService<DashboardTile> completionService = new ExecutorCompletionService<>(executor);
+		List<Future<DashboardTile>> futures = new ArrayList<>();
+		try {
+			for (int completed = 0; completed < queries.size(); completed++) {
+				for (int submitted = futures.size(); submitted < queries.size() && submitted - completed < tileConcurrency; submitted++) {
+					int index = queries.get(submitted);
+					futures.add(completionService.submit(() -> loadTile(index, analysisIds[index], analyses.get(analysisIds[index]), null, user)));
+				}
+				DashboardTile tile;
+				try {
+					tile = completionService.take().get();
+				} catch (ExecutionException e) {
+					// loadTile handles runtime exceptions itself
+					throw new IllegalStateException(e.getCause());
+				}
+				ret[tile.getIndex()] = tile;
+				listener.accept(tile);
+			}
+		} finally {
+			// if we're interrupted, or the listener fails (say the client has gone), don't leave tiles running on the shared
+			// pool, holding the user's admission slots
+			futures.stream().filter(future -> !future.isDone()).forEach(future -> future.cancel(true));
+		}
+		return ret;
+	}
+
+	private DashboardTile loadTile(int index, String analysisId, Analysis analysis, ResultSnapshot snapshot, String user) {
+		long start = System.nanoTime();
+		DashboardTile ret = new DashboardTile(index, analysisId);
+		ret.setAnalysis(analysis);
+		try {
+			if (analysis == null) {
+				ret.setStatus(DashboardTile.STATUS_NOT_FOUND);
+			} else if (snapshot != null) {
+				ret.setResult(resultSnapshotService.getResult(snapshot));
+				ret.setFromSnapshot(true);
+				ret.setStatus(DashboardTile.STATUS_OK);
+			} else {
+				ret.setResult(mondrianQueryService.executeAnalysisQuery(analysis, user));
+				ret.setStatus(DashboardTile.STATUS_OK);
+			}
+		} catch (MondrianRestException e) {
+			ret.setStatus(DashboardTile.STATUS_FAILED);
+			ret.setErrorStatus(e.getStatus());
+			ret.setMessage(e.getMessage());
+		} catch (IllegalArgumentException e) {
+			ret.setStatus(DashboardTile.STATUS_FAILED);
+			ret.setErrorStatus(HttpStatus.UNPROCESSABLE_ENTITY.value());
+			ret.setMessage(e.getMessage());
+		} catch (RuntimeException e) {
+			log.warn("Failed to load analysis " + analysisId + " for a dashboard", e);
+			ret.setStatus(DashboardTile.STATUS_FAILED);
+			ret.setErrorStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+			ret.setMessage(e.getMessage());
+		}
+		ret.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return ret;
+	}
+
+}
@@ -0,0 +1,80 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the trimmed metadata of every mondrian-rest connection, as served by GET /datasets.
+ */
+public final class DatasetCatalog {
+
+	private final String json;
+	private final String fingerprint;
+	private final int connectionCount;
+	private final Date loadDateTime;
+	// level unique names of each hierarchy, by connection name and then by hierarchyKey
+	private final Map<String, Map<String, List<String>>> hierarchyLevels;
+
+	public DatasetCatalog(String json, String fingerprint, int connectionCount, Date loadDateTime, Map<String, Map<String, List<String>>> hierarchyLevels) {
+		this.json = json;
+		this.fingerprint = fingerprint;
+		this.connectionCount = connectionCount;
+		this.loadDateTime = loadDateTime;
+		this.hierarchyLevels = hierarchyLevels;
+	}
+
+	/**
+	 * @return a json array with an object (connectionName, metadataUrl, metadata) per connection
+	 */
+	public String getJson() {
+		return json;
+	}
+
+	/**
+	 * @return a hash of the json, which changes whenever the metadata of any connection changes
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	public Date getLoadDateTime() {
+		return loadDateTime;
+	}
+
+	/**
+	 * @param connectionName the mondrian-rest connection
+	 * @param cube the cube
+	 * @param hierarchyUniqueName the hierarchy, e.g. [Store].[Store]
+	 * @return the unique names of the hierarchy's levels, from the top of the hierarchy down, or null if the catalog doesn't
+	 * have the hierarchy
+	 */
+	public List<String> getLevelUniqueNames(String connectionName, String cube, String hierarchyUniqueName) {
+		return hierarchyLevels.getOrDefault(connectionName, Collections.emptyMap()).get(hierarchyKey(cube, hierarchyUniqueName));
+	}
+
+	static String hierarchyKey(String cube, String hierarchyUniqueName) {
+		return "[" + cube + "]." + hierarchyUniqueName;
+	}
+
+}
@@ -0,0 +1,245 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Caches the metadata of the mondrian-rest connections, so that the UI can load every dataset with one request to the
+ * server rather than a getConnections request plus a getMetadata request per connection to mondrian-rest. The metadata is
+ * trimmed to what the UI reads, and re-read in the background; a connection whose metadata can't be re-read keeps what was
+ * last read.
+ */
+@Service
+public class DatasetMetadataService implements MeterBinder {
+
+	private static final Log log = LogFactory.getLog(DatasetMetadataService.class);
+
+	private final MondrianRestClient mondrianRestClient;
+	private final ObjectMapper objectMapper;
+	private final String metadataUrlPrefix;
+
+	// trimmed metadata json, by connection name
+	private final Map<String, String> metadataByConnection = new ConcurrentHashMap<>();
+	// the levels of each hierarchy (see hierarchyLevels), by connection name
+	private final Map<String, Map<String, List<String>>> levelsByConnection = new ConcurrentHashMap<>();
+	private volatile DatasetCatalog catalog;
+
+	@Autowired
+	public DatasetMetadataService(MondrianRestClient mondrianRestClient, ObjectMapper objectMapper, PietConfiguration pietConfiguration) {
+		this.mondrianRestClient = mondrianRestClient;
+		this.objectMapper = objectMapper;
+		// the UI identifies datasets by the url it would have read their metadata from, and saved analyses refer to them by it
+		this.metadataUrlPrefix = pietConfiguration.getMondrianRestUrl() + "/getMetadata?connectionName=";
+	}
+
+	/**
+	 * @return the current catalog, reading it from mondrian-rest if it has not been read yet
+	 * @throws MondrianRestException if the catalog has not been read yet, and mondrian-rest fails to list its connections
+	 */
+	public DatasetCatalog getCatalog() {
+		DatasetCatalog ret = catalog;
+		if (ret == null) {
+			synchronized (this) {
+				ret = catalog == null ? refresh() : catalog;
+			}
+		}
+		return ret;
+	}
+
+	@Scheduled(fixedDelayString="${piet.datasets.refreshMillis:" + PietConfiguration.DEFAULT_DATASETS_REFRESH_MILLIS + "}")
+	public void scheduledRefresh() {
+		try {
+			refresh();
+		} catch (MondrianRestException e) {
+			log.warn("Unable to refresh dataset metadata, will retry at the next refresh: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Re-read the connections and their metadata from mondrian-rest.
+	 * @return the new catalog
+	 * @throws MondrianRestException if mondrian-rest fails to list its connections
+	 */
+	public synchronized DatasetCatalog refresh() {
+		List<String> connectionNames = new ArrayList<>();
+		try {
+			objectMapper.readTree(mondrianRestClient.getConnections()).fieldNames().forEachRemaining(connectionNames::add);
+		} catch (IOException e) {
+			throw new MondrianRestException(HttpStatus.BAD_GATEWAY.value(), "{\"error\":\"invalid getConnections response from mondrian-rest\"}",
+					"Unable to parse the mondrian-rest connection list", e);
+		}
+		metadataByConnection.keySet().retainAll(connectionNames);
+		levelsByConnection.keySet().retainAll(connectionNames);
+		for (String connectionName : connectionNames) {
+			try {
+				ObjectNode metadata = trimMetadata(objectMapper.readTree(mondrianRestClient.getMetadata(connectionName)));
+				metadataByConnection.put(connectionName, objectMapper.writeValueAsString(metadata));
+				levelsByConnection.put(connectionName, hierarchyLevels(metadata));
+			} catch (MondrianRestException | IOException e) {
+				log.warn("Unable to read metadata of connection " + connectionName + (metadataByConnection.containsKey(connectionName) ?
+						", keeping the metadata last read" : ", its datasets will be unavailable until the next refresh") + ": " + e.getMessage());
+			}
+		}
+		StringWriter json = new StringWriter();
+		int connectionCount = 0;
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(json)) {
+			generator.writeStartArray();
+			for (String connectionName : connectionNames) {
+				String metadata = metadataByConnection.get(connectionName);
+				if (metadata != null) {
+					generator.writeStartObject();
+					generator.writeStringField("connectionName", connectionName);
+					generator.writeStringField("metadataUrl", metadataUrlPrefix + connectionName);
+					generator.writeFieldName("metadata");
+					generator.writeRawValue(metadata);
+					generator.writeEndObject();
+					connectionCount++;
+				}
+			}
+			generator.writeEndArray();
+		} catch (IOException e) {
+			// writing to a StringWriter
+			throw new UncheckedIOException(e);
+		}
+		String catalogJson = json.toString();
+		String fingerprint = DigestUtils.md5DigestAsHex(catalogJson.getBytes(StandardCharsets.UTF_8));
+		if (catalog == null || !catalog.getFingerprint().equals(fingerprint)) {
+			log.info("Loaded metadata of " + connectionCount + " of " + connectionNames.size() + " mondrian-rest connections (" + catalogJson.length() + " characters)");
+		}
+		catalog = new DatasetCatalog(catalogJson, fingerprint, connectionCount, new Date(), Collections.unmodifiableMap(new HashMap<>(levelsByConnection)));
+		return catalog;
+	}
+
+	/**
+	 * Keep only the parts of a mondrian-rest getMetadata response that the UI reads (Dataset.loadFromMetadata). That drops
+	 * member counts, level cardinalities and the like, roughly halving the size of large catalogs.
+	 */
+	static ObjectNode trimMetadata(JsonNode metadata) {
+		ObjectNode ret = retain(metadata, "name", "connectionName");
+		ret.set("cubes", map(metadata.path("cubes"), cube -> {
+			ObjectNode trimmedCube = retain(cube, "name", "caption");
+			trimmedCube.set("measures", map(cube.path("measures"), measure -> retain(measure, "name", "caption", "visible", "calculated")));
+			trimmedCube.set("dimensions", map(cube.path("dimensions"), dimension -> {
+				ObjectNode trimmedDimension = retain(dimension, "name", "caption", "type");
+				trimmedDimension.set("hierarchies", map(dimension.path("hierarchies"), hierarchy -> {
+					ObjectNode trimmedHierarchy = retain(hierarchy, "name", "caption", "hasAll");
+					trimmedHierarchy.set("levels", map(hierarchy.path("levels"), level -> {
+						ObjectNode trimmedLevel = retain(level, "name", "caption", "depth");
+						trimmedLevel.set("members", map(level.path("members"), DatasetMetadataService::trimMember));
+						return trimmedLevel;
+					}));
+					return trimmedHierarchy;
+				}));
+				return trimmedDimension;
+			}));
+			if (cube.has("measureGroups")) {
+				trimmedCube.set("measureGroups", map(cube.get("measureGroups"), group -> retain(group, "name", "measureReferences", "dimensionReferences")));
+			}
+			return trimmedCube;
+		}));
+		return ret;
+	}
+
+	/**
+	 * Index the levels of every hierarchy of every cube in a connection's metadata, in metadata order (top of the hierarchy
+	 * down), with unique names built as the UI builds them (Dataset.loadFromMetadata).
+	 */
+	static Map<String, List<String>> hierarchyLevels(JsonNode metadata) {
+		Map<String, List<String>> ret = new HashMap<>();
+		for (JsonNode cube : metadata.path("cubes")) {
+			for (JsonNode dimension : cube.path("dimensions")) {
+				for (JsonNode hierarchy : dimension.path("hierarchies")) {
+					String hierarchyUniqueName = "[" + dimension.path("name").asText() + "].[" + hierarchy.path("name").asText() + "]";
+					List<String> levelUniqueNames = new ArrayList<>();
+					for (JsonNode level : hierarchy.path("levels")) {
+						levelUniqueNames.add(hierarchyUniqueName + ".[" + level.path("name").asText() + "]");
+					}
+					ret.put(DatasetCatalog.hierarchyKey(cube.path("name").asText(), hierarchyUniqueName), Collections.unmodifiableList(levelUniqueNames));
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static ObjectNode trimMember(JsonNode member) {
+		ObjectNode ret = retain(member, "name", "caption");
+		ret.set("childMembers", map(member.path("childMembers"), DatasetMetadataService::trimMember));
+		return ret;
+	}
+
+	private static ObjectNode retain(JsonNode node, String... fieldNames) {
+		ObjectNode ret = JsonNodeFactory.instance.objectNode();
+		for (String fieldName : fieldNames) {
+			if (node.has(fieldName)) {
+				ret.set(fieldName, node.get(fieldName));
+			}
+		}
+		return ret;
+	}
+
+	private static ArrayNode map(JsonNode array, Function<JsonNode, JsonNode> f) {
+		ArrayNode ret = JsonNodeFactory.instance.arrayNode(array.size());
+		for (Iterator<JsonNode> elements = array.elements(); elements.hasNext();) {
+			ret.add(f.apply(elements.next()));
+		}
+		return ret;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("piet.datasets.connections", this, s -> s.catalog == null ? 0 : s.catalog.getConnectionCount())
+				.description("Connections whose datasets are in the dataset catalog")
+				.register(registry);
+		Gauge.builder("piet.datasets.age", this, s -> s.catalog == null ? Double.NaN : (System.currentTimeMillis() - s.catalog.getLoadDateTime().getTime()) / 1000.0)
+				.description("Seconds since the dataset catalog was last read from mondrian-rest")
+				.baseUnit("seconds")
+				.register(registry);
+	}
+
+}
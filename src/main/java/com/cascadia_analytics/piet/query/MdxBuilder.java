@@ -0,0 +1,253 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+
+/**
+ * Builds MDX from a persisted {@link Query}. This is a port of Query.asMDX() in the UI (ui/src/js/model/Query.ts), and
+ * must produce exactly the same MDX, so that queries built here and queries built in the browser share cached results.
+ * Changes to one must be made to the other. Like the UI, it orders levels of the same hierarchy by the dataset metadata;
+ * without it (see {@link #MdxBuilder()}), or for a dataset missing from the catalog, it falls back to the query's order,
+ * which only agrees with the UI when the levels were added top-down.
+ */
+@Component
+public class MdxBuilder {
+
+	private static final String LEVEL_UNIQUE_NAME_REGEX = "(\\[[^\\]]+\\])\\.(\\[[^\\]]+\\])\\.(\\[[^\\]]+\\])";
+
+	private final DatasetMetadataService datasetMetadataService;
+
+	/**
+	 * A builder without dataset metadata, that orders levels of the same hierarchy as they are in the query.
+	 */
+	public MdxBuilder() {
+		this(null);
+	}
+
+	@Autowired
+	public MdxBuilder(DatasetMetadataService datasetMetadataService) {
+		this.datasetMetadataService = datasetMetadataService;
+	}
+
+	/**
+	 * Build the MDX for an analysis.
+	 * @param analysis the analysis
+	 * @return the MDX, or null if the analysis has no measures (in which case there is nothing to query)
+	 */
+	public String buildMdx(Analysis analysis) {
+		if (analysis.getQuery() == null || analysis.getDatasetRef() == null) {
+			return null;
+		}
+		return buildMdx(analysis.getQuery(), analysis.getDatasetRef());
+	}
+
+	public String buildMdx(Query query, DatasetRef datasetRef) {
+
+		String ret = null;
+		List<QueryMeasure> measures = asList(query.getMeasures());
+
+		if (!measures.isEmpty()) {
+
+			boolean nonEmpty = query.isNonEmpty();
+			String colsString = measuresString(measures);
+
+			List<QueryLevel> columnLevels = new ArrayList<>();
+			List<QueryLevel> rowLevels = new ArrayList<>();
+			for (QueryLevel level : asList(query.getLevels())) {
+				if (level.isRowOrientation()) {
+					rowLevels.add(level);
+				} else {
+					columnLevels.add(level);
+				}
+			}
+
+			if (!columnLevels.isEmpty()) {
+				colsString = (nonEmpty ? "NonEmpty" : "") + "CrossJoin(" + crossJoinLevels(columnLevels, query, datasetRef) + "," + measuresString(measures) + ")";
+			}
+
+			ret = "SELECT " + (nonEmpty ? "NON EMPTY " : "") + colsString + " ON COLUMNS";
+
+			if (!rowLevels.isEmpty()) {
+				ret += ((nonEmpty ? ", NON EMPTY " : ", ") + crossJoinLevels(rowLevels, query, datasetRef) + " ON ROWS");
+			}
+
+			ret += " FROM [" + datasetRef.getCube() + "]";
+
+		}
+
+		return ret;
+
+	}
+
+	private String crossJoinLevels(List<QueryLevel> levels, Query query, DatasetRef datasetRef) {
+
+		String joinVerb = query.isNonEmpty() ? "NonEmptyCrossJoin" : "CrossJoin";
+		String ret = null;
+
+		if (!levels.isEmpty()) {
+			if (levels.size() == 1) {
+				ret = "{" + memberMdxSet(levels.get(0), query) + "}";
+			} else {
+				List<QueryLevel> sibs = new ArrayList<>();
+				List<QueryLevel> newLevels = new ArrayList<>();
+				String firstLevelHierarchyName = hierarchyName(levels.get(0));
+				for (QueryLevel level : levels.subList(1, levels.size())) {
+					if (hierarchyName(level).equals(firstLevelHierarchyName)) {
+						sibs.add(level);
+					} else {
+						newLevels.add(level);
+					}
+				}
+				if (!sibs.isEmpty()) {
+					sibs.add(levels.get(0));
+					sibs = sortSiblings(sibs, levels.get(0), datasetRef);
+				} else {
+					newLevels.add(0, levels.get(0));
+				}
+				if (levels.size() == 2) {
+					String twoLevelBase = "{" + memberMdxSet(levels.get(0), query) + "},{" + memberMdxSet(levels.get(1), query) + "}";
+					if (!sibs.isEmpty()) {
+						if (filterActive(levels.get(0), query)) {
+							ret = "Hierarchize({" + "{" + memberMdxSet(levels.get(0), query) + "},Exists({" + memberMdxSet(levels.get(1), query) + "},{" + memberMdxSet(levels.get(0), query) + "})" + "})";
+						} else {
+							ret = "Hierarchize({" + twoLevelBase + "})";
+						}
+						if (query.isFilterParentAggregates()) {
+							ret = "VisualTotals(" + ret + ")";
+						}
+					} else {
+						ret = joinVerb + "(" + twoLevelBase + ")";
+					}
+				} else {
+					String base = "{" + memberMdxSet(levels.get(0), query) + "}";
+					List<QueryLevel> subsequentLevels = levels.subList(1, levels.size());
+					if (!sibs.isEmpty()) {
+						StringBuilder sb = new StringBuilder("Hierarchize({");
+						String pastExistsConstraintClause = null;
+						for (int levelIndex=0;levelIndex < sibs.size();levelIndex++) {
+							QueryLevel level = sibs.get(levelIndex);
+							String constrainedMemberSet = "{" + memberMdxSet(level, query) + "}";
+							if (pastExistsConstraintClause != null) {
+								constrainedMemberSet = "Exists({" + memberMdxSet(level, query) + "}," + pastExistsConstraintClause + ")";
+							}
+							if (filterActive(level, query)) {
+								pastExistsConstraintClause = constrainedMemberSet;
+							}
+							sb.append(constrainedMemberSet).append(levelIndex == sibs.size()-1 ? "" : ",");
+						}
+						sb.append("})");
+						base = sb.toString();
+						if (query.isFilterParentAggregates()) {
+							base = "VisualTotals(" + base + ")";
+						}
+						subsequentLevels = newLevels;
+					}
+					String rest = crossJoinLevels(subsequentLevels, query, datasetRef);
+					if (rest != null) {
+						ret = joinVerb + "(" + base + "," + rest + ")";
+					} else {
+						ret = base;
+					}
+				}
+			}
+		}
+
+		return ret;
+
+	}
+
+	/**
+	 * Order levels of the same hierarchy from the top of the hierarchy down, as the UI does, by the order of the hierarchy's
+	 * levels in the dataset metadata. Without the metadata, rely on the order in which the levels were added to the query
+	 * (first level first), which is top-down whenever the user drilled down the hierarchy.
+	 * @throws MondrianRestException if the dataset catalog has not been read yet, and can't be
+	 */
+	private List<QueryLevel> sortSiblings(List<QueryLevel> sibs, QueryLevel firstLevel, DatasetRef datasetRef) {
+		List<QueryLevel> ret = new ArrayList<>(sibs.size());
+		List<String> levelUniqueNames = null;
+		if (datasetMetadataService != null && datasetRef.getConnectionName() != null) {
+			levelUniqueNames = datasetMetadataService.getCatalog().getLevelUniqueNames(datasetRef.getConnectionName(), datasetRef.getCube(), hierarchyName(firstLevel));
+		}
+		if (levelUniqueNames != null) {
+			for (String levelUniqueName : levelUniqueNames) {
+				sibs.stream().filter(sib -> sib.getUniqueName().equals(levelUniqueName)).findFirst().ifPresent(ret::add);
+			}
+		} else {
+			ret.add(firstLevel);
+			ret.addAll(sibs.subList(0, sibs.size()-1));
+		}
+		return ret;
+	}
+
+	private static String measuresString(List<QueryMeasure> measures) {
+		return "{" + measures.stream().map(QueryMeasure::getUniqueName).collect(Collectors.joining(",")) + "}";
+	}
+
+	private static String memberMdxSet(QueryLevel level, Query query) {
+		String ret = level.getUniqueName() + ".Members";
+		if (filterActive(level, query)) {
+			QueryFilter buddyFilter = findFilter(level.getUniqueName(), query);
+			String memberNames = Arrays.stream(buddyFilter.getLevelMemberNames())
+					.map(lmn -> level.getUniqueName() + ".[" + lmn + "]")
+					.collect(Collectors.joining(","));
+			if (buddyFilter.isInclude()) {
+				ret = memberNames;
+			} else {
+				ret = "Except(" + ret + ",{" + memberNames + "})";
+			}
+		}
+		return ret;
+	}
+
+	private static boolean filterActive(QueryLevel level, Query query) {
+		QueryFilter buddyFilter = findFilter(level.getUniqueName(), query);
+		return buddyFilter != null && buddyFilter.getLevelMemberNames() != null && buddyFilter.getLevelMemberNames().length > 0;
+	}
+
+	private static QueryFilter findFilter(String levelUniqueName, Query query) {
+		QueryFilter ret = null;
+		for (QueryFilter filter : asList(query.getFilters())) {
+			if (levelUniqueName.equals(filter.getLevelUniqueName())) {
+				ret = filter;
+			}
+		}
+		return ret;
+	}
+
+	static String hierarchyName(QueryLevel level) {
+		return level.getUniqueName().replaceFirst(LEVEL_UNIQUE_NAME_REGEX, "$1.$2");
+	}
+
+	private static <T> List<T> asList(T[] array) {
+		return array == null ? Collections.emptyList() : Arrays.asList(array);
+	}
+
+}
@@ -0,0 +1,220 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.MondrianQuery;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.QueryCacheStatistics;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy.VarExpiration;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Executes MDX against mondrian-rest, caching results by connection and normalized MDX. The cache is bounded by the
+ * (approximate) total size of the cached results and by age, and can be invalidated per connection when the
+ * underlying data changes.
+ */
+@Service
+public class MondrianQueryService implements MeterBinder {
+
+	private final MondrianRestClient mondrianRestClient;
+	private final MdxBuilder mdxBuilder;
+	private final QueryAdmissionController admissionController;
+	private final Cache<QueryCacheKey, String> resultCache;
+	private final VarExpiration<QueryCacheKey, String> resultExpiration;
+	// only mondrian-rest's own failures are shared with the callers waiting on a query; the leader's admission is its own
+	private final SingleFlight<QueryCacheKey, String> inFlightQueries = new SingleFlight<>(
+			failure -> failure instanceof MondrianRestException && !(failure instanceof QueryRejectedException));
+	private final Duration coalesceTimeout;
+
+	@Autowired
+	public MondrianQueryService(MondrianRestClient mondrianRestClient, MdxBuilder mdxBuilder, QueryAdmissionController admissionController,
+			PietConfiguration pietConfiguration) {
+		this.mondrianRestClient = mondrianRestClient;
+		this.mdxBuilder = mdxBuilder;
+		this.admissionController = admissionController;
+		long ttlNanos = TimeUnit.SECONDS.toNanos(pietConfiguration.getQueryCacheTtlSeconds());
+		this.resultCache = Caffeine.newBuilder()
+				.maximumWeight(pietConfiguration.getQueryCacheMaxSizeMb() * 1024L * 1024L)
+				.weigher((QueryCacheKey key, String result) -> key.getMdx().length() + result.length())
+				.expireAfter(new Expiry<QueryCacheKey, String>() {
+					// entries live for the configured ttl from when they were written, unless written with an explicit ttl
+					@Override
+					public long expireAfterCreate(QueryCacheKey key, String value, long currentTime) {
+						return ttlNanos;
+					}
+					@Override
+					public long expireAfterUpdate(QueryCacheKey key, String value, long currentTime, long currentDuration) {
+						return ttlNanos;
+					}
+					@Override
+					public long expireAfterRead(QueryCacheKey key, String value, long currentTime, long currentDuration) {
+						return currentDuration;
+					}
+				})
+				.recordStats()
+				.build();
+		this.resultExpiration = resultCache.policy().expireVariably().get();
+		this.coalesceTimeout = Duration.ofSeconds(pietConfiguration.getQueryCoalesceTimeoutSeconds());
+	}
+
+	/**
+	 * Execute a query, returning a cached result if there is one. If the same query is already being sent to mondrian-rest
+	 * (say, a shared analysis opened by many users at once), wait for its result rather than sending it again.
+	 * @param connectionName the mondrian-rest connection
+	 * @param mdx the query
+	 * @param user who the query is for (see {@link QueryAdmissionController}), or null for the server itself
+	 * @return the mondrian-rest result json
+	 * @throws MondrianRestException if mondrian-rest fails the query (failures are not cached), or (504) if waiting for an
+	 * identical query timed out
+	 * @throws QueryRejectedException if the query has to go to mondrian-rest but is not admitted
+	 */
+	public String executeQuery(String connectionName, String mdx, String user) {
+		QueryCacheKey key = new QueryCacheKey(connectionName, mdx);
+		String ret = resultCache.getIfPresent(key);
+		if (ret == null) {
+			// waiting on someone else's query doesn't get around the user's own limit
+			admissionController.checkUser(connectionName, user);
+			ret = coalesce(key, () -> {
+				// the previous leader may have cached the result between our cache miss and this run
+				String result = resultCache.asMap().get(key);
+				if (result == null) {
+					result = admissionController.execute(connectionName, user, () -> mondrianRestClient.executeQuery(connectionName, mdx));
+					resultCache.put(key, result);
+				}
+				return result;
+			});
+		}
+		return ret;
+	}
+
+	/**
+	 * Execute a query against mondrian-rest regardless of what is cached (but sharing an identical query in flight), and
+	 * cache the result for the given time rather than the configured ttl.
+	 * @param connectionName the mondrian-rest connection
+	 * @param mdx the query
+	 * @param ttlSeconds how long to keep the result
+	 * @return the mondrian-rest result json
+	 * @throws MondrianRestException if mondrian-rest fails the query
+	 */
+	public String refreshQuery(String connectionName, String mdx, long ttlSeconds) {
+		QueryCacheKey key = new QueryCacheKey(connectionName, mdx);
+		String ret = coalesce(key, () -> admissionController.execute(connectionName, QueryAdmissionController.SYSTEM_USER,
+				() -> mondrianRestClient.executeQuery(connectionName, mdx)));
+		resultExpiration.put(key, ret, ttlSeconds, TimeUnit.SECONDS);
+		return ret;
+	}
+
+	private String coalesce(QueryCacheKey key, Callable<String> query) {
+		try {
+			return inFlightQueries.execute(key, coalesceTimeout, query);
+		} catch (SingleFlight.WaitTimeoutException e) {
+			throw new MondrianRestException(HttpStatus.GATEWAY_TIMEOUT.value(), "{\"error\":\"timed out waiting for an identical query\"}",
+					e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Determine the mondrian-rest query for a persisted analysis.
+	 * @param analysis the analysis
+	 * @return the query, or null if the analysis has nothing to query (no measures)
+	 * @throws IllegalArgumentException if the analysis's dataset does not identify a mondrian-rest connection
+	 */
+	public MondrianQuery getAnalysisQuery(Analysis analysis) {
+		MondrianQuery ret = null;
+		String mdx = mdxBuilder.buildMdx(analysis);
+		if (mdx != null) {
+			String connectionName = analysis.getDatasetRef().getConnectionName();
+			if (connectionName == null) {
+				throw new IllegalArgumentException("Dataset " + analysis.getDatasetRef().getId() + " of analysis " + analysis.getId() + " does not identify a mondrian-rest connection");
+			}
+			ret = new MondrianQuery(connectionName, mdx);
+		}
+		return ret;
+	}
+
+	/**
+	 * Execute the query of a persisted analysis.
+	 * @param analysis the analysis
+	 * @param user who the query is for, or null for the server itself
+	 * @return the mondrian-rest result json, or null if the analysis has nothing to query (no measures)
+	 * @throws IllegalArgumentException if the analysis's dataset does not identify a mondrian-rest connection
+	 * @throws MondrianRestException if mondrian-rest fails the query
+	 */
+	public String executeAnalysisQuery(Analysis analysis, String user) {
+		MondrianQuery query = getAnalysisQuery(analysis);
+		return query == null ? null : executeQuery(query.getConnectionName(), query.getQuery(), user);
+	}
+
+	public void invalidate(String connectionName) {
+		resultCache.asMap().keySet().removeIf(key -> key.getConnectionName().equals(connectionName));
+	}
+
+	public void invalidateAll() {
+		resultCache.invalidateAll();
+	}
+
+	/**
+	 * Expose the result cache's statistics (cache.gets, cache.evictions etc., tagged cache=mondrianQueryResults).
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, resultCache, "mondrianQueryResults");
+		FunctionCounter.builder("piet.query.coalesced", inFlightQueries, SingleFlight::getCoalescedCount)
+				.description("Queries that waited for an identical query in flight rather than sending their own to mondrian-rest")
+				.register(registry);
+		FunctionCounter.builder("piet.query.coalesced.timeouts", inFlightQueries, SingleFlight::getTimeoutCount)
+				.description("Queries that gave up waiting for an identical query in flight")
+				.register(registry);
+		FunctionCounter.builder("piet.query.coalesced.takeovers", inFlightQueries, SingleFlight::getTakeoverCount)
+				.description("Queries that went to mondrian-rest themselves because the identical query they waited for was not admitted")
+				.register(registry);
+		Gauge.builder("piet.query.inflight", inFlightQueries, SingleFlight::getInFlightCount)
+				.description("Distinct queries currently being executed by mondrian-rest")
+				.register(registry);
+	}
+
+	public QueryCacheStatistics getCacheStatistics() {
+		CacheStats stats = resultCache.stats();
+		QueryCacheStatistics ret = new QueryCacheStatistics();
+		ret.setEntryCount(resultCache.estimatedSize());
+		ret.setHitCount(stats.hitCount());
+		ret.setMissCount(stats.missCount());
+		ret.setHitRate(stats.hitRate());
+		ret.setEvictionCount(stats.evictionCount());
+		ret.setInFlightCount(inFlightQueries.getInFlightCount());
+		ret.setCoalescedCount(inFlightQueries.getCoalescedCount());
+		return ret;
+	}
+
+}
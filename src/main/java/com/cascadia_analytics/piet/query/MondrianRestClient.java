@@ -0,0 +1,118 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import com.cascadia_analytics.piet.domain.MondrianQuery;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Server-side client for the mondrian-rest API. Responses are returned as raw JSON strings; we relay them to the UI
+ * as-is and have no need to bind them to objects.
+ */
+@Component
+public class MondrianRestClient {
+
+	private final Log log = LogFactory.getLog(MondrianRestClient.class);
+
+	public static final String METRIC_NAME = "piet.mondrian.requests";
+
+	private final RestTemplate restTemplate;
+	private final String baseUrl;
+	private final MeterRegistry meterRegistry;
+
+	@Autowired
+	public MondrianRestClient(ObjectProvider<RestTemplateBuilder> restTemplateBuilder, PietConfiguration pietConfiguration, MeterRegistry meterRegistry) {
+		// Boot doesn't provide a builder in reactive applications
+		this(restTemplateBuilder.getIfAvailable(RestTemplateBuilder::new), pietConfiguration, meterRegistry);
+	}
+
+	public MondrianRestClient(RestTemplateBuilder restTemplateBuilder, PietConfiguration pietConfiguration, MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		this.baseUrl = pietConfiguration.getMondrianRestServerUrl().replaceAll("/+$", "");
+		this.restTemplate = restTemplateBuilder
+				.setReadTimeout(Duration.ofSeconds(pietConfiguration.getMondrianRestReadTimeoutSeconds()))
+				.build();
+		log.info("Server-side mondrian-rest requests will be sent to " + baseUrl);
+	}
+
+	/**
+	 * Execute a query. Each request to mondrian-rest is timed (piet.mondrian.requests), tagged with the operation, the
+	 * connection and the response status.
+	 */
+	public String executeQuery(String connectionName, String mdx) {
+		return exchange("query", connectionName, "query on connection " + connectionName,
+				() -> restTemplate.postForObject(baseUrl + "/query", new MondrianQuery(connectionName, mdx), String.class));
+	}
+
+	/**
+	 * @return the json object whose property names are the names of the connections mondrian-rest serves
+	 */
+	public String getConnections() {
+		return exchange("getConnections", "", "getConnections",
+				() -> restTemplate.getForObject(baseUrl + "/getConnections", String.class));
+	}
+
+	/**
+	 * @return the json catalog (schema name, cubes, dimensions, members...) of a connection
+	 */
+	public String getMetadata(String connectionName) {
+		return exchange("getMetadata", connectionName, "metadata of connection " + connectionName,
+				() -> restTemplate.getForObject(baseUrl + "/getMetadata?connectionName={connectionName}", String.class, connectionName));
+	}
+
+	private String exchange(String operation, String connectionName, String description, Supplier<String> request) {
+		Timer.Sample sample = Timer.start(meterRegistry);
+		String status = "IO_ERROR";
+		try {
+			String ret = request.get();
+			status = String.valueOf(HttpStatus.OK.value());
+			return ret;
+		} catch (HttpStatusCodeException e) {
+			status = String.valueOf(e.getRawStatusCode());
+			throw new MondrianRestException(e.getRawStatusCode(), e.getResponseBodyAsString(),
+					"mondrian-rest returned " + e.getRawStatusCode() + " for " + description, e);
+		} catch (ResourceAccessException e) {
+			log.warn("Unable to reach mondrian-rest at " + baseUrl, e);
+			throw new MondrianRestException(HttpStatus.BAD_GATEWAY.value(), "{\"error\":\"mondrian-rest unavailable\"}",
+					"Unable to reach mondrian-rest at " + baseUrl, e);
+		} finally {
+			sample.stop(Timer.builder(METRIC_NAME)
+					.description("Requests sent to mondrian-rest")
+					.tag("operation", operation)
+					.tag("connection", connectionName)
+					.tag("status", status)
+					.register(meterRegistry));
+		}
+	}
+
+}
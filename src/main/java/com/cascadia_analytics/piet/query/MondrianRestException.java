@@ -0,0 +1,43 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+/**
+ * Thrown when mondrian-rest rejects a request or cannot be reached. Carries the status and body that should be relayed
+ * to our own client, so that the UI sees the same errors it would see talking to mondrian-rest directly.
+ */
+public class MondrianRestException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+	private final String responseBody;
+
+	public MondrianRestException(int status, String responseBody, String message, Throwable cause) {
+		super(message, cause);
+		this.status = status;
+		this.responseBody = responseBody;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getResponseBody() {
+		return responseBody;
+	}
+
+}
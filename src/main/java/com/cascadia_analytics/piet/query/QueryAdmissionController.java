@@ -0,0 +1,263 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * A bulkhead per mondrian-rest connection: at most maxConcurrent queries run against a connection at once, and up to
+ * maxQueued more wait (for at most queueTimeoutSeconds) for a turn. Waiting queries are admitted round-robin by user, so
+ * one user's burst of queries can't hold up everyone else's, and each user may have at most maxPerUser queries running
+ * or waiting. Queries that don't identify their user (see {@link #ANONYMOUS_USER}) share the connection's limits but have
+ * no per-user limit. Queries that can't be admitted are rejected at once with a {@link QueryRejectedException}: 429 when the user
+ * is over their share, 503 when the connection is saturated or the wait timed out.
+ */
+@Component
+public class QueryAdmissionController {
+
+	// the user of queries the server runs on its own account (prewarming, snapshots)
+	public static final String SYSTEM_USER = "(system)";
+
+	// the user of queries whose requests don't identify one (no admission user header, and no authenticated user). They may
+	// all come from one proxy address, so they aren't held to the per-user limit, which would apply to everyone at once
+	public static final String ANONYMOUS_USER = "(anonymous)";
+
+	static final String METRIC_PREFIX = "piet.query.admission";
+
+	private final PietConfiguration pietConfiguration;
+	private final MeterRegistry meterRegistry;
+	private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+	@Autowired
+	public QueryAdmissionController(PietConfiguration pietConfiguration, MeterRegistry meterRegistry) {
+		this.pietConfiguration = pietConfiguration;
+		this.meterRegistry = meterRegistry;
+	}
+
+	/**
+	 * Run a query against a connection once it is admitted.
+	 * @param connectionName the connection
+	 * @param user who the query is run for, or null for the server itself
+	 * @param query sends the query
+	 * @return the result
+	 * @throws QueryRejectedException if the query is not admitted
+	 */
+	public <T> T execute(String connectionName, String user, Supplier<T> query) {
+		if (!pietConfiguration.isAdmissionEnabled()) {
+			return query.get();
+		}
+		String queryUser = user == null ? SYSTEM_USER : user;
+		Bulkhead bulkhead = bulkheads.computeIfAbsent(connectionName, Bulkhead::new);
+		bulkhead.acquire(queryUser);
+		try {
+			return query.get();
+		} finally {
+			bulkhead.release(queryUser);
+		}
+	}
+
+	/**
+	 * Check that a user may have another query against a connection, without running one: for a query that will wait for an
+	 * identical query already running rather than run itself.
+	 * @param connectionName the connection
+	 * @param user who the query is for, or null for the server itself
+	 * @throws QueryRejectedException (429) if the user already has as many queries running or queued as they may
+	 */
+	public void checkUser(String connectionName, String user) {
+		if (pietConfiguration.isAdmissionEnabled()) {
+			bulkheads.computeIfAbsent(connectionName, Bulkhead::new).checkUser(user == null ? SYSTEM_USER : user);
+		}
+	}
+
+	private static final class Waiter {
+
+		private final Condition turn;
+		// guarded by the bulkhead's lock
+		private boolean admitted;
+
+		Waiter(Condition turn) {
+			this.turn = turn;
+		}
+
+	}
+
+	private final class Bulkhead {
+
+		private final String connectionName;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Timer waitTimer;
+
+		// all guarded by lock; running and queued are also read (unlocked) by gauges
+		private volatile int running;
+		private volatile int queued;
+		// running plus queued, by user
+		private final Map<String, Integer> userCounts = new HashMap<>();
+		private final Map<String, ArrayDeque<Waiter>> queues = new HashMap<>();
+		// users with queued queries, in the order they will next be admitted
+		private final ArrayDeque<String> rotation = new ArrayDeque<>();
+
+		Bulkhead(String connectionName) {
+			this.connectionName = connectionName;
+			Gauge.builder(METRIC_PREFIX + ".running", this, b -> b.running)
+					.description("Queries running against mondrian-rest")
+					.tag("connection", connectionName)
+					.register(meterRegistry);
+			Gauge.builder(METRIC_PREFIX + ".queued", this, b -> b.queued)
+					.description("Queries waiting to be admitted to mondrian-rest")
+					.tag("connection", connectionName)
+					.register(meterRegistry);
+			waitTimer = Timer.builder(METRIC_PREFIX + ".wait")
+					.description("Time admitted queries waited for their turn")
+					.tag("connection", connectionName)
+					.register(meterRegistry);
+		}
+
+		void acquire(String user) {
+			long start = System.nanoTime();
+			lock.lock();
+			try {
+				int userCount = checkUserCount(user);
+				if (running < pietConfiguration.getAdmissionMaxConcurrent() && queued == 0) {
+					running++;
+					userCounts.put(user, userCount + 1);
+				} else {
+					if (queued >= pietConfiguration.getAdmissionMaxQueued()) {
+						throw reject(HttpStatus.SERVICE_UNAVAILABLE, "saturated", queued + " queries are already queued");
+					}
+					enqueueAndWait(user, userCount);
+				}
+			} finally {
+				lock.unlock();
+			}
+			waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+
+		void checkUser(String user) {
+			lock.lock();
+			try {
+				checkUserCount(user);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private int checkUserCount(String user) {
+			int ret = userCounts.getOrDefault(user, 0);
+			if (!ANONYMOUS_USER.equals(user) && ret >= pietConfiguration.getAdmissionMaxPerUser()) {
+				throw reject(HttpStatus.TOO_MANY_REQUESTS, "user_limit", user + " already has " + ret + " queries running or queued");
+			}
+			return ret;
+		}
+
+		private void enqueueAndWait(String user, int userCount) {
+			Waiter waiter = new Waiter(lock.newCondition());
+			queues.computeIfAbsent(user, u -> {
+				rotation.add(u);
+				return new ArrayDeque<>();
+			}).add(waiter);
+			queued++;
+			userCounts.put(user, userCount + 1);
+			long remaining = TimeUnit.SECONDS.toNanos(pietConfiguration.getAdmissionQueueTimeoutSeconds());
+			boolean interrupted = false;
+			while (!waiter.admitted && remaining > 0 && !interrupted) {
+				try {
+					remaining = waiter.turn.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (waiter.admitted) {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				return;
+			}
+			// give up our place in the queue
+			ArrayDeque<Waiter> queue = queues.get(user);
+			queue.remove(waiter);
+			if (queue.isEmpty()) {
+				queues.remove(user);
+				rotation.remove(user);
+			}
+			queued--;
+			decrementUserCount(user);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			throw reject(HttpStatus.SERVICE_UNAVAILABLE, "timeout", "No turn within " + pietConfiguration.getAdmissionQueueTimeoutSeconds() + " seconds");
+		}
+
+		void release(String user) {
+			lock.lock();
+			try {
+				decrementUserCount(user);
+				running--;
+				String next = rotation.poll();
+				if (next != null) {
+					ArrayDeque<Waiter> queue = queues.get(next);
+					Waiter waiter = queue.poll();
+					if (queue.isEmpty()) {
+						queues.remove(next);
+					} else {
+						rotation.add(next);
+					}
+					queued--;
+					running++;
+					waiter.admitted = true;
+					waiter.turn.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void decrementUserCount(String user) {
+			userCounts.computeIfPresent(user, (u, count) -> count == 1 ? null : count - 1);
+		}
+
+		private QueryRejectedException reject(HttpStatus status, String reason, String detail) {
+			Counter.builder(METRIC_PREFIX + ".rejected")
+					.description("Queries not admitted to mondrian-rest")
+					.tag("connection", connectionName)
+					.tag("reason", reason)
+					.register(meterRegistry)
+					.increment();
+			return new QueryRejectedException(status.value(), "query not admitted (" + reason + ")",
+					"Query on connection " + connectionName + " not admitted: " + detail, pietConfiguration.getAdmissionRetryAfterSeconds());
+		}
+
+	}
+
+}
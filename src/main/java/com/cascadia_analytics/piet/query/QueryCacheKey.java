@@ -0,0 +1,97 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.util.Objects;
+
+/**
+ * Identifies a query result: the connection it ran against, plus the MDX with insignificant whitespace removed, so that
+ * queries differing only in formatting share a result.
+ */
+public final class QueryCacheKey {
+
+	private final String connectionName;
+	private final String mdx;
+
+	public QueryCacheKey(String connectionName, String mdx) {
+		this.connectionName = connectionName;
+		this.mdx = normalize(mdx);
+	}
+
+	public String getConnectionName() {
+		return connectionName;
+	}
+
+	public String getMdx() {
+		return mdx;
+	}
+
+	/**
+	 * Collapse each run of whitespace to a single space and trim the ends, except within bracketed identifiers and
+	 * quoted strings, where whitespace is significant.
+	 */
+	static String normalize(String mdx) {
+		StringBuilder sb = new StringBuilder(mdx.length());
+		char closing = 0;
+		boolean pendingSpace = false;
+		for (int i=0;i < mdx.length();i++) {
+			char c = mdx.charAt(i);
+			if (closing != 0) {
+				sb.append(c);
+				if (c == closing) {
+					closing = 0;
+				}
+			} else if (Character.isWhitespace(c)) {
+				pendingSpace = sb.length() > 0;
+			} else {
+				if (pendingSpace) {
+					sb.append(' ');
+					pendingSpace = false;
+				}
+				sb.append(c);
+				if (c == '[') {
+					closing = ']';
+				} else if (c == '"' || c == '\'') {
+					closing = c;
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof QueryCacheKey)) {
+			return false;
+		}
+		QueryCacheKey other = (QueryCacheKey) o;
+		return connectionName.equals(other.connectionName) && mdx.equals(other.mdx);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(connectionName, mdx);
+	}
+
+	@Override
+	public String toString() {
+		return connectionName + ": " + mdx;
+	}
+
+}
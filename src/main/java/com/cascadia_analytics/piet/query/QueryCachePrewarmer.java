@@ -0,0 +1,191 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.MondrianQuery;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.PrewarmReport;
+import com.cascadia_analytics.piet.domain.PrewarmReportEntry;
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+
+/**
+ * Periodically executes the queries of the most-read analyses, so that their results are in the query cache before
+ * users ask for them. Queries run with bounded concurrency, and whatever has not finished when the time budget runs out
+ * is abandoned until the next run. An abandoned query can't be stopped (the mondrian-rest client doesn't respond to interrupts),
+ * so a run is skipped while any are still running rather than piling more queries onto a struggling mondrian-rest.
+ */
+@Component
+public class QueryCachePrewarmer {
+
+	private final Log log = LogFactory.getLog(QueryCachePrewarmer.class);
+
+	@Autowired
+	private AnalysisRepository analysisRepository;
+
+	@Autowired
+	private MondrianQueryService mondrianQueryService;
+
+	@Autowired
+	private PietConfiguration pietConfiguration;
+
+	private ExecutorService executor;
+	private volatile PrewarmReport lastReport;
+	// queries started and not yet finished, which outside a run are queries it abandoned
+	private final AtomicInteger runningQueries = new AtomicInteger();
+
+	@PostConstruct
+	public void init() {
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(pietConfiguration.getPrewarmConcurrency(), r -> {
+			Thread t = new Thread(r, "piet-prewarm-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Scheduled(cron="${piet.prewarm.cron:" + PietConfiguration.DEFAULT_PREWARM_CRON + "}")
+	public void scheduledPrewarm() {
+		if (pietConfiguration.isPrewarmEnabled()) {
+			prewarm();
+		}
+	}
+
+	/**
+	 * Warm the cache now, unless queries abandoned by the previous run are still running.
+	 * @return a report of what was warmed, or with no entries and a message if the run was skipped (which is not kept as
+	 * the last report)
+	 */
+	public synchronized PrewarmReport prewarm() {
+
+		PrewarmReport report = new PrewarmReport();
+		report.setStartDateTime(new Date());
+
+		int abandoned = runningQueries.get();
+		if (abandoned > 0) {
+			report.setMessage("Skipped, since " + abandoned + " queries abandoned by the previous run are still running");
+			report.setEntries(new PrewarmReportEntry[0]);
+			report.setEndDateTime(report.getStartDateTime());
+			log.warn("Skipped prewarming the query cache, since " + abandoned + " queries abandoned by the previous run are still running");
+			return report;
+		}
+
+		List<Analysis> analyses = analysisRepository.findMostRead(pietConfiguration.getPrewarmTopN());
+		List<Callable<PrewarmReportEntry>> tasks = new ArrayList<>(analyses.size());
+		long ttlSeconds = pietConfiguration.getPrewarmResultTtlSeconds();
+
+		for (Analysis analysis : analyses) {
+			tasks.add(() -> {
+				PrewarmReportEntry entry = new PrewarmReportEntry(analysis.getId(), analysis.getName());
+				long start = System.nanoTime();
+				runningQueries.incrementAndGet();
+				try {
+					MondrianQuery query = mondrianQueryService.getAnalysisQuery(analysis);
+					if (query == null) {
+						entry.setStatus(PrewarmReportEntry.STATUS_NOTHING_TO_QUERY);
+					} else {
+						mondrianQueryService.refreshQuery(query.getConnectionName(), query.getQuery(), ttlSeconds);
+						entry.setStatus(PrewarmReportEntry.STATUS_WARMED);
+					}
+				} catch (RuntimeException e) {
+					log.warn("Failed to prewarm analysis " + analysis.getId(), e);
+					entry.setStatus(PrewarmReportEntry.STATUS_FAILED);
+					entry.setMessage(e.getMessage());
+				} finally {
+					runningQueries.decrementAndGet();
+					entry.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				}
+				return entry;
+			});
+		}
+
+		List<Future<PrewarmReportEntry>> futures = Collections.emptyList();
+		try {
+			// tasks still queued or running when the budget is exhausted are cancelled
+			futures = executor.invokeAll(tasks, pietConfiguration.getPrewarmTimeBudgetSeconds(), TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// each task reports through its own entry, so a cancelled query that completes late can't change a published report
+		List<PrewarmReportEntry> entries = new ArrayList<>(analyses.size());
+		for (int i=0;i < analyses.size();i++) {
+			entries.add(entry(analyses.get(i), i < futures.size() ? futures.get(i) : null));
+		}
+
+		report.setEndDateTime(new Date());
+		report.setEntries(entries.toArray(new PrewarmReportEntry[0]));
+		lastReport = report;
+
+		log.info("Prewarmed query cache for " + entries.stream().filter(e -> PrewarmReportEntry.STATUS_WARMED.equals(e.getStatus())).count() +
+				" of " + entries.size() + " analyses in " + (report.getEndDateTime().getTime() - report.getStartDateTime().getTime()) + " ms");
+
+		return report;
+
+	}
+
+	private static PrewarmReportEntry entry(Analysis analysis, Future<PrewarmReportEntry> future) {
+		if (future != null && !future.isCancelled()) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				PrewarmReportEntry ret = new PrewarmReportEntry(analysis.getId(), analysis.getName());
+				ret.setStatus(PrewarmReportEntry.STATUS_FAILED);
+				ret.setMessage(e.getCause().getMessage());
+				return ret;
+			}
+		}
+		PrewarmReportEntry ret = new PrewarmReportEntry(analysis.getId(), analysis.getName());
+		ret.setStatus(PrewarmReportEntry.STATUS_OUT_OF_TIME);
+		return ret;
+	}
+
+	/**
+	 * @return the report of the most recent run, or null if there has not been one
+	 */
+	public PrewarmReport getLastReport() {
+		return lastReport;
+	}
+
+}
@@ -0,0 +1,37 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+/**
+ * Thrown when a query is not admitted to mondrian-rest because too many are already running or queued (see
+ * {@link QueryAdmissionController}). Relayed as 429 or 503, with a Retry-After header.
+ */
+public class QueryRejectedException extends MondrianRestException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int retryAfterSeconds;
+
+	public QueryRejectedException(int status, String reason, String message, int retryAfterSeconds) {
+		super(status, "{\"error\":\"" + reason + "\"}", message, null);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+}
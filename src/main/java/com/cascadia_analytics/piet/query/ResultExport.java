@@ -0,0 +1,446 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Flattens a mondrian-rest result into a table for export: a header row, then one row per position of the rows axis,
+ * led by the members of that position and followed by the cells under each position of the columns axis. The axes are
+ * read up front; the cells are then streamed from the result json to the output a row at a time, so neither a tree of
+ * the result nor the whole table is ever held.
+ */
+public final class ResultExport {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final String COLUMN_LABEL_SEPARATOR = " / ";
+	private static final int XLSX_ROW_WINDOW = 100;
+
+	public enum Format {
+
+		CSV("text/csv;charset=UTF-8", "csv"),
+		XLSX("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx");
+
+		private final String mediaType;
+		private final String extension;
+
+		Format(String mediaType, String extension) {
+			this.mediaType = mediaType;
+			this.extension = extension;
+		}
+
+		public String getMediaType() {
+			return mediaType;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if the format isn't one we export
+		 */
+		public static Format of(String format) {
+			try {
+				return valueOf(format.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unsupported export format " + format + "; use csv or xlsx", e);
+			}
+		}
+
+	}
+
+	private final String result;
+	private final String[] rowHeaders;
+	private final String[][] rowMembers;
+	private final String[] columnLabels;
+
+	private ResultExport(String result, String[] rowHeaders, String[][] rowMembers, String[] columnLabels) {
+		this.result = result;
+		this.rowHeaders = rowHeaders;
+		this.rowMembers = rowMembers;
+		this.columnLabels = columnLabels;
+	}
+
+	/**
+	 * Read the axes of a result, ready to export it.
+	 * @param result the mondrian-rest result
+	 * @return the export
+	 * @throws IOException if the json is malformed
+	 * @throws IllegalArgumentException if the result has more than two axes
+	 */
+	public static ResultExport of(String result) throws IOException {
+		List<Axis> axes = new ArrayList<>();
+		try (JsonParser parser = JSON_FACTORY.createParser(result)) {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("axes".equals(field) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						axes.add(readAxis(parser));
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		if (axes.size() > 2) {
+			throw new IllegalArgumentException("Results with more than two axes can't be exported");
+		}
+		String[] columnLabels = new String[] { "" };
+		if (axes.size() > 0) {
+			List<String[]> columnMembers = axes.get(0).members;
+			columnLabels = new String[columnMembers.size()];
+			for (int c = 0; c < columnLabels.length; c++) {
+				columnLabels[c] = String.join(COLUMN_LABEL_SEPARATOR, columnMembers.get(c));
+			}
+		}
+		String[] rowHeaders = new String[0];
+		String[][] rowMembers = new String[][] { rowHeaders };
+		if (axes.size() > 1) {
+			rowHeaders = axes.get(1).captions;
+			rowMembers = axes.get(1).members.toArray(new String[0][]);
+		}
+		return new ResultExport(result, rowHeaders, rowMembers, columnLabels);
+	}
+
+	private static final class Axis {
+		private String[] captions = new String[0];
+		private final List<String[]> members = new ArrayList<>();
+	}
+
+	/**
+	 * Read the member values of each position of an axis, and the dimension captions of its first position.
+	 */
+	private static Axis readAxis(JsonParser parser) throws IOException {
+		Axis ret = new Axis();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("positions".equals(field) && token == JsonToken.START_ARRAY) {
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					List<String> captions = new ArrayList<>();
+					List<String> members = new ArrayList<>();
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String positionField = parser.getCurrentName();
+						token = parser.nextToken();
+						if ("memberDimensionCaptions".equals(positionField) && token == JsonToken.START_ARRAY) {
+							while (parser.nextToken() != JsonToken.END_ARRAY) {
+								captions.add(parser.getValueAsString());
+							}
+						} else if ("positionMembers".equals(positionField) && token == JsonToken.START_ARRAY) {
+							while (parser.nextToken() == JsonToken.START_OBJECT) {
+								members.add(readMemberValue(parser));
+							}
+						} else {
+							parser.skipChildren();
+						}
+					}
+					if (ret.members.isEmpty()) {
+						ret.captions = captions.toArray(new String[0]);
+					}
+					ret.members.add(members.toArray(new String[0]));
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return ret;
+	}
+
+	private static String readMemberValue(JsonParser parser) throws IOException {
+		String ret = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("memberValue".equals(field) && token != JsonToken.VALUE_NULL) {
+				ret = parser.getValueAsString();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return ret;
+	}
+
+	private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+		if (actual != expected) {
+			throw new IOException("Expected " + expected + " but found " + actual + " at " + parser.getCurrentLocation());
+		}
+	}
+
+	public int getRowCount() {
+		return rowMembers.length;
+	}
+
+	public int getColumnCount() {
+		return columnLabels.length;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the flattened result, with its header row and member columns, won't fit the format
+	 */
+	public void checkFits(Format format) {
+		if (format == Format.XLSX) {
+			SpreadsheetVersion version = SpreadsheetVersion.EXCEL2007;
+			int rows = getRowCount() + 1;
+			int columns = rowHeaders.length + getColumnCount();
+			if (rows > version.getMaxRows() || columns > version.getMaxColumns()) {
+				throw new IllegalArgumentException("A result of " + rows + " rows and " + columns + " columns exceeds the " +
+						version.getMaxRows() + " rows and " + version.getMaxColumns() + " columns of a worksheet; export it as csv");
+			}
+		}
+	}
+
+	/**
+	 * @return a file name for the export of an analysis, with the characters file systems reject replaced
+	 */
+	public static String fileName(String analysisName, Format format) {
+		String name = analysisName == null ? "" : analysisName.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").trim();
+		return (name.isEmpty() ? "analysis" : name) + "." + format.getExtension();
+	}
+
+	/**
+	 * Stream the flattened result. The output stream is not closed.
+	 * @throws IOException if the result json is malformed, its cells are out of ordinal order, or the output fails
+	 */
+	public void write(Format format, OutputStream out) throws IOException {
+		TableWriter writer = format == Format.XLSX ? new XlsxWriter(out) : new CsvWriter(out);
+		try {
+			writer.header(rowHeaders, columnLabels);
+			writeRows(writer);
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void writeRows(TableWriter writer) throws IOException {
+		int columnCount = getColumnCount();
+		Object[] row = new Object[columnCount];
+		int currentRow = 0;
+		try (JsonParser parser = JSON_FACTORY.createParser(result)) {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("cells".equals(field) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						int ordinal = -1;
+						Object value = null;
+						String formattedValue = null;
+						String error = null;
+						while (parser.nextToken() == JsonToken.FIELD_NAME) {
+							String cellField = parser.getCurrentName();
+							token = parser.nextToken();
+							if ("ordinal".equals(cellField)) {
+								ordinal = parser.getIntValue();
+							} else if ("value".equals(cellField) && token.isNumeric()) {
+								value = parser.getDoubleValue();
+							} else if ("formattedValue".equals(cellField) && token == JsonToken.VALUE_STRING && parser.getTextLength() > 0) {
+								formattedValue = parser.getText();
+							} else if ("error".equals(cellField) && token == JsonToken.VALUE_STRING) {
+								error = parser.getText();
+							} else {
+								parser.skipChildren();
+							}
+						}
+						int cellRow = ordinal / columnCount;
+						if (ordinal < 0 || cellRow < currentRow || cellRow >= getRowCount()) {
+							throw new IOException("Cell with ordinal " + ordinal + " out of order or out of range at " + parser.getCurrentLocation());
+						}
+						for (; currentRow < cellRow; currentRow++) {
+							writer.row(rowMembers[currentRow], row);
+							Arrays.fill(row, null);
+						}
+						row[ordinal % columnCount] = error != null ? error : value != null ? value : formattedValue;
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		for (; currentRow < getRowCount(); currentRow++) {
+			writer.row(rowMembers[currentRow], row);
+			Arrays.fill(row, null);
+		}
+	}
+
+	private interface TableWriter {
+		void header(String[] rowHeaders, String[] columnLabels) throws IOException;
+		/**
+		 * @param cells Doubles, Strings or nulls
+		 */
+		void row(String[] members, Object[] cells) throws IOException;
+		void finish() throws IOException;
+		void close() throws IOException;
+	}
+
+	/**
+	 * RFC 4180 csv, with numbers written plainly rather than in mondrian's format.
+	 */
+	private static final class CsvWriter implements TableWriter {
+
+		private final Writer writer;
+
+		private CsvWriter(OutputStream out) {
+			this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void header(String[] rowHeaders, String[] columnLabels) throws IOException {
+			line(rowHeaders, columnLabels);
+		}
+
+		@Override
+		public void row(String[] members, Object[] cells) throws IOException {
+			line(members, cells);
+		}
+
+		private void line(Object[] first, Object[] second) throws IOException {
+			boolean separate = false;
+			for (Object[] values : new Object[][] { first, second }) {
+				for (Object value : values) {
+					if (separate) {
+						writer.write(',');
+					}
+					separate = true;
+					write(value);
+				}
+			}
+			writer.write("\r\n");
+		}
+
+		private void write(Object value) throws IOException {
+			if (value instanceof Double) {
+				double d = (Double) value;
+				writer.write(Double.isNaN(d) || Double.isInfinite(d) ? value.toString() : BigDecimal.valueOf(d).stripTrailingZeros().toPlainString());
+			} else if (value != null) {
+				String s = value.toString();
+				if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0) {
+					writer.write('"');
+					writer.write(s.replace("\"", "\"\""));
+					writer.write('"');
+				} else {
+					writer.write(s);
+				}
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			writer.flush();
+		}
+
+		@Override
+		public void close() {
+			// the caller owns the output stream
+		}
+
+	}
+
+	/**
+	 * A streaming workbook, which keeps only a window of rows in memory and flushes the rest to a compressed temp file
+	 * until the workbook is written out.
+	 */
+	private static final class XlsxWriter implements TableWriter {
+
+		private final OutputStream out;
+		private final SXSSFWorkbook workbook;
+		private final SXSSFSheet sheet;
+		private int rowIndex;
+
+		private XlsxWriter(OutputStream out) {
+			this.out = out;
+			this.workbook = new SXSSFWorkbook(XLSX_ROW_WINDOW);
+			workbook.setCompressTempFiles(true);
+			this.sheet = workbook.createSheet("Result");
+		}
+
+		@Override
+		public void header(String[] rowHeaders, String[] columnLabels) {
+			Font font = workbook.createFont();
+			font.setBold(true);
+			CellStyle style = workbook.createCellStyle();
+			style.setFont(font);
+			Row row = sheet.createRow(rowIndex++);
+			int c = 0;
+			for (String[] labels : new String[][] { rowHeaders, columnLabels }) {
+				for (String label : labels) {
+					Cell cell = row.createCell(c++);
+					cell.setCellValue(label);
+					cell.setCellStyle(style);
+				}
+			}
+			sheet.createFreezePane(rowHeaders.length, 1);
+		}
+
+		@Override
+		public void row(String[] members, Object[] cells) {
+			Row row = sheet.createRow(rowIndex++);
+			int c = 0;
+			for (String member : members) {
+				if (member != null) {
+					row.createCell(c).setCellValue(member);
+				}
+				c++;
+			}
+			for (Object value : cells) {
+				if (value instanceof Double) {
+					row.createCell(c).setCellValue((Double) value);
+				} else if (value != null) {
+					row.createCell(c).setCellValue(value.toString());
+				}
+				c++;
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			workbook.write(out);
+		}
+
+		@Override
+		public void close() throws IOException {
+			workbook.dispose();
+			workbook.close();
+		}
+
+	}
+
+}
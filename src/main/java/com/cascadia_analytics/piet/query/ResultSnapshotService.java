@@ -0,0 +1,230 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.MondrianQuery;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+import com.cascadia_analytics.piet.repository.ResultSnapshotRepository;
+
+/**
+ * Takes, refreshes and serves result snapshots (see {@link ResultSnapshot}): an opt-in for analyses over slow-changing
+ * data, whose results can then be read from mongo rather than recomputed by mondrian. Snapshots are refreshed on request,
+ * on a per-snapshot schedule, or when told that the data of their connection has changed.
+ */
+@Service
+public class ResultSnapshotService {
+
+	private final Log log = LogFactory.getLog(ResultSnapshotService.class);
+
+	// stay clear of mongo's 16MB document limit
+	static final int MAX_COMPRESSED_RESULT_LENGTH = 15 * 1024 * 1024;
+
+	@Autowired
+	private ResultSnapshotRepository snapshotRepository;
+
+	@Autowired
+	private AnalysisRepository analysisRepository;
+
+	@Autowired
+	private MondrianQueryService mondrianQueryService;
+
+	@Autowired
+	private PietConfiguration pietConfiguration;
+
+	public Optional<ResultSnapshot> findById(String analysisId) {
+		return snapshotRepository.findById(analysisId);
+	}
+
+	/**
+	 * @return the analysis's snapshot, if it has one taken from its current version
+	 */
+	public Optional<ResultSnapshot> findCurrent(Analysis analysis) {
+		return snapshotRepository.findById(analysis.getId())
+				.filter(snapshot -> Objects.equals(snapshot.getAnalysisVersion(), analysis.getVersion()));
+	}
+
+	/**
+	 * Find the current snapshots of many analyses at once.
+	 * @return snapshots taken from the analyses' current versions, by analysis id
+	 */
+	public Map<String, ResultSnapshot> findCurrent(Collection<Analysis> analyses) {
+		Map<String, Long> versions = new HashMap<>();
+		analyses.forEach(analysis -> versions.put(analysis.getId(), analysis.getVersion()));
+		Map<String, ResultSnapshot> ret = new HashMap<>();
+		if (!versions.isEmpty()) {
+			for (ResultSnapshot snapshot : snapshotRepository.findAllById(versions.keySet())) {
+				if (Objects.equals(snapshot.getAnalysisVersion(), versions.get(snapshot.getId()))) {
+					ret.put(snapshot.getId(), snapshot);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the mondrian-rest result json stored in the snapshot
+	 */
+	public String getResult(ResultSnapshot snapshot) {
+		return decompress(snapshot.getCompressedResult());
+	}
+
+	/**
+	 * Execute the analysis's query (bypassing the query cache) and store the result as its snapshot, replacing any it had.
+	 * @param analysis the analysis
+	 * @param refreshIntervalSeconds how often to refresh the snapshot, or null to refresh only on request
+	 * @param dataVersion identifies the state of the data the snapshot is taken from, may be null
+	 * @return the snapshot
+	 * @throws IllegalArgumentException if the analysis has nothing to query, or the result is too large to store
+	 * @throws MondrianRestException if mondrian-rest fails the query
+	 */
+	public ResultSnapshot takeSnapshot(Analysis analysis, Integer refreshIntervalSeconds, String dataVersion) {
+		if (refreshIntervalSeconds != null && refreshIntervalSeconds <= 0) {
+			throw new IllegalArgumentException("refreshIntervalSeconds must be positive");
+		}
+		MondrianQuery query = mondrianQueryService.getAnalysisQuery(analysis);
+		if (query == null) {
+			throw new IllegalArgumentException("Analysis " + analysis.getId() + " has nothing to query");
+		}
+		String result = mondrianQueryService.refreshQuery(query.getConnectionName(), query.getQuery(), pietConfiguration.getQueryCacheTtlSeconds());
+		byte[] compressedResult = compress(result);
+		if (compressedResult.length > MAX_COMPRESSED_RESULT_LENGTH) {
+			throw new IllegalArgumentException("The result of analysis " + analysis.getId() + " is too large to snapshot (" + compressedResult.length + " bytes compressed)");
+		}
+		Date now = new Date();
+		ResultSnapshot snapshot = new ResultSnapshot();
+		snapshot.setId(analysis.getId());
+		snapshot.setAnalysisVersion(analysis.getVersion());
+		snapshot.setDataVersion(dataVersion);
+		snapshot.setConnectionName(query.getConnectionName());
+		snapshot.setMdx(query.getQuery());
+		snapshot.setCompressedResult(compressedResult);
+		snapshot.setResultLength(result.length());
+		snapshot.setCreateDateTime(now);
+		snapshot.setRefreshIntervalSeconds(refreshIntervalSeconds);
+		snapshot.setNextRefreshDateTime(refreshIntervalSeconds == null ? null : new Date(now.getTime() + refreshIntervalSeconds * 1000L));
+		return snapshotRepository.save(snapshot);
+	}
+
+	public void delete(String analysisId) {
+		snapshotRepository.deleteById(analysisId);
+	}
+
+	public void delete(Collection<String> analysisIds) {
+		if (!analysisIds.isEmpty()) {
+			snapshotRepository.deleteByIdIn(analysisIds);
+		}
+	}
+
+	/**
+	 * Refresh the snapshots not taken from the given version of the data, e.g. after an ETL job loads a new batch.
+	 * @param connectionName the connection whose data changed, or null for all connections
+	 * @param dataVersion the version of the data now
+	 * @return the refreshed snapshots
+	 */
+	public List<ResultSnapshot> refresh(String connectionName, String dataVersion) {
+		List<ResultSnapshot> stale = connectionName == null ? snapshotRepository.findByDataVersionNot(dataVersion) :
+			snapshotRepository.findByConnectionNameAndDataVersionNot(connectionName, dataVersion);
+		List<ResultSnapshot> ret = new ArrayList<>(stale.size());
+		for (ResultSnapshot snapshot : stale) {
+			refresh(snapshot, dataVersion).ifPresent(ret::add);
+		}
+		return ret;
+	}
+
+	@Scheduled(fixedDelayString="${piet.snapshot.refreshCheckMillis:" + PietConfiguration.DEFAULT_SNAPSHOT_REFRESH_CHECK_MILLIS + "}")
+	public void refreshDue() {
+		for (ResultSnapshot snapshot : snapshotRepository.findByNextRefreshDateTimeLessThanEqual(new Date())) {
+			// one snapshot failing unexpectedly (say, mongo failing to save it) doesn't hold up the rest
+			try {
+				refresh(snapshot, snapshot.getDataVersion());
+			} catch (RuntimeException e) {
+				log.warn("Failed to refresh the result snapshot of analysis " + snapshot.getId() + ", will retry at the next check", e);
+			}
+		}
+	}
+
+	private Optional<ResultSnapshot> refresh(ResultSnapshot snapshot, String dataVersion) {
+		Optional<Analysis> analysis = analysisRepository.findById(snapshot.getId());
+		if (!analysis.isPresent()) {
+			log.info("Deleting the result snapshot of deleted analysis " + snapshot.getId());
+			snapshotRepository.deleteById(snapshot.getId());
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(takeSnapshot(analysis.get(), snapshot.getRefreshIntervalSeconds(), dataVersion));
+		} catch (MondrianRestException | IllegalArgumentException e) {
+			log.warn("Failed to refresh the result snapshot of analysis " + snapshot.getId() + ", serving the previous one until the next attempt", e);
+			if (snapshot.getRefreshIntervalSeconds() != null) {
+				// just reschedule; a save would rewrite the whole result, and replace any snapshot taken meanwhile with this one
+				snapshotRepository.updateNextRefreshDateTime(snapshot.getId(), snapshot.getCreateDateTime(),
+						new Date(System.currentTimeMillis() + snapshot.getRefreshIntervalSeconds() * 1000L));
+			}
+			return Optional.empty();
+		}
+	}
+
+	static byte[] compress(String result) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(result.length() / 8);
+		try (OutputStream os = new GZIPOutputStream(bos)) {
+			os.write(result.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	static String decompress(byte[] compressedResult) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(compressedResult.length * 8);
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressedResult))) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				bos.write(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,215 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.cascadia_analytics.piet.domain.ResultWindow;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A mondrian-rest result held in columnar form: cell values in a primitive array indexed by ordinal, their formatted
+ * values alongside, and each axis position kept as its json. Cell ordinals are row * columnCount + column, as in mondrian.
+ */
+final class ResultTable {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final int INITIAL_CELLS = 1024;
+
+	private final String[] columnPositions;
+	private final String[] rowPositions;
+	private final double[] values;
+	private final BitSet hasValue;
+	private final String[] formattedValues;
+
+	private ResultTable(String[] columnPositions, String[] rowPositions, double[] values, BitSet hasValue, String[] formattedValues) {
+		this.columnPositions = columnPositions;
+		this.rowPositions = rowPositions;
+		this.values = values;
+		this.hasValue = hasValue;
+		this.formattedValues = formattedValues;
+	}
+
+	/**
+	 * Read a result with a streaming parser, so that no tree of the whole result is built.
+	 * @param json the mondrian-rest result
+	 * @return the table
+	 * @throws IOException if the json is malformed
+	 * @throws IllegalArgumentException if the result has more than two axes
+	 */
+	static ResultTable parse(String json) throws IOException {
+		List<List<String>> axes = new ArrayList<>();
+		double[] values = new double[INITIAL_CELLS];
+		BitSet hasValue = new BitSet();
+		String[] formattedValues = new String[INITIAL_CELLS];
+		int cellCount = 0;
+		try (JsonParser parser = MAPPER.getFactory().createParser(json)) {
+			expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("cells".equals(field) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						int ordinal = -1;
+						Double value = null;
+						String formattedValue = null;
+						String error = null;
+						while (parser.nextToken() == JsonToken.FIELD_NAME) {
+							String cellField = parser.getCurrentName();
+							token = parser.nextToken();
+							if ("ordinal".equals(cellField)) {
+								ordinal = parser.getIntValue();
+							} else if ("value".equals(cellField) && token.isNumeric()) {
+								value = parser.getDoubleValue();
+							} else if ("formattedValue".equals(cellField) && token == JsonToken.VALUE_STRING) {
+								formattedValue = parser.getText();
+							} else if ("error".equals(cellField) && token == JsonToken.VALUE_STRING) {
+								error = parser.getText();
+							} else {
+								parser.skipChildren();
+							}
+						}
+						if (ordinal < 0) {
+							throw new IOException("Cell without an ordinal at " + parser.getCurrentLocation());
+						}
+						if (ordinal >= values.length) {
+							int length = Math.max(values.length * 2, ordinal + 1);
+							values = Arrays.copyOf(values, length);
+							formattedValues = Arrays.copyOf(formattedValues, length);
+						}
+						if (value != null) {
+							values[ordinal] = value;
+							hasValue.set(ordinal);
+						}
+						formattedValues[ordinal] = error != null ? error : formattedValue;
+						cellCount = Math.max(cellCount, ordinal + 1);
+					}
+				} else if ("axes".equals(field) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						axes.add(readPositions(parser));
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		if (axes.size() > 2) {
+			throw new IllegalArgumentException("Results with more than two axes can't be read in windows");
+		}
+		String[] columns = axes.size() > 0 ? axes.get(0).toArray(new String[0]) : new String[] { "{}" };
+		String[] rows = axes.size() > 1 ? axes.get(1).toArray(new String[0]) : new String[] { "{}" };
+		int size = Math.max(cellCount, columns.length * rows.length);
+		return new ResultTable(columns, rows, Arrays.copyOf(values, size), hasValue, Arrays.copyOf(formattedValues, size));
+	}
+
+	/**
+	 * Read the positions of an axis, each copied token by token to its own json string.
+	 */
+	private static List<String> readPositions(JsonParser parser) throws IOException {
+		List<String> ret = new ArrayList<>();
+		JsonFactory factory = parser.getCodec().getFactory();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("positions".equals(field) && token == JsonToken.START_ARRAY) {
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					StringWriter writer = new StringWriter();
+					try (JsonGenerator generator = factory.createGenerator(writer)) {
+						generator.copyCurrentStructure(parser);
+					}
+					ret.add(writer.toString());
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return ret;
+	}
+
+	private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+		if (actual != expected) {
+			throw new IOException("Expected " + expected + " but found " + actual + " at " + parser.getCurrentLocation());
+		}
+	}
+
+	int getRowCount() {
+		return rowPositions.length;
+	}
+
+	int getColumnCount() {
+		return columnPositions.length;
+	}
+
+	/**
+	 * @return the approximate number of bytes the table occupies
+	 */
+	int weight() {
+		long ret = values.length * 8L + values.length / 8 + formattedValues.length * 4L;
+		for (String formattedValue : formattedValues) {
+			ret += formattedValue == null ? 0 : 40 + formattedValue.length();
+		}
+		for (String position : columnPositions) {
+			ret += 40 + position.length();
+		}
+		for (String position : rowPositions) {
+			ret += 40 + position.length();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, ret);
+	}
+
+	/**
+	 * Copy a window of the table, which is clipped to the table's bounds.
+	 */
+	ResultWindow window(int rowOffset, int rowLimit, int columnOffset, int columnLimit) throws IOException {
+		int rowEnd = (int) Math.min(getRowCount(), (long) rowOffset + rowLimit);
+		int columnEnd = (int) Math.min(getColumnCount(), (long) columnOffset + columnLimit);
+		int rows = Math.max(0, rowEnd - rowOffset);
+		int columns = Math.max(0, columnEnd - columnOffset);
+		Double[][] windowValues = new Double[columns][rows];
+		String[][] windowFormattedValues = new String[columns][rows];
+		for (int c = 0; c < columns; c++) {
+			for (int r = 0; r < rows; r++) {
+				int ordinal = (rowOffset + r) * getColumnCount() + columnOffset + c;
+				windowValues[c][r] = hasValue.get(ordinal) ? values[ordinal] : null;
+				windowFormattedValues[c][r] = formattedValues[ordinal];
+			}
+		}
+		ResultWindow ret = new ResultWindow();
+		ret.setRowCount(getRowCount());
+		ret.setColumnCount(getColumnCount());
+		ret.setRowOffset(rowOffset);
+		ret.setColumnOffset(columnOffset);
+		ret.setColumnPositions(MAPPER.readTree(positions(columnPositions, columnOffset, columns)));
+		ret.setRowPositions(MAPPER.readTree(positions(rowPositions, rowOffset, rows)));
+		ret.setValues(windowValues);
+		ret.setFormattedValues(windowFormattedValues);
+		return ret;
+	}
+
+	private static String positions(String[] positions, int offset, int count) {
+		return "[" + String.join(",", Arrays.asList(positions).subList(Math.min(offset, positions.length), Math.min(offset, positions.length) + count)) + "]";
+	}
+
+}
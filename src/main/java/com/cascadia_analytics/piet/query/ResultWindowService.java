@@ -0,0 +1,150 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.ResultHandle;
+import com.cascadia_analytics.piet.domain.ResultWindow;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Holds query results so that clients can read them in windows of rows and columns, rather than receiving (and rendering)
+ * a wide cross-join in one piece. Held results are bounded by their approximate total size, and released when they have
+ * not been read for a while; a client whose handle has gone simply opens the result again.
+ */
+@Service
+public class ResultWindowService implements MeterBinder {
+
+	public static final int DEFAULT_ROW_LIMIT = 100;
+	// so that a single window can't be as large as the result it is meant to page through
+	public static final int MAX_WINDOW_CELLS = 100000;
+
+	private final MondrianQueryService mondrianQueryService;
+	private final Cache<String, ResultTable> results;
+	private final long maxWeight;
+	private final int idleSeconds;
+
+	@Autowired
+	public ResultWindowService(MondrianQueryService mondrianQueryService, PietConfiguration pietConfiguration) {
+		this.mondrianQueryService = mondrianQueryService;
+		this.maxWeight = pietConfiguration.getQueryWindowMaxSizeMb() * 1024L * 1024L;
+		this.idleSeconds = pietConfiguration.getQueryWindowIdleSeconds();
+		this.results = Caffeine.newBuilder()
+				.maximumWeight(maxWeight)
+				.weigher((String handle, ResultTable table) -> table.weight())
+				.expireAfterAccess(idleSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Execute a query (through the result cache, see {@link MondrianQueryService#executeQuery(String, String, String)}) and
+	 * hold its result.
+	 * @return the handle of the result, with its dimensions
+	 * @throws MondrianRestException if mondrian-rest fails the query, or (502) returns a result that can't be read
+	 * @throws QueryRejectedException if the query has to go to mondrian-rest but is not admitted
+	 * @throws IllegalArgumentException if the result has more than two axes, or is larger than all the space for held results
+	 * (it would be evicted at once, leaving a handle that can't be read)
+	 */
+	public ResultHandle open(String connectionName, String mdx, String user) {
+		String json = mondrianQueryService.executeQuery(connectionName, mdx, user);
+		ResultTable table;
+		try {
+			table = ResultTable.parse(json);
+		} catch (IOException e) {
+			throw new MondrianRestException(HttpStatus.BAD_GATEWAY.value(), "{\"error\":\"unreadable mondrian-rest result\"}", e.getMessage(), e);
+		}
+		if (table.weight() > maxWeight) {
+			throw new IllegalArgumentException("The result (" + table.getColumnCount() + " columns by " + table.getRowCount()
+					+ " rows) is too large to hold for reading in windows; narrow the query");
+		}
+		ResultHandle ret = new ResultHandle();
+		ret.setHandle(UUID.randomUUID().toString());
+		ret.setRowCount(table.getRowCount());
+		ret.setColumnCount(table.getColumnCount());
+		ret.setIdleSeconds(idleSeconds);
+		results.put(ret.getHandle(), table);
+		return ret;
+	}
+
+	/**
+	 * Read a window of a held result. The window is clipped to the result, so it may have fewer rows and columns than asked
+	 * for, or none.
+	 * @param handle the handle returned by {@link #open(String, String, String)}
+	 * @param rowOffset the first row of the window
+	 * @param rowLimit the maximum number of rows, or null for {@value #DEFAULT_ROW_LIMIT}
+	 * @param columnOffset the first column of the window
+	 * @param columnLimit the maximum number of columns, or null for all of them
+	 * @return the window, or null if there is no result with the handle (it may have been released)
+	 * @throws IllegalArgumentException if an offset is negative, a limit is less than one, or the window could have more
+	 * than {@value #MAX_WINDOW_CELLS} cells
+	 */
+	public ResultWindow getWindow(String handle, int rowOffset, Integer rowLimit, int columnOffset, Integer columnLimit) {
+		if (rowOffset < 0 || columnOffset < 0) {
+			throw new IllegalArgumentException("Offsets must not be negative");
+		}
+		if ((rowLimit != null && rowLimit < 1) || (columnLimit != null && columnLimit < 1)) {
+			throw new IllegalArgumentException("Limits must be at least 1");
+		}
+		ResultTable table = results.getIfPresent(handle);
+		if (table == null) {
+			return null;
+		}
+		int rows = Math.min(rowLimit == null ? DEFAULT_ROW_LIMIT : rowLimit, table.getRowCount());
+		int columns = Math.min(columnLimit == null ? Integer.MAX_VALUE : columnLimit, table.getColumnCount());
+		if ((long) rows * columns > MAX_WINDOW_CELLS) {
+			throw new IllegalArgumentException("A window can have at most " + MAX_WINDOW_CELLS + " cells; this one could have " + (long) rows * columns);
+		}
+		try {
+			ResultWindow ret = table.window(rowOffset, rows, columnOffset, columns);
+			ret.setHandle(handle);
+			return ret;
+		} catch (IOException e) {
+			// the positions were written by us
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Release a held result before it expires.
+	 */
+	public void release(String handle) {
+		results.invalidate(handle);
+	}
+
+	/**
+	 * Expose the held results' statistics (cache.size, cache.evictions etc., tagged cache=resultWindows).
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, results, "resultWindows");
+	}
+
+}
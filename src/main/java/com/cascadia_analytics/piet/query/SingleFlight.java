@@ -0,0 +1,181 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Coalesces concurrent executions of the same work: the first caller for a key (the leader) runs the work on its own
+ * thread, and callers arriving while it runs wait for and share its result rather than running it again. Failures are
+ * shared only if they would befall any caller (say, the upstream rejecting the work); a failure peculiar to the leader
+ * (say, the leader not being allowed to run the work) sends its waiters round again, to lead or wait for a new run.
+ * Nothing is remembered once the work completes; caching results is up to the caller.
+ * @param <K> the key identifying the work
+ * @param <V> the result
+ */
+public final class SingleFlight<K, V> {
+
+	/**
+	 * Thrown to a caller that gave up waiting for the leader. The leader itself carries on.
+	 */
+	public static final class WaitTimeoutException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		WaitTimeoutException(Object key, Duration timeout, Throwable cause) {
+			super("Gave up after " + timeout + " waiting for the in-flight execution of " + key, cause);
+		}
+	}
+
+	private final Predicate<? super Throwable> sharedFailure;
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong takeovers = new AtomicLong();
+
+	/**
+	 * Share every failure of a run with its waiters.
+	 */
+	public SingleFlight() {
+		this(failure -> true);
+	}
+
+	/**
+	 * @param sharedFailure whether a failure of a run is shared with its waiters, rather than peculiar to its leader
+	 */
+	public SingleFlight(Predicate<? super Throwable> sharedFailure) {
+		this.sharedFailure = sharedFailure;
+	}
+
+	/**
+	 * Run the work for a key, or wait for the run already in flight.
+	 * @param key identifies the work
+	 * @param timeout how long to wait for runs already in flight; the caller's own run is not limited
+	 * @param work the work
+	 * @return the result of the run
+	 * @throws WaitTimeoutException if the wait timed out
+	 * @throws RuntimeException whatever the caller's run, or a shared failure of the run waited for, threw (checked exceptions
+	 * are wrapped)
+	 */
+	public V execute(K key, Duration timeout, Callable<V> work) {
+		long deadline = System.nanoTime() + timeout.toNanos();
+		boolean waited = false;
+		while (true) {
+			CompletableFuture<V> flight = new CompletableFuture<>();
+			CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+			if (existing == null) {
+				if (waited) {
+					takeovers.incrementAndGet();
+				}
+				return lead(key, flight, work);
+			}
+			if (!waited) {
+				coalesced.incrementAndGet();
+				waited = true;
+			}
+			try {
+				return existing.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				timeouts.incrementAndGet();
+				throw new WaitTimeoutException(key, timeout, e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WaitTimeoutException(key, timeout, e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (!sharedFailure.test(cause)) {
+					// the leader's own failure; go round again
+					continue;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IllegalStateException(cause);
+			}
+		}
+	}
+
+	private V lead(K key, CompletableFuture<V> flight, Callable<V> work) {
+		executions.incrementAndGet();
+		V ret;
+		try {
+			ret = work.call();
+		} catch (RuntimeException | Error e) {
+			land(key, flight).completeExceptionally(e);
+			throw e;
+		} catch (Exception e) {
+			land(key, flight).completeExceptionally(e);
+			throw new IllegalStateException(e);
+		}
+		land(key, flight).complete(ret);
+		return ret;
+	}
+
+	/**
+	 * Take a run out of flight before completing it, so that waiters going round again don't find it.
+	 */
+	private CompletableFuture<V> land(K key, CompletableFuture<V> flight) {
+		inFlight.remove(key, flight);
+		return flight;
+	}
+
+	/**
+	 * @return the number of keys with a run in flight
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the number of runs (leaders)
+	 */
+	public long getExecutionCount() {
+		return executions.get();
+	}
+
+	/**
+	 * @return the number of callers that waited for a run in flight rather than running the work themselves
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of callers that gave up waiting
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * @return the number of callers that ran the work themselves after the run they waited for failed in a way peculiar to its leader
+	 */
+	public long getTakeoverCount() {
+		return takeovers.get();
+	}
+
+}
@@ -0,0 +1,444 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import reactor.core.publisher.Mono;
+
+/**
+ * An in-process cache of analyses by id, in front of {@link AnalysisRepository}. Entries are evicted when a change stream on
+ * the analysis collection reports that they were replaced or deleted (by this or any other replica), so replicas stay coherent
+ * to within the change stream's latency. Without a change stream (mongo is not a replica set, or the stream is down) entries
+ * still expire after a fixed time.
+ *
+ * <p>Reading an analysis also counts the read. So that cached reads don't have to write to mongo, reads are counted here and
+ * added to the stored counters in one bulk write every few seconds. Those counter updates are filtered out of the change stream,
+ * since they'd otherwise evict every entry that is read. Flushed reads stay pending until their write lands, and an analysis
+ * loaded while the write was in flight (so that it can't tell whether the stored counter it read includes them) is loaded again
+ * once the write is done.</p>
+ */
+@Component
+public class AnalysisNearCache implements MeterBinder {
+
+	private static final Log log = LogFactory.getLog(AnalysisNearCache.class);
+
+	public static final String CACHE_NAME = "analyses";
+
+	// every change except updates of the read counter, which are only ever updated on their own
+	private static final List<Bson> CHANGE_STREAM_PIPELINE = Collections.singletonList(Aggregates.match(Filters.or(
+			Filters.ne("operationType", OperationType.UPDATE.getValue()),
+			Filters.exists("updateDescription.updatedFields.readCounter", false))));
+
+	// error codes from mongo when change streams aren't available (standalone server, or a version before 3.6)
+	private static final List<Integer> CHANGE_STREAMS_UNSUPPORTED = Arrays.asList(40573, 40324);
+	// and when the stream can't be resumed from where it left off
+	private static final List<Integer> CHANGE_STREAM_NOT_RESUMABLE = Arrays.asList(260, 280, 286);
+
+	private static final long CHANGE_STREAM_AWAIT_MILLIS = 1000;
+	private static final long CHANGE_STREAM_RETRY_MILLIS = 5000;
+
+	private final AnalysisRepository analysisRepository;
+	private final MongoTemplate mongoTemplate;
+	private final boolean enabled;
+	private final Cache<String, CachedAnalysis> cache;
+	private final ConcurrentHashMap<String, Long> pendingReads = new ConcurrentHashMap<>();
+	private final AtomicLong changeStreamEvictions = new AtomicLong();
+	// counts invalidations of any kind, so that reactive loads can tell whether what they loaded may already be stale
+	private final AtomicLong invalidations = new AtomicLong();
+	// counts the starts and ends of counter writes, so it's odd while one is in flight
+	private final AtomicLong counterWrites = new AtomicLong();
+	// analyses loaded while a counter write was in flight, to be loaded again after it
+	private final Set<String> recountIds = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean running;
+	private volatile boolean changeStreamActive;
+	private Thread changeStreamThread;
+
+	@Autowired
+	public AnalysisNearCache(AnalysisRepository analysisRepository, MongoTemplate mongoTemplate, PietConfiguration pietConfiguration) {
+		this.analysisRepository = analysisRepository;
+		this.mongoTemplate = mongoTemplate;
+		this.enabled = pietConfiguration.isAnalysisCacheEnabled();
+		this.cache = Caffeine.newBuilder()
+				.maximumWeight(pietConfiguration.getAnalysisCacheMaxSizeMb() * 1024L * 1024L)
+				.weigher((String id, CachedAnalysis cached) -> cached.weight)
+				.expireAfterWrite(pietConfiguration.getAnalysisCacheTtlSeconds(), TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+
+	@PostConstruct
+	public void start() {
+		if (enabled) {
+			running = true;
+			changeStreamThread = new Thread(this::watchChanges, "piet-analysis-cache-changes");
+			changeStreamThread.setDaemon(true);
+			changeStreamThread.start();
+		}
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		running = false;
+		if (changeStreamThread != null) {
+			changeStreamThread.join(CHANGE_STREAM_AWAIT_MILLIS * 2);
+		}
+		flushReadCounters();
+	}
+
+	/**
+	 * Retrieve an analysis and count the read, as {@link AnalysisRepositoryCustom#findAndIncrementReadCounter(String)} does.
+	 * @param id the id of the analysis
+	 * @return the analysis, reflecting the read, or null if there is no analysis with the id
+	 */
+	public Analysis findAndIncrementReadCounter(String id) {
+		if (!enabled) {
+			return analysisRepository.findAndIncrementReadCounter(id);
+		}
+		CachedAnalysis cached = cache.get(id, this::load);
+		return cached == null ? null : countRead(id, cached);
+	}
+
+	/**
+	 * Non-blocking counterpart of {@link #findAndIncrementReadCounter(String)}, for the reactive profile: misses are loaded
+	 * with the reactive repository, and reads are counted here just the same.
+	 * @param id the id of the analysis
+	 * @param reactiveRepository the repository to load misses from (and count reads with, if the cache is disabled)
+	 * @return the analysis, reflecting the read, or empty if there is no analysis with the id
+	 */
+	public Mono<Analysis> findAndIncrementReadCounter(String id, ReactiveAnalysisRepository reactiveRepository) {
+		if (!enabled) {
+			return reactiveRepository.findAndIncrementReadCounter(id);
+		}
+		return Mono.defer(() -> {
+			CachedAnalysis cached = cache.getIfPresent(id);
+			if (cached != null) {
+				return Mono.just(countRead(id, cached));
+			}
+			// concurrent misses each load (there's no in-flight load to wait on without blocking); the first to finish is cached
+			long invalidationsBefore = invalidations.get();
+			long counterWritesBefore = counterWrites.get();
+			return reactiveRepository.findById(id).map(analysis -> {
+				CachedAnalysis loaded = loaded(id, analysis, counterWritesBefore);
+				// a change seen since the load started may be newer than what was loaded, so don't cache it
+				CachedAnalysis ret = invalidations.get() == invalidationsBefore ? cache.get(id, key -> loaded) : loaded;
+				return countRead(id, ret);
+			});
+		});
+	}
+
+	/**
+	 * Retrieve an analysis without counting the read. Not for reads that need the latest version (like checking versions before
+	 * a save), since another replica's change may not have reached the cache yet.
+	 */
+	public Optional<Analysis> findById(String id) {
+		if (!enabled) {
+			return analysisRepository.findById(id);
+		}
+		return Optional.ofNullable(cache.get(id, this::load)).map(cached -> copy(cached.analysis, cached.readCounter.get()));
+	}
+
+	/**
+	 * Forget analyses that were just saved or deleted here, so this replica reads its own writes without waiting for the change
+	 * stream. Reads not yet written to their counters are kept, since saves leave the stored counter alone.
+	 */
+	public void invalidate(Collection<String> ids) {
+		invalidations.incrementAndGet();
+		cache.invalidateAll(ids);
+	}
+
+	public void invalidate(String id) {
+		invalidate(Collections.singleton(id));
+	}
+
+	@Scheduled(fixedDelayString="${piet.analysis.cache.readCounterFlushMillis:" + PietConfiguration.DEFAULT_ANALYSIS_CACHE_READ_COUNTER_FLUSH_MILLIS + "}")
+	public void flushReadCounters() {
+		// the reads stay pending until the write lands, so that analyses loaded meanwhile still count them
+		Map<String, Long> increments = new HashMap<>(pendingReads);
+		if (!increments.isEmpty()) {
+			counterWrites.incrementAndGet();
+			try {
+				analysisRepository.incrementReadCounters(increments);
+				// reads counted since the snapshot stay pending
+				increments.forEach((id, increment) -> pendingReads.computeIfPresent(id, (key, pending) -> {
+					long remaining = pending - increment;
+					return remaining == 0 ? null : remaining;
+				}));
+			} catch (RuntimeException e) {
+				// try again next time
+				log.warn("Unable to write the read counts of " + increments.size() + " analyses: " + e.getMessage());
+			} finally {
+				counterWrites.incrementAndGet();
+			}
+		}
+		// a load that finishes after this is picked up by the next flush
+		List<String> recount = new ArrayList<>();
+		for (String id : recountIds) {
+			if (recountIds.remove(id)) {
+				recount.add(id);
+			}
+		}
+		if (!recount.isEmpty()) {
+			invalidate(recount);
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME);
+		Gauge.builder("piet.analysis.cache.changestream.active", this, c -> c.changeStreamActive ? 1 : 0)
+				.description("Whether the analysis cache is receiving change stream events (if not, it relies on expiry alone)")
+				.register(registry);
+		FunctionCounter.builder("piet.analysis.cache.changestream.evictions", changeStreamEvictions, AtomicLong::get)
+				.description("Analyses evicted from the cache because they changed in mongo")
+				.register(registry);
+		Gauge.builder("piet.analysis.cache.pending.reads", pendingReads, Map::size)
+				.description("Analyses with reads not yet added to their stored read counters")
+				.register(registry);
+	}
+
+	boolean isChangeStreamActive() {
+		return changeStreamActive;
+	}
+
+	boolean isCached(String id) {
+		return cache.getIfPresent(id) != null;
+	}
+
+	private Analysis countRead(String id, CachedAnalysis cached) {
+		pendingReads.merge(id, 1L, Long::sum);
+		return copy(cached.analysis, cached.readCounter.incrementAndGet());
+	}
+
+	private CachedAnalysis load(String id) {
+		long counterWritesBefore = counterWrites.get();
+		Analysis analysis = analysisRepository.findById(id).orElse(null);
+		return analysis == null ? null : loaded(id, analysis, counterWritesBefore);
+	}
+
+	private CachedAnalysis loaded(String id, Analysis analysis, long counterWritesBefore) {
+		// reads not yet flushed aren't in the stored counter
+		CachedAnalysis ret = new CachedAnalysis(analysis, analysis.getReadCounter() + pendingReads.getOrDefault(id, 0L));
+		// reads being flushed are still pending, but may be in the stored counter too if the write landed before the load read it
+		if (counterWritesBefore % 2 == 1 || counterWrites.get() != counterWritesBefore) {
+			recountIds.add(id);
+		}
+		return ret;
+	}
+
+	private void watchChanges() {
+		BsonDocument resumeToken = null;
+		boolean loggedFailure = false;
+		while (running) {
+			ChangeStreamIterable<Document> changeStream = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Analysis.class))
+					.watch(CHANGE_STREAM_PIPELINE)
+					.maxAwaitTime(CHANGE_STREAM_AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+			if (resumeToken != null) {
+				changeStream = changeStream.resumeAfter(resumeToken);
+			}
+			try (MongoCursor<ChangeStreamDocument<Document>> cursor = changeStream.iterator()) {
+				if (resumeToken == null) {
+					// there's no telling what changed while there was no stream
+					invalidations.incrementAndGet();
+					cache.invalidateAll();
+				}
+				changeStreamActive = true;
+				loggedFailure = false;
+				log.info("Watching the analysis collection for changes to cached analyses");
+				while (running) {
+					ChangeStreamDocument<Document> change = cursor.tryNext();
+					if (change != null) {
+						resumeToken = change.getResumeToken();
+						if (!evict(change)) {
+							resumeToken = null;
+							break;
+						}
+					}
+				}
+			} catch (MongoCommandException e) {
+				changeStreamActive = false;
+				if (CHANGE_STREAMS_UNSUPPORTED.contains(e.getErrorCode())) {
+					log.warn("Mongo does not support change streams (it must be a replica set, version 3.6 or later); cached analyses will be up to "
+							+ cache.policy().expireAfterWrite().get().getExpiresAfter(TimeUnit.SECONDS) + " seconds out of date with changes made by other replicas");
+					return;
+				}
+				if (CHANGE_STREAM_NOT_RESUMABLE.contains(e.getErrorCode())) {
+					resumeToken = null;
+				}
+				loggedFailure = logFailure(e, loggedFailure);
+				pause();
+			} catch (RuntimeException e) {
+				changeStreamActive = false;
+				loggedFailure = logFailure(e, loggedFailure);
+				pause();
+			}
+		}
+		changeStreamActive = false;
+	}
+
+	/**
+	 * @return false if the stream has ended (because the collection was dropped or renamed) and must be restarted
+	 */
+	private boolean evict(ChangeStreamDocument<Document> change) {
+		invalidations.incrementAndGet();
+		switch (change.getOperationType()) {
+		case INSERT:
+			return true;
+		case UPDATE:
+		case REPLACE:
+		case DELETE:
+			BsonValue id = change.getDocumentKey() == null ? null : change.getDocumentKey().get("_id");
+			if (id != null && id.isObjectId()) {
+				// string ids that are valid ObjectIds are stored as ObjectIds
+				cache.invalidate(id.asObjectId().getValue().toHexString());
+			} else if (id != null && id.isString()) {
+				cache.invalidate(id.asString().getValue());
+			} else {
+				cache.invalidateAll();
+			}
+			changeStreamEvictions.incrementAndGet();
+			return true;
+		case INVALIDATE:
+			cache.invalidateAll();
+			return false;
+		default:
+			cache.invalidateAll();
+			return true;
+		}
+	}
+
+	private boolean logFailure(Exception e, boolean loggedFailure) {
+		if (running) {
+			String message = "Analysis change stream failed (retrying every " + CHANGE_STREAM_RETRY_MILLIS + "ms): " + e.getMessage();
+			if (loggedFailure) {
+				log.debug(message);
+			} else {
+				log.warn(message);
+			}
+		}
+		return true;
+	}
+
+	private void pause() {
+		try {
+			Thread.sleep(CHANGE_STREAM_RETRY_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+
+	/**
+	 * Cached analyses are shared between requests, so callers get a deep copy (see {@link Analysis#copy()}) carrying the current
+	 * read count, and a caller editing what it read can't change what other requests read.
+	 */
+	private static Analysis copy(Analysis analysis, long readCounter) {
+		Analysis ret = analysis.copy();
+		ret.setReadCounter(readCounter);
+		return ret;
+	}
+
+	private static final class CachedAnalysis {
+
+		private final Analysis analysis;
+		private final AtomicLong readCounter;
+		private final int weight;
+
+		CachedAnalysis(Analysis analysis, long readCounter) {
+			this.analysis = analysis;
+			this.readCounter = new AtomicLong(readCounter);
+			this.weight = weigh(analysis);
+		}
+
+		/**
+		 * Roughly the heap used by the analysis: two bytes per character plus per-object overhead, where filter member names
+		 * are what dominates large analyses.
+		 */
+		private static int weigh(Analysis analysis) {
+			long ret = 256 + 2L * (length(analysis.getName()) + length(analysis.getDescription()));
+			Query query = analysis.getQuery();
+			if (query != null) {
+				ret += 64L * (query.getLevels() == null ? 0 : query.getLevels().length) + 64L * (query.getMeasures() == null ? 0 : query.getMeasures().length);
+				if (query.getFilters() != null) {
+					for (QueryFilter filter : query.getFilters()) {
+						if (filter == null) {
+							continue;
+						}
+						ret += 64;
+						if (filter.getLevelMemberNames() != null) {
+							for (String name : filter.getLevelMemberNames()) {
+								ret += 40 + 2L * length(name);
+							}
+						}
+					}
+				}
+			}
+			return (int) Math.min(ret, Integer.MAX_VALUE);
+		}
+
+		private static int length(String s) {
+			return s == null ? 0 : s.length();
+		}
+
+	}
+
+}
@@ -0,0 +1,750 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.ClassTypeInformation;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A partial update of an analysis, either a JSON Patch (RFC 6902) or a JSON Merge Patch (RFC 7386), addressing the analysis
+ * as it appears in json. Where the operations touch distinct fields they are translated into a single mongo update of just
+ * those fields (see {@link #targeted()}); otherwise the patch is applied to the whole analysis (see {@link #applyTo(Analysis)}).
+ */
+public final class AnalysisPatch {
+
+	/**
+	 * Thrown when a well-formed patch cannot be applied to the stored analysis: a path it addresses does not exist, or one
+	 * of its tests fails.
+	 */
+	public static final class NotApplicableException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		NotApplicableException(String message) {
+			super(message);
+		}
+
+	}
+
+	// a plain mapper, so that member names are never compacted
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	static final Set<String> READ_ONLY_PROPERTIES = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+			"id", "version", "readCounter", "createDateTime", "updateDateTime")));
+
+	// the json and mongo names of every property that isn't read-only, which AnalysisPatchTest checks against the domain classes
+	private static final Field ANALYSIS = Field.object(null, Analysis.class,
+			Field.scalar("name", "name", String.class),
+			Field.scalar("description", "description", String.class),
+			Field.object("datasetRef", DatasetRef.class,
+					Field.scalar("id", "id", String.class),
+					Field.scalar("cube", "cube", String.class)).named("datasetRef"),
+			Field.object("query", com.cascadia_analytics.piet.domain.Query.class,
+					Field.scalar("nonEmpty", "nonEmpty", boolean.class),
+					Field.scalar("filterParentAggregates", "filterParentAggregates", boolean.class),
+					Field.array("_measures", "measures", QueryMeasure[].class, "uniqueName", Field.object(null, QueryMeasure.class,
+							Field.scalar("_uniqueName", "uniqueName", String.class))),
+					Field.array("_levels", "levels", QueryLevel[].class, "uniqueName", Field.object(null, QueryLevel.class,
+							Field.scalar("_uniqueName", "uniqueName", String.class),
+							Field.scalar("_rowOrientation", "rowOrientation", boolean.class))),
+					Field.array("_filters", "filters", QueryFilter[].class, QueryFilterWriteConverter.LEVEL_UNIQUE_NAME, Field.object(null, QueryFilter.class,
+							Field.scalar("_levelUniqueName", QueryFilterWriteConverter.LEVEL_UNIQUE_NAME, String.class),
+							Field.scalar("_filterOnlyHierarchy", QueryFilterWriteConverter.FILTER_ONLY_HIERARCHY, boolean.class),
+							Field.scalar("_include", QueryFilterWriteConverter.INCLUDE, boolean.class),
+							Field.memberNames("levelMemberNames")))).named("_query"));
+
+	private final ArrayNode jsonPatch;
+	private final ObjectNode mergePatch;
+	private final List<Operation> operations;
+
+	private AnalysisPatch(ArrayNode jsonPatch, ObjectNode mergePatch, List<Operation> operations) {
+		this.jsonPatch = jsonPatch;
+		this.mergePatch = mergePatch;
+		this.operations = operations;
+	}
+
+	/**
+	 * @param patch the array of operations
+	 * @return the patch
+	 * @throws IllegalArgumentException if the patch is malformed, addresses unknown properties or changes read-only ones
+	 */
+	public static AnalysisPatch jsonPatch(JsonNode patch) {
+		if (patch == null || !patch.isArray()) {
+			throw new IllegalArgumentException("A JSON Patch must be an array of operations");
+		}
+		List<Operation> operations = new ArrayList<>();
+		for (JsonNode operation : patch) {
+			String op = requiredText(operation, "op");
+			String path = requiredText(operation, "path");
+			Target target = resolve(path, !"test".equals(op));
+			switch (op) {
+			case "add":
+			case "replace":
+				operations.add(setOperation(op, target, required(operation, "value", op)));
+				break;
+			case "remove":
+				operations.add(removeOperation(target));
+				break;
+			case "move":
+				resolve(requiredText(operation, "from"), true);
+				operations.add(null);
+				break;
+			case "copy":
+				resolve(requiredText(operation, "from"), false);
+				operations.add(null);
+				break;
+			case "test":
+				required(operation, "value", op);
+				operations.add(null);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown JSON Patch operation " + op);
+			}
+		}
+		return new AnalysisPatch((ArrayNode) patch, null, operations);
+	}
+
+	/**
+	 * @param patch the merge patch, an object
+	 * @return the patch
+	 * @throws IllegalArgumentException if the patch is not an object, addresses unknown properties or changes read-only ones
+	 */
+	public static AnalysisPatch mergePatch(JsonNode patch) {
+		if (patch == null || !patch.isObject()) {
+			throw new IllegalArgumentException("A merge patch of an analysis must be an object");
+		}
+		List<Operation> operations = new ArrayList<>();
+		addMergeOperations((ObjectNode) patch, ANALYSIS, "", new ArrayList<>(), operations);
+		return new AnalysisPatch(null, (ObjectNode) patch, operations);
+	}
+
+	/**
+	 * @return the targeted mongo update equivalent to this patch, or null if the patch has to be applied to the whole analysis
+	 */
+	public TargetedUpdate targeted() {
+		List<String> paths = new ArrayList<>();
+		for (Operation operation : operations) {
+			if (operation == null) {
+				return null;
+			}
+			// mongo rejects two updates of a path, or of a path and one beneath it, and the second would depend on the first
+			for (String path : paths) {
+				if (path.equals(operation.path) || path.startsWith(operation.path + ".") || operation.path.startsWith(path + ".")) {
+					return null;
+				}
+			}
+			paths.add(operation.path);
+		}
+		return new TargetedUpdate(operations);
+	}
+
+	/**
+	 * Apply the patch to an analysis.
+	 * @param analysis the analysis, which is not modified
+	 * @return the patched analysis
+	 * @throws NotApplicableException if the patch cannot be applied to the analysis
+	 * @throws IllegalArgumentException if the patched analysis is not valid or its read-only properties were changed
+	 */
+	public Analysis applyTo(Analysis analysis) {
+		JsonNode document = MAPPER.valueToTree(analysis);
+		JsonNode patched = jsonPatch != null ? applyJsonPatch(jsonPatch, document.deepCopy()) : applyMergePatch(mergePatch, document.deepCopy());
+		if (!patched.isObject()) {
+			throw new IllegalArgumentException("An analysis must be an object");
+		}
+		for (String property : READ_ONLY_PROPERTIES) {
+			if (!document.path(property).equals(patched.path(property))) {
+				throw new IllegalArgumentException("Analysis property " + property + " is read-only");
+			}
+		}
+		try {
+			return MAPPER.treeToValue(patched, Analysis.class);
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("The patched analysis is not valid: " + e.getOriginalMessage(), e);
+		}
+	}
+
+	/**
+	 * A patch translated into a single mongo update: $set and $unset of properties and array elements, $push of array
+	 * elements and $pull of elements removed by index, which are identified by their key (unique name) read beforehand.
+	 */
+	public static final class TargetedUpdate {
+
+		private final List<Operation> operations;
+
+		private TargetedUpdate(List<Operation> operations) {
+			this.operations = operations;
+		}
+
+		/**
+		 * @return the fields that have to be read from the stored analysis to resolve removals by index; empty if none
+		 */
+		public Set<String> getKeyFields() {
+			Set<String> ret = new LinkedHashSet<>();
+			for (Operation operation : operations) {
+				if (operation.kind == Kind.PULL) {
+					ret.add(operation.path + "." + operation.field.key);
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * Add criteria to the query selecting the analysis, so that the update only applies if every path it addresses exists
+		 * as the patch expects. If it doesn't, the patch should be applied to the whole analysis, to get the exact semantics.
+		 */
+		public Query guard(Query query) {
+			Set<String> paths = new TreeSet<>();
+			operations.forEach(operation -> paths.addAll(operation.requiredPaths));
+			paths.forEach(path -> query.addCriteria(Criteria.where(path).ne(null)));
+			return query;
+		}
+
+		/**
+		 * @param keys the stored analysis with (at least) the key fields, or null if there are none
+		 * @param converter converts values to their stored form, compacting large filters as a save would
+		 * @return the update, or null if a removal can't be resolved to a unique element (so the patch has to be applied to
+		 * the whole analysis)
+		 * @throws NotApplicableException if a removal addresses an element that does not exist
+		 */
+		public Update toUpdate(Document keys, MongoConverter converter) {
+			Update ret = new Update();
+			for (Operation operation : operations) {
+				switch (operation.kind) {
+				case SET:
+					ret.set(operation.path, toMongo(operation.value, operation.field, converter));
+					break;
+				case UNSET:
+					ret.unset(operation.path);
+					break;
+				case PUSH:
+					Object element = toMongo(operation.value, operation.field.element, converter);
+					if (operation.index < 0) {
+						ret.push(operation.path, element);
+					} else {
+						ret.push(operation.path).atPosition(operation.index).value(element);
+					}
+					break;
+				case PULL:
+					Object key = elementKey(keys, operation);
+					if (key == null) {
+						return null;
+					}
+					ret.pull(operation.path, new Document(operation.field.key, key));
+					break;
+				case SET_MEMBER_NAMES:
+					QueryFilter filter = new QueryFilter();
+					filter.setLevelMemberNames((String[]) operation.value);
+					Document stored = (Document) converter.convertToMongoType(filter, ClassTypeInformation.from(QueryFilter.class));
+					for (String field : Arrays.asList(QueryFilterWriteConverter.LEVEL_MEMBER_NAMES, QueryFilterWriteConverter.COMPACT_MEMBER_NAMES)) {
+						if (stored.containsKey(field)) {
+							ret.set(parentPath(operation.path) + "." + field, stored.get(field));
+						} else {
+							ret.unset(parentPath(operation.path) + "." + field);
+						}
+					}
+					break;
+				case UNSET_MEMBER_NAMES:
+					ret.unset(parentPath(operation.path) + "." + QueryFilterWriteConverter.LEVEL_MEMBER_NAMES);
+					ret.unset(parentPath(operation.path) + "." + QueryFilterWriteConverter.COMPACT_MEMBER_NAMES);
+					break;
+				default:
+					throw new IllegalStateException("Unhandled operation " + operation.kind);
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the key of the element to remove, or null if it does not identify the element uniquely
+		 */
+		private static Object elementKey(Document keys, Operation operation) {
+			Object elements = keys;
+			for (String name : operation.path.split("\\.")) {
+				elements = elements instanceof Document ? ((Document) elements).get(name) : null;
+			}
+			if (!(elements instanceof List) || operation.index >= ((List<?>) elements).size()) {
+				throw new NotApplicableException("There is no element " + operation.index + " of " + operation.pointer);
+			}
+			List<Object> allKeys = new ArrayList<>();
+			for (Object element : (List<?>) elements) {
+				allKeys.add(element instanceof Document ? ((Document) element).get(operation.field.key) : null);
+			}
+			Object ret = allKeys.get(operation.index);
+			return ret == null || Collections.frequency(allKeys, ret) > 1 ? null : ret;
+		}
+
+		private static Object toMongo(Object value, Field field, MongoConverter converter) {
+			return value == null ? null : converter.convertToMongoType(value, ClassTypeInformation.from(field.type));
+		}
+
+	}
+
+	private enum Kind {
+		SET, UNSET, PUSH, PULL, SET_MEMBER_NAMES, UNSET_MEMBER_NAMES
+	}
+
+	private static final class Operation {
+
+		private final Kind kind;
+		private final String pointer;
+		private final String path;
+		private final Field field;
+		private final Object value;
+		private final int index;
+		private final List<String> requiredPaths;
+
+		Operation(Kind kind, String pointer, String path, Field field, Object value, int index, List<String> requiredPaths) {
+			this.kind = kind;
+			this.pointer = pointer;
+			this.path = path;
+			this.field = field;
+			this.value = value;
+			this.index = index;
+			this.requiredPaths = requiredPaths;
+		}
+
+	}
+
+	/**
+	 * A property of an analysis that can be patched: a scalar, an embedded object or an array of embedded objects.
+	 */
+	private static final class Field {
+
+		private final String jsonName;
+		private final String mongoName;
+		private final Class<?> type;
+		private final Map<String, Field> properties;
+		private final Field element;
+		private final String key;
+		private final boolean memberNames;
+
+		private Field(String jsonName, String mongoName, Class<?> type, Map<String, Field> properties, Field element, String key, boolean memberNames) {
+			this.jsonName = jsonName;
+			this.mongoName = mongoName;
+			this.type = type;
+			this.properties = properties;
+			this.element = element;
+			this.key = key;
+			this.memberNames = memberNames;
+		}
+
+		static Field scalar(String jsonName, String mongoName, Class<?> type) {
+			return new Field(jsonName, mongoName, type, null, null, null, false);
+		}
+
+		static Field object(String mongoName, Class<?> type, Field... properties) {
+			Map<String, Field> map = new LinkedHashMap<>();
+			for (Field property : properties) {
+				map.put(property.jsonName, property);
+			}
+			return new Field(null, mongoName, type, map, null, null, false);
+		}
+
+		static Field array(String jsonName, String mongoName, Class<?> type, String key, Field element) {
+			return new Field(jsonName, mongoName, type, null, element, key, false);
+		}
+
+		static Field memberNames(String name) {
+			return new Field(name, QueryFilterWriteConverter.LEVEL_MEMBER_NAMES, String[].class, null, null, null, true);
+		}
+
+		Field named(String jsonName) {
+			return new Field(jsonName, mongoName, type, properties, element, key, memberNames);
+		}
+
+	}
+
+	/**
+	 * @return the properties that patches may address, by the class they belong to, as json name to mongo name
+	 */
+	static Map<Class<?>, Map<String, String>> schema() {
+		Map<Class<?>, Map<String, String>> ret = new LinkedHashMap<>();
+		addSchema(ANALYSIS, ret);
+		return ret;
+	}
+
+	private static void addSchema(Field field, Map<Class<?>, Map<String, String>> schema) {
+		if (field.element != null) {
+			addSchema(field.element, schema);
+		} else if (field.properties != null) {
+			Map<String, String> properties = new LinkedHashMap<>();
+			for (Field property : field.properties.values()) {
+				properties.put(property.jsonName, property.mongoName);
+				addSchema(property, schema);
+			}
+			schema.put(field.type, properties);
+		}
+	}
+
+	/**
+	 * Where a json pointer leads: the field, its mongo path, and whether it is an element of an array (and which).
+	 */
+	private static final class Target {
+
+		private final String pointer;
+		private Field field = ANALYSIS;
+		private String path = "";
+		// set for array elements: the array, its path, and the element's index (-1 for the end of the array)
+		private Field arrayField;
+		private String arrayPath;
+		private int index;
+		// false if the pointer leads inside member names, or is the whole analysis
+		private boolean targetable = true;
+		private final List<String> ancestors = new ArrayList<>();
+
+		Target(String pointer) {
+			this.pointer = pointer;
+		}
+
+		void descend(String mongoName) {
+			if (!path.isEmpty()) {
+				ancestors.add(path);
+			}
+			path = path.isEmpty() ? mongoName : path + "." + mongoName;
+		}
+
+	}
+
+	private static Target resolve(String pointer, boolean modifies) {
+		Target ret = new Target(pointer);
+		List<String> tokens = tokens(pointer);
+		if (tokens.isEmpty()) {
+			ret.targetable = false;
+			return ret;
+		}
+		for (int i=0;i < tokens.size();i++) {
+			String token = tokens.get(i);
+			Field field = ret.field;
+			ret.arrayPath = null;
+			if (field.memberNames) {
+				// individual member names can't be addressed in storage, which may be compacted
+				ret.targetable = false;
+				return ret;
+			} else if (field.element != null) {
+				ret.arrayField = field;
+				ret.arrayPath = ret.path;
+				ret.index = index(token, pointer);
+				ret.descend(token);
+				ret.field = field.element;
+			} else if (field.properties != null && field.properties.containsKey(token)) {
+				ret.field = field.properties.get(token);
+				ret.descend(ret.field.mongoName);
+			} else if (i == 0 && READ_ONLY_PROPERTIES.contains(token)) {
+				if (modifies) {
+					throw new IllegalArgumentException("Analysis property " + token + " is read-only");
+				}
+				ret.targetable = false;
+				return ret;
+			} else {
+				throw new IllegalArgumentException("Unknown analysis path " + pointer);
+			}
+		}
+		return ret;
+	}
+
+	private static Operation setOperation(String op, Target target, JsonNode value) {
+		if (!target.targetable) {
+			return null;
+		}
+		List<String> required = new ArrayList<>(target.ancestors);
+		if (target.arrayPath != null) {
+			Object element = value(value, target.field, target.pointer);
+			if (target.index < 0) {
+				if (!"add".equals(op)) {
+					throw new IllegalArgumentException("Only add can address the end of an array: " + target.pointer);
+				}
+				required.add(target.arrayPath);
+				return new Operation(Kind.PUSH, target.pointer, target.arrayPath, target.arrayField, element, -1, required);
+			}
+			if ("add".equals(op)) {
+				// inserting at the index, which may be one past the last element
+				required.add(target.arrayPath);
+				if (target.index > 0) {
+					required.add(target.arrayPath + "." + (target.index - 1));
+				}
+				return new Operation(Kind.PUSH, target.pointer, target.arrayPath, target.arrayField, element, target.index, required);
+			}
+			required.add(target.path);
+			return new Operation(Kind.SET, target.pointer, target.path, target.field, element, -1, required);
+		}
+		if (target.field.memberNames) {
+			return new Operation(Kind.SET_MEMBER_NAMES, target.pointer, target.path, target.field, memberNames(value, target.pointer), -1, required);
+		}
+		return new Operation(Kind.SET, target.pointer, target.path, target.field, value(value, target.field, target.pointer), -1, required);
+	}
+
+	private static Operation removeOperation(Target target) {
+		if (!target.targetable) {
+			return null;
+		}
+		List<String> required = new ArrayList<>(target.ancestors);
+		if (target.arrayPath != null) {
+			if (target.index < 0) {
+				throw new IllegalArgumentException("Cannot remove the end of an array: " + target.pointer);
+			}
+			required.add(target.path);
+			return new Operation(Kind.PULL, target.pointer, target.arrayPath, target.arrayField, null, target.index, required);
+		}
+		if (target.field.memberNames) {
+			return new Operation(Kind.UNSET_MEMBER_NAMES, target.pointer, target.path, target.field, null, -1, required);
+		}
+		return new Operation(Kind.UNSET, target.pointer, target.path, target.field, null, -1, required);
+	}
+
+	private static void addMergeOperations(ObjectNode patch, Field field, String pointer, List<String> ancestors, List<Operation> operations) {
+		Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> entry = fields.next();
+			String childPointer = pointer + "/" + escape(entry.getKey());
+			Field property = field.properties.get(entry.getKey());
+			if (property == null) {
+				if (field == ANALYSIS && READ_ONLY_PROPERTIES.contains(entry.getKey())) {
+					throw new IllegalArgumentException("Analysis property " + entry.getKey() + " is read-only");
+				}
+				throw new IllegalArgumentException("Unknown analysis path " + childPointer);
+			}
+			String path = ancestors.isEmpty() ? property.mongoName : ancestors.get(ancestors.size() - 1) + "." + property.mongoName;
+			if (entry.getValue().isNull()) {
+				operations.add(new Operation(Kind.UNSET, childPointer, path, property, null, -1, ancestors));
+			} else if (entry.getValue().isObject() && property.properties != null) {
+				List<String> childAncestors = new ArrayList<>(ancestors);
+				childAncestors.add(path);
+				addMergeOperations((ObjectNode) entry.getValue(), property, childPointer, childAncestors, operations);
+			} else {
+				operations.add(new Operation(Kind.SET, childPointer, path, property, value(entry.getValue(), property, childPointer), -1, ancestors));
+			}
+		}
+	}
+
+	/*
+	 * Application of patches to json documents (RFC 6902 and RFC 7386)
+	 */
+
+	static JsonNode applyJsonPatch(ArrayNode patch, JsonNode document) {
+		for (JsonNode operation : patch) {
+			String op = operation.get("op").asText();
+			String path = operation.get("path").asText();
+			switch (op) {
+			case "add":
+				document = add(document, path, operation.get("value").deepCopy());
+				break;
+			case "remove":
+				document = remove(document, path);
+				break;
+			case "replace":
+				document = add(remove(document, path), path, operation.get("value").deepCopy());
+				break;
+			case "move":
+				String from = operation.get("from").asText();
+				JsonNode moved = get(document, from);
+				if (path.startsWith(from + "/")) {
+					throw new NotApplicableException("Cannot move " + from + " into itself");
+				}
+				document = add(remove(document, from), path, moved);
+				break;
+			case "copy":
+				document = add(document, path, get(document, operation.get("from").asText()).deepCopy());
+				break;
+			case "test":
+				if (!get(document, path).equals(operation.get("value"))) {
+					throw new NotApplicableException("Test of " + path + " failed");
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown JSON Patch operation " + op);
+			}
+		}
+		return document;
+	}
+
+	static JsonNode applyMergePatch(JsonNode patch, JsonNode document) {
+		if (!patch.isObject()) {
+			return patch.deepCopy();
+		}
+		ObjectNode ret = document != null && document.isObject() ? (ObjectNode) document : JsonNodeFactory.instance.objectNode();
+		Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> entry = fields.next();
+			if (entry.getValue().isNull()) {
+				ret.remove(entry.getKey());
+			} else {
+				ret.set(entry.getKey(), applyMergePatch(entry.getValue(), ret.get(entry.getKey())));
+			}
+		}
+		return ret;
+	}
+
+	private static JsonNode get(JsonNode document, String pointer) {
+		JsonNode ret = document;
+		for (String token : tokens(pointer)) {
+			ret = ret.isArray() ? ret.get(arrayIndex(token, ret.size() - 1, pointer)) : ret.get(token);
+			if (ret == null) {
+				throw new NotApplicableException("Path " + pointer + " does not exist");
+			}
+		}
+		return ret;
+	}
+
+	private static JsonNode add(JsonNode document, String pointer, JsonNode value) {
+		List<String> tokens = tokens(pointer);
+		if (tokens.isEmpty()) {
+			return value;
+		}
+		JsonNode parent = get(document, parentPointer(pointer));
+		String last = tokens.get(tokens.size() - 1);
+		if (parent.isArray()) {
+			if ("-".equals(last)) {
+				((ArrayNode) parent).add(value);
+			} else {
+				((ArrayNode) parent).insert(arrayIndex(last, parent.size(), pointer), value);
+			}
+		} else if (parent.isObject()) {
+			((ObjectNode) parent).set(last, value);
+		} else {
+			throw new NotApplicableException("Path " + parentPointer(pointer) + " is not an object or array");
+		}
+		return document;
+	}
+
+	private static JsonNode remove(JsonNode document, String pointer) {
+		List<String> tokens = tokens(pointer);
+		if (tokens.isEmpty()) {
+			return JsonNodeFactory.instance.nullNode();
+		}
+		get(document, pointer);
+		JsonNode parent = get(document, parentPointer(pointer));
+		String last = tokens.get(tokens.size() - 1);
+		if (parent.isArray()) {
+			((ArrayNode) parent).remove(arrayIndex(last, parent.size() - 1, pointer));
+		} else {
+			((ObjectNode) parent).remove(last);
+		}
+		return document;
+	}
+
+	private static int arrayIndex(String token, int max, String pointer) {
+		int ret = "-".equals(token) ? -1 : index(token, pointer);
+		if (ret < 0 || ret > max) {
+			throw new NotApplicableException("Path " + pointer + " does not exist");
+		}
+		return ret;
+	}
+
+	/*
+	 * Json pointers (RFC 6901) and values
+	 */
+
+	private static List<String> tokens(String pointer) {
+		if (pointer.isEmpty()) {
+			return Collections.emptyList();
+		}
+		if (!pointer.startsWith("/")) {
+			throw new IllegalArgumentException("Malformed json pointer " + pointer);
+		}
+		List<String> ret = new ArrayList<>();
+		for (String token : pointer.substring(1).split("/", -1)) {
+			ret.add(token.replace("~1", "/").replace("~0", "~"));
+		}
+		return ret;
+	}
+
+	private static String parentPointer(String pointer) {
+		return pointer.substring(0, pointer.lastIndexOf('/'));
+	}
+
+	private static String parentPath(String path) {
+		return path.substring(0, path.lastIndexOf('.'));
+	}
+
+	private static String escape(String token) {
+		return token.replace("~", "~0").replace("/", "~1");
+	}
+
+	/**
+	 * @return the index, or -1 for the end of the array (-)
+	 */
+	private static int index(String token, String pointer) {
+		if ("-".equals(token)) {
+			return -1;
+		}
+		if (!token.matches("0|[1-9][0-9]{0,8}")) {
+			throw new IllegalArgumentException("Malformed array index in " + pointer);
+		}
+		return Integer.parseInt(token);
+	}
+
+	private static Object value(JsonNode value, Field field, String pointer) {
+		if (value.isNull()) {
+			return null;
+		}
+		try {
+			return MAPPER.treeToValue(value, field.type);
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("Invalid value for " + pointer + ": " + e.getOriginalMessage(), e);
+		}
+	}
+
+	private static String[] memberNames(JsonNode value, String pointer) {
+		// read through a filter, so that compacted names are accepted just as they are in a whole analysis
+		ObjectNode filter = JsonNodeFactory.instance.objectNode();
+		filter.set("levelMemberNames", value);
+		return ((QueryFilter) value(filter, Field.scalar(null, null, QueryFilter.class), pointer)).getLevelMemberNames();
+	}
+
+	private static JsonNode required(JsonNode operation, String name, String op) {
+		JsonNode ret = operation.get(name);
+		if (ret == null) {
+			throw new IllegalArgumentException("JSON Patch " + op + " operation requires a " + name);
+		}
+		return ret;
+	}
+
+	private static String requiredText(JsonNode operation, String name) {
+		JsonNode ret = operation.get(name);
+		if (ret == null || !ret.isTextual()) {
+			throw new IllegalArgumentException("JSON Patch operation requires a " + name);
+		}
+		return ret.asText();
+	}
+
+}
@@ -19,4 +19,4 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 
 import com.cascadia_analytics.piet.domain.Analysis;
 
-public interface AnalysisRepository extends MongoRepository<Analysis, String> {}
+public interface AnalysisRepository extends MongoRepository<Analysis, String>, AnalysisRepositoryCustom {}
@@ -0,0 +1,155 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.util.CloseableIterator;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisSummaryPage;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+
+/**
+ * Operations on the analysis collection that go beyond what Spring Data derives from {@link AnalysisRepository}.
+ */
+public interface AnalysisRepositoryCustom {
+
+	/**
+	 * Retrieve a page of analysis summaries using keyset pagination.
+	 * @param sort the ordering of the results
+	 * @param cursor the nextCursor from the previous page, or null for the first page
+	 * @param limit the maximum number of summaries to return
+	 * @return the page
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	AnalysisSummaryPage findSummaries(AnalysisSummarySort sort, String cursor, int limit);
+
+	/**
+	 * Atomically increment the read counter of an analysis and return it, in a single round-trip to mongo.
+	 * @param id the id of the analysis
+	 * @return the analysis, reflecting the incremented counter, or null if there is no analysis with the id
+	 */
+	Analysis findAndIncrementReadCounter(String id);
+
+	/**
+	 * Full-text search of analysis names and descriptions, returning summaries ranked by relevance.
+	 * @param text the search text (mongo $text syntax: words, "phrases" and -exclusions)
+	 * @param datasetRef if not null, restricts results to analyses of this dataset (matching whichever of id and cube are set)
+	 * @param cursor the nextCursor from the previous page, or null for the first page
+	 * @param limit the maximum number of summaries to return
+	 * @return the page
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	AnalysisSummaryPage searchSummaries(String text, DatasetRef datasetRef, String cursor, int limit);
+
+	/**
+	 * Retrieve the most popular analyses: those read most often, with ties going to the most recently updated.
+	 * @param limit the maximum number of analyses to return
+	 * @return the analyses, most popular first
+	 */
+	List<Analysis> findMostRead(int limit);
+
+	/**
+	 * Increment the read counters of a set of analyses and return them, with one multi-document update and one query.
+	 * @param ids the ids of the analyses
+	 * @return the analyses that exist, in no particular order
+	 */
+	List<Analysis> findAllAndIncrementReadCounters(Collection<String> ids);
+
+	/**
+	 * Add to the read counters of a set of analyses in a single unordered bulk write. Analyses that no longer exist are ignored.
+	 * @param increments the amount to add to each analysis's counter, by id
+	 */
+	void incrementReadCounters(Map<String, Long> increments);
+
+	/**
+	 * Save an analysis, replacing everything stored except its read counter, which is only written when the analysis is
+	 * inserted (reads counted meanwhile would otherwise be lost). An analysis without an id is assigned one. An analysis with a
+	 * version replaces only that version of the stored analysis; one without a version is inserted, and never replaces what
+	 * is stored. The analysis is updated with its new version.
+	 * @param analysis the analysis
+	 * @return the analysis
+	 * @throws OptimisticLockingFailureException if the analysis has a version and the stored analysis has another, or none,
+	 * or if it has no version and an analysis with its id is stored
+	 */
+	Analysis saveExceptReadCounter(Analysis analysis);
+
+	/**
+	 * Insert or replace a set of analyses in a single unordered bulk write, as {@link #saveExceptReadCounter(Analysis)} does
+	 * except that an analysis with a version is inserted if none is stored, and one with an id but no version replaces
+	 * whatever version is stored when the batch is read. Saved analyses are updated with their new versions (and new ones with
+	 * their ids); analyses that are not saved are left as they were.
+	 * @param analyses the analyses
+	 * @return for each analysis (in order), null if it was saved, or a description of why it was not
+	 */
+	List<String> bulkSave(List<Analysis> analyses);
+
+	/**
+	 * Apply a patch to an analysis, as a single targeted update of the fields it changes where possible, and otherwise by
+	 * rewriting the analysis. Either way, it only applies to the given version, and the version is incremented.
+	 * @param id the id of the analysis
+	 * @param version the version the stored analysis must have, or null for whatever version is stored
+	 * @param patch the patch
+	 * @param now the new update time of the analysis
+	 * @return the analysis with (at least) its id and new version, or null if there is no analysis with the id and version
+	 * @throws AnalysisPatch.NotApplicableException if the patch cannot be applied to the stored analysis
+	 * @throws IllegalArgumentException if the patched analysis is not valid
+	 */
+	Analysis patch(String id, Long version, AnalysisPatch patch, Date now);
+
+	/**
+	 * Delete a set of analyses in a single write.
+	 * @param ids the ids of the analyses
+	 * @return the ids of the analyses that existed (and so were deleted)
+	 */
+	Set<String> bulkDelete(Collection<String> ids);
+
+	/**
+	 * Iterate over every analysis with a single cursor, so that the collection can be processed in constant memory.
+	 * The iterator must be closed.
+	 * @return the iterator
+	 */
+	CloseableIterator<Analysis> streamAll();
+
+	/**
+	 * Summarize the state of the whole collection (number of analyses, sum of their versions and latest update) in a
+	 * single aggregation, without loading any analyses. Any save or delete changes the result; read counts do not.
+	 * @return the fingerprint, an opaque string
+	 */
+	String getCollectionFingerprint();
+
+	/**
+	 * Set the version of analyses saved before versioning was introduced to 0. Saves and patches already treat a missing
+	 * version as 0, so this only makes the stored versions (and so entity tags and snapshot versions) consistent.
+	 * @return the number of analyses updated
+	 */
+	long initializeVersions();
+
+	/**
+	 * @param analysis a stored analysis
+	 * @return its version, which is 0 if it was saved before versioning was introduced and has not been initialized yet
+	 */
+	static long storedVersion(Analysis analysis) {
+		return analysis.getVersion() == null ? 0L : analysis.getVersion();
+	}
+
+}
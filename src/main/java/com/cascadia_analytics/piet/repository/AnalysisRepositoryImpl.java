@@ -0,0 +1,498 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisSummary;
+import com.cascadia_analytics.piet.domain.AnalysisSummaryPage;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.mongodb.BulkWriteError;
+import com.mongodb.client.result.UpdateResult;
+
+public class AnalysisRepositoryImpl implements AnalysisRepositoryCustom {
+
+	private static final String[] SUMMARY_FIELDS = new String[] {
+			"name", "description", "datasetRef", "createDateTime", "updateDateTime", "readCounter"
+	};
+
+	static final Aggregation FINGERPRINT_AGGREGATION = Aggregation.newAggregation(Aggregation.group()
+			.count().as("count")
+			.sum("version").as("versions")
+			.max("updateDateTime").as("lastUpdate"));
+
+	private static final String READ_COUNTER_FIELD = "readCounter";
+	private static final int DUPLICATE_KEY_ERROR_CODE = 11000;
+	private static final int STREAM_BATCH_SIZE = 500;
+
+	private final MongoTemplate mongoTemplate;
+
+	@Autowired
+	public AnalysisRepositoryImpl(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	@Override
+	public AnalysisSummaryPage findSummaries(AnalysisSummarySort sort, String cursor, int limit) {
+		Query query = summaryQuery(sort, cursor, limit);
+		return summaryPage(sort, mongoTemplate.find(query, AnalysisSummary.class, mongoTemplate.getCollectionName(Analysis.class)), limit);
+	}
+
+	@Override
+	public AnalysisSummaryPage searchSummaries(String text, DatasetRef datasetRef, String cursor, int limit) {
+		// relevance order can't be paged by key, but search results are only ever paged a few deep, so skip is fine
+		int offset = cursor == null ? 0 : decodeOffsetCursor(cursor);
+		Query query = searchQuery(text, datasetRef, offset, limit);
+		return searchPage(mongoTemplate.find(query, AnalysisSummary.class, mongoTemplate.getCollectionName(Analysis.class)), offset, limit);
+	}
+
+	@Override
+	public Analysis findAndIncrementReadCounter(String id) {
+		return mongoTemplate.findAndModify(
+				Query.query(Criteria.where("_id").is(id)),
+				new Update().inc("readCounter", 1),
+				FindAndModifyOptions.options().returnNew(true),
+				Analysis.class);
+	}
+
+	@Override
+	public List<Analysis> findMostRead(int limit) {
+		Query query = new Query().with(Sort.by(Direction.DESC, "readCounter", "updateDateTime")).limit(limit);
+		return mongoTemplate.find(query, Analysis.class);
+	}
+
+	@Override
+	public List<Analysis> findAllAndIncrementReadCounters(Collection<String> ids) {
+		Query query = Query.query(Criteria.where("_id").in(ids));
+		mongoTemplate.updateMulti(query, new Update().inc("readCounter", 1), Analysis.class);
+		return mongoTemplate.find(query, Analysis.class);
+	}
+
+	@Override
+	public void incrementReadCounters(Map<String, Long> increments) {
+		if (!increments.isEmpty()) {
+			BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkMode.UNORDERED, Analysis.class);
+			increments.forEach((id, increment) -> bulkOperations.updateOne(Query.query(Criteria.where("_id").is(id)), new Update().inc("readCounter", increment)));
+			bulkOperations.execute();
+		}
+	}
+
+	@Override
+	public Analysis saveExceptReadCounter(Analysis analysis) {
+		Long storedVersion = assignIdAndVersion(analysis);
+		UpdateResult result = null;
+		try {
+			if (storedVersion == null) {
+				mongoTemplate.insert(insertDocument(analysis, mongoTemplate.getConverter()), mongoTemplate.getCollectionName(Analysis.class));
+			} else {
+				result = mongoTemplate.updateFirst(versionQuery(analysis.getId(), storedVersion), saveUpdate(analysis, mongoTemplate.getConverter()), Analysis.class);
+			}
+		} catch (DuplicateKeyException e) {
+			throw new OptimisticLockingFailureException("Analysis " + analysis.getId() + " was modified by another client", e);
+		}
+		if (result != null && result.getMatchedCount() == 0) {
+			throw new OptimisticLockingFailureException("Analysis " + analysis.getId() + " does not have version " + storedVersion);
+		}
+		return analysis;
+	}
+
+	@Override
+	public List<String> bulkSave(List<Analysis> analyses) {
+		List<String> ret = new ArrayList<>(Collections.nCopies(analyses.size(), null));
+		if (!analyses.isEmpty()) {
+			Map<String, Long> currentVersions = findVersions(analyses.stream()
+					.filter(analysis -> analysis.getId() != null && analysis.getVersion() == null)
+					.map(Analysis::getId)
+					.collect(Collectors.toList()));
+			BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkMode.UNORDERED, Analysis.class);
+			String[] originalIds = new String[analyses.size()];
+			Long[] originalVersions = new Long[analyses.size()];
+			for (int i = 0; i < analyses.size(); i++) {
+				Analysis analysis = analyses.get(i);
+				originalIds[i] = analysis.getId();
+				originalVersions[i] = analysis.getVersion();
+				if (analysis.getId() != null && analysis.getVersion() == null) {
+					analysis.setVersion(currentVersions.get(analysis.getId()));
+				}
+				Long storedVersion = assignIdAndVersion(analysis);
+				// an analysis that was created, or whose stored version changed, since its version was read collides with the
+				// stored _id and fails with a duplicate key error
+				if (storedVersion == null) {
+					bulkOperations.insert(insertDocument(analysis, mongoTemplate.getConverter()));
+				} else {
+					bulkOperations.upsert(versionQuery(analysis.getId(), storedVersion), saveUpdate(analysis, mongoTemplate.getConverter()));
+				}
+			}
+			try {
+				bulkOperations.execute();
+			} catch (BulkOperationException e) {
+				for (BulkWriteError error : e.getErrors()) {
+					ret.set(error.getIndex(), error.getCode() == DUPLICATE_KEY_ERROR_CODE ? "Version conflict: the analysis was modified by another client" : error.getMessage());
+					// nothing was stored, so the analysis keeps the id and version it came with
+					analyses.get(error.getIndex()).setId(originalIds[error.getIndex()]);
+					analyses.get(error.getIndex()).setVersion(originalVersions[error.getIndex()]);
+				}
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public Analysis patch(String id, Long version, AnalysisPatch patch, Date now) {
+		if (version == null) {
+			version = findVersions(Collections.singleton(id)).get(id);
+			if (version == null) {
+				return null;
+			}
+		}
+		AnalysisPatch.TargetedUpdate targeted = patch.targeted();
+		if (targeted != null) {
+			Document keys = null;
+			if (!targeted.getKeyFields().isEmpty()) {
+				Query keyQuery = versionQuery(id, version);
+				targeted.getKeyFields().forEach(keyQuery.fields()::include);
+				keys = mongoTemplate.findOne(keyQuery, Document.class, mongoTemplate.getCollectionName(Analysis.class));
+				if (keys == null) {
+					return null;
+				}
+			}
+			Update update = targeted.toUpdate(keys, mongoTemplate.getConverter());
+			if (update != null) {
+				Query query = targeted.guard(versionQuery(id, version));
+				query.fields().include("_id").include("version");
+				Analysis ret = mongoTemplate.findAndModify(query, update.inc("version", 1).set("updateDateTime", now),
+						FindAndModifyOptions.options().returnNew(true), Analysis.class);
+				if (ret != null) {
+					return ret;
+				}
+			}
+		}
+		// either the patch can't be targeted, or it addresses something that isn't there (or the version has changed)
+		Analysis current = mongoTemplate.findOne(versionQuery(id, version), Analysis.class);
+		if (current == null) {
+			return null;
+		}
+		Analysis patched = patch.applyTo(current);
+		patched.setUpdateDateTime(now);
+		try {
+			return saveExceptReadCounter(patched);
+		} catch (OptimisticLockingFailureException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public Set<String> bulkDelete(Collection<String> ids) {
+		Query query = Query.query(Criteria.where("_id").in(ids));
+		query.fields().include("_id");
+		Set<String> ret = mongoTemplate.find(query, Analysis.class).stream().map(Analysis::getId).collect(Collectors.toSet());
+		if (!ret.isEmpty()) {
+			mongoTemplate.remove(Query.query(Criteria.where("_id").in(ret)), Analysis.class);
+		}
+		return ret;
+	}
+
+	@Override
+	public CloseableIterator<Analysis> streamAll() {
+		return mongoTemplate.stream(new Query().cursorBatchSize(STREAM_BATCH_SIZE), Analysis.class);
+	}
+
+	@Override
+	public String getCollectionFingerprint() {
+		return fingerprint(mongoTemplate.aggregate(FINGERPRINT_AGGREGATION, Analysis.class, Document.class).getUniqueMappedResult());
+	}
+
+	@Override
+	public long initializeVersions() {
+		return mongoTemplate.updateMulti(
+				Query.query(Criteria.where("version").exists(false)),
+				new Update().set("version", 0L),
+				Analysis.class).getModifiedCount();
+	}
+
+	private Map<String, Long> findVersions(Collection<String> ids) {
+		Map<String, Long> ret = new HashMap<>();
+		if (!ids.isEmpty()) {
+			Query query = Query.query(Criteria.where("_id").in(ids));
+			query.fields().include("_id").include("version");
+			mongoTemplate.find(query, Analysis.class).forEach(analysis -> ret.put(analysis.getId(), AnalysisRepositoryCustom.storedVersion(analysis)));
+		}
+		return ret;
+	}
+
+	/*
+	 * The query building below is shared with ReactiveAnalysisRepositoryImpl.
+	 */
+
+	static Query versionQuery(String id, long version) {
+		return Query.query(Criteria.where("_id").is(id)).addCriteria(versionCriteria(version));
+	}
+
+	/**
+	 * Match a stored version. Version 0 also matches analyses that have no version yet (see initializeVersions()), so that
+	 * they can be updated whether or not the backfill has reached them.
+	 */
+	static Criteria versionCriteria(long version) {
+		return version == 0 ? Criteria.where("version").in(0L, null) : Criteria.where("version").is(version);
+	}
+
+	/**
+	 * Prepare an analysis to be saved: assign it an id if it has none, and give it the version it will have once saved,
+	 * which is its version incremented, or 0 if it has none (and so is inserted).
+	 * @return the version the stored analysis must have, or null if the analysis is inserted
+	 */
+	static Long assignIdAndVersion(Analysis analysis) {
+		if (analysis.getId() == null) {
+			analysis.setId(new ObjectId().toHexString());
+		}
+		Long ret = analysis.getVersion();
+		analysis.setVersion(ret == null ? 0L : ret + 1);
+		return ret;
+	}
+
+	/**
+	 * The document a save of a new analysis inserts. Inserting, rather than upserting on the id, means a save that races
+	 * another client's creation of the same id fails with a duplicate key, rather than silently replacing it.
+	 */
+	static Document insertDocument(Analysis analysis, MongoConverter converter) {
+		Document ret = new Document();
+		converter.write(analysis, ret);
+		return ret;
+	}
+
+	/**
+	 * An update that replaces every stored property of an analysis but its read counter, which is only set on insert.
+	 */
+	static Update saveUpdate(Analysis analysis, MongoConverter converter) {
+		Document document = new Document();
+		converter.write(analysis, document);
+		Update ret = new Update();
+		document.forEach((field, value) -> {
+			if (!"_id".equals(field) && !READ_COUNTER_FIELD.equals(field)) {
+				ret.set(field, value);
+			}
+		});
+		for (MongoPersistentProperty property : converter.getMappingContext().getRequiredPersistentEntity(Analysis.class)) {
+			if (!property.isIdProperty() && !document.containsKey(property.getFieldName())) {
+				ret.unset(property.getFieldName());
+			}
+		}
+		ret.setOnInsert(READ_COUNTER_FIELD, analysis.getReadCounter());
+		return ret;
+	}
+
+	static Query summaryQuery(AnalysisSummarySort sort, String cursor, int limit) {
+		Query query = new Query();
+		if (cursor != null) {
+			query.addCriteria(cursorCriteria(sort, SummaryCursor.decode(sort, cursor)));
+		}
+		query.with(Sort.by(sort.getDirection(), sort.getField(), "_id"));
+		query.limit(limit + 1); // one extra, so we know whether there is another page
+		query.fields().include("_id");
+		for (String field : SUMMARY_FIELDS) {
+			query.fields().include(field);
+		}
+		return query;
+	}
+
+	static AnalysisSummaryPage summaryPage(AnalysisSummarySort sort, List<AnalysisSummary> summaries, int limit) {
+		String nextCursor = null;
+		if (summaries.size() > limit) {
+			summaries = summaries.subList(0, limit);
+			AnalysisSummary last = summaries.get(limit - 1);
+			nextCursor = new SummaryCursor(sortValue(sort, last), last.getId()).encode(sort);
+		}
+		return new AnalysisSummaryPage(summaries.toArray(new AnalysisSummary[0]), nextCursor);
+	}
+
+	static Query searchQuery(String text, DatasetRef datasetRef, int offset, int limit) {
+		Query query = TextQuery.queryText(TextCriteria.forDefaultLanguage().matching(text)).sortByScore().includeScore();
+		if (datasetRef != null && datasetRef.getId() != null) {
+			query.addCriteria(Criteria.where("datasetRef.id").is(datasetRef.getId()));
+		}
+		if (datasetRef != null && datasetRef.getCube() != null) {
+			query.addCriteria(Criteria.where("datasetRef.cube").is(datasetRef.getCube()));
+		}
+		query.with(Sort.by("_id"));
+		query.skip(offset).limit(limit + 1);
+		for (String field : SUMMARY_FIELDS) {
+			query.fields().include(field);
+		}
+		return query;
+	}
+
+	static AnalysisSummaryPage searchPage(List<AnalysisSummary> summaries, int offset, int limit) {
+		String nextCursor = null;
+		if (summaries.size() > limit) {
+			summaries = summaries.subList(0, limit);
+			nextCursor = encodeOffsetCursor(offset + limit);
+		}
+		return new AnalysisSummaryPage(summaries.toArray(new AnalysisSummary[0]), nextCursor);
+	}
+
+	static String fingerprint(Document aggregationResult) {
+		if (aggregationResult == null) {
+			return "0";
+		}
+		Date lastUpdate = aggregationResult.getDate("lastUpdate");
+		return aggregationResult.get("count") + "-" + aggregationResult.get("versions") + "-" + (lastUpdate == null ? 0 : lastUpdate.getTime());
+	}
+
+	private static Object sortValue(AnalysisSummarySort sort, AnalysisSummary summary) {
+		switch (sort) {
+		case NAME:
+			return summary.getName();
+		case UPDATE_DATE_TIME:
+			return summary.getUpdateDateTime();
+		default:
+			throw new IllegalStateException("Unhandled sort " + sort);
+		}
+	}
+
+	/**
+	 * Build the criteria selecting everything after the cursor position. Mongo orders nulls (and missing fields) before
+	 * all other values, so they come first in ascending order and last in descending order; $gt/$lt never match nulls,
+	 * so they have to be handled explicitly.
+	 */
+	private static Criteria cursorCriteria(AnalysisSummarySort sort, SummaryCursor cursor) {
+		String field = sort.getField();
+		boolean ascending = sort.getDirection() == Direction.ASC;
+		Object id = mongoId(cursor.id);
+		Criteria idAfter = ascending ? Criteria.where("_id").gt(id) : Criteria.where("_id").lt(id);
+		if (cursor.value == null) {
+			Criteria sameValue = new Criteria().andOperator(Criteria.where(field).is(null), idAfter);
+			return ascending ? new Criteria().orOperator(sameValue, Criteria.where(field).ne(null)) : sameValue;
+		}
+		Criteria valueAfter = ascending ? Criteria.where(field).gt(cursor.value) : Criteria.where(field).lt(cursor.value);
+		Criteria sameValue = new Criteria().andOperator(Criteria.where(field).is(cursor.value), idAfter);
+		return ascending ? new Criteria().orOperator(valueAfter, sameValue) : new Criteria().orOperator(valueAfter, sameValue, Criteria.where(field).is(null));
+	}
+
+	private static String encodeOffsetCursor(int offset) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(("offset:" + offset).getBytes(StandardCharsets.UTF_8));
+	}
+
+	static int decodeOffsetCursor(String cursor) {
+		try {
+			String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			if (raw.startsWith("offset:")) {
+				int ret = Integer.parseInt(raw.substring("offset:".length()));
+				if (ret >= 0) {
+					return ret;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Malformed cursor " + cursor, e);
+		}
+		throw new IllegalArgumentException("Malformed cursor " + cursor);
+	}
+
+	/**
+	 * Spring Data stores String ids that are valid ObjectIds as ObjectIds, but does not convert them inside range
+	 * operators, so we do it ourselves.
+	 */
+	private static Object mongoId(String id) {
+		return ObjectId.isValid(id) ? new ObjectId(id) : id;
+	}
+
+	/**
+	 * Position of the last summary on a page: its sort value and id, encoded as an opaque url-safe token.
+	 */
+	private static final class SummaryCursor {
+
+		private static final String SEPARATOR = "\n";
+
+		private final Object value;
+		private final String id;
+
+		SummaryCursor(Object value, String id) {
+			this.value = value;
+			this.id = id;
+		}
+
+		String encode(AnalysisSummarySort sort) {
+			String valueString = "-";
+			if (value instanceof Date) {
+				valueString = "+" + ((Date) value).getTime();
+			} else if (value != null) {
+				valueString = "+" + value;
+			}
+			String raw = sort.name() + SEPARATOR + id + SEPARATOR + valueString;
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+		}
+
+		static SummaryCursor decode(AnalysisSummarySort sort, String cursor) {
+			String[] parts;
+			try {
+				parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(SEPARATOR, 3);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Malformed cursor " + cursor, e);
+			}
+			if (parts.length != 3 || !parts[0].equals(sort.name()) || parts[2].isEmpty()) {
+				throw new IllegalArgumentException("Cursor " + cursor + " is not valid for sort " + sort);
+			}
+			Object value = null;
+			if (parts[2].startsWith("+")) {
+				String valueString = parts[2].substring(1);
+				if (sort == AnalysisSummarySort.UPDATE_DATE_TIME) {
+					try {
+						value = new Date(Long.parseLong(valueString));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Malformed cursor " + cursor, e);
+					}
+				} else {
+					value = valueString;
+				}
+			}
+			return new SummaryCursor(value, parts[1]);
+		}
+
+	}
+
+}
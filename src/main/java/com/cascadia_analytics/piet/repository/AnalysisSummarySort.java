@@ -0,0 +1,45 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import org.springframework.data.domain.Sort.Direction;
+
+/**
+ * Orderings supported when paging through analysis summaries. Each ordering breaks ties on the document id (in the
+ * same direction), which is what makes keyset paging stable.
+ */
+public enum AnalysisSummarySort {
+
+	NAME("name", Direction.ASC),
+	UPDATE_DATE_TIME("updateDateTime", Direction.DESC);
+
+	private final String field;
+	private final Direction direction;
+
+	private AnalysisSummarySort(String field, Direction direction) {
+		this.field = field;
+		this.direction = direction;
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+}
@@ -0,0 +1,51 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Gives analyses saved before the introduction of {@link com.cascadia_analytics.piet.domain.Analysis#getVersion()} an
+ * initial version once the application has started. Until then, saves treat their version as 0 (see
+ * {@link AnalysisRepositoryCustom#storedVersion(com.cascadia_analytics.piet.domain.Analysis)}), but they have no entity tag.
+ */
+@Component
+public class AnalysisVersionInitializer {
+
+	private final Log log = LogFactory.getLog(AnalysisVersionInitializer.class);
+
+	@Autowired
+	private AnalysisRepository analysisRepository;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void initializeVersions() {
+		try {
+			long count = analysisRepository.initializeVersions();
+			if (count > 0) {
+				log.info("Initialized version of " + count + " analyses");
+			}
+		} catch (Exception e) {
+			log.warn("Unable to initialize analysis versions; analyses saved by earlier releases have no entity tag until this succeeds", e);
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Arrays;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+
+/**
+ * Custom conversions used by both the blocking and reactive Mongo templates.
+ */
+@Configuration
+public class MongoConversionsConfiguration {
+
+	@Bean
+	public MongoCustomConversions mongoCustomConversions(PietConfiguration pietConfiguration) {
+		return new MongoCustomConversions(Arrays.asList(
+				new QueryFilterWriteConverter(pietConfiguration.getStorageCompactMemberNamesMinSize()),
+				new QueryFilterReadConverter()));
+	}
+
+}
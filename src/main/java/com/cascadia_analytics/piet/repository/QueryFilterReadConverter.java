@@ -0,0 +1,57 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+
+import com.cascadia_analytics.piet.domain.CompactMemberNames;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+
+/**
+ * Reads filters in either form QueryFilterWriteConverter writes, so stored analyses stay readable whatever the
+ * compaction settings were when they were saved.
+ */
+@ReadingConverter
+public class QueryFilterReadConverter implements Converter<Document, QueryFilter> {
+
+	@Override
+	public QueryFilter convert(Document document) {
+		QueryFilter ret = new QueryFilter();
+		ret.setLevelUniqueName(document.getString(QueryFilterWriteConverter.LEVEL_UNIQUE_NAME));
+		ret.setFilterOnlyHierarchy(document.getBoolean(QueryFilterWriteConverter.FILTER_ONLY_HIERARCHY, false));
+		ret.setInclude(document.getBoolean(QueryFilterWriteConverter.INCLUDE, false));
+		Object compact = document.get(QueryFilterWriteConverter.COMPACT_MEMBER_NAMES);
+		if (compact instanceof Binary) {
+			ret.setLevelMemberNames(CompactMemberNames.fromDeflatedBytes(((Binary) compact).getData()).decode());
+		} else if (compact instanceof byte[]) {
+			ret.setLevelMemberNames(CompactMemberNames.fromDeflatedBytes((byte[]) compact).decode());
+		} else {
+			@SuppressWarnings("unchecked")
+			List<String> names = (List<String>) document.get(QueryFilterWriteConverter.LEVEL_MEMBER_NAMES);
+			if (names != null) {
+				ret.setLevelMemberNames(names.toArray(new String[names.size()]));
+			}
+		}
+		return ret;
+	}
+
+}
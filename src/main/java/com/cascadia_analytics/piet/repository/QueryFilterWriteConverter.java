@@ -0,0 +1,70 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.WritingConverter;
+
+import com.cascadia_analytics.piet.domain.CompactMemberNames;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+
+/**
+ * Writes filters with large member lists with their names front-coded and deflated to binary (see CompactMemberNames) under
+ * compactMemberNames instead of levelMemberNames. Smaller filters are written exactly as the default mapping would.
+ */
+@WritingConverter
+public class QueryFilterWriteConverter implements Converter<QueryFilter, Document> {
+
+	static final String LEVEL_UNIQUE_NAME = "levelUniqueName";
+	static final String FILTER_ONLY_HIERARCHY = "filterOnlyHierarchy";
+	static final String INCLUDE = "include";
+	static final String LEVEL_MEMBER_NAMES = "levelMemberNames";
+	static final String COMPACT_MEMBER_NAMES = "compactMemberNames";
+
+	private final int minSize;
+
+	/**
+	 * @param minSize the number of member names at which to start compacting; zero disables compaction
+	 */
+	public QueryFilterWriteConverter(int minSize) {
+		this.minSize = minSize;
+	}
+
+	@Override
+	public Document convert(QueryFilter filter) {
+		Document ret = new Document();
+		if (filter.getLevelUniqueName() != null) {
+			ret.put(LEVEL_UNIQUE_NAME, filter.getLevelUniqueName());
+		}
+		ret.put(FILTER_ONLY_HIERARCHY, filter.isFilterOnlyHierarchy());
+		ret.put(INCLUDE, filter.isInclude());
+		String[] names = filter.getLevelMemberNames();
+		if (names != null) {
+			if (minSize > 0 && names.length >= minSize) {
+				ret.put(COMPACT_MEMBER_NAMES, new Binary(CompactMemberNames.encode(names).toDeflatedBytes()));
+			} else {
+				ret.put(LEVEL_MEMBER_NAMES, Arrays.asList(names));
+			}
+		}
+		return ret;
+	}
+
+}
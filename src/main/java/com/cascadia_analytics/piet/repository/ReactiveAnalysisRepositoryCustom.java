@@ -0,0 +1,75 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Set;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisSummaryPage;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterparts of the {@link AnalysisRepositoryCustom} operations used by the reactive handlers.
+ */
+public interface ReactiveAnalysisRepositoryCustom {
+
+	/**
+	 * @see AnalysisRepositoryCustom#findSummaries(AnalysisSummarySort, String, int)
+	 */
+	Mono<AnalysisSummaryPage> findSummaries(AnalysisSummarySort sort, String cursor, int limit);
+
+	/**
+	 * @see AnalysisRepositoryCustom#searchSummaries(String, DatasetRef, String, int)
+	 */
+	Mono<AnalysisSummaryPage> searchSummaries(String text, DatasetRef datasetRef, String cursor, int limit);
+
+	/**
+	 * @see AnalysisRepositoryCustom#findAndIncrementReadCounter(String)
+	 */
+	Mono<Analysis> findAndIncrementReadCounter(String id);
+
+	/**
+	 * @see AnalysisRepositoryCustom#findAllAndIncrementReadCounters(Collection)
+	 */
+	Flux<Analysis> findAllAndIncrementReadCounters(Collection<String> ids);
+
+	/**
+	 * @see AnalysisRepositoryCustom#saveExceptReadCounter(Analysis)
+	 */
+	Mono<Analysis> saveExceptReadCounter(Analysis analysis);
+
+	/**
+	 * @see AnalysisRepositoryCustom#patch(String, Long, AnalysisPatch, Date)
+	 */
+	Mono<Analysis> patch(String id, Long version, AnalysisPatch patch, Date now);
+
+	/**
+	 * @see AnalysisRepositoryCustom#bulkDelete(Collection)
+	 */
+	Mono<Set<String>> bulkDelete(Collection<String> ids);
+
+	/**
+	 * @see AnalysisRepositoryCustom#getCollectionFingerprint()
+	 */
+	Mono<String> getCollectionFingerprint();
+
+}
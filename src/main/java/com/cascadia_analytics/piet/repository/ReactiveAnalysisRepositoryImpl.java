@@ -0,0 +1,158 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisSummary;
+import com.cascadia_analytics.piet.domain.AnalysisSummaryPage;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public class ReactiveAnalysisRepositoryImpl implements ReactiveAnalysisRepositoryCustom {
+
+	private final ReactiveMongoTemplate mongoTemplate;
+
+	@Autowired
+	public ReactiveAnalysisRepositoryImpl(ReactiveMongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	@Override
+	public Mono<AnalysisSummaryPage> findSummaries(AnalysisSummarySort sort, String cursor, int limit) {
+		return Mono.fromCallable(() -> AnalysisRepositoryImpl.summaryQuery(sort, cursor, limit))
+				.flatMap(query -> mongoTemplate.find(query, AnalysisSummary.class, mongoTemplate.getCollectionName(Analysis.class)).collectList())
+				.map(summaries -> AnalysisRepositoryImpl.summaryPage(sort, summaries, limit));
+	}
+
+	@Override
+	public Mono<AnalysisSummaryPage> searchSummaries(String text, DatasetRef datasetRef, String cursor, int limit) {
+		return Mono.fromCallable(() -> cursor == null ? 0 : AnalysisRepositoryImpl.decodeOffsetCursor(cursor))
+				.flatMap(offset -> mongoTemplate.find(AnalysisRepositoryImpl.searchQuery(text, datasetRef, offset, limit), AnalysisSummary.class, mongoTemplate.getCollectionName(Analysis.class))
+						.collectList()
+						.map(summaries -> AnalysisRepositoryImpl.searchPage(summaries, offset, limit)));
+	}
+
+	@Override
+	public Mono<Analysis> findAndIncrementReadCounter(String id) {
+		return mongoTemplate.findAndModify(
+				Query.query(Criteria.where("_id").is(id)),
+				new Update().inc("readCounter", 1),
+				FindAndModifyOptions.options().returnNew(true),
+				Analysis.class);
+	}
+
+	@Override
+	public Flux<Analysis> findAllAndIncrementReadCounters(Collection<String> ids) {
+		Query query = Query.query(Criteria.where("_id").in(ids));
+		return mongoTemplate.updateMulti(query, new Update().inc("readCounter", 1), Analysis.class)
+				.thenMany(mongoTemplate.find(query, Analysis.class));
+	}
+
+	@Override
+	public Mono<Analysis> saveExceptReadCounter(Analysis analysis) {
+		return Mono.defer(() -> {
+			Long storedVersion = AnalysisRepositoryImpl.assignIdAndVersion(analysis);
+			if (storedVersion == null) {
+				return mongoTemplate.insert(AnalysisRepositoryImpl.insertDocument(analysis, mongoTemplate.getConverter()), mongoTemplate.getCollectionName(Analysis.class))
+						.thenReturn(analysis);
+			}
+			Update update = AnalysisRepositoryImpl.saveUpdate(analysis, mongoTemplate.getConverter());
+			return mongoTemplate.updateFirst(AnalysisRepositoryImpl.versionQuery(analysis.getId(), storedVersion), update, Analysis.class)
+					.flatMap(result -> result.getMatchedCount() == 0 ?
+							Mono.error(new OptimisticLockingFailureException("Analysis " + analysis.getId() + " does not have version " + storedVersion)) :
+							Mono.just(analysis));
+		})
+				.onErrorMap(DuplicateKeyException.class, e -> new OptimisticLockingFailureException("Analysis " + analysis.getId() + " was modified by another client", e));
+	}
+
+	@Override
+	public Mono<Analysis> patch(String id, Long version, AnalysisPatch patch, Date now) {
+		Mono<Long> currentVersion = version != null ? Mono.just(version) : findVersion(id);
+		return currentVersion.flatMap(v -> targetedPatch(id, v, patch, now)
+				// either the patch can't be targeted, or it addresses something that isn't there (or the version has changed)
+				.switchIfEmpty(Mono.defer(() -> mongoTemplate.findOne(AnalysisRepositoryImpl.versionQuery(id, v), Analysis.class)
+						.flatMap(current -> {
+							Analysis patched = patch.applyTo(current);
+							patched.setUpdateDateTime(now);
+							return saveExceptReadCounter(patched);
+						})
+						.onErrorResume(OptimisticLockingFailureException.class, e -> Mono.empty()))));
+	}
+
+	private Mono<Analysis> targetedPatch(String id, long version, AnalysisPatch patch, Date now) {
+		AnalysisPatch.TargetedUpdate targeted = patch.targeted();
+		if (targeted == null) {
+			return Mono.empty();
+		}
+		Mono<Document> keys = Mono.just(new Document());
+		if (!targeted.getKeyFields().isEmpty()) {
+			Query keyQuery = AnalysisRepositoryImpl.versionQuery(id, version);
+			targeted.getKeyFields().forEach(keyQuery.fields()::include);
+			keys = mongoTemplate.findOne(keyQuery, Document.class, mongoTemplate.getCollectionName(Analysis.class));
+		}
+		return keys.flatMap(k -> Mono.justOrEmpty(targeted.toUpdate(k, mongoTemplate.getConverter())))
+				.flatMap(update -> {
+					Query query = targeted.guard(AnalysisRepositoryImpl.versionQuery(id, version));
+					query.fields().include("_id").include("version");
+					return mongoTemplate.findAndModify(query, update.inc("version", 1).set("updateDateTime", now),
+							FindAndModifyOptions.options().returnNew(true), Analysis.class);
+				});
+	}
+
+	private Mono<Long> findVersion(String id) {
+		Query query = Query.query(Criteria.where("_id").is(id));
+		query.fields().include("_id").include("version");
+		return mongoTemplate.findOne(query, Analysis.class).map(AnalysisRepositoryCustom::storedVersion);
+	}
+
+	@Override
+	public Mono<Set<String>> bulkDelete(Collection<String> ids) {
+		Query query = Query.query(Criteria.where("_id").in(ids));
+		query.fields().include("_id");
+		return mongoTemplate.find(query, Analysis.class).map(Analysis::getId).collect(Collectors.toSet())
+				.flatMap(found -> found.isEmpty() ? Mono.just(found) :
+					mongoTemplate.remove(Query.query(Criteria.where("_id").in(found)), Analysis.class).thenReturn(found))
+				.defaultIfEmpty(Collections.emptySet());
+	}
+
+	@Override
+	public Mono<String> getCollectionFingerprint() {
+		return mongoTemplate.aggregate(AnalysisRepositoryImpl.FINGERPRINT_AGGREGATION, Analysis.class, Document.class)
+				.next()
+				.map(AnalysisRepositoryImpl::fingerprint)
+				.defaultIfEmpty(AnalysisRepositoryImpl.fingerprint(null));
+	}
+
+}
@@ -0,0 +1,40 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+
+public interface ResultSnapshotRepository extends MongoRepository<ResultSnapshot, String>, ResultSnapshotRepositoryCustom {
+
+	List<ResultSnapshot> findByNextRefreshDateTimeLessThanEqual(Date dateTime);
+
+	List<ResultSnapshot> findByConnectionNameAndDataVersionNot(String connectionName, String dataVersion);
+
+	List<ResultSnapshot> findByDataVersionNot(String dataVersion);
+
+	/**
+	 * Delete the snapshots of many analyses with a single remove.
+	 * @return the number of snapshots deleted
+	 */
+	long deleteByIdIn(Collection<String> analysisIds);
+
+}
@@ -0,0 +1,34 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Date;
+
+/**
+ * Operations on the result snapshot collection that go beyond what Spring Data derives from {@link ResultSnapshotRepository}.
+ */
+public interface ResultSnapshotRepositoryCustom {
+
+	/**
+	 * Reschedule the refresh of a snapshot, without rewriting its result, provided it hasn't been retaken since it was read.
+	 * @param analysisId the id of the snapshot's analysis
+	 * @param createDateTime when the snapshot that was read was taken
+	 * @param nextRefreshDateTime when to refresh it next
+	 * @return whether the snapshot was rescheduled (false if it has been retaken or deleted)
+	 */
+	boolean updateNextRefreshDateTime(String analysisId, Date createDateTime, Date nextRefreshDateTime);
+
+}
@@ -0,0 +1,45 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import java.util.Date;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+
+public class ResultSnapshotRepositoryImpl implements ResultSnapshotRepositoryCustom {
+
+	private final MongoTemplate mongoTemplate;
+
+	@Autowired
+	public ResultSnapshotRepositoryImpl(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	@Override
+	public boolean updateNextRefreshDateTime(String analysisId, Date createDateTime, Date nextRefreshDateTime) {
+		return mongoTemplate.updateFirst(
+				Query.query(Criteria.where("_id").is(analysisId).and("createDateTime").is(createDateTime)),
+				new Update().set("nextRefreshDateTime", nextRefreshDateTime),
+				ResultSnapshot.class).getMatchedCount() > 0;
+	}
+
+}
@@ -0,0 +1,95 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.client.RestTemplate;
+
+import com.cascadia_analytics.piet.PietApplication;
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.IdContainer;
+
+/**
+ * Saving and listing analyses over HTTP, against the full application running on embedded Mongo (started by Boot
+ * because flapdoodle is on the test classpath, just as in PietRestControllerTest).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AnalysisEndToEndBenchmark {
+
+	@Param({ "100" })
+	private int analysisCount;
+
+	@Param({ "10", "1000" })
+	private int membersPerFilter;
+
+	private ConfigurableApplicationContext context;
+	private RestTemplate restTemplate;
+	private String baseUrl;
+	private Analysis analysis;
+
+	@Setup
+	public void setup() {
+		context = new SpringApplicationBuilder(PietApplication.class)
+				.properties("server.port=0", "logging.level.root=warn")
+				.run();
+		baseUrl = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+		restTemplate = new RestTemplateBuilder().rootUri(baseUrl).build();
+		for (int i = 0; i < analysisCount; i++) {
+			analysis = AnalysisFixtures.analysis(4, 4, membersPerFilter);
+			IdContainer idContainer = restTemplate.postForObject("/analysis", analysis, IdContainer.class);
+			analysis.setId(idContainer.getId());
+			analysis.setVersion(idContainer.getVersion());
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	/**
+	 * Updates the same analysis on every invocation, so the collection doesn't grow over the run.
+	 */
+	@Benchmark
+	public IdContainer saveAnalysis() {
+		IdContainer ret = restTemplate.postForObject("/analysis", analysis, IdContainer.class);
+		analysis.setVersion(ret.getVersion());
+		return ret;
+	}
+
+	@Benchmark
+	public Analysis[] getAnalyses() {
+		return restTemplate.getForObject("/analyses", Analysis[].class);
+	}
+
+}
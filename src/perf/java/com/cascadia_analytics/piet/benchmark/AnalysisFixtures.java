@@ -0,0 +1,94 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.benchmark;
+
+import java.util.Date;
+import java.util.UUID;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+
+/**
+ * Builds analyses of a given shape, so that every benchmark works on the same object graphs.
+ */
+final class AnalysisFixtures {
+
+	private AnalysisFixtures() {
+	}
+
+	static Analysis analysis(int levelCount, int filterCount, int membersPerFilter) {
+
+		Analysis analysis = new Analysis();
+		analysis.setName("Benchmark analysis " + UUID.randomUUID());
+		analysis.setDescription("Analysis with " + levelCount + " levels and " + filterCount + " filters of " + membersPerFilter + " members");
+		Date now = new Date();
+		analysis.setCreateDateTime(now);
+		analysis.setUpdateDateTime(now);
+
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId("benchmark");
+		datasetRef.setCube("Incidents");
+		analysis.setDatasetRef(datasetRef);
+
+		Query query = new Query();
+		query.setNonEmpty(true);
+		query.setFilterParentAggregates(true);
+
+		QueryMeasure[] measures = new QueryMeasure[3];
+		for (int i = 0; i < measures.length; i++) {
+			measures[i] = new QueryMeasure();
+			measures[i].setUniqueName("[Measures].[Measure " + i + "]");
+		}
+		query.setMeasures(measures);
+
+		QueryLevel[] levels = new QueryLevel[levelCount];
+		for (int i = 0; i < levelCount; i++) {
+			levels[i] = new QueryLevel();
+			levels[i].setUniqueName(levelUniqueName(i));
+			levels[i].setRowOrientation(i % 2 == 0);
+		}
+		query.setLevels(levels);
+
+		QueryFilter[] filters = new QueryFilter[filterCount];
+		for (int i = 0; i < filterCount; i++) {
+			filters[i] = new QueryFilter();
+			filters[i].setLevelUniqueName(levelUniqueName(i));
+			filters[i].setInclude(i % 2 == 0);
+			String[] memberNames = new String[membersPerFilter];
+			for (int m = 0; m < membersPerFilter; m++) {
+				// the UI stores bare member names; MdxBuilder qualifies them with the level unique name
+				memberNames[m] = "Member " + m;
+			}
+			filters[i].setLevelMemberNames(memberNames);
+		}
+		query.setFilters(filters);
+
+		analysis.setQuery(query);
+
+		return analysis;
+
+	}
+
+	private static String levelUniqueName(int i) {
+		return "[Dimension " + i + "].[Hierarchy " + i + "].[Level " + i + "]";
+	}
+
+}
@@ -0,0 +1,91 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+
+/**
+ * Jackson (de)serialization of analyses, as done by the controllers for every request and response body: plain json (as before
+ * piet.json.afterburner), json with Afterburner (the default), and Smile with Afterburner (for clients that accept it).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JacksonSerializationBenchmark {
+
+	@Param({ "4" })
+	private int levelCount;
+
+	@Param({ "4" })
+	private int filterCount;
+
+	@Param({ "10", "1000", "10000" })
+	private int membersPerFilter;
+
+	@Param({ "json", "json-afterburner", "smile-afterburner" })
+	private String format;
+
+	private ObjectWriter writer;
+	private ObjectReader reader;
+	private Analysis analysis;
+	private byte[] json;
+
+	@Setup
+	public void setup() throws Exception {
+		// same defaults Boot applies to the mapper it gives the controllers
+		Jackson2ObjectMapperBuilder builder = Jackson2ObjectMapperBuilder.json();
+		if (format.endsWith("-afterburner")) {
+			builder.modulesToInstall(new AfterburnerModule());
+		}
+		if (format.startsWith("smile")) {
+			builder.factory(new SmileFactory());
+		}
+		ObjectMapper objectMapper = builder.build();
+		writer = objectMapper.writerFor(Analysis.class);
+		reader = objectMapper.readerFor(Analysis.class);
+		analysis = AnalysisFixtures.analysis(levelCount, filterCount, membersPerFilter);
+		json = writer.writeValueAsBytes(analysis);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws Exception {
+		return writer.writeValueAsBytes(analysis);
+	}
+
+	@Benchmark
+	public Analysis deserialize() throws Exception {
+		return reader.readValue(json);
+	}
+
+}
@@ -0,0 +1,125 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.benchmark;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Random;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.cascadia_analytics.piet.domain.CompactMemberNames;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.repository.MongoConversionsConfiguration;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares the stored (BSON) and wire (JSON) size of filters with plain and compact member names, for a few typical shapes of
+ * member list. Run with mvn -Pperf test-compile exec:exec@member-names-size. Timings of the conversions are in MongoMappingBenchmark.
+ */
+public class MemberNamesSizeComparison {
+
+	private static final int[] SIZES = { 10, 100, 1000, 10000 };
+
+	public static void main(String[] args) throws Exception {
+
+		ObjectMapper objectMapper = new ObjectMapper();
+		MappingMongoConverter plainConverter = converter(0);
+		MappingMongoConverter compactConverter = converter(1);
+		Random random = new Random(42);
+
+		System.out.println(String.format("%-10s %7s %12s %12s %7s %12s %12s %7s", "members", "count", "bson plain", "bson compact", "ratio",
+				"json plain", "json compact", "ratio"));
+		for (String shape : new String[] { "numbered", "dates", "codes", "words" }) {
+			for (int size : SIZES) {
+				String[] names = names(shape, size, random);
+				long bsonPlain = bsonSize(plainConverter, names);
+				long bsonCompact = bsonSize(compactConverter, names);
+				long jsonPlain = objectMapper.writeValueAsBytes(names).length;
+				long jsonCompact = objectMapper.writeValueAsBytes(CompactMemberNames.encode(names)).length;
+				System.out.println(String.format("%-10s %7d %12d %12d %7.2f %12d %12d %7.2f", shape, size, bsonPlain, bsonCompact,
+						(double) bsonCompact / bsonPlain, jsonPlain, jsonCompact, (double) jsonCompact / jsonPlain));
+			}
+		}
+
+	}
+
+	private static String[] names(String shape, int size, Random random) {
+		String[] ret = new String[size];
+		LocalDate date = LocalDate.of(2010, 1, 1);
+		for (int i = 0; i < size; i++) {
+			switch (shape) {
+			case "numbered":
+				ret[i] = "Member " + i;
+				break;
+			case "dates":
+				ret[i] = date.plusDays(i).toString();
+				break;
+			case "codes":
+				ret[i] = String.format("%06d", random.nextInt(1000000));
+				break;
+			default:
+				ret[i] = word(random) + " " + word(random);
+			}
+		}
+		return ret;
+	}
+
+	private static String word(Random random) {
+		char[] ret = new char[3 + random.nextInt(8)];
+		ret[0] = (char) ('A' + random.nextInt(26));
+		for (int i = 1; i < ret.length; i++) {
+			ret[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(ret);
+	}
+
+	private static long bsonSize(MappingMongoConverter converter, String[] names) {
+		QueryFilter filter = new QueryFilter();
+		filter.setLevelUniqueName("[Dimension].[Hierarchy].[Level]");
+		filter.setInclude(true);
+		filter.setLevelMemberNames(names);
+		Query query = new Query();
+		query.setFilters(new QueryFilter[] { filter });
+		Document document = new Document();
+		converter.write(query, document);
+		return new RawBsonDocument(document, new DocumentCodec()).getByteBuffer().remaining();
+	}
+
+	private static MappingMongoConverter converter(int compactMinSize) {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setStorageCompactMemberNamesMinSize(compactMinSize);
+		MongoCustomConversions conversions = new MongoConversionsConfiguration().mongoCustomConversions(pietConfiguration);
+		MongoMappingContext mappingContext = new MongoMappingContext();
+		mappingContext.setInitialEntitySet(Collections.singleton(Query.class));
+		mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+		mappingContext.afterPropertiesSet();
+		MappingMongoConverter ret = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+		ret.setCustomConversions(conversions);
+		ret.afterPropertiesSet();
+		return ret;
+	}
+
+}
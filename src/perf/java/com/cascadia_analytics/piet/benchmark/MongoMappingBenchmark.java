@@ -0,0 +1,93 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.benchmark;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.repository.MongoConversionsConfiguration;
+
+/**
+ * Mapping of analyses to and from BSON documents, which happens on every repository read and write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MongoMappingBenchmark {
+
+	@Param({ "4" })
+	private int levelCount;
+
+	@Param({ "4" })
+	private int filterCount;
+
+	@Param({ "10", "1000", "10000" })
+	private int membersPerFilter;
+
+	// piet.storage.compactMemberNames.minSize; 0 stores plain arrays
+	@Param({ "0", "100" })
+	private int compactMinSize;
+
+	private MappingMongoConverter converter;
+	private Analysis analysis;
+	private Document document;
+
+	@Setup
+	public void setup() {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setStorageCompactMemberNamesMinSize(compactMinSize);
+		MongoCustomConversions conversions = new MongoConversionsConfiguration().mongoCustomConversions(pietConfiguration);
+		MongoMappingContext mappingContext = new MongoMappingContext();
+		mappingContext.setInitialEntitySet(Collections.singleton(Analysis.class));
+		mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+		mappingContext.afterPropertiesSet();
+		converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+		converter.setCustomConversions(conversions);
+		converter.afterPropertiesSet();
+		analysis = AnalysisFixtures.analysis(levelCount, filterCount, membersPerFilter);
+		document = write();
+	}
+
+	@Benchmark
+	public Document write() {
+		Document ret = new Document();
+		converter.write(analysis, ret);
+		return ret;
+	}
+
+	@Benchmark
+	public Analysis read() {
+		return converter.read(Analysis.class, document);
+	}
+
+}
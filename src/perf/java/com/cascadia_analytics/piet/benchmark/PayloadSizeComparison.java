@@ -0,0 +1,77 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Compares bytes on the wire of the representations the API offers for analyses and query results: json and Smile, each
+ * with and without gzip. Run with mvn -Pperf test-compile exec:exec@payload-size. Encoding times are in
+ * JacksonSerializationBenchmark and QueryResultEncodingBenchmark.
+ */
+public class PayloadSizeComparison {
+
+	public static void main(String[] args) throws Exception {
+
+		ObjectMapper jsonMapper = Jackson2ObjectMapperBuilder.json().build();
+		ObjectMapper smileMapper = Jackson2ObjectMapperBuilder.json().factory(new SmileFactory()).build();
+
+		System.out.println(String.format("%-34s %10s %10s %7s %10s %7s %10s %7s", "payload", "json", "json gzip", "ratio", "smile", "ratio",
+				"smile gzip", "ratio"));
+		for (int membersPerFilter : new int[] { 10, 1000, 10000 }) {
+			// a list of copies of one fixture would flatter gzip, so analyses are compared one at a time
+			Analysis analysis = AnalysisFixtures.analysis(4, 4, membersPerFilter);
+			printRow("analysis, " + membersPerFilter + " members/filter", jsonMapper.writeValueAsBytes(analysis), smileMapper.writeValueAsBytes(analysis));
+		}
+		JsonFactory jsonFactory = new JsonFactory();
+		SmileFactory smileFactory = new SmileFactory();
+		for (String result : new String[] { "mondrian-results-1m1r1c.json", "mondrian-results-2m2r2c.json", "mondrian-results-1m2x2hr0c.json" }) {
+			byte[] json = Files.readAllBytes(Paths.get(QueryResultEncodingBenchmark.RESULTS_DIRECTORY, result));
+			ByteArrayOutputStream smile = new ByteArrayOutputStream();
+			QueryResultEncodingBenchmark.transcode(jsonFactory, smileFactory, new String(json, StandardCharsets.UTF_8), smile);
+			printRow(result, json, smile.toByteArray());
+		}
+
+	}
+
+	private static void printRow(String name, byte[] json, byte[] smile) throws Exception {
+		long jsonGzip = gzippedSize(json);
+		long smileGzip = gzippedSize(smile);
+		System.out.println(String.format("%-34s %10d %10d %7.2f %10d %7.2f %10d %7.2f", name, json.length, jsonGzip, (double) jsonGzip / json.length,
+				smile.length, (double) smile.length / json.length, smileGzip, (double) smileGzip / json.length));
+	}
+
+	private static long gzippedSize(byte[] bytes) throws Exception {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		try (OutputStream out = new GZIPOutputStream(ret)) {
+			out.write(bytes);
+		}
+		return ret.size();
+	}
+
+}
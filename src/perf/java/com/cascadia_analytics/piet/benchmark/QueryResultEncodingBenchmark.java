@@ -0,0 +1,107 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * CPU cost of encoding a mondrian-rest result for the response: as is (json), gzipped by the server's response compression,
+ * transcoded to Smile, and both. Results are the recorded ones the ui tests use. Sizes are in PayloadSizeComparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryResultEncodingBenchmark {
+
+	static final String RESULTS_DIRECTORY = "ui/test/_data";
+
+	@Param({ "mondrian-results-1m1r1c.json", "mondrian-results-2m2r2c.json", "mondrian-results-1m2x2hr0c.json" })
+	private String result;
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private final SmileFactory smileFactory = new SmileFactory();
+	private String json;
+
+	@Setup
+	public void setup() throws Exception {
+		json = new String(Files.readAllBytes(Paths.get(RESULTS_DIRECTORY, result)), StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] json() {
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] jsonGzip() throws Exception {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		try (OutputStream out = new GZIPOutputStream(ret)) {
+			out.write(json.getBytes(StandardCharsets.UTF_8));
+		}
+		return ret.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] smile() throws Exception {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		transcode(jsonFactory, smileFactory, json, ret);
+		return ret.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] smileGzip() throws Exception {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		try (OutputStream out = new GZIPOutputStream(ret)) {
+			transcode(jsonFactory, smileFactory, json, out);
+		}
+		return ret.toByteArray();
+	}
+
+	/**
+	 * As the controllers do for clients that accept Smile.
+	 */
+	static void transcode(JsonFactory jsonFactory, SmileFactory smileFactory, String json, OutputStream outputStream) throws IOException {
+		try (JsonParser parser = jsonFactory.createParser(json);
+				JsonGenerator generator = smileFactory.createGenerator(outputStream)) {
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			while (parser.nextToken() != null) {
+				generator.copyCurrentStructure(parser);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP proxy that holds each chunk coming back from the target for a fixed delay before passing it on, to stand in for a
+ * database that is far away or slow. Mongo connections carry one request at a time, so each round trip pays the delay
+ * about once.
+ */
+public class LatencyProxy implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ServerSocket serverSocket;
+	private final InetSocketAddress target;
+	private final long delayMillis;
+
+	public LatencyProxy(InetSocketAddress target, long delayMillis) throws IOException {
+		this.serverSocket = new ServerSocket(0);
+		this.target = target;
+		this.delayMillis = delayMillis;
+		Thread acceptor = new Thread(this::accept, "latency-proxy-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket client = serverSocket.accept();
+				Socket server = new Socket(target.getAddress(), target.getPort());
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				pump(client, server, 0);
+				pump(server, client, delayMillis);
+			} catch (IOException e) {
+				// closed, or the target refused; either way the client sees its connection drop
+			}
+		}
+	}
+
+	private static void pump(Socket from, Socket to, long delayMillis) {
+		Thread t = new Thread(() -> {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					if (delayMillis > 0) {
+						TimeUnit.MILLISECONDS.sleep(delayMillis);
+					}
+					out.write(buffer, 0, n);
+					out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				// connection closed
+			} finally {
+				closeQuietly(from);
+				closeQuietly(to);
+			}
+		}, "latency-proxy-pump");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+}
@@ -0,0 +1,365 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.client.RestTemplate;
+
+import com.cascadia_analytics.piet.PietApplication;
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.BatchItemResult;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.IdContainer;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+
+/**
+ * Replays a mix of dashboard traffic (browse, open, save, delete) against the REST API at a fixed rate, and reports
+ * throughput and latency percentiles per operation. Run with mvn -Pperf test-compile exec:exec@loadtest.
+ *
+ * <p>Each client sends requests on a fixed schedule, and latency is measured from when a request was scheduled to be sent
+ * rather than when it actually was, so a slow server shows up as latency instead of as a lower request rate.</p>
+ *
+ * <p>Settings are system properties (see the constants below). Unless piet.loadtest.url is set, the application is started
+ * in-process on embedded Mongo and seeded with synthetic analyses first.</p>
+ */
+public class LoadTest {
+
+	private static final String URL = "piet.loadtest.url";
+	private static final String ANALYSES = "piet.loadtest.analyses";
+	private static final String CLIENTS = "piet.loadtest.clients";
+	private static final String RATE = "piet.loadtest.rate";
+	private static final String WARMUP_SECONDS = "piet.loadtest.warmupSeconds";
+	private static final String DURATION_SECONDS = "piet.loadtest.durationSeconds";
+	private static final String MIX = "piet.loadtest.mix";
+	private static final String SEED = "piet.loadtest.seed";
+	private static final String REPORT_DIRECTORY = "piet.loadtest.reportDirectory";
+
+	private static final int SEED_BATCH_SIZE = 500;
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	enum Operation {
+		BROWSE, OPEN, SAVE, DELETE
+	}
+
+	private final RestTemplate restTemplate;
+	private final int clients;
+	private final double rate;
+	private final Operation[] mix;
+	private final AnalysisIds ids;
+	private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+	private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+
+	private LoadTest(RestTemplate restTemplate, int clients, double rate, Operation[] mix, AnalysisIds ids) {
+		this.restTemplate = restTemplate;
+		this.clients = clients;
+		this.rate = rate;
+		this.mix = mix;
+		this.ids = ids;
+		for (Operation operation : Operation.values()) {
+			recorders.put(operation, new Recorder(HIGHEST_TRACKABLE_NANOS, 3));
+			errors.put(operation, new AtomicLong());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int analyses = Integer.getInteger(ANALYSES, 1000);
+		int clients = Integer.getInteger(CLIENTS, 32);
+		double rate = Double.parseDouble(System.getProperty(RATE, "200"));
+		int warmupSeconds = Integer.getInteger(WARMUP_SECONDS, 15);
+		int durationSeconds = Integer.getInteger(DURATION_SECONDS, 60);
+		Operation[] mix = parseMix(System.getProperty(MIX, "browse=10,open=70,save=10,delete=10"));
+		Random random = new Random(Long.getLong(SEED, 42));
+
+		// RestTemplate logs every request at debug, which is the default level until Boot configures logging (if it ever does)
+		LoggingSystem loggingSystem = LoggingSystem.get(LoadTest.class.getClassLoader());
+		loggingSystem.beforeInitialize();
+		loggingSystem.setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.WARN);
+
+		// the JDK client keeps only 5 idle connections per host by default
+		System.setProperty("http.maxConnections", String.valueOf(clients));
+
+		ConfigurableApplicationContext context = null;
+		String url = System.getProperty(URL);
+		if (url == null) {
+			context = new SpringApplicationBuilder(PietApplication.class)
+					.properties("server.port=0", "logging.level.root=warn")
+					.run(args);
+			url = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+		}
+
+		try {
+
+			RestTemplate restTemplate = new RestTemplateBuilder().rootUri(url).build();
+
+			System.out.println("Seeding " + analyses + " analyses at " + url);
+			AnalysisIds ids = new AnalysisIds();
+			for (int i = 0; i < analyses; i += SEED_BATCH_SIZE) {
+				Analysis[] batch = new Analysis[Math.min(SEED_BATCH_SIZE, analyses - i)];
+				for (int b = 0; b < batch.length; b++) {
+					batch[b] = syntheticAnalysis(random);
+				}
+				for (BatchItemResult result : restTemplate.postForObject("/analyses:batchSave", batch, BatchItemResult[].class)) {
+					if (BatchItemResult.STATUS_OK.equals(result.getStatus())) {
+						ids.add(result.getId());
+					}
+				}
+			}
+
+			LoadTest loadTest = new LoadTest(restTemplate, clients, rate, mix, ids);
+			System.out.println("Warming up for " + warmupSeconds + "s");
+			loadTest.run(warmupSeconds);
+			loadTest.reset();
+			System.out.println("Running " + clients + " clients at " + rate + " requests/s for " + durationSeconds + "s");
+			loadTest.run(durationSeconds);
+			loadTest.report(durationSeconds, new File(System.getProperty(REPORT_DIRECTORY, "target/loadtest")));
+
+		} finally {
+			if (context != null) {
+				context.close();
+			}
+		}
+
+	}
+
+	private void run(int seconds) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) * clients / rate);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		for (int c = 0; c < clients; c++) {
+			// stagger the clients so their requests are spread evenly over each interval
+			long first = start + intervalNanos * c / clients;
+			executor.execute(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (long scheduled = first; scheduled < end; scheduled += intervalNanos) {
+					long wait = scheduled - System.nanoTime();
+					if (wait > 0) {
+						sleepNanos(wait);
+					}
+					Operation operation = mix[random.nextInt(mix.length)];
+					boolean sent = true;
+					try {
+						sent = execute(operation, random);
+					} catch (Exception e) {
+						errors.get(operation).incrementAndGet();
+					}
+					if (sent) {
+						recorders.get(operation).recordValue(Math.min(System.nanoTime() - scheduled, HIGHEST_TRACKABLE_NANOS));
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return false if there was no analysis to open or delete, so nothing was sent
+	 */
+	private boolean execute(Operation operation, Random random) {
+		switch (operation) {
+		case BROWSE:
+			restTemplate.getForObject("/analyses", Analysis[].class);
+			return true;
+		case OPEN:
+			String id = ids.random(random);
+			if (id == null) {
+				return false;
+			}
+			restTemplate.getForObject("/analysis?id={id}", Analysis.class, id);
+			return true;
+		case SAVE:
+			ids.add(restTemplate.postForObject("/analysis", syntheticAnalysis(random), IdContainer.class).getId());
+			return true;
+		case DELETE:
+			String removed = ids.remove(random);
+			if (removed == null) {
+				return false;
+			}
+			restTemplate.delete("/analysis/{id}", removed);
+			return true;
+		default:
+			throw new IllegalArgumentException("Unknown operation " + operation);
+		}
+	}
+
+	private void reset() {
+		for (Operation operation : Operation.values()) {
+			recorders.get(operation).getIntervalHistogram();
+			errors.get(operation).set(0);
+		}
+	}
+
+	private void report(int seconds, File reportDirectory) throws Exception {
+		reportDirectory.mkdirs();
+		Histogram total = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+		long totalErrors = 0;
+		System.out.println(String.format("%-8s %10s %8s %10s %10s %10s %10s %10s", "op", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Operation operation : Operation.values()) {
+			Histogram histogram = recorders.get(operation).getIntervalHistogram();
+			long operationErrors = errors.get(operation).get();
+			total.add(histogram);
+			totalErrors += operationErrors;
+			printRow(operation.name().toLowerCase(), histogram, operationErrors, seconds);
+			writeDistribution(histogram, new File(reportDirectory, operation.name().toLowerCase() + ".hgrm"));
+		}
+		printRow("total", total, totalErrors, seconds);
+		writeDistribution(total, new File(reportDirectory, "total.hgrm"));
+		System.out.println("Latency distributions written to " + reportDirectory);
+	}
+
+	private static void printRow(String name, Histogram histogram, long errors, int seconds) {
+		System.out.println(String.format("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f", name, histogram.getTotalCount(), errors,
+				(double) histogram.getTotalCount() / seconds,
+				millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+				millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue())));
+	}
+
+	private static void writeDistribution(Histogram histogram, File file) throws Exception {
+		try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
+			// scaled so the percentile distribution is in milliseconds
+			histogram.outputPercentileDistribution(out, 1_000_000.0);
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+
+	private static void sleepNanos(long nanos) {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Expands a mix like "browse=10,open=70" into an array that a uniform random index picks from with those weights.
+	 */
+	static Operation[] parseMix(String mix) {
+		List<Operation> ret = new ArrayList<>();
+		for (String entry : mix.split(",")) {
+			String[] pair = entry.trim().split("=");
+			Operation operation = Operation.valueOf(pair[0].trim().toUpperCase());
+			for (int i = 0; i < Integer.parseInt(pair[1].trim()); i++) {
+				ret.add(operation);
+			}
+		}
+		if (ret.isEmpty()) {
+			throw new IllegalArgumentException("Operation mix must have at least one weighted operation: " + mix);
+		}
+		return ret.toArray(new Operation[ret.size()]);
+	}
+
+	static Analysis syntheticAnalysis(Random random) {
+
+		Analysis analysis = new Analysis();
+		analysis.setName("Load test analysis " + Long.toHexString(random.nextLong()));
+		analysis.setDescription("Synthetic analysis for load testing");
+
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId("loadtest");
+		datasetRef.setCube("Cube " + random.nextInt(5));
+		analysis.setDatasetRef(datasetRef);
+
+		Query query = new Query();
+		query.setNonEmpty(true);
+		QueryMeasure measure = new QueryMeasure();
+		measure.setUniqueName("[Measures].[Count]");
+		query.setMeasures(new QueryMeasure[] { measure });
+
+		QueryLevel[] levels = new QueryLevel[1 + random.nextInt(3)];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = new QueryLevel();
+			levels[i].setUniqueName("[Dimension " + i + "].[Level " + i + "]");
+			levels[i].setRowOrientation(i == 0);
+		}
+		query.setLevels(levels);
+
+		// most dashboards filter on a handful of members, a few on hundreds
+		QueryFilter filter = new QueryFilter();
+		filter.setLevelUniqueName(levels[0].getUniqueName());
+		filter.setInclude(true);
+		String[] memberNames = new String[random.nextInt(10) == 0 ? 200 + random.nextInt(800) : 1 + random.nextInt(20)];
+		for (int m = 0; m < memberNames.length; m++) {
+			memberNames[m] = levels[0].getUniqueName() + ".&[Member " + m + "]";
+		}
+		filter.setLevelMemberNames(memberNames);
+		query.setFilters(new QueryFilter[] { filter });
+
+		analysis.setQuery(query);
+
+		return analysis;
+
+	}
+
+	/**
+	 * The ids of analyses known to exist, shared by the clients so opens and deletes hit real analyses.
+	 */
+	private static final class AnalysisIds {
+
+		private final List<String> ids = new ArrayList<>();
+
+		synchronized void add(String id) {
+			ids.add(id);
+		}
+
+		synchronized String random(Random random) {
+			return ids.isEmpty() ? null : ids.get(random.nextInt(ids.size()));
+		}
+
+		synchronized String remove(Random random) {
+			if (ids.isEmpty()) {
+				return null;
+			}
+			// swap with the last element so removal is constant time
+			int i = random.nextInt(ids.size());
+			String ret = ids.get(i);
+			ids.set(i, ids.get(ids.size() - 1));
+			ids.remove(ids.size() - 1);
+			return ret;
+		}
+
+	}
+
+}
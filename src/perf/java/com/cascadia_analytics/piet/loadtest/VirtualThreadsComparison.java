@@ -0,0 +1,176 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.loadtest;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.client.RestTemplate;
+
+import com.cascadia_analytics.piet.PietApplication;
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.BatchItemResult;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+
+/**
+ * Compares throughput and latency of opening analyses with platform and virtual request threads (piet.threads.virtual)
+ * when mongo is slow to answer. Run on Java 21+ with mvn -Pperf test-compile exec:exec@virtual-threads.
+ *
+ * <p>Embedded mongo is put behind a {@link LatencyProxy}, the analysis near cache is turned off so every open goes to mongo,
+ * and the mongo pool is made large enough that Tomcat's worker pool (server.tomcat.max-threads, 200 by default) is what
+ * limits platform threads. Each client sends its next request as soon as the last one returns.</p>
+ */
+public class VirtualThreadsComparison {
+
+	private static final String MONGO_LATENCY_MILLIS = "piet.vtbench.mongoLatencyMillis";
+	private static final String CLIENTS = "piet.vtbench.clients";
+	private static final String ANALYSES = "piet.vtbench.analyses";
+	private static final String MONGO_POOL_SIZE = "piet.vtbench.mongoPoolSize";
+	private static final String WARMUP_SECONDS = "piet.vtbench.warmupSeconds";
+	private static final String DURATION_SECONDS = "piet.vtbench.durationSeconds";
+
+	private static final String AUTOCONFIGURE_EXCLUDE = String.join(",",
+			"org.springframework.boot.autoconfigure.mongo.MongoReactiveAutoConfiguration",
+			"org.springframework.boot.autoconfigure.data.mongo.MongoReactiveDataAutoConfiguration",
+			"org.springframework.boot.autoconfigure.data.mongo.MongoReactiveRepositoriesAutoConfiguration",
+			"org.springframework.boot.autoconfigure.mongo.embedded.EmbeddedMongoAutoConfiguration");
+
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	public static void main(String[] args) throws Exception {
+
+		int latencyMillis = Integer.getInteger(MONGO_LATENCY_MILLIS, 20);
+		int clients = Integer.getInteger(CLIENTS, 1000);
+		int analyses = Integer.getInteger(ANALYSES, 200);
+		int poolSize = Integer.getInteger(MONGO_POOL_SIZE, 1000);
+		int warmupSeconds = Integer.getInteger(WARMUP_SECONDS, 10);
+		int durationSeconds = Integer.getInteger(DURATION_SECONDS, 30);
+
+		LoggingSystem loggingSystem = LoggingSystem.get(VirtualThreadsComparison.class.getClassLoader());
+		loggingSystem.beforeInitialize();
+		loggingSystem.setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.WARN);
+		System.setProperty("http.maxConnections", String.valueOf(clients));
+
+		int mongoPort = Network.getFreeServerPort();
+		MongodExecutable mongodExecutable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+				.version(Version.Main.V4_0)
+				.net(new Net("localhost", mongoPort, Network.localhostIsIPv6()))
+				.build());
+		mongodExecutable.start();
+
+		try (LatencyProxy proxy = new LatencyProxy(new InetSocketAddress("localhost", mongoPort), latencyMillis)) {
+			String mongoUri = "mongodb://localhost:" + proxy.getPort() + "/piet?maxPoolSize=" + poolSize + "&waitQueueMultiple=" + clients;
+			System.out.println(String.format("%d clients, %dms mongo latency, %d analyses", clients, latencyMillis, analyses));
+			System.out.println(String.format("%-9s %10s %8s %10s %10s %10s %10s", "threads", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms"));
+			for (boolean virtual : new boolean[] { false, true }) {
+				ConfigurableApplicationContext context = new SpringApplicationBuilder(PietApplication.class)
+						.properties("server.port=0", "logging.level.root=warn")
+						// passed as arguments so they win over application.properties, whose exclude list would otherwise
+						// replace this one and let Boot's embedded mongo take over from the uri
+						.run("--spring.autoconfigure.exclude=" + AUTOCONFIGURE_EXCLUDE,
+								"--spring.data.mongodb.uri=" + mongoUri,
+								"--piet.analysis.cache.enabled=false",
+								"--piet.threads.virtual=" + virtual);
+				try {
+					if (virtual && !context.containsBean("virtualThreadsTomcatCustomizer")) {
+						System.out.println("virtual   (needs Java 21 or later, running " + System.getProperty("java.version") + ")");
+						continue;
+					}
+					String url = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+					RestTemplate restTemplate = new RestTemplateBuilder().rootUri(url).build();
+					List<String> ids = seed(restTemplate, analyses);
+					Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+					AtomicLong errors = new AtomicLong();
+					run(restTemplate, ids, clients, warmupSeconds, recorder, errors);
+					recorder.getIntervalHistogram();
+					errors.set(0);
+					run(restTemplate, ids, clients, durationSeconds, recorder, errors);
+					Histogram histogram = recorder.getIntervalHistogram();
+					System.out.println(String.format("%-9s %10d %8d %10.1f %10.2f %10.2f %10.2f", virtual ? "virtual" : "platform",
+							histogram.getTotalCount(), errors.get(), (double) histogram.getTotalCount() / durationSeconds,
+							millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)), millis(histogram.getMaxValue())));
+				} finally {
+					context.close();
+				}
+			}
+		} finally {
+			mongodExecutable.stop();
+		}
+
+	}
+
+	private static List<String> seed(RestTemplate restTemplate, int analyses) {
+		Random random = new Random(42);
+		Analysis[] batch = new Analysis[analyses];
+		for (int i = 0; i < analyses; i++) {
+			batch[i] = LoadTest.syntheticAnalysis(random);
+		}
+		List<String> ret = new ArrayList<>();
+		for (BatchItemResult result : restTemplate.postForObject("/analyses:batchSave", batch, BatchItemResult[].class)) {
+			if (BatchItemResult.STATUS_OK.equals(result.getStatus())) {
+				ret.add(result.getId());
+			}
+		}
+		return ret;
+	}
+
+	private static void run(RestTemplate restTemplate, List<String> ids, int clients, int seconds, Recorder recorder, AtomicLong errors) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		for (int c = 0; c < clients; c++) {
+			executor.execute(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < end) {
+					long start = System.nanoTime();
+					try {
+						restTemplate.getForObject("/analysis?id={id}", Analysis.class, ids.get(random.nextInt(ids.size())));
+						recorder.recordValue(Math.min(System.nanoTime() - start, HIGHEST_TRACKABLE_NANOS));
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+
+}
@@ -0,0 +1,66 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+public class AnalysisImporterTest {
+
+	@Test
+	public void testMalformedAnalysisWithoutLocation() throws Exception {
+		// a failure raised by a deserializer, rather than the parser, has no location
+		ObjectMapper objectMapper = new ObjectMapper().registerModule(new SimpleModule().addDeserializer(Analysis.class, new JsonDeserializer<Analysis>() {
+			@Override
+			public Analysis deserialize(JsonParser p, DeserializationContext ctxt) throws JsonMappingException {
+				throw new JsonMappingException(null, "Unusable analysis");
+			}
+		}));
+		AnalysisImporter analysisImporter = new AnalysisImporter();
+		ReflectionTestUtils.setField(analysisImporter, "objectMapper", objectMapper);
+		ResponseStatusException e = assertThrows(ResponseStatusException.class,
+				() -> analysisImporter.importAnalyses(new ByteArrayInputStream("{}\n".getBytes(StandardCharsets.UTF_8))));
+		assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+		assertTrue(e.getReason().startsWith("Malformed analysis at unknown line"));
+	}
+
+	@Test
+	public void testMalformedAnalysisLine() throws Exception {
+		AnalysisImporter analysisImporter = new AnalysisImporter();
+		ReflectionTestUtils.setField(analysisImporter, "objectMapper", new ObjectMapper());
+		ResponseStatusException e = assertThrows(ResponseStatusException.class,
+				() -> analysisImporter.importAnalyses(new ByteArrayInputStream("{\"name\":\n{".getBytes(StandardCharsets.UTF_8))));
+		assertTrue(e.getReason().startsWith("Malformed analysis at line 2"), e.getReason());
+	}
+
+}
@@ -18,6 +18,14 @@ package com.cascadia_analytics.piet;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,12 +36,26 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.util.StreamUtils;
 
 import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisImportReport;
+import com.cascadia_analytics.piet.domain.AnalysisSummaryPage;
+import com.cascadia_analytics.piet.domain.BatchItemResult;
 import com.cascadia_analytics.piet.domain.DatasetRef;
 import com.cascadia_analytics.piet.domain.IdContainer;
+import com.cascadia_analytics.piet.domain.IdsContainer;
 import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties={"piet.ui.logLevel=info"})
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD) // forces recreation of repository with fresh database after each test
@@ -57,6 +79,12 @@ public class PietRestControllerTest {
 		PietConfiguration pietConfiguration = restTemplate.getForObject("http://localhost:" + port + "/config", PietConfiguration.class);
 		assertEquals(PietConfiguration.DEFAULT_APPLICATION_TITLE, pietConfiguration.getApplicationTitle());
 		assertEquals("info", pietConfiguration.getLogLevel()); // note properties override on @SpringBootTest above
+		ResponseEntity<PietConfiguration> response = restTemplate.getForEntity("http://localhost:" + port + "/config", PietConfiguration.class);
+		assertEquals("max-age=" + PietConfiguration.DEFAULT_CONFIG_MAX_AGE_SECONDS, response.getHeaders().getCacheControl());
+		HttpHeaders headers = new HttpHeaders();
+		headers.setIfNoneMatch(response.getHeaders().getETag());
+		response = restTemplate.exchange("http://localhost:" + port + "/config", HttpMethod.GET, new HttpEntity<>(headers), PietConfiguration.class);
+		assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
 	}
 
 	@Test
@@ -65,6 +93,46 @@ public class PietRestControllerTest {
 	    assertEquals(analyses.length, 0);
 	}
 
+	@Test
+	public void testGetAnalysisSummaries() throws Exception {
+		for (int i=0;i < 3;i++) {
+			Analysis analysis = getDemoAnalysis();
+			analysis.setName("Analysis " + i);
+			restTemplate.postForObject("http://localhost:" + port + "/analysis", analysis, IdContainer.class);
+		}
+		AnalysisSummaryPage page = restTemplate.getForObject("http://localhost:" + port + "/analyses/summary?sort=NAME&limit=2", AnalysisSummaryPage.class);
+		assertEquals(2, page.getSummaries().length);
+		assertEquals("Analysis 0", page.getSummaries()[0].getName());
+		assertEquals("Analysis 1", page.getSummaries()[1].getName());
+		assertNotNull(page.getNextCursor());
+		page = restTemplate.getForObject("http://localhost:" + port + "/analyses/summary?sort=NAME&limit=2&cursor=" + page.getNextCursor(), AnalysisSummaryPage.class);
+		assertEquals(1, page.getSummaries().length);
+		assertEquals("Analysis 2", page.getSummaries()[0].getName());
+		assertNull(page.getNextCursor());
+	}
+
+	@Test
+	public void testSearchAnalyses() throws Exception {
+		Analysis a1 = getDemoAnalysis();
+		a1.setName("Store sales by region");
+		restTemplate.postForObject("http://localhost:" + port + "/analysis", a1, IdContainer.class);
+		Analysis a2 = getDemoAnalysis();
+		a2.setName("Warehouse costs");
+		a2.setDescription("Costs of warehouses, and of stores");
+		restTemplate.postForObject("http://localhost:" + port + "/analysis", a2, IdContainer.class);
+		AnalysisSummaryPage page = restTemplate.getForObject("http://localhost:" + port + "/analyses/search?q=warehouse", AnalysisSummaryPage.class);
+		assertEquals(1, page.getSummaries().length);
+		assertEquals("Warehouse costs", page.getSummaries()[0].getName());
+		page = restTemplate.getForObject("http://localhost:" + port + "/analyses/search?q=stores", AnalysisSummaryPage.class);
+		assertEquals(2, page.getSummaries().length);
+		assertEquals("Store sales by region", page.getSummaries()[0].getName()); // name matches outrank description matches
+		page = restTemplate.getForObject("http://localhost:" + port + "/analyses/search?q=stores&limit=1", AnalysisSummaryPage.class);
+		assertNotNull(page.getNextCursor());
+		page = restTemplate.getForObject("http://localhost:" + port + "/analyses/search?q=stores&limit=1&cursor=" + page.getNextCursor(), AnalysisSummaryPage.class);
+		assertEquals("Warehouse costs", page.getSummaries()[0].getName());
+		assertNull(page.getNextCursor());
+	}
+
 	@Test
 	public void testSaveAnalysis() throws Exception {
 		Analysis analysis = getDemoAnalysis();
@@ -75,13 +143,48 @@ public class PietRestControllerTest {
 		assertNotNull(foundAnalysis.getCreateDateTime());
 		assertEquals(foundAnalysis.getCreateDateTime(), foundAnalysis.getUpdateDateTime());
 		assertEquals(1, foundAnalysis.getReadCounter());
+		// read by someone else before the save, which must not lose the read
+		restTemplate.getForObject("http://localhost:" + port + "/analysis?id=" + id.getId(), Analysis.class);
 		foundAnalysis.setName("Updated name of A1");
 		IdContainer id2 = restTemplate.postForObject("http://localhost:" + port + "/analysis", foundAnalysis, IdContainer.class);
 		Analysis foundAnalysis2 = restTemplate.getForObject("http://localhost:" + port + "/analysis?id=" + id2.getId(), Analysis.class);
 		assertNotNull(foundAnalysis2);
 		assertEquals(foundAnalysis2.getName(), foundAnalysis.getName());
 		assertNotEquals(foundAnalysis2.getCreateDateTime(), foundAnalysis2.getUpdateDateTime());
-		assertEquals(2, foundAnalysis2.getReadCounter());
+		assertEquals(3, foundAnalysis2.getReadCounter());
+	}
+
+	@Test
+	public void testConditionalRequests() throws Exception {
+		IdContainer id = restTemplate.postForObject("http://localhost:" + port + "/analysis", getDemoAnalysis(), IdContainer.class);
+		assertEquals(0L, id.getVersion());
+		String url = "http://localhost:" + port + "/analysis?id=" + id.getId();
+		ResponseEntity<Analysis> response = restTemplate.getForEntity(url, Analysis.class);
+		String eTag = response.getHeaders().getETag();
+		assertEquals("\"" + id.getId() + "-0\"", eTag);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setIfNoneMatch(eTag);
+		response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), Analysis.class);
+		assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+		Analysis analysis = restTemplate.getForObject(url, Analysis.class);
+		analysis.setName("Updated name");
+		headers = new HttpHeaders();
+		headers.setIfMatch(eTag);
+		ResponseEntity<IdContainer> saveResponse = restTemplate.exchange("http://localhost:" + port + "/analysis", HttpMethod.POST, new HttpEntity<>(analysis, headers), IdContainer.class);
+		assertEquals(HttpStatus.OK, saveResponse.getStatusCode());
+		assertEquals(1L, saveResponse.getBody().getVersion());
+		// saves based on the version that was just replaced are rejected, with or without If-Match
+		analysis.setName("Clobbered name");
+		ResponseEntity<String> rejected = restTemplate.exchange("http://localhost:" + port + "/analysis", HttpMethod.POST, new HttpEntity<>(analysis, headers), String.class);
+		assertEquals(HttpStatus.PRECONDITION_FAILED, rejected.getStatusCode());
+		rejected = restTemplate.postForEntity("http://localhost:" + port + "/analysis", analysis, String.class);
+		assertEquals(HttpStatus.CONFLICT, rejected.getStatusCode());
+		assertEquals("Updated name", restTemplate.getForObject(url, Analysis.class).getName());
+		ResponseEntity<Analysis[]> listResponse = restTemplate.getForEntity("http://localhost:" + port + "/analyses", Analysis[].class);
+		headers = new HttpHeaders();
+		headers.setIfNoneMatch(listResponse.getHeaders().getETag());
+		listResponse = restTemplate.exchange("http://localhost:" + port + "/analyses", HttpMethod.GET, new HttpEntity<>(headers), Analysis[].class);
+		assertEquals(HttpStatus.NOT_MODIFIED, listResponse.getStatusCode());
 	}
 
 	@Test
@@ -106,6 +209,117 @@ public class PietRestControllerTest {
 	    assertEquals(analyses.length, 0);
 	}
 
+	@Test
+	public void testBatchAnalyses() throws Exception {
+		Analysis a1 = getDemoAnalysis();
+		Analysis a2 = getDemoAnalysis();
+		a2.setName("Analysis 2");
+		BatchItemResult[] saveResults = restTemplate.postForObject("http://localhost:" + port + "/analyses:batchSave", new Analysis[] { a1, a2 }, BatchItemResult[].class);
+		assertEquals(2, saveResults.length);
+		assertEquals(BatchItemResult.STATUS_OK, saveResults[0].getStatus());
+		assertEquals(BatchItemResult.STATUS_OK, saveResults[1].getStatus());
+		IdsContainer ids = new IdsContainer(new String[] { saveResults[1].getId(), "no-such-id", saveResults[0].getId() });
+		BatchItemResult[] getResults = restTemplate.postForObject("http://localhost:" + port + "/analyses:batchGet", ids, BatchItemResult[].class);
+		assertEquals(3, getResults.length);
+		assertEquals("Analysis 2", getResults[0].getAnalysis().getName());
+		assertEquals(1, getResults[0].getAnalysis().getReadCounter());
+		assertEquals(BatchItemResult.STATUS_NOT_FOUND, getResults[1].getStatus());
+		assertEquals("Analysis 1", getResults[2].getAnalysis().getName());
+		// lookups (like listing search results) needn't count as reads
+		getResults = restTemplate.postForObject("http://localhost:" + port + "/analyses:batchGet?countReads=false", ids, BatchItemResult[].class);
+		assertEquals(1, getResults[0].getAnalysis().getReadCounter());
+		assertEquals(BatchItemResult.STATUS_NOT_FOUND, getResults[1].getStatus());
+		getResults = restTemplate.postForObject("http://localhost:" + port + "/analyses:batchGet", ids, BatchItemResult[].class);
+		assertEquals(2, getResults[0].getAnalysis().getReadCounter());
+		BatchItemResult[] deleteResults = restTemplate.postForObject("http://localhost:" + port + "/analyses:batchDelete", ids, BatchItemResult[].class);
+		assertEquals(BatchItemResult.STATUS_OK, deleteResults[0].getStatus());
+		assertEquals(BatchItemResult.STATUS_NOT_FOUND, deleteResults[1].getStatus());
+		assertEquals(BatchItemResult.STATUS_OK, deleteResults[2].getStatus());
+		Analysis[] analyses = restTemplate.getForObject("http://localhost:" + port + "/analyses", Analysis[].class);
+		assertEquals(0, analyses.length);
+	}
+
+	@Test
+	public void testExportImportAnalyses() throws Exception {
+		for (int i=0;i < 3;i++) {
+			Analysis analysis = getDemoAnalysis();
+			analysis.setName("Analysis " + i);
+			restTemplate.postForObject("http://localhost:" + port + "/analysis", analysis, IdContainer.class);
+		}
+		byte[] export = restTemplate.getForObject("http://localhost:" + port + "/analyses/export?gzip=true", byte[].class);
+		String ndjson = new String(StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(export))), StandardCharsets.UTF_8);
+		assertEquals(3, ndjson.split("\n").length);
+		Analysis[] analyses = restTemplate.getForObject("http://localhost:" + port + "/analyses", Analysis[].class);
+		for (Analysis analysis : analyses) {
+			restTemplate.delete("http://localhost:" + port + "/analysis/" + analysis.getId());
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.parseMediaType("application/gzip"));
+		AnalysisImportReport report = restTemplate.postForObject("http://localhost:" + port + "/analyses/import", new HttpEntity<>(export, headers), AnalysisImportReport.class);
+		assertEquals(3, report.getImported());
+		assertEquals(0, report.getFailed());
+		// importing again replaces rather than duplicates
+		headers.setContentType(MediaType.parseMediaType("application/x-ndjson"));
+		report = restTemplate.postForObject("http://localhost:" + port + "/analyses/import", new HttpEntity<>(ndjson, headers), AnalysisImportReport.class);
+		assertEquals(3, report.getImported());
+		Analysis[] imported = restTemplate.getForObject("http://localhost:" + port + "/analyses", Analysis[].class);
+		assertEquals(3, imported.length);
+		assertEquals(analyses[0].getCreateDateTime(), Arrays.stream(imported).filter(a -> a.getId().equals(analyses[0].getId())).findFirst().get().getCreateDateTime());
+	}
+
+	@Test
+	public void testSmileAnalysis() throws Exception {
+		IdContainer id = restTemplate.postForObject("http://localhost:" + port + "/analysis", getDemoAnalysis(), IdContainer.class);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setAccept(Arrays.asList(Smile.APPLICATION_SMILE));
+		ResponseEntity<byte[]> response = restTemplate.exchange("http://localhost:" + port + "/analysis?id=" + id.getId(), HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertTrue(Smile.APPLICATION_SMILE.isCompatibleWith(response.getHeaders().getContentType()));
+		// the representation depends on Accept, so caches must key on it
+		assertTrue(response.getHeaders().getVary().contains(HttpHeaders.ACCEPT));
+		JsonNode analysis = new ObjectMapper(new SmileFactory()).readTree(response.getBody());
+		assertEquals(id.getId(), analysis.get("id").asText());
+		assertEquals("Analysis 1", analysis.get("name").asText());
+		response = restTemplate.getForEntity("http://localhost:" + port + "/analysis?id=" + id.getId(), byte[].class);
+		assertTrue(MediaType.APPLICATION_JSON.isCompatibleWith(response.getHeaders().getContentType()));
+		assertTrue(response.getHeaders().getVary().contains(HttpHeaders.ACCEPT));
+	}
+
+	@Test
+	public void testGzipJson() throws Exception {
+		// compression only applies to responses of a couple of KB or more
+		for (int i=0;i < 10;i++) {
+			Analysis analysis = getDemoAnalysis();
+			analysis.setDescription(String.join(" ", Collections.nCopies(50, "Description for analysis " + i)));
+			restTemplate.postForObject("http://localhost:" + port + "/analysis", analysis, IdContainer.class);
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		ResponseEntity<byte[]> response = restTemplate.exchange("http://localhost:" + port + "/analyses", HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+		assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		byte[] json = StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(response.getBody())));
+		assertTrue(json.length > response.getBody().length);
+		assertEquals(10, new ObjectMapper().readTree(json).size());
+		// clients that don't ask for gzip get plain json
+		response = restTemplate.getForEntity("http://localhost:" + port + "/analyses", byte[].class);
+		assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		assertEquals(10, new ObjectMapper().readTree(response.getBody()).size());
+	}
+
+	@Test
+	public void testPrometheusEndpoint() throws Exception {
+		IdContainer id = restTemplate.postForObject("http://localhost:" + port + "/analysis", getDemoAnalysis(), IdContainer.class);
+		restTemplate.getForObject("http://localhost:" + port + "/analysis?id=" + id.getId(), Analysis.class);
+		String scrape = restTemplate.getForObject("http://localhost:" + port + "/actuator/prometheus", String.class);
+		// admission meters are per connection, so only appear once a query has run; see MondrianQueryServiceTest
+		for (String name : new String[] { "method=\"saveExceptReadCounter\",outcome=\"success\",repository=\"AnalysisRepository\"",
+				"method=\"findById\",outcome=\"success\",repository=\"AnalysisRepository\"", "piet_repository_seconds_bucket{",
+				"cache=\"mondrianQueryResults\"", "piet_query_coalesced_total", "piet_query_coalesced_timeouts_total",
+				"piet_query_coalesced_takeovers_total", "piet_query_inflight", "piet_analysis_cache_pending_reads" }) {
+			assertTrue(scrape.contains(name), name);
+		}
+	}
+
 	private static final Analysis getDemoAnalysis() {
 		Analysis analysis = new Analysis();
 		analysis.setName("Analysis 1");
@@ -0,0 +1,339 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+import com.cascadia_analytics.piet.query.MondrianQueryService;
+import com.cascadia_analytics.piet.query.ResultSnapshotService;
+import com.cascadia_analytics.piet.query.StubMondrianRest;
+import com.cascadia_analytics.piet.query.StubMondrianRest.Response;
+import com.cascadia_analytics.piet.repository.AnalysisNearCache;
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+import com.cascadia_analytics.piet.repository.ResultSnapshotRepository;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The result snapshot endpoints, against in-memory repositories and a stub mondrian-rest.
+ */
+public class QueryRestControllerTest {
+
+	// the stub mondrian-rest answers every query with the number of queries it has received, and fails queries of the cube [bad]
+
+	private StubMondrianRest stubServer;
+	private AtomicInteger requestCount;
+	private Map<String, Analysis> analyses;
+	private Map<String, ResultSnapshot> snapshots;
+	// saving these snapshots fails, as mongo might
+	private Set<String> unsavableSnapshots;
+	private ResultSnapshotService resultSnapshotService;
+	private MockMvc mockMvc;
+	// as Boot configures it; snapshots also carry read-only properties
+	private final ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		requestCount = new AtomicInteger();
+		stubServer = new StubMondrianRest().on("query", (exchange, body) -> {
+			int count = requestCount.incrementAndGet();
+			return body.contains("[bad]") ? Response.error(400, "error while parsing") : Response.ok("{\"count\":" + count + "}");
+		});
+		MeterRegistry meterRegistry = new SimpleMeterRegistry();
+		PietConfiguration pietConfiguration = stubServer.newConfiguration();
+		pietConfiguration.setAdmissionUserHeader("");
+		MondrianQueryService queryService = stubServer.newQueryService(pietConfiguration, meterRegistry);
+
+		analyses = new HashMap<>();
+		snapshots = new LinkedHashMap<>();
+		unsavableSnapshots = new HashSet<>();
+		AnalysisRepository analysisRepository = stub(AnalysisRepository.class, (method, args) -> {
+			if (method.equals("findById")) {
+				return Optional.ofNullable(analyses.get(args[0]));
+			}
+			throw new UnsupportedOperationException(method);
+		});
+		ResultSnapshotRepository snapshotRepository = stub(ResultSnapshotRepository.class, (method, args) -> {
+			switch (method) {
+			case "findById":
+				return Optional.ofNullable(snapshots.get(args[0]));
+			case "save":
+				ResultSnapshot saved = (ResultSnapshot) args[0];
+				if (unsavableSnapshots.contains(saved.getId())) {
+					throw new DataAccessResourceFailureException("Unable to save snapshot " + saved.getId());
+				}
+				snapshots.put(saved.getId(), saved);
+				return saved;
+			case "deleteById":
+				snapshots.remove(args[0]);
+				return null;
+			case "updateNextRefreshDateTime":
+				ResultSnapshot current = snapshots.get(args[0]);
+				if (current == null || !current.getCreateDateTime().equals(args[1])) {
+					return false;
+				}
+				current.setNextRefreshDateTime((Date) args[2]);
+				return true;
+			case "deleteByIdIn":
+				return ((Collection<?>) args[0]).stream().filter(id -> snapshots.remove(id) != null).count();
+			case "findByNextRefreshDateTimeLessThanEqual":
+				return snapshotsWhere(snapshot -> snapshot.getNextRefreshDateTime() != null && !snapshot.getNextRefreshDateTime().after((Date) args[0]));
+			case "findByDataVersionNot":
+				return snapshotsWhere(snapshot -> !Objects.equals(snapshot.getDataVersion(), args[0]));
+			case "findByConnectionNameAndDataVersionNot":
+				return snapshotsWhere(snapshot -> snapshot.getConnectionName().equals(args[0]) && !Objects.equals(snapshot.getDataVersion(), args[1]));
+			default:
+				throw new UnsupportedOperationException(method);
+			}
+		});
+		resultSnapshotService = new ResultSnapshotService();
+		ReflectionTestUtils.setField(resultSnapshotService, "snapshotRepository", snapshotRepository);
+		ReflectionTestUtils.setField(resultSnapshotService, "analysisRepository", analysisRepository);
+		ReflectionTestUtils.setField(resultSnapshotService, "mondrianQueryService", queryService);
+		ReflectionTestUtils.setField(resultSnapshotService, "pietConfiguration", pietConfiguration);
+
+		QueryRestController controller = new QueryRestController();
+		ReflectionTestUtils.setField(controller, "mondrianQueryService", queryService);
+		ReflectionTestUtils.setField(controller, "pietConfiguration", pietConfiguration);
+		// with the near cache disabled, reads go straight to the repository
+		ReflectionTestUtils.setField(controller, "analysisNearCache", new AnalysisNearCache(analysisRepository, null, pietConfiguration));
+		ReflectionTestUtils.setField(controller, "resultSnapshotService", resultSnapshotService);
+		mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		stubServer.stop();
+	}
+
+	@Test
+	public void testSnapshotLifecycle() throws Exception {
+		saveAnalysis("a1", "foodmart", "Sales", "[Measures].[Unit Sales]");
+		mockMvc.perform(get("/analysis/a1/snapshot")).andExpect(status().isNotFound());
+		mockMvc.perform(put("/analysis/missing/snapshot")).andExpect(status().isNotFound());
+		mockMvc.perform(put("/analysis/a1/snapshot").param("refreshIntervalSeconds", "0")).andExpect(status().isUnprocessableEntity());
+
+		ResultSnapshot snapshot = readSnapshot(mockMvc.perform(put("/analysis/a1/snapshot").param("dataVersion", "v1").param("refreshIntervalSeconds", "3600"))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString());
+		assertEquals("a1", snapshot.getId());
+		assertEquals(0L, snapshot.getAnalysisVersion());
+		assertEquals("v1", snapshot.getDataVersion());
+		assertEquals("foodmart", snapshot.getConnectionName());
+		assertEquals(3600, snapshot.getRefreshIntervalSeconds());
+		assertEquals(snapshot.getCreateDateTime(), readSnapshot(mockMvc.perform(get("/analysis/a1/snapshot"))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString()).getCreateDateTime());
+
+		// the result is served from the snapshot, with an ETag of its own
+		String eTag = mockMvc.perform(get("/analysis/a1/result"))
+				.andExpect(status().isOk())
+				.andExpect(content().json("{\"count\":1}"))
+				.andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+		mockMvc.perform(get("/analysis/a1/result").header(HttpHeaders.IF_NONE_MATCH, eTag)).andExpect(status().isNotModified());
+		assertEquals(1, requestCount.get());
+
+		mockMvc.perform(delete("/analysis/a1/snapshot")).andExpect(status().isOk());
+		mockMvc.perform(get("/analysis/a1/snapshot")).andExpect(status().isNotFound());
+		// deleting what isn't there is fine
+		mockMvc.perform(delete("/analysis/a1/snapshot")).andExpect(status().isOk());
+	}
+
+	@Test
+	public void testStaleSnapshotFallsBackToLiveQuery() throws Exception {
+		saveAnalysis("a1", "foodmart", "Sales", "[Measures].[Unit Sales]");
+		mockMvc.perform(put("/analysis/a1/snapshot")).andExpect(status().isOk());
+		mockMvc.perform(get("/analysis/a1/result")).andExpect(content().json("{\"count\":1}"));
+		// saving the analysis (a new version) leaves its snapshot behind
+		Analysis saved = saveAnalysis("a1", "foodmart", "Sales", "[Measures].[Store Sales]");
+		assertEquals(1L, saved.getVersion());
+		mockMvc.perform(get("/analysis/a1/result"))
+				.andExpect(status().isOk())
+				.andExpect(content().json("{\"count\":2}"))
+				.andExpect(header().doesNotExist(HttpHeaders.ETAG));
+		assertEquals(2, requestCount.get());
+		// the stale snapshot is kept until it's replaced or deleted
+		assertEquals(0L, snapshots.get("a1").getAnalysisVersion());
+		mockMvc.perform(put("/analysis/a1/snapshot")).andExpect(status().isOk());
+		mockMvc.perform(get("/analysis/a1/result")).andExpect(content().json("{\"count\":3}")).andExpect(header().exists(HttpHeaders.ETAG));
+	}
+
+	@Test
+	public void testRefreshSnapshots() throws Exception {
+		saveAnalysis("a1", "foodmart", "Sales", "[Measures].[Unit Sales]");
+		saveAnalysis("a2", "warehouse", "Inventory", "[Measures].[Units Shipped]");
+		saveAnalysis("a3", "foodmart", "Sales", "[Measures].[Store Sales]");
+		for (String id : new String[] { "a1", "a2", "a3" }) {
+			mockMvc.perform(put("/analysis/" + id + "/snapshot").param("dataVersion", "v1")).andExpect(status().isOk());
+		}
+		analyses.remove("a3");
+		mockMvc.perform(post("/snapshots:refresh")).andExpect(status().isBadRequest());
+
+		// only the connection whose data changed; the snapshot of the deleted analysis goes
+		ResultSnapshot[] refreshed = readSnapshots(mockMvc.perform(post("/snapshots:refresh").param("connectionName", "foodmart").param("dataVersion", "v2"))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString());
+		assertEquals(1, refreshed.length);
+		assertEquals("a1", refreshed[0].getId());
+		assertEquals("v2", snapshots.get("a1").getDataVersion());
+		assertEquals("v1", snapshots.get("a2").getDataVersion());
+		assertFalse(snapshots.containsKey("a3"));
+		mockMvc.perform(get("/analysis/a1/result")).andExpect(content().json("{\"count\":4}"));
+
+		// all connections, skipping snapshots already taken from this version of the data
+		refreshed = readSnapshots(mockMvc.perform(post("/snapshots:refresh").param("dataVersion", "v2"))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString());
+		assertEquals(1, refreshed.length);
+		assertEquals("a2", refreshed[0].getId());
+
+		// a failed refresh keeps serving the previous snapshot
+		ResultSnapshot previous = snapshots.get("a1");
+		saveAnalysis("a1", "foodmart", "bad", "[Measures].[Unit Sales]").setVersion(previous.getAnalysisVersion());
+		refreshed = readSnapshots(mockMvc.perform(post("/snapshots:refresh").param("dataVersion", "v3"))
+				.andExpect(status().isOk()).andReturn().getResponse().getContentAsString());
+		assertEquals(1, refreshed.length);
+		assertEquals("a2", refreshed[0].getId());
+		assertTrue(previous == snapshots.get("a1"));
+		assertNotEquals("v3", snapshots.get("a1").getDataVersion());
+		mockMvc.perform(get("/analysis/a1/result")).andExpect(content().json("{\"count\":4}"));
+	}
+
+	@Test
+	public void testRefreshDueContinuesPastFailures() throws Exception {
+		for (String id : new String[] { "a1", "a2", "a3" }) {
+			saveAnalysis(id, "foodmart", "Sales", "[Measures].[Unit Sales]");
+			mockMvc.perform(put("/analysis/" + id + "/snapshot").param("refreshIntervalSeconds", "60")).andExpect(status().isOk());
+			snapshots.get(id).setNextRefreshDateTime(new Date(System.currentTimeMillis() - 1000));
+		}
+		unsavableSnapshots.add("a1");
+		Date a1Created = snapshots.get("a1").getCreateDateTime();
+		resultSnapshotService.refreshDue();
+		assertEquals(a1Created, snapshots.get("a1").getCreateDateTime());
+		assertTrue(snapshots.get("a2").getNextRefreshDateTime().after(new Date()));
+		assertTrue(snapshots.get("a3").getNextRefreshDateTime().after(new Date()));
+		// the failed save doesn't stop the snapshots after it
+		assertEquals(6, requestCount.get());
+
+		resultSnapshotService.delete(Arrays.asList("a1", "a2", "missing"));
+		assertEquals(Collections.singleton("a3"), snapshots.keySet());
+	}
+
+	@Test
+	public void testFailedRefreshOnlyReschedules() throws Exception {
+		saveAnalysis("a1", "foodmart", "Sales", "[Measures].[Unit Sales]");
+		mockMvc.perform(put("/analysis/a1/snapshot").param("refreshIntervalSeconds", "60")).andExpect(status().isOk());
+		ResultSnapshot previous = snapshots.get("a1");
+		previous.setNextRefreshDateTime(new Date(System.currentTimeMillis() - 1000));
+		saveAnalysis("a1", "foodmart", "bad", "[Measures].[Unit Sales]").setVersion(previous.getAnalysisVersion());
+		// the snapshot is rescheduled without being saved again
+		unsavableSnapshots.add("a1");
+		resultSnapshotService.refreshDue();
+		assertTrue(previous == snapshots.get("a1"));
+		assertTrue(previous.getNextRefreshDateTime().after(new Date()));
+	}
+
+	/**
+	 * Store an analysis of one measure of a cube, as a new version if it exists.
+	 */
+	private Analysis saveAnalysis(String id, String connectionName, String cube, String measureName) {
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId("/mondrian-rest/getMetadata?connectionName=" + connectionName);
+		datasetRef.setCube(cube);
+		QueryMeasure measure = new QueryMeasure();
+		measure.setUniqueName(measureName);
+		Query query = new Query();
+		query.setNonEmpty(true);
+		query.setMeasures(new QueryMeasure[] { measure });
+		query.setLevels(new QueryLevel[0]);
+		query.setFilters(new QueryFilter[0]);
+		Analysis analysis = new Analysis();
+		analysis.setId(id);
+		analysis.setDatasetRef(datasetRef);
+		analysis.setQuery(query);
+		Analysis current = analyses.get(id);
+		analysis.setVersion(current == null ? 0L : current.getVersion() + 1);
+		analyses.put(id, analysis);
+		return analysis;
+	}
+
+	private List<ResultSnapshot> snapshotsWhere(Predicate<ResultSnapshot> predicate) {
+		return snapshots.values().stream().filter(predicate).collect(Collectors.toList());
+	}
+
+	private ResultSnapshot readSnapshot(String json) throws IOException {
+		return objectMapper.readValue(json, ResultSnapshot.class);
+	}
+
+	private ResultSnapshot[] readSnapshots(String json) throws IOException {
+		return objectMapper.readValue(json, ResultSnapshot[].class);
+	}
+
+	/**
+	 * A stub repository that answers the methods the snapshot endpoints use.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T stub(Class<T> repositoryInterface, BiFunction<String, Object[], Object> methods) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { repositoryInterface },
+				(proxy, method, args) -> method.getName().equals("toString") ? repositoryInterface.getSimpleName() : methods.apply(method.getName(), args));
+	}
+
+}
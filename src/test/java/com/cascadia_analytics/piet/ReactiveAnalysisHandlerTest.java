@@ -0,0 +1,161 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.StreamUtils;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.AnalysisImportReport;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.IdContainer;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+@ActiveProfiles(PietApplication.REACTIVE_PROFILE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class ReactiveAnalysisHandlerTest {
+
+	@Autowired
+	private WebTestClient webTestClient;
+
+	@Test
+	public void testSaveAndGetAnalysis() throws Exception {
+		IdContainer id = webTestClient.post().uri("/analysis").bodyValue(getDemoAnalysis())
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody(IdContainer.class).returnResult().getResponseBody();
+		assertNotNull(id.getId());
+		assertEquals(0L, id.getVersion());
+		Analysis analysis = webTestClient.get().uri("/analysis?id=" + id.getId())
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals("ETag", "\"" + id.getId() + "-0\"")
+				.expectBody(Analysis.class).returnResult().getResponseBody();
+		assertEquals("Analysis 1", analysis.getName());
+		assertEquals(1, analysis.getReadCounter());
+		webTestClient.get().uri("/analysis?id=" + id.getId()).ifNoneMatch("\"" + id.getId() + "-0\"")
+				.exchange()
+				.expectStatus().isEqualTo(HttpStatus.NOT_MODIFIED);
+		analysis.setName("Updated name");
+		webTestClient.post().uri("/analysis").bodyValue(analysis).exchange().expectStatus().isOk();
+		// analysis still carries version 0, which was just replaced
+		webTestClient.post().uri("/analysis").bodyValue(analysis).exchange().expectStatus().isEqualTo(HttpStatus.CONFLICT);
+	}
+
+	@Test
+	public void testStreamAnalyses() throws Exception {
+		for (int i=0;i < 3;i++) {
+			webTestClient.post().uri("/analysis").bodyValue(getDemoAnalysis()).exchange().expectStatus().isOk();
+		}
+		String body = webTestClient.get().uri("/analyses").accept(ReactiveAnalysisHandler.APPLICATION_NDJSON)
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentTypeCompatibleWith(ReactiveAnalysisHandler.APPLICATION_NDJSON)
+				.expectBody(String.class).returnResult().getResponseBody();
+		// one analysis per line
+		assertEquals(3, body.trim().split("\n").length);
+	}
+
+	@Test
+	public void testReadsCountedAcrossSaves() throws Exception {
+		IdContainer id = webTestClient.post().uri("/analysis").bodyValue(getDemoAnalysis())
+				.exchange().expectBody(IdContainer.class).returnResult().getResponseBody();
+		webTestClient.get().uri("/analysis?id=" + id.getId()).exchange().expectStatus().isOk();
+		Analysis analysis = webTestClient.get().uri("/analysis?id=" + id.getId())
+				.exchange().expectBody(Analysis.class).returnResult().getResponseBody();
+		assertEquals(2, analysis.getReadCounter());
+		// reads are counted in the near cache; saving (with a stale counter) neither loses nor resets them
+		analysis.setName("Updated name");
+		analysis.setReadCounter(0);
+		webTestClient.post().uri("/analysis").bodyValue(analysis).exchange().expectStatus().isOk();
+		analysis = webTestClient.get().uri("/analysis?id=" + id.getId())
+				.exchange().expectBody(Analysis.class).returnResult().getResponseBody();
+		assertEquals("Updated name", analysis.getName());
+		assertEquals(3, analysis.getReadCounter());
+	}
+
+	@Test
+	public void testExportImportAnalyses() throws Exception {
+		for (int i=0;i < 3;i++) {
+			Analysis analysis = getDemoAnalysis();
+			analysis.setName("Analysis " + i);
+			webTestClient.post().uri("/analysis").bodyValue(analysis).exchange().expectStatus().isOk();
+		}
+		String ndjson = webTestClient.get().uri("/analyses/export")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentTypeCompatibleWith(ReactiveAnalysisHandler.APPLICATION_NDJSON)
+				.expectBody(String.class).returnResult().getResponseBody();
+		assertEquals(3, ndjson.split("\n").length);
+		byte[] export = webTestClient.get().uri("/analyses/export?gzip=true")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType("application/gzip")
+				.expectBody(byte[].class).returnResult().getResponseBody();
+		assertEquals(ndjson, new String(StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(export))), StandardCharsets.UTF_8));
+		Analysis[] analyses = webTestClient.get().uri("/analyses").exchange().expectBody(Analysis[].class).returnResult().getResponseBody();
+		for (Analysis analysis : analyses) {
+			webTestClient.delete().uri("/analysis/" + analysis.getId()).exchange().expectStatus().isOk();
+		}
+		AnalysisImportReport report = webTestClient.post().uri("/analyses/import").contentType(MediaType.parseMediaType("application/gzip")).bodyValue(export)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody(AnalysisImportReport.class).returnResult().getResponseBody();
+		assertEquals(3, report.getImported());
+		assertEquals(0, report.getFailed());
+		// importing again replaces rather than duplicates
+		report = webTestClient.post().uri("/analyses/import").contentType(ReactiveAnalysisHandler.APPLICATION_NDJSON).bodyValue(ndjson)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody(AnalysisImportReport.class).returnResult().getResponseBody();
+		assertEquals(3, report.getImported());
+		Analysis[] imported = webTestClient.get().uri("/analyses").exchange().expectBody(Analysis[].class).returnResult().getResponseBody();
+		assertEquals(3, imported.length);
+		assertEquals(analyses[0].getCreateDateTime(), Arrays.stream(imported).filter(a -> a.getId().equals(analyses[0].getId())).findFirst().get().getCreateDateTime());
+		webTestClient.post().uri("/analyses/import").contentType(MediaType.TEXT_PLAIN).bodyValue(ndjson)
+				.exchange()
+				.expectStatus().isEqualTo(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+	}
+
+	private static final Analysis getDemoAnalysis() {
+		Analysis analysis = new Analysis();
+		analysis.setName("Analysis 1");
+		analysis.setDescription("Description for Analysis 1");
+		DatasetRef datasetRef = new DatasetRef();
+		analysis.setDatasetRef(datasetRef);
+		datasetRef.setId("DatasetRef1");
+		datasetRef.setCube("Cube 1");
+		return analysis;
+	}
+
+}
@@ -0,0 +1,101 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Connector;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+public class VirtualThreadsConfigurationTest {
+
+	// Thread.isVirtual() and Executors.newVirtualThreadPerTaskExecutor() arrived together, in Java 21
+	private static final boolean VIRTUAL_THREADS_AVAILABLE = Integer.parseInt(System.getProperty("java.specification.version").replaceFirst("^1\\.", "")) >= 21;
+
+	private final ApplicationContextRunner contextRunner = new ApplicationContextRunner().withUserConfiguration(VirtualThreadsConfiguration.class);
+
+	@Test
+	public void testExecutorLookup() throws Exception {
+		ExecutorService executor = VirtualThreadsConfiguration.newVirtualThreadPerTaskExecutor();
+		if (!VIRTUAL_THREADS_AVAILABLE) {
+			// Java 8 to 20 have no such method; the lookup says so rather than failing
+			assertNull(executor);
+			return;
+		}
+		assertNotNull(executor);
+		try {
+			assertTrue(executor.submit(() -> (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread())).get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testNotWiredByDefault() throws Exception {
+		contextRunner.run(context -> {
+			assertFalse(context.containsBean("virtualThreadsTomcatCustomizer"));
+			assertFalse(context.containsBean(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME));
+		});
+		contextRunner.withPropertyValues(VirtualThreadsConfiguration.PROPERTY + "=false").run(context -> {
+			assertFalse(context.containsBean("virtualThreadsTomcatCustomizer"));
+			assertFalse(context.containsBean(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME));
+		});
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testWiredWhenEnabled() throws Exception {
+		contextRunner.withPropertyValues(VirtualThreadsConfiguration.PROPERTY + "=true").run(context -> {
+			assertNull(context.getStartupFailure());
+			if (!VIRTUAL_THREADS_AVAILABLE) {
+				// the setting is ignored, and requests stay on Tomcat's pool
+				assertFalse(context.containsBean("virtualThreadsTomcatCustomizer"));
+				assertFalse(context.containsBean(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME));
+				return;
+			}
+			TomcatServletWebServerFactory factory = new TomcatServletWebServerFactory();
+			context.getBean("virtualThreadsTomcatCustomizer", WebServerFactoryCustomizer.class).customize(factory);
+			Connector connector = new Connector();
+			factory.getTomcatConnectorCustomizers().forEach(customizer -> customizer.customize(connector));
+			ExecutorService executor = (ExecutorService) connector.getProtocolHandler().getExecutor();
+			assertTrue(executor.submit(() -> (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread())).get(5, TimeUnit.SECONDS));
+			// async MVC work (streamed exports) shares the same executor
+			TaskExecutorAdapter applicationTaskExecutor = context.getBean(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME, TaskExecutorAdapter.class);
+			assertEquals(Boolean.TRUE, applicationTaskExecutor.submit(() -> (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread())).get(5, TimeUnit.SECONDS));
+		});
+	}
+
+	@Test
+	public void testNotWiredInReactiveProfile() throws Exception {
+		contextRunner.withPropertyValues(VirtualThreadsConfiguration.PROPERTY + "=true", "spring.profiles.active=" + PietApplication.REACTIVE_PROFILE).run(context -> {
+			assertFalse(context.containsBean("virtualThreadsTomcatCustomizer"));
+			assertFalse(context.containsBean(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME));
+		});
+	}
+
+}
@@ -0,0 +1,114 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks Analysis.copy() against the fields the domain classes actually have, so that a field added to any of them can't be
+ * silently dropped from the copies the analysis cache hands out.
+ */
+public class AnalysisCopyTest {
+
+	private int nextValue = 1;
+
+	@Test
+	public void testCopyIsDeepAndComplete() throws Exception {
+		Analysis analysis = (Analysis) fill(Analysis.class);
+		assertDeepCopy(analysis, analysis.copy(), "analysis");
+	}
+
+	@Test
+	public void testCopyOfEmptyAnalysis() throws Exception {
+		Analysis analysis = new Analysis();
+		analysis.setQuery(new Query());
+		assertDeepCopy(analysis, analysis.copy(), "analysis");
+	}
+
+	/**
+	 * @return a value of the type with every field set, to values that differ from each other and from the defaults
+	 */
+	private Object fill(Class<?> type) throws Exception {
+		int value = nextValue++;
+		if (type == String.class) {
+			return "value" + value;
+		} else if (type == boolean.class || type == Boolean.class) {
+			return true;
+		} else if (type == long.class || type == Long.class) {
+			return (long) value;
+		} else if (type == int.class || type == Integer.class) {
+			return value;
+		} else if (type == Date.class) {
+			return new Date(value);
+		} else if (type.isArray()) {
+			Object ret = Array.newInstance(type.getComponentType(), 2);
+			Array.set(ret, 0, fill(type.getComponentType()));
+			Array.set(ret, 1, fill(type.getComponentType()));
+			return ret;
+		} else if (type.getPackage() == Analysis.class.getPackage()) {
+			Object ret = type.getDeclaredConstructor().newInstance();
+			for (Field field : fields(type)) {
+				field.set(ret, fill(field.getType()));
+			}
+			return ret;
+		}
+		fail("No test value for " + type + "; add one here, and make sure the domain classes' copy() methods copy it deeply");
+		return null;
+	}
+
+	private void assertDeepCopy(Object original, Object copy, String path) throws Exception {
+		if (original == null) {
+			assertNull(copy, path);
+		} else if (original instanceof String || original instanceof Number || original instanceof Boolean) {
+			assertEquals(original, copy, path);
+		} else if (original instanceof Date) {
+			assertEquals(original, copy, path);
+			assertNotSame(original, copy, path);
+		} else if (original.getClass().isArray()) {
+			assertNotSame(original, copy, path);
+			assertEquals(Array.getLength(original), Array.getLength(copy), path);
+			for (int i = 0; i < Array.getLength(original); i++) {
+				assertDeepCopy(Array.get(original, i), Array.get(copy, i), path + "[" + i + "]");
+			}
+		} else {
+			assertNotSame(original, copy, path);
+			assertEquals(original.getClass(), copy.getClass(), path);
+			for (Field field : fields(original.getClass())) {
+				assertDeepCopy(field.get(original), field.get(copy), path + "." + field.getName());
+			}
+		}
+	}
+
+	private static Field[] fields(Class<?> type) {
+		return Arrays.stream(type.getDeclaredFields())
+				.filter(field -> !Modifier.isStatic(field.getModifiers()) && !field.isSynthetic())
+				.peek(field -> field.setAccessible(true))
+				.toArray(Field[]::new);
+	}
+
+}
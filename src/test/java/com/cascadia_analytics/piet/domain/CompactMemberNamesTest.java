@@ -0,0 +1,107 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.domain;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.cascadia_analytics.piet.repository.MongoConversionsConfiguration;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class CompactMemberNamesTest {
+
+	private static final String[] NAMES = { "2019-01-01", "2019-01-02", "2019-02-01", "Canada", "", "USA", "US😀A", "US😁B" };
+
+	@Test
+	public void testFrontCoding() throws Exception {
+		CompactMemberNames compact = CompactMemberNames.encode(NAMES);
+		assertArrayEquals(new int[] { 0, 9, 6, 0, 0, 0, 2, 2 }, compact.getSharedPrefixLengths());
+		assertEquals("2", compact.getSuffixes()[1]);
+		// the shared prefix stops short of the emoji's high surrogate rather than splitting the pair
+		assertEquals("😁B", compact.getSuffixes()[7]);
+		assertArrayEquals(NAMES, compact.decode());
+		assertArrayEquals(NAMES, CompactMemberNames.fromDeflatedBytes(compact.toDeflatedBytes()).decode());
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		ObjectMapper objectMapper = new ObjectMapper();
+		// plain ObjectMappers have no configuration to enable compaction, so write arrays, but read both forms
+		QueryFilter filter = new QueryFilter();
+		filter.setLevelMemberNames(NAMES);
+		assertTrue(objectMapper.writeValueAsString(filter).contains("\"levelMemberNames\":[\"2019-01-01\""));
+		String compactJson = "{\"levelMemberNames\":" + objectMapper.writeValueAsString(CompactMemberNames.encode(NAMES)) + "}";
+		assertArrayEquals(NAMES, objectMapper.readValue(compactJson, QueryFilter.class).getLevelMemberNames());
+	}
+
+	@Test
+	public void testMongoConversion() throws Exception {
+		String[] manyNames = new String[1000];
+		for (int i = 0; i < manyNames.length; i++) {
+			manyNames[i] = String.format("Member %04d", i);
+		}
+		MappingMongoConverter converter = converter(100);
+		Query query = new Query();
+		query.setFilters(new QueryFilter[] { filter("[A].[A].[A]", manyNames), filter("[B].[B].[B]", NAMES) });
+		Document document = new Document();
+		converter.write(query, document);
+		Document compactFilter = document.getList("filters", Document.class).get(0);
+		Document plainFilter = document.getList("filters", Document.class).get(1);
+		assertTrue(compactFilter.containsKey("compactMemberNames"));
+		assertTrue(plainFilter.containsKey("levelMemberNames"));
+		Query read = converter.read(Query.class, document);
+		assertEquals("[A].[A].[A]", read.getFilters()[0].getLevelUniqueName());
+		assertTrue(read.getFilters()[0].isInclude());
+		assertArrayEquals(manyNames, read.getFilters()[0].getLevelMemberNames());
+		assertArrayEquals(NAMES, read.getFilters()[1].getLevelMemberNames());
+		// documents written with compaction disabled are still read the same way
+		assertArrayEquals(manyNames, converter(0).read(Query.class, document).getFilters()[0].getLevelMemberNames());
+	}
+
+	private static QueryFilter filter(String levelUniqueName, String[] names) {
+		QueryFilter ret = new QueryFilter();
+		ret.setLevelUniqueName(levelUniqueName);
+		ret.setInclude(true);
+		ret.setLevelMemberNames(names);
+		return ret;
+	}
+
+	private static MappingMongoConverter converter(int minSize) {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setStorageCompactMemberNamesMinSize(minSize);
+		MongoCustomConversions conversions = new MongoConversionsConfiguration().mongoCustomConversions(pietConfiguration);
+		MongoMappingContext mappingContext = new MongoMappingContext();
+		mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+		mappingContext.setInitialEntitySet(Collections.singleton(Query.class));
+		mappingContext.afterPropertiesSet();
+		MappingMongoConverter ret = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+		ret.setCustomConversions(conversions);
+		ret.afterPropertiesSet();
+		return ret;
+	}
+
+}
@@ -0,0 +1,120 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+import com.cascadia_analytics.piet.repository.ReactiveAnalysisRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import reactor.core.publisher.Mono;
+
+public class RepositoryMetricsAspectTest {
+
+	private MeterRegistry meterRegistry;
+	private RepositoryMetricsAspect aspect;
+
+	@BeforeEach
+	public void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		aspect = new RepositoryMetricsAspect();
+		ReflectionTestUtils.setField(aspect, "meterRegistry", meterRegistry);
+	}
+
+	@Test
+	public void testReadAndSaveTimers() throws Exception {
+		AnalysisRepository analysisRepository = advised(AnalysisRepository.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "findAndIncrementReadCounter":
+				return "missing".equals(args[0]) ? null : new Analysis();
+			case "saveExceptReadCounter":
+				throw new OptimisticLockingFailureException("conflict");
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		analysisRepository.findAndIncrementReadCounter("a1");
+		assertNull(analysisRepository.findAndIncrementReadCounter("missing"));
+		assertThrows(OptimisticLockingFailureException.class, () -> analysisRepository.saveExceptReadCounter(new Analysis()));
+		assertEquals(2, timerCount("AnalysisRepository", "findAndIncrementReadCounter", "success"));
+		assertEquals(1, timerCount("AnalysisRepository", "saveExceptReadCounter", "error"));
+	}
+
+	@Test
+	public void testReactiveTimersStartOnSubscription() throws Exception {
+		ReactiveAnalysisRepository analysisRepository = advised(ReactiveAnalysisRepository.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "findAndIncrementReadCounter":
+				return Mono.just(new Analysis());
+			case "saveExceptReadCounter":
+				return Mono.error(new OptimisticLockingFailureException("conflict"));
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		Mono<Analysis> read = analysisRepository.findAndIncrementReadCounter("a1");
+		// nothing has happened yet
+		assertTrue(meterRegistry.find(RepositoryMetricsAspect.METRIC_NAME).timers().isEmpty());
+		read.block();
+		assertThrows(OptimisticLockingFailureException.class, () -> analysisRepository.saveExceptReadCounter(new Analysis()).block());
+		assertEquals(1, timerCount("ReactiveAnalysisRepository", "findAndIncrementReadCounter", "success"));
+		assertEquals(1, timerCount("ReactiveAnalysisRepository", "saveExceptReadCounter", "error"));
+	}
+
+	@Test
+	public void testPrometheusNames() throws Exception {
+		PrometheusMeterRegistry prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		ReflectionTestUtils.setField(aspect, "meterRegistry", prometheusRegistry);
+		AnalysisRepository analysisRepository = advised(AnalysisRepository.class, (proxy, method, args) -> new Analysis());
+		analysisRepository.saveExceptReadCounter(new Analysis());
+		assertTrue(prometheusRegistry.scrape().contains(
+				"piet_repository_seconds_count{method=\"saveExceptReadCounter\",outcome=\"success\",repository=\"AnalysisRepository\",} 1.0"));
+	}
+
+	private long timerCount(String repository, String method, String outcome) {
+		return meterRegistry.get(RepositoryMetricsAspect.METRIC_NAME).tag("repository", repository).tag("method", method).tag("outcome", outcome).timer().count();
+	}
+
+	/**
+	 * A stub repository, advised by the aspect as the application context would advise the real one.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T advised(Class<T> repositoryInterface, InvocationHandler handler) {
+		T target = (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { repositoryInterface }, handler);
+		AspectJProxyFactory proxyFactory = new AspectJProxyFactory(target);
+		proxyFactory.addInterface(repositoryInterface);
+		proxyFactory.addAspect(aspect);
+		return (T) proxyFactory.getProxy();
+	}
+
+}
@@ -0,0 +1,184 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DashboardTile;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+import com.cascadia_analytics.piet.query.StubMondrianRest.Response;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DashboardServiceTest {
+
+	// a stub mondrian-rest that takes QUERY_MILLIS to answer each query, and fails queries of the "bad" cube
+	private static final long QUERY_MILLIS = 300;
+
+	private StubMondrianRest stubServer;
+	private AtomicInteger running;
+	private AtomicInteger maxRunning;
+	private AtomicInteger queried;
+	private PietConfiguration pietConfiguration;
+	private MondrianQueryService queryService;
+	private DashboardService dashboardService;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		running = new AtomicInteger();
+		maxRunning = new AtomicInteger();
+		queried = new AtomicInteger();
+		stubServer = new StubMondrianRest().on("query", (exchange, body) -> {
+			queried.incrementAndGet();
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(QUERY_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			return body.contains("[bad]") ? Response.error(400, "error while parsing") : Response.ok("{\"ok\":true}");
+		});
+		MeterRegistry meterRegistry = new SimpleMeterRegistry();
+		pietConfiguration = stubServer.newConfiguration();
+		pietConfiguration.setAdmissionEnabled(true);
+		pietConfiguration.setAdmissionMaxConcurrent(8);
+		pietConfiguration.setAdmissionMaxQueued(32);
+		pietConfiguration.setAdmissionMaxPerUser(4);
+		pietConfiguration.setAdmissionQueueTimeoutSeconds(5);
+		pietConfiguration.setDashboardConcurrency(8);
+		pietConfiguration.setDashboardTileConcurrency(8);
+		queryService = stubServer.newQueryService(pietConfiguration, meterRegistry);
+		// loading tiles doesn't touch the repositories
+		dashboardService = new DashboardService(null, null, queryService, new ResultSnapshotService(), pietConfiguration);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		dashboardService.shutdown();
+		stubServer.stop();
+	}
+
+	@Test
+	public void testTilesRunInParallel() throws Exception {
+		Map<String, Analysis> analyses = analyses("a1", "a2", "a3", "a4");
+		List<DashboardTile> listened = Collections.synchronizedList(new ArrayList<>());
+		long start = System.currentTimeMillis();
+		DashboardTile[] tiles = dashboardService.loadTiles(new String[] { "a1", "a2", "a3", "a4" }, analyses, Collections.emptyMap(), "u1", listened::add);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed < QUERY_MILLIS * 3, "took " + elapsed + "ms");
+		assertEquals(4, listened.size());
+		for (int i = 0; i < tiles.length; i++) {
+			assertEquals(i, tiles[i].getIndex());
+			assertEquals("a" + (i + 1), tiles[i].getAnalysisId());
+			assertEquals(DashboardTile.STATUS_OK, tiles[i].getStatus());
+			assertEquals("{\"ok\":true}", tiles[i].getResult());
+		}
+	}
+
+	@Test
+	public void testTileConcurrency() throws Exception {
+		String[] ids = { "a1", "a2", "a3", "a4", "a5", "a6" };
+		pietConfiguration.setDashboardTileConcurrency(2);
+		dashboardService.loadTiles(ids, analyses(ids), Collections.emptyMap(), "u1", tile -> {});
+		assertEquals(2, maxRunning.get());
+		// admission's per-user limit caps it too, or the user's own tiles would be rejected
+		pietConfiguration.setDashboardTileConcurrency(8);
+		maxRunning.set(0);
+		String[] moreIds = { "b1", "b2", "b3", "b4", "b5", "b6" };
+		DashboardTile[] tiles = dashboardService.loadTiles(moreIds, analyses(moreIds), Collections.emptyMap(), "u1", tile -> {});
+		assertEquals(4, maxRunning.get());
+		for (DashboardTile tile : tiles) {
+			assertEquals(DashboardTile.STATUS_OK, tile.getStatus());
+		}
+	}
+
+	@Test
+	public void testFailedTiles() throws Exception {
+		Map<String, Analysis> analyses = analyses("a1", "bad");
+		DashboardTile[] tiles = dashboardService.loadTiles(new String[] { "a1", "missing", "bad" }, analyses, Collections.emptyMap(), "u1", tile -> {});
+		assertEquals(DashboardTile.STATUS_OK, tiles[0].getStatus());
+		assertEquals(DashboardTile.STATUS_NOT_FOUND, tiles[1].getStatus());
+		assertNull(tiles[1].getAnalysis());
+		assertEquals(DashboardTile.STATUS_FAILED, tiles[2].getStatus());
+		assertEquals(400, tiles[2].getErrorStatus().intValue());
+	}
+
+	@Test
+	public void testListenerFailureCancelsTiles() throws Exception {
+		// one thread, so tiles queue on the pool
+		pietConfiguration.setDashboardConcurrency(1);
+		DashboardService singleThreadService = new DashboardService(null, null, queryService, new ResultSnapshotService(), pietConfiguration);
+		String[] ids = { "a1", "a2", "a3", "a4" };
+		try {
+			assertThrows(IllegalStateException.class, () -> singleThreadService.loadTiles(ids, analyses(ids), Collections.emptyMap(), "u1", tile -> {
+				throw new IllegalStateException("client went away");
+			}));
+			Thread.sleep(QUERY_MILLIS * 3);
+		} finally {
+			singleThreadService.shutdown();
+		}
+		// the first tile, and at most the one that started before the others were cancelled
+		assertTrue(queried.get() <= 2, queried.get() + " queries ran");
+	}
+
+	/**
+	 * Analyses with distinct queries (so none are shared through the cache), each of the cube named by its id.
+	 */
+	private static Map<String, Analysis> analyses(String... ids) {
+		Map<String, Analysis> ret = new HashMap<>();
+		for (String id : ids) {
+			DatasetRef datasetRef = new DatasetRef();
+			datasetRef.setId("/mondrian-rest/getMetadata?connectionName=foodmart");
+			datasetRef.setCube(id);
+			QueryMeasure measure = new QueryMeasure();
+			measure.setUniqueName("[Measures].[Store Sqft]");
+			Query query = new Query();
+			query.setNonEmpty(true);
+			query.setMeasures(new QueryMeasure[] { measure });
+			query.setLevels(new QueryLevel[0]);
+			query.setFilters(new QueryFilter[0]);
+			Analysis analysis = new Analysis();
+			analysis.setId(id);
+			analysis.setDatasetRef(datasetRef);
+			analysis.setQuery(query);
+			ret.put(id, analysis);
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,134 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.query.StubMondrianRest.Response;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DatasetMetadataServiceTest {
+
+	// a stub mondrian-rest: serves the connections in the connections map, and fails getMetadata for any without metadata
+
+	private static final String METADATA = "{\"name\":\"Schema\",\"connectionName\":\"%s\",\"cubes\":[{\"name\":\"Sales\",\"caption\":\"Sales\","
+			+ "\"measures\":[{\"name\":\"Units\",\"caption\":\"Units\",\"visible\":true,\"calculated\":false}],"
+			+ "\"dimensions\":[{\"name\":\"Store\",\"caption\":\"Store\",\"type\":\"\",\"hierarchies\":[{\"name\":\"Store\",\"caption\":\"Store\",\"hasAll\":true,"
+			+ "\"levels\":[{\"name\":\"Country\",\"caption\":\"Country\",\"depth\":1,\"cardinality\":2,\"populated\":true,"
+			+ "\"members\":[{\"name\":\"%s\",\"caption\":\"%s\",\"childMemberCount\":1,\"isAll\":false,\"childMembersPopulated\":true,"
+			+ "\"childMembers\":[{\"name\":\"WA\",\"caption\":\"WA\",\"childMemberCount\":0,\"isAll\":false}]}]}]}]}]}]}";
+
+	private StubMondrianRest stubServer;
+	private Map<String, String> connections;
+	private DatasetMetadataService metadataService;
+	private ObjectMapper objectMapper;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		connections = new ConcurrentHashMap<>();
+		objectMapper = new ObjectMapper();
+		stubServer = new StubMondrianRest()
+				.on("getConnections", (exchange, body) ->
+					Response.ok(objectMapper.writeValueAsString(connections.keySet().stream().collect(Collectors.toMap(c -> c, c -> "{}")))))
+				.on("getMetadata", (exchange, body) -> {
+					String metadata = connections.get(exchange.getRequestURI().getQuery().replace("connectionName=", ""));
+					return metadata == null ? Response.error(500, "no such connection") : Response.ok(metadata);
+				});
+		PietConfiguration pietConfiguration = stubServer.newConfiguration();
+		pietConfiguration.setMondrianRestUrl("/mondrian-rest");
+		metadataService = new DatasetMetadataService(stubServer.newClient(pietConfiguration, new SimpleMeterRegistry()), objectMapper, pietConfiguration);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		stubServer.stop();
+	}
+
+	@Test
+	public void testCatalog() throws Exception {
+		connections.put("c1", String.format(METADATA, "c1", "USA", "USA"));
+		DatasetCatalog catalog = metadataService.getCatalog();
+		assertEquals(1, catalog.getConnectionCount());
+		JsonNode entry = objectMapper.readTree(catalog.getJson()).get(0);
+		assertEquals("c1", entry.get("connectionName").asText());
+		assertEquals("/mondrian-rest/getMetadata?connectionName=c1", entry.get("metadataUrl").asText());
+		JsonNode level = entry.at("/metadata/cubes/0/dimensions/0/hierarchies/0/levels/0");
+		assertEquals(1, level.get("depth").asInt());
+		assertFalse(level.has("cardinality"));
+		JsonNode member = level.at("/members/0");
+		assertEquals("USA", member.get("name").asText());
+		assertFalse(member.has("childMemberCount"));
+		assertEquals("WA", member.at("/childMembers/0/name").asText());
+		assertTrue(member.at("/childMembers/0/childMembers").isArray());
+		assertTrue(entry.at("/metadata/cubes/0/measures/0/visible").asBoolean());
+		assertEquals(Collections.singletonList("[Store].[Store].[Country]"), catalog.getLevelUniqueNames("c1", "Sales", "[Store].[Store]"));
+		assertNull(catalog.getLevelUniqueNames("c1", "Inventory", "[Store].[Store]"));
+		// read once, then served from the cache
+		assertSame(catalog, metadataService.getCatalog());
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		connections.put("c1", String.format(METADATA, "c1", "USA", "USA"));
+		String fingerprint = metadataService.getCatalog().getFingerprint();
+		assertEquals(fingerprint, metadataService.refresh().getFingerprint());
+		connections.put("c1", String.format(METADATA, "c1", "Mexico", "Mexico"));
+		assertNotEquals(fingerprint, metadataService.refresh().getFingerprint());
+		assertTrue(metadataService.getCatalog().getJson().contains("Mexico"));
+	}
+
+	@Test
+	public void testFailedConnectionKeepsMetadata() throws Exception {
+		connections.put("c1", String.format(METADATA, "c1", "USA", "USA"));
+		String json = metadataService.getCatalog().getJson();
+		// c1 now fails, c2 has never been read
+		connections.put("c1", "not json");
+		connections.put("c2", "not json");
+		DatasetCatalog catalog = metadataService.refresh();
+		assertEquals(1, catalog.getConnectionCount());
+		assertEquals(json, catalog.getJson());
+		// connections mondrian-rest no longer lists are dropped
+		connections.clear();
+		assertEquals("[]", metadataService.refresh().getJson());
+	}
+
+	@Test
+	public void testUnavailable() throws Exception {
+		stubServer.stop();
+		MondrianRestException e = assertThrows(MondrianRestException.class, metadataService::getCatalog);
+		assertEquals(502, e.getStatus());
+	}
+
+}
@@ -0,0 +1,173 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MdxBuilderTest {
+
+	// expected MDX is taken from the UI's Query.test.ts, since the two implementations must agree
+
+	private static final String STORE_SQFT = "[Measures].[Store Sqft]";
+	private static final String GROCERY_SQFT = "[Measures].[Grocery Sqft]";
+	private static final String STORE_COUNTRY = "[Store].[Store].[Store Country]";
+	private static final String STORE_STATE = "[Store].[Store].[Store State]";
+	private static final String STORE_CITY = "[Store].[Store].[Store City]";
+	private static final String STORE_TYPE = "[Store Type].[Store Type].[Store Type]";
+	private static final String HAS_COFFEE_BAR = "[Has coffee bar].[Has coffee bar].[Has coffee bar]";
+
+	private final MdxBuilder mdxBuilder = new MdxBuilder();
+
+	@Test
+	public void testNoMeasures() throws Exception {
+		assertNull(mdxBuilder.buildMdx(query(measures(), levels()), datasetRef()));
+	}
+
+	@Test
+	public void testMeasuresAndRows() throws Exception {
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft],[Measures].[Grocery Sqft]} ON COLUMNS, NON EMPTY {[Store].[Store].[Store Country].Members} ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(query(measures(STORE_SQFT, GROCERY_SQFT), levels(level(STORE_COUNTRY, true))), datasetRef()));
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY NonEmptyCrossJoin({[Store].[Store].[Store Country].Members},{[Store Type].[Store Type].[Store Type].Members}) ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(query(measures(STORE_SQFT), levels(level(STORE_COUNTRY, true), level(STORE_TYPE, true))), datasetRef()));
+	}
+
+	@Test
+	public void testColumnLevels() throws Exception {
+		assertEquals("SELECT NON EMPTY NonEmptyCrossJoin(NonEmptyCrossJoin({[Store Type].[Store Type].[Store Type].Members},{[Has coffee bar].[Has coffee bar].[Has coffee bar].Members}),{[Measures].[Store Sqft]}) ON COLUMNS, NON EMPTY {[Store].[Store].[Store Country].Members} ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(query(measures(STORE_SQFT), levels(level(STORE_COUNTRY, true), level(STORE_TYPE, false), level(HAS_COFFEE_BAR, false))), datasetRef()));
+	}
+
+	@Test
+	public void testSiblingLevels() throws Exception {
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY VisualTotals(Hierarchize({{[Store].[Store].[Store Country].Members},{[Store].[Store].[Store State].Members},{[Store].[Store].[Store City].Members}})) ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(query(measures(STORE_SQFT), levels(level(STORE_COUNTRY, true), level(STORE_STATE, true), level(STORE_CITY, true))), datasetRef()));
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY NonEmptyCrossJoin(VisualTotals(Hierarchize({{[Store].[Store].[Store Country].Members},{[Store].[Store].[Store State].Members}})),NonEmptyCrossJoin({[Store Type].[Store Type].[Store Type].Members},{[Has coffee bar].[Has coffee bar].[Has coffee bar].Members})) ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(query(measures(STORE_SQFT), levels(level(STORE_COUNTRY, true), level(STORE_STATE, true), level(STORE_TYPE, true), level(HAS_COFFEE_BAR, true))), datasetRef()));
+	}
+
+	@Test
+	public void testSiblingLevelsOrderedByMetadata() throws Exception {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setMondrianRestServerUrl("http://localhost/mondrian-rest");
+		DatasetCatalog catalog = new DatasetCatalog("[]", "", 1, new Date(), Collections.singletonMap("foodmart",
+				Collections.singletonMap(DatasetCatalog.hierarchyKey("Store", "[Store].[Store]"), Arrays.asList(STORE_COUNTRY, STORE_STATE, STORE_CITY))));
+		MdxBuilder metadataMdxBuilder = new MdxBuilder(new DatasetMetadataService(new MondrianRestClient(new RestTemplateBuilder(), pietConfiguration,
+				new SimpleMeterRegistry()), new ObjectMapper(), pietConfiguration) {
+			@Override
+			public DatasetCatalog getCatalog() {
+				return catalog;
+			}
+		});
+		Query q = query(measures(STORE_SQFT), levels(level(STORE_STATE, true), level(STORE_CITY, true), level(STORE_COUNTRY, true)));
+		q.setFilters(new QueryFilter[] { filter(STORE_COUNTRY, true, "USA"), filter(STORE_STATE, true, "WA") });
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY VisualTotals(Hierarchize({{[Store].[Store].[Store Country].[USA]},Exists({[Store].[Store].[Store State].[WA]},{[Store].[Store].[Store Country].[USA]}),Exists({[Store].[Store].[Store City].Members},Exists({[Store].[Store].[Store State].[WA]},{[Store].[Store].[Store Country].[USA]}))})) ON ROWS FROM [Store]",
+				metadataMdxBuilder.buildMdx(q, datasetRef()));
+		// without the metadata, levels added bottom-up stay in query order
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY VisualTotals(Hierarchize({{[Store].[Store].[Store State].[WA]},Exists({[Store].[Store].[Store City].Members},{[Store].[Store].[Store State].[WA]}),Exists({[Store].[Store].[Store Country].[USA]},{[Store].[Store].[Store State].[WA]})})) ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(q, datasetRef()));
+	}
+
+	@Test
+	public void testFilters() throws Exception {
+		Query q = query(measures(STORE_SQFT), levels(level(STORE_COUNTRY, true), level(STORE_STATE, true)));
+		q.setFilters(new QueryFilter[] { filter(STORE_COUNTRY, true, "USA", "Canada"), filter(STORE_STATE, true, "WA", "OR", "BC") });
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY VisualTotals(Hierarchize({{[Store].[Store].[Store Country].[USA],[Store].[Store].[Store Country].[Canada]},Exists({[Store].[Store].[Store State].[WA],[Store].[Store].[Store State].[OR],[Store].[Store].[Store State].[BC]},{[Store].[Store].[Store Country].[USA],[Store].[Store].[Store Country].[Canada]})})) ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(q, datasetRef()));
+		q.setFilters(new QueryFilter[] { filter(STORE_COUNTRY, false, "USA") });
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY VisualTotals(Hierarchize({{Except([Store].[Store].[Store Country].Members,{[Store].[Store].[Store Country].[USA]})},Exists({[Store].[Store].[Store State].Members},{Except([Store].[Store].[Store Country].Members,{[Store].[Store].[Store Country].[USA]})})})) ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(q, datasetRef()));
+	}
+
+	@Test
+	public void testThreeSiblingLevelsWithFilters() throws Exception {
+		Query q = query(measures(STORE_SQFT), levels(level(STORE_COUNTRY, true), level(STORE_STATE, true), level(STORE_CITY, true)));
+		q.setFilters(new QueryFilter[] { filter(STORE_COUNTRY, true, "USA"), filter(STORE_STATE, true, "WA"), filter(STORE_CITY, true, "Bellingham", "Tacoma") });
+		assertEquals("SELECT NON EMPTY {[Measures].[Store Sqft]} ON COLUMNS, NON EMPTY VisualTotals(Hierarchize({{[Store].[Store].[Store Country].[USA]},Exists({[Store].[Store].[Store State].[WA]},{[Store].[Store].[Store Country].[USA]}),Exists({[Store].[Store].[Store City].[Bellingham],[Store].[Store].[Store City].[Tacoma]},Exists({[Store].[Store].[Store State].[WA]},{[Store].[Store].[Store Country].[USA]}))})) ON ROWS FROM [Store]",
+				mdxBuilder.buildMdx(q, datasetRef()));
+	}
+
+	@Test
+	public void testConnectionName() throws Exception {
+		assertEquals("foodmart", datasetRef().getConnectionName());
+		DatasetRef ref = new DatasetRef();
+		ref.setId("Dataset1");
+		assertNull(ref.getConnectionName());
+	}
+
+	private static DatasetRef datasetRef() {
+		DatasetRef ret = new DatasetRef();
+		ret.setId("/mondrian-rest/getMetadata?connectionName=foodmart");
+		ret.setCube("Store");
+		return ret;
+	}
+
+	private static Query query(QueryMeasure[] measures, QueryLevel[] levels) {
+		Query ret = new Query();
+		ret.setNonEmpty(true);
+		ret.setFilterParentAggregates(true);
+		ret.setMeasures(measures);
+		ret.setLevels(levels);
+		ret.setFilters(new QueryFilter[0]);
+		return ret;
+	}
+
+	private static QueryMeasure[] measures(String... uniqueNames) {
+		QueryMeasure[] ret = new QueryMeasure[uniqueNames.length];
+		for (int i=0;i < uniqueNames.length;i++) {
+			ret[i] = new QueryMeasure();
+			ret[i].setUniqueName(uniqueNames[i]);
+		}
+		return ret;
+	}
+
+	private static QueryLevel[] levels(QueryLevel... levels) {
+		return levels;
+	}
+
+	private static QueryLevel level(String uniqueName, boolean rowOrientation) {
+		QueryLevel ret = new QueryLevel();
+		ret.setUniqueName(uniqueName);
+		ret.setRowOrientation(rowOrientation);
+		return ret;
+	}
+
+	private static QueryFilter filter(String levelUniqueName, boolean include, String... memberNames) {
+		QueryFilter ret = new QueryFilter();
+		ret.setLevelUniqueName(levelUniqueName);
+		ret.setInclude(include);
+		ret.setLevelMemberNames(memberNames);
+		return ret;
+	}
+
+}
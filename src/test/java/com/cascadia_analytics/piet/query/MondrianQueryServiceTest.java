@@ -0,0 +1,247 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.query.StubMondrianRest.Response;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+public class MondrianQueryServiceTest {
+
+	// a stub mondrian-rest: answers every query with the number of queries it has received, fails queries containing "bad",
+	// and holds queries containing "slow" until released
+
+	private StubMondrianRest stubServer;
+	private AtomicInteger requestCount;
+	private CountDownLatch slowQueryRelease;
+	private PietConfiguration pietConfiguration;
+	private MondrianQueryService queryService;
+	private MeterRegistry meterRegistry;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		requestCount = new AtomicInteger();
+		slowQueryRelease = new CountDownLatch(1);
+		meterRegistry = new SimpleMeterRegistry();
+		stubServer = new StubMondrianRest().on("query", (exchange, body) -> {
+			int count = requestCount.incrementAndGet();
+			if (body.contains("slow")) {
+				try {
+					slowQueryRelease.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return body.contains("bad") ? Response.error(400, "error while parsing") : Response.ok("{\"count\":" + count + "}");
+		});
+		pietConfiguration = stubServer.newConfiguration();
+		queryService = stubServer.newQueryService(pietConfiguration, meterRegistry);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		stubServer.stop();
+	}
+
+	@Test
+	public void testCacheHit() throws Exception {
+		assertEquals("{\"count\":1}", queryService.executeQuery("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1"));
+		assertEquals("{\"count\":1}", queryService.executeQuery("c1", "  SELECT {[Measures].[Unit Sales]}\n\tON COLUMNS   FROM [Sales] ", "u1"));
+		assertEquals(1, requestCount.get());
+		assertEquals(1, queryService.getCacheStatistics().getHitCount());
+		assertEquals(1, queryService.getCacheStatistics().getMissCount());
+		// same query against another connection is a different result
+		assertEquals("{\"count\":2}", queryService.executeQuery("c2", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1"));
+		assertEquals(1, meterRegistry.get(MondrianRestClient.METRIC_NAME).tag("connection", "c1").tag("status", "200").timer().count());
+	}
+
+	@Test
+	public void testInvalidateConnection() throws Exception {
+		queryService.executeQuery("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1");
+		queryService.executeQuery("c2", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1");
+		queryService.invalidate("c1");
+		assertEquals("{\"count\":3}", queryService.executeQuery("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1"));
+		assertEquals("{\"count\":2}", queryService.executeQuery("c2", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1"));
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		queryService.executeQuery("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1");
+		assertEquals("{\"count\":2}", queryService.refreshQuery("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", 3600));
+		assertEquals("{\"count\":2}", queryService.executeQuery("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1"));
+		assertEquals(2, requestCount.get());
+	}
+
+	@Test
+	public void testErrorsNotCached() throws Exception {
+		MondrianRestException e = assertThrows(MondrianRestException.class, () -> queryService.executeQuery("c1", "bad", "u1"));
+		assertEquals(400, e.getStatus());
+		assertEquals("{\"reason\":\"error while parsing\"}", e.getResponseBody());
+		assertThrows(MondrianRestException.class, () -> queryService.executeQuery("c1", "bad", "u1"));
+		assertEquals(2, requestCount.get());
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i=0;i < 4;i++) {
+				results.add(executor.submit(() -> queryService.executeQuery("c1", "SELECT {[Measures].[slow]} ON COLUMNS FROM [Sales]", "u1")));
+			}
+			long deadline = System.currentTimeMillis() + 10000;
+			while (queryService.getCacheStatistics().getCoalescedCount() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(1, queryService.getCacheStatistics().getInFlightCount());
+			slowQueryRelease.countDown();
+			for (Future<String> result : results) {
+				assertEquals("{\"count\":1}", result.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals(1, requestCount.get());
+			assertEquals(3, queryService.getCacheStatistics().getCoalescedCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testMetersRegistered() throws Exception {
+		pietConfiguration.setAdmissionEnabled(true);
+		pietConfiguration.setAdmissionMaxConcurrent(1);
+		pietConfiguration.setAdmissionMaxQueued(1);
+		pietConfiguration.setAdmissionMaxPerUser(1);
+		pietConfiguration.setAdmissionQueueTimeoutSeconds(1);
+		// the same meters, as /actuator/prometheus scrapes them
+		PrometheusMeterRegistry prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		CompositeMeterRegistry registry = new CompositeMeterRegistry(Clock.SYSTEM, Arrays.asList(meterRegistry, prometheusRegistry));
+		MondrianQueryService meteredService = stubServer.newQueryService(pietConfiguration, registry);
+		meteredService.bindTo(registry);
+		String mdx = "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]";
+		meteredService.executeQuery("c1", mdx, "u1");
+		meteredService.executeQuery("c1", mdx, "u1");
+
+		assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "mondrianQueryResults").tag("result", "hit").functionCounter().count());
+		assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "mondrianQueryResults").tag("result", "miss").functionCounter().count());
+		assertEquals(0, meterRegistry.get("piet.query.coalesced").functionCounter().count());
+		assertEquals(0, meterRegistry.get("piet.query.coalesced.timeouts").functionCounter().count());
+		assertEquals(0, meterRegistry.get("piet.query.coalesced.takeovers").functionCounter().count());
+		assertEquals(0, meterRegistry.get("piet.query.inflight").gauge().value());
+		assertEquals(0, meterRegistry.get(QueryAdmissionController.METRIC_PREFIX + ".running").tag("connection", "c1").gauge().value());
+		assertEquals(0, meterRegistry.get(QueryAdmissionController.METRIC_PREFIX + ".queued").tag("connection", "c1").gauge().value());
+		assertEquals(1, meterRegistry.get(QueryAdmissionController.METRIC_PREFIX + ".wait").tag("connection", "c1").timer().count());
+		assertEquals(1, meterRegistry.get(MondrianRestClient.METRIC_NAME).tag("connection", "c1").timer().count());
+
+		// rejections are counted by reason
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> slow = executor.submit(() -> meteredService.executeQuery("c1", "SELECT {[Measures].[slow]} ON COLUMNS FROM [Sales]", "u1"));
+			awaitTrue(() -> requestCount.get() == 2);
+			assertThrows(QueryRejectedException.class, () -> meteredService.executeQuery("c1", "SELECT {[Measures].[Store Sales]} ON COLUMNS FROM [Sales]", "u1"));
+			slowQueryRelease.countDown();
+			slow.get(5, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, meterRegistry.get(QueryAdmissionController.METRIC_PREFIX + ".rejected").tag("connection", "c1").tag("reason", "user_limit").counter().count());
+
+		String scrape = prometheusRegistry.scrape();
+		for (String name : new String[] { "cache_gets_total{cache=\"mondrianQueryResults\"", "piet_query_coalesced_total", "piet_query_coalesced_timeouts_total",
+				"piet_query_coalesced_takeovers_total", "piet_query_inflight", "piet_query_admission_running{connection=\"c1\"",
+				"piet_query_admission_queued{connection=\"c1\"", "piet_query_admission_wait_seconds_count{connection=\"c1\"",
+				"piet_query_admission_rejected_total{connection=\"c1\",reason=\"user_limit\"", "piet_mondrian_requests_seconds_count{" }) {
+			assertTrue(scrape.contains(name), name);
+		}
+	}
+
+	@Test
+	public void testCoalescedQueriesAdmittedPerUser() throws Exception {
+		pietConfiguration.setAdmissionEnabled(true);
+		pietConfiguration.setAdmissionMaxConcurrent(1);
+		pietConfiguration.setAdmissionMaxQueued(2);
+		pietConfiguration.setAdmissionMaxPerUser(1);
+		pietConfiguration.setAdmissionQueueTimeoutSeconds(1);
+		MondrianQueryService admittedService = stubServer.newQueryService(pietConfiguration, meterRegistry);
+		admittedService.bindTo(meterRegistry);
+		String mdx = "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]";
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			// u1 is at its limit, with a query of its own holding the connection's only slot
+			Future<String> u1Own = executor.submit(() -> admittedService.executeQuery("c1", "SELECT {[Measures].[slow]} ON COLUMNS FROM [Sales]", "u1"));
+			awaitTrue(() -> requestCount.get() == 1);
+			QueryRejectedException e = assertThrows(QueryRejectedException.class, () -> admittedService.executeQuery("c1", mdx, "u1"));
+			assertEquals(429, e.getStatus());
+
+			// u2 leads the query and queues for the slot; u1 can't get around its limit by waiting on u2's query
+			Future<String> u2 = executor.submit(() -> admittedService.executeQuery("c1", mdx, "u2"));
+			awaitTrue(() -> meterRegistry.get(QueryAdmissionController.METRIC_PREFIX + ".queued").tag("connection", "c1").gauge().value() == 1);
+			e = assertThrows(QueryRejectedException.class, () -> admittedService.executeQuery("c1", mdx, "u1"));
+			assertEquals(429, e.getStatus());
+
+			// u3 waits on u2's query, and when u2 times out waiting for the slot, u3 takes over rather than sharing u2's rejection
+			Future<String> u3 = executor.submit(() -> admittedService.executeQuery("c1", mdx, "u3"));
+			awaitTrue(() -> admittedService.getCacheStatistics().getCoalescedCount() == 1);
+			ExecutionException u2Failure = assertThrows(ExecutionException.class, () -> u2.get(10, TimeUnit.SECONDS));
+			assertEquals(503, ((QueryRejectedException) u2Failure.getCause()).getStatus());
+			slowQueryRelease.countDown();
+			assertEquals("{\"count\":1}", u1Own.get(10, TimeUnit.SECONDS));
+			assertEquals("{\"count\":2}", u3.get(10, TimeUnit.SECONDS));
+			assertEquals(1, meterRegistry.get("piet.query.coalesced.takeovers").functionCounter().count());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testNormalize() throws Exception {
+		assertEquals("SELECT {[Store  Name].[A  B]} ON COLUMNS FROM [Sales]", QueryCacheKey.normalize(" SELECT  {[Store  Name].[A  B]}\n ON COLUMNS FROM [Sales]\n"));
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for condition");
+			Thread.sleep(5);
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class QueryAdmissionControllerTest {
+
+	private PietConfiguration pietConfiguration;
+	private MeterRegistry meterRegistry;
+	private QueryAdmissionController admissionController;
+	private ExecutorService executor;
+	private CountDownLatch release;
+
+	@BeforeEach
+	public void setUp() {
+		pietConfiguration = new PietConfiguration();
+		pietConfiguration.setAdmissionEnabled(true);
+		pietConfiguration.setAdmissionMaxConcurrent(1);
+		pietConfiguration.setAdmissionMaxQueued(3);
+		pietConfiguration.setAdmissionMaxPerUser(3);
+		pietConfiguration.setAdmissionQueueTimeoutSeconds(10);
+		pietConfiguration.setAdmissionRetryAfterSeconds(7);
+		meterRegistry = new SimpleMeterRegistry();
+		admissionController = new QueryAdmissionController(pietConfiguration, meterRegistry);
+		executor = Executors.newCachedThreadPool();
+		release = new CountDownLatch(1);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+		List<String> admitted = new CopyOnWriteArrayList<>();
+		Future<String> running = submit("a", "a0", admitted, release);
+		awaitGauge("running", 1);
+		CountDownLatch go = new CountDownLatch(0);
+		Future<String> a1 = submit("a", "a1", admitted, go);
+		awaitGauge("queued", 1);
+		Future<String> a2 = submit("a", "a2", admitted, go);
+		awaitGauge("queued", 2);
+		Future<String> b1 = submit("b", "b1", admitted, go);
+		awaitGauge("queued", 3);
+		release.countDown();
+		for (Future<String> f : Arrays.asList(running, a1, a2, b1)) {
+			f.get(10, TimeUnit.SECONDS);
+		}
+		// b's query goes ahead of a's second queued query
+		assertEquals(Arrays.asList("a0", "a1", "b1", "a2"), admitted);
+		awaitGauge("running", 0);
+	}
+
+	@Test
+	public void testRejections() throws Exception {
+		pietConfiguration.setAdmissionMaxPerUser(2);
+		pietConfiguration.setAdmissionMaxQueued(2);
+		List<String> admitted = new CopyOnWriteArrayList<>();
+		submit("a", "a0", admitted, release);
+		awaitGauge("running", 1);
+		submit("a", "a1", admitted, release);
+		awaitGauge("queued", 1);
+		QueryRejectedException e = assertThrows(QueryRejectedException.class, () -> admissionController.execute("c1", "a", () -> "a2"));
+		assertEquals(429, e.getStatus());
+		assertEquals(7, e.getRetryAfterSeconds());
+		submit("b", "b0", admitted, release);
+		awaitGauge("queued", 2);
+		e = assertThrows(QueryRejectedException.class, () -> admissionController.execute("c1", "c", () -> "c0"));
+		assertEquals(503, e.getStatus());
+		// other connections have their own bulkhead
+		assertEquals("x", admissionController.execute("c2", "c", () -> "x"));
+		assertEquals(1, meterRegistry.get(QueryAdmissionController.METRIC_PREFIX + ".rejected").tag("reason", "user_limit").counter().count());
+		assertEquals(1, meterRegistry.get(QueryAdmissionController.METRIC_PREFIX + ".rejected").tag("reason", "saturated").counter().count());
+	}
+
+	@Test
+	public void testAnonymousUsersHaveNoUserLimit() throws Exception {
+		pietConfiguration.setAdmissionMaxPerUser(1);
+		List<String> admitted = new CopyOnWriteArrayList<>();
+		submit(QueryAdmissionController.ANONYMOUS_USER, "x0", admitted, release);
+		awaitGauge("running", 1);
+		// possibly everyone behind one proxy, so only the connection's limits apply
+		admissionController.checkUser("c1", QueryAdmissionController.ANONYMOUS_USER);
+		submit(QueryAdmissionController.ANONYMOUS_USER, "x1", admitted, release);
+		awaitGauge("queued", 1);
+		submit("a", "a0", admitted, release);
+		awaitGauge("queued", 2);
+		assertThrows(QueryRejectedException.class, () -> admissionController.checkUser("c1", "a"));
+	}
+
+	@Test
+	public void testQueueTimeout() throws Exception {
+		pietConfiguration.setAdmissionQueueTimeoutSeconds(1);
+		submit("a", "a0", new CopyOnWriteArrayList<>(), release);
+		awaitGauge("running", 1);
+		QueryRejectedException e = assertThrows(QueryRejectedException.class, () -> admissionController.execute("c1", "b", () -> "b0"));
+		assertEquals(503, e.getStatus());
+		assertEquals(0, gauge("queued"));
+		// the user's place was given up, so it can queue again
+		release.countDown();
+		assertEquals("b1", admissionController.execute("c1", "b", () -> "b1"));
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		pietConfiguration.setAdmissionEnabled(false);
+		pietConfiguration.setAdmissionMaxConcurrent(0);
+		assertEquals("x", admissionController.execute("c1", null, () -> "x"));
+	}
+
+	private Future<String> submit(String user, String name, List<String> admitted, CountDownLatch latch) {
+		return executor.submit(() -> admissionController.execute("c1", user, () -> {
+			admitted.add(name);
+			try {
+				latch.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return name;
+		}));
+	}
+
+	private double gauge(String name) {
+		// the gauges appear with the connection's first query
+		Gauge gauge = meterRegistry.find(QueryAdmissionController.METRIC_PREFIX + "." + name).tag("connection", "c1").gauge();
+		return gauge == null ? Double.NaN : gauge.value();
+	}
+
+	private void awaitGauge(String name, double value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (gauge(name) != value && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(value, gauge(name));
+	}
+
+}
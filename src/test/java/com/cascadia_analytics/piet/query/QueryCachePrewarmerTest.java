@@ -0,0 +1,240 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.PrewarmReport;
+import com.cascadia_analytics.piet.domain.PrewarmReportEntry;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+import com.cascadia_analytics.piet.query.StubMondrianRest.Response;
+import com.cascadia_analytics.piet.repository.AnalysisRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class QueryCachePrewarmerTest {
+
+	// the stub mondrian-rest fails queries of the cube [bad], and holds queries of the cube
+	// [slow] until released
+
+	private StubMondrianRest stubServer;
+	private AtomicInteger requestCount;
+	private CountDownLatch slowQueryRelease;
+	private PietConfiguration pietConfiguration;
+	private List<Analysis> mostRead;
+	private QueryCachePrewarmer prewarmer;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		requestCount = new AtomicInteger();
+		slowQueryRelease = new CountDownLatch(1);
+		stubServer = new StubMondrianRest().on("query", (exchange, body) -> {
+			requestCount.incrementAndGet();
+			if (body.contains("[slow]")) {
+				try {
+					slowQueryRelease.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return body.contains("[bad]") ? Response.error(400, "error while parsing") : Response.ok("{\"ok\":true}");
+		});
+		MeterRegistry meterRegistry = new SimpleMeterRegistry();
+		pietConfiguration = stubServer.newConfiguration();
+		pietConfiguration.setPrewarmTopN(10);
+		pietConfiguration.setPrewarmConcurrency(2);
+		pietConfiguration.setPrewarmTimeBudgetSeconds(1);
+		pietConfiguration.setPrewarmResultTtlSeconds(60);
+		MondrianQueryService queryService = stubServer.newQueryService(pietConfiguration, meterRegistry);
+		mostRead = new ArrayList<>();
+		// prewarming only asks the repository for the most-read analyses
+		AnalysisRepository analysisRepository = (AnalysisRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AnalysisRepository.class },
+				(proxy, method, args) -> {
+					if (method.getName().equals("toString")) {
+						return "stub AnalysisRepository";
+					}
+					if (!method.getName().equals("findMostRead")) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+					return new ArrayList<>(mostRead.subList(0, Math.min((Integer) args[0], mostRead.size())));
+				});
+		prewarmer = new QueryCachePrewarmer();
+		ReflectionTestUtils.setField(prewarmer, "analysisRepository", analysisRepository);
+		ReflectionTestUtils.setField(prewarmer, "mondrianQueryService", queryService);
+		ReflectionTestUtils.setField(prewarmer, "pietConfiguration", pietConfiguration);
+		prewarmer.init();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		slowQueryRelease.countDown();
+		prewarmer.shutdown();
+		stubServer.stop();
+	}
+
+	@Test
+	public void testReportStatuses() throws Exception {
+		mostRead.addAll(Arrays.asList(analysis("a1", "foodmart"), analysis("bad", "foodmart"), analysis("a2", null), analysis("a3", "foodmart")));
+		Analysis empty = analysis("empty", "foodmart");
+		empty.setQuery(null);
+		mostRead.add(empty);
+		assertNull(prewarmer.getLastReport());
+		PrewarmReport report = prewarmer.prewarm();
+		Map<String, PrewarmReportEntry> entries = byId(report);
+		assertEquals(5, entries.size());
+		assertEquals(PrewarmReportEntry.STATUS_WARMED, entries.get("a1").getStatus());
+		assertEquals(PrewarmReportEntry.STATUS_WARMED, entries.get("a3").getStatus());
+		assertEquals(PrewarmReportEntry.STATUS_FAILED, entries.get("bad").getStatus());
+		assertNotNull(entries.get("bad").getMessage());
+		// a dataset without a connection can't be queried at all
+		assertEquals(PrewarmReportEntry.STATUS_FAILED, entries.get("a2").getStatus());
+		assertEquals(PrewarmReportEntry.STATUS_NOTHING_TO_QUERY, entries.get("empty").getStatus());
+		assertEquals(3, requestCount.get());
+		assertTrue(report == prewarmer.getLastReport());
+	}
+
+	@Test
+	public void testTimeBudget() throws Exception {
+		mostRead.addAll(Arrays.asList(analysis("slow", "foodmart"), analysis("a1", "foodmart"), analysis("a2", "foodmart")));
+		long start = System.nanoTime();
+		PrewarmReport report = prewarmer.prewarm();
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		// the run ends at the budget, not when the slow query does
+		assertTrue(elapsedMillis < 3000, "took " + elapsedMillis + " ms");
+		Map<String, PrewarmReportEntry> entries = byId(report);
+		assertEquals(PrewarmReportEntry.STATUS_OUT_OF_TIME, entries.get("slow").getStatus());
+		assertEquals(PrewarmReportEntry.STATUS_WARMED, entries.get("a1").getStatus());
+		assertEquals(PrewarmReportEntry.STATUS_WARMED, entries.get("a2").getStatus());
+		// the cancelled query still completes, but the published report doesn't change
+		slowQueryRelease.countDown();
+		Thread.sleep(500);
+		assertEquals(PrewarmReportEntry.STATUS_OUT_OF_TIME, byId(prewarmer.getLastReport()).get("slow").getStatus());
+	}
+
+	@Test
+	public void testSkippedWhileAbandonedQueriesRun() throws Exception {
+		mostRead.addAll(Arrays.asList(analysis("slow", "foodmart"), analysis("a1", "foodmart")));
+		PrewarmReport abandoning = prewarmer.prewarm();
+		assertEquals(PrewarmReportEntry.STATUS_OUT_OF_TIME, byId(abandoning).get("slow").getStatus());
+		assertEquals(2, requestCount.get());
+		// the abandoned query still runs, so the next run queries nothing
+		PrewarmReport skipped = prewarmer.prewarm();
+		assertEquals(0, skipped.getEntries().length);
+		assertNotNull(skipped.getMessage());
+		assertEquals(2, requestCount.get());
+		assertTrue(abandoning == prewarmer.getLastReport());
+		// and once it's done, runs resume
+		slowQueryRelease.countDown();
+		Thread.sleep(500);
+		PrewarmReport resumed = prewarmer.prewarm();
+		assertNull(resumed.getMessage());
+		assertEquals(PrewarmReportEntry.STATUS_WARMED, byId(resumed).get("slow").getStatus());
+		assertEquals(PrewarmReportEntry.STATUS_WARMED, byId(resumed).get("a1").getStatus());
+	}
+
+	@Test
+	public void testConcurrentPrewarms() throws Exception {
+		mostRead.addAll(Arrays.asList(analysis("a1", "foodmart"), analysis("a2", "foodmart")));
+		ExecutorService callers = Executors.newFixedThreadPool(2);
+		try {
+			Future<PrewarmReport> first = callers.submit(prewarmer::prewarm);
+			Future<PrewarmReport> second = callers.submit(prewarmer::prewarm);
+			// until a run finishes, the report (as GET /query/prewarm returns it) is either absent or complete
+			List<PrewarmReport> seen = new ArrayList<>();
+			while (!(first.isDone() && second.isDone())) {
+				PrewarmReport report = prewarmer.getLastReport();
+				if (report != null && !seen.contains(report)) {
+					seen.add(report);
+				}
+				Thread.sleep(10);
+			}
+			for (PrewarmReport report : seen) {
+				assertEquals(2, report.getEntries().length);
+				assertNotNull(report.getEndDateTime());
+			}
+			PrewarmReport firstReport = first.get();
+			PrewarmReport secondReport = second.get();
+			// runs are serialized, not interleaved
+			PrewarmReport earlier = firstReport.getEndDateTime().before(secondReport.getEndDateTime()) ? firstReport : secondReport;
+			PrewarmReport later = earlier == firstReport ? secondReport : firstReport;
+			assertTrue(!later.getStartDateTime().before(earlier.getEndDateTime()));
+			assertTrue(later == prewarmer.getLastReport());
+			for (PrewarmReport report : Arrays.asList(firstReport, secondReport)) {
+				assertEquals(2, report.getEntries().length);
+				assertEquals(PrewarmReportEntry.STATUS_WARMED, byId(report).get("a1").getStatus());
+				assertEquals(PrewarmReportEntry.STATUS_WARMED, byId(report).get("a2").getStatus());
+			}
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+
+	private static Map<String, PrewarmReportEntry> byId(PrewarmReport report) {
+		return Arrays.stream(report.getEntries()).collect(Collectors.toMap(PrewarmReportEntry::getAnalysisId, Function.identity()));
+	}
+
+	/**
+	 * An analysis of the cube named by its id, in the given mondrian-rest connection (null for a dataset without one).
+	 */
+	private static Analysis analysis(String id, String connectionName) {
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId(connectionName == null ? "/datasets/" + id : "/mondrian-rest/getMetadata?connectionName=" + connectionName);
+		datasetRef.setCube(id);
+		QueryMeasure measure = new QueryMeasure();
+		measure.setUniqueName("[Measures].[Store Sqft]");
+		Query query = new Query();
+		query.setNonEmpty(true);
+		query.setMeasures(new QueryMeasure[] { measure });
+		query.setLevels(new QueryLevel[0]);
+		query.setFilters(new QueryFilter[0]);
+		Analysis analysis = new Analysis();
+		analysis.setId(id);
+		analysis.setName("Analysis " + id);
+		analysis.setDatasetRef(datasetRef);
+		analysis.setQuery(query);
+		return analysis;
+	}
+
+}
@@ -0,0 +1,107 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.query.ResultExport.Format;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ResultExportTest {
+
+	// the ui's test results: 6 columns by 39 rows, with two dimensions on rows
+	private static final String RESULT_FILE = "ui/test/_data/mondrian-results-2m2r2c.json";
+
+	@Test
+	public void testCsv() throws Exception {
+		String json = new String(Files.readAllBytes(Paths.get(RESULT_FILE)), StandardCharsets.UTF_8);
+		JsonNode result = new ObjectMapper().readTree(json);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResultExport.of(json).write(Format.CSV, out);
+		String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\r\n");
+		assertEquals(40, lines.length);
+		assertEquals("Product,Warehouse,CA / 1997 / Units Shipped", lines[0].substring(0, "Product,Warehouse,CA / 1997 / Units Shipped".length()));
+		assertEquals("Drink,Beverly Hills,1420", lines[1].substring(0, "Drink,Beverly Hills,1420".length()));
+		for (JsonNode cell : result.get("cells")) {
+			String[] fields = lines[cell.at("/coordinates/1").asInt() + 1].split(",", -1);
+			assertEquals(8, fields.length);
+			String field = fields[cell.at("/coordinates/0").asInt() + 2];
+			if (cell.get("value").isNull()) {
+				assertEquals("", field);
+			} else {
+				assertEquals(cell.get("value").asDouble(), Double.parseDouble(field));
+			}
+		}
+	}
+
+	@Test
+	public void testXlsx() throws Exception {
+		String json = new String(Files.readAllBytes(Paths.get(RESULT_FILE)), StandardCharsets.UTF_8);
+		JsonNode result = new ObjectMapper().readTree(json);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResultExport.of(json).write(Format.XLSX, out);
+		try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))) {
+			Sheet sheet = workbook.getSheetAt(0);
+			assertEquals(39, sheet.getLastRowNum());
+			assertEquals("Warehouse", sheet.getRow(0).getCell(1).getStringCellValue());
+			assertEquals("Drink", sheet.getRow(1).getCell(0).getStringCellValue());
+			for (JsonNode cell : result.get("cells")) {
+				Row row = sheet.getRow(cell.at("/coordinates/1").asInt() + 1);
+				int c = cell.at("/coordinates/0").asInt() + 2;
+				if (cell.get("value").isNull()) {
+					assertNull(row.getCell(c));
+				} else {
+					assertEquals(cell.get("value").asDouble(), row.getCell(c).getNumericCellValue());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSparseAndMalformedResults() throws Exception {
+		// missing cells are left empty, and text is quoted as needed
+		String json = "{'cells':[{'ordinal':0,'value':null,'error':'#ERR, \\\"div\\\"'},{'ordinal':3,'value':2.5}],'axes':[".replace('\'', '"') +
+				"{\"positions\":[{\"positionMembers\":[{\"memberValue\":\"a\"}]},{\"positionMembers\":[{\"memberValue\":\"b\"}]}]}," +
+				"{\"positions\":[{\"memberDimensionCaptions\":[\"D\"],\"positionMembers\":[{\"memberValue\":\"x\"}]},{\"positionMembers\":[{\"memberValue\":\"y\"}]}]}]}";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResultExport.of(json).write(Format.CSV, out);
+		assertEquals("D,a,b\r\nx,\"#ERR, \"\"div\"\"\",\r\ny,,2.5\r\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+		assertThrows(IOException.class, () -> ResultExport.of("[]"));
+		assertThrows(IllegalArgumentException.class, () -> ResultExport.of("{\"axes\":[{},{},{}]}"));
+		assertThrows(IllegalArgumentException.class, () -> Format.of("pdf"));
+		// cells must come in ordinal order to be streamed
+		assertThrows(IOException.class, () -> ResultExport.of(json.replace("\"ordinal\":0", "\"ordinal\":5")).write(Format.CSV, new ByteArrayOutputStream()));
+		assertEquals("a_b_.csv", ResultExport.fileName("a/b:", Format.CSV));
+		assertEquals("analysis.xlsx", ResultExport.fileName(" ", Format.XLSX));
+	}
+
+}
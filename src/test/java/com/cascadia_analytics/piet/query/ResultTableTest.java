@@ -0,0 +1,91 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.domain.ResultWindow;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ResultTableTest {
+
+	// the ui's test results: 6 columns by 39 rows
+	static final String RESULT_FILE = "ui/test/_data/mondrian-results-2m2r2c.json";
+
+	@Test
+	public void testWindows() throws Exception {
+		String json = new String(Files.readAllBytes(Paths.get(RESULT_FILE)), StandardCharsets.UTF_8);
+		JsonNode result = new ObjectMapper().readTree(json);
+		ResultTable table = ResultTable.parse(json);
+		assertEquals(39, table.getRowCount());
+		assertEquals(6, table.getColumnCount());
+		assertTrue(table.weight() > 234 * 8);
+
+		ResultWindow window = table.window(10, 20, 2, 3);
+		assertEquals(3, window.getValues().length);
+		assertEquals(20, window.getValues()[0].length);
+		assertEquals(result.at("/axes/0/positions/2"), window.getColumnPositions().get(0));
+		assertEquals(result.at("/axes/1/positions/29"), window.getRowPositions().get(19));
+		int checked = 0;
+		for (JsonNode cell : result.get("cells")) {
+			int c = cell.at("/coordinates/0").asInt() - 2;
+			int r = cell.at("/coordinates/1").asInt() - 10;
+			if (c >= 0 && c < 3 && r >= 0 && r < 20) {
+				if (cell.get("value").isNull()) {
+					assertNull(window.getValues()[c][r]);
+				} else {
+					assertEquals(cell.get("value").asDouble(), window.getValues()[c][r]);
+				}
+				assertEquals(cell.get("formattedValue").isNull() ? null : cell.get("formattedValue").asText(), window.getFormattedValues()[c][r]);
+				checked++;
+			}
+		}
+		assertEquals(60, checked);
+
+		// windows are clipped to the result
+		ResultWindow last = table.window(35, 100, 0, 100);
+		assertEquals(6, last.getValues().length);
+		assertEquals(4, last.getValues()[0].length);
+		assertEquals(4, last.getRowPositions().size());
+		assertEquals(0, table.window(39, 10, 0, 6).getRowPositions().size());
+	}
+
+	@Test
+	public void testSparseAndMalformedResults() throws Exception {
+		// cells are placed by ordinal, whatever order they come in
+		ResultTable table = ResultTable.parse("{'cells':[{'ordinal':3,'value':4,'formattedValue':'4'},{'ordinal':0,'value':null,'error':'#ERR'}],"
+				.replace('\'', '"') + "\"axes\":[{\"positions\":[{},{}]},{\"positions\":[{},{}]}]}");
+		ResultWindow window = table.window(0, 2, 0, 2);
+		assertEquals(4.0, window.getValues()[1][1]);
+		assertNull(window.getValues()[0][0]);
+		assertEquals("#ERR", window.getFormattedValues()[0][0]);
+		assertNull(window.getFormattedValues()[1][0]);
+		assertThrows(IOException.class, () -> ResultTable.parse("[]"));
+		assertThrows(IllegalArgumentException.class, () -> ResultTable.parse("{\"axes\":[{},{},{}]}"));
+	}
+
+}
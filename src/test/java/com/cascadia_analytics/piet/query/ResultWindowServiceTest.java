@@ -0,0 +1,84 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.ResultHandle;
+import com.cascadia_analytics.piet.domain.ResultWindow;
+import com.cascadia_analytics.piet.query.StubMondrianRest.Response;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ResultWindowServiceTest {
+
+	// the stub mondrian-rest answers queries of the cube [Large] with a single column of LARGE_ROWS rows, well over a megabyte
+	// held, and any other query with the ui's test result of 6 columns by 39 rows
+	private static final int LARGE_ROWS = 50000;
+
+	private StubMondrianRest stubServer;
+	private ResultWindowService resultWindowService;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		String result = new String(Files.readAllBytes(Paths.get(ResultTableTest.RESULT_FILE)), StandardCharsets.UTF_8);
+		String largeResult = "{\"axes\":[{\"positions\":[{}]},{\"positions\":[" + String.join(",", Collections.nCopies(LARGE_ROWS, "{\"memberDimensionNames\":[]}"))
+				+ "]}],\"cells\":[]}";
+		stubServer = new StubMondrianRest().on("query", (exchange, body) -> Response.ok(body.contains("[Large]") ? largeResult : result));
+		PietConfiguration pietConfiguration = stubServer.newConfiguration();
+		pietConfiguration.setQueryWindowMaxSizeMb(1);
+		pietConfiguration.setQueryWindowIdleSeconds(60);
+		resultWindowService = new ResultWindowService(stubServer.newQueryService(pietConfiguration, new SimpleMeterRegistry()), pietConfiguration);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		stubServer.stop();
+	}
+
+	@Test
+	public void testOpenReadRelease() throws Exception {
+		ResultHandle handle = resultWindowService.open("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Sales]", "u1");
+		assertEquals(39, handle.getRowCount());
+		assertEquals(6, handle.getColumnCount());
+		assertEquals(60, handle.getIdleSeconds());
+		ResultWindow window = resultWindowService.getWindow(handle.getHandle(), 30, null, 4, null);
+		assertEquals(handle.getHandle(), window.getHandle());
+		assertEquals(9, window.getRowPositions().size());
+		assertEquals(2, window.getColumnPositions().size());
+		resultWindowService.release(handle.getHandle());
+		assertNull(resultWindowService.getWindow(handle.getHandle(), 0, null, 0, null));
+	}
+
+	@Test
+	public void testTooLargeToHold() throws Exception {
+		// held, it would be evicted at once and its handle would never be readable
+		assertThrows(IllegalArgumentException.class, () -> resultWindowService.open("c1", "SELECT {[Measures].[Unit Sales]} ON COLUMNS FROM [Large]", "u1"));
+	}
+
+}
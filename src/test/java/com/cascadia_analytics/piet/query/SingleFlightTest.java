@@ -0,0 +1,158 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+
+	private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+	private SingleFlight<String, String> singleFlight;
+	private ExecutorService executor;
+
+	@BeforeEach
+	public void setUp() {
+		singleFlight = new SingleFlight<>();
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger runs = new AtomicInteger();
+		List<Future<String>> results = new ArrayList<>();
+		for (int i=0;i < 8;i++) {
+			results.add(executor.submit(() -> singleFlight.execute("k", TIMEOUT, () -> {
+				release.await();
+				return "result " + runs.incrementAndGet();
+			})));
+		}
+		awaitCoalesced(7);
+		// a different key is not held up
+		assertEquals("other", singleFlight.execute("k2", TIMEOUT, () -> "other"));
+		release.countDown();
+		for (Future<String> result : results) {
+			assertEquals("result 1", result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, runs.get());
+		assertEquals(2, singleFlight.getExecutionCount());
+		assertEquals(0, singleFlight.getInFlightCount());
+		// nothing is remembered once the run completes
+		assertEquals("result 2", singleFlight.execute("k", TIMEOUT, () -> "result " + runs.incrementAndGet()));
+	}
+
+	@Test
+	public void testExceptionShared() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		IllegalArgumentException failure = new IllegalArgumentException("bad");
+		List<Future<String>> results = new ArrayList<>();
+		for (int i=0;i < 3;i++) {
+			results.add(executor.submit(() -> singleFlight.execute("k", TIMEOUT, () -> {
+				release.await();
+				throw failure;
+			})));
+		}
+		awaitCoalesced(2);
+		release.countDown();
+		for (Future<String> result : results) {
+			ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+			assertSame(failure, e.getCause());
+		}
+		assertEquals(0, singleFlight.getInFlightCount());
+	}
+
+	@Test
+	public void testLeaderFailureNotShared() throws Exception {
+		SingleFlight<String, String> singleFlight = new SingleFlight<>(failure -> !(failure instanceof IllegalStateException));
+		this.singleFlight = singleFlight;
+		CountDownLatch release = new CountDownLatch(1);
+		IllegalStateException leaderFailure = new IllegalStateException("not allowed");
+		Future<String> leader = executor.submit(() -> singleFlight.execute("k", TIMEOUT, () -> {
+			release.await();
+			throw leaderFailure;
+		}));
+		while (singleFlight.getInFlightCount() == 0) {
+			Thread.sleep(5);
+		}
+		List<Future<String>> waiters = new ArrayList<>();
+		AtomicInteger runs = new AtomicInteger();
+		for (int i=0;i < 3;i++) {
+			waiters.add(executor.submit(() -> singleFlight.execute("k", TIMEOUT, () -> "result " + runs.incrementAndGet())));
+		}
+		awaitCoalesced(3);
+		release.countDown();
+		ExecutionException e = assertThrows(ExecutionException.class, () -> leader.get(10, TimeUnit.SECONDS));
+		assertSame(leaderFailure, e.getCause());
+		// one waiter took over, and the others either waited for it or (arriving after it finished) ran again
+		for (Future<String> waiter : waiters) {
+			assertTrue(waiter.get(10, TimeUnit.SECONDS).startsWith("result "));
+		}
+		assertTrue(singleFlight.getTakeoverCount() >= 1);
+		assertEquals(1 + runs.get(), singleFlight.getExecutionCount());
+		assertEquals(0, singleFlight.getInFlightCount());
+	}
+
+	@Test
+	public void testWaitTimeout() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Future<String> leader = executor.submit(() -> singleFlight.execute("k", TIMEOUT, () -> {
+			release.await();
+			return "slow";
+		}));
+		while (singleFlight.getInFlightCount() == 0) {
+			Thread.sleep(5);
+		}
+		assertThrows(SingleFlight.WaitTimeoutException.class, () -> singleFlight.execute("k", Duration.ofMillis(50), () -> "not run"));
+		assertEquals(1, singleFlight.getTimeoutCount());
+		// the leader carries on regardless
+		release.countDown();
+		assertEquals("slow", leader.get(10, TimeUnit.SECONDS));
+		assertEquals(1, singleFlight.getExecutionCount());
+	}
+
+	private void awaitCoalesced(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (singleFlight.getCoalescedCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, singleFlight.getCoalescedCount());
+	}
+
+}
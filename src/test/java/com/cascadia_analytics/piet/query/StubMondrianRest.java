@@ -0,0 +1,146 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * A stub mondrian-rest for tests, listening on an ephemeral localhost port. Each test installs handlers for the endpoints it uses;
+ * requests are served concurrently, so handlers may block.
+ */
+public class StubMondrianRest {
+
+	/**
+	 * Answers a request to one endpoint.
+	 */
+	@FunctionalInterface
+	public interface Handler {
+		/**
+		 * @param exchange the request
+		 * @param body the request body
+		 * @return the response to send
+		 */
+		Response handle(HttpExchange exchange, String body) throws IOException;
+	}
+
+	/**
+	 * A json response.
+	 */
+	public static final class Response {
+
+		private final int status;
+		private final String body;
+
+		private Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		public static Response ok(String body) {
+			return new Response(200, body);
+		}
+
+		public static Response error(int status, String reason) {
+			return new Response(status, "{\"reason\":\"" + reason + "\"}");
+		}
+
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	public StubMondrianRest() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Installs the handler for the endpoint, e.g. "query" or "getMetadata".
+	 */
+	public StubMondrianRest on(String endpoint, Handler handler) {
+		server.createContext("/mondrian-rest/" + endpoint, exchange -> {
+			Response response = handler.handle(exchange, new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+			byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(response.status, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		});
+		return this;
+	}
+
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/mondrian-rest/";
+	}
+
+	/**
+	 * A configuration pointing at this server, with a small query cache.
+	 */
+	public PietConfiguration newConfiguration() {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setMondrianRestServerUrl(getUrl());
+		pietConfiguration.setMondrianRestReadTimeoutSeconds(5);
+		pietConfiguration.setQueryCacheMaxSizeMb(1);
+		pietConfiguration.setQueryCacheTtlSeconds(60);
+		pietConfiguration.setQueryCoalesceTimeoutSeconds(5);
+		return pietConfiguration;
+	}
+
+	public MondrianRestClient newClient(PietConfiguration pietConfiguration, MeterRegistry meterRegistry) {
+		return new MondrianRestClient(new RestTemplateBuilder(), pietConfiguration, meterRegistry);
+	}
+
+	/**
+	 * A query service against this server, configured as given.
+	 */
+	public MondrianQueryService newQueryService(PietConfiguration pietConfiguration, MeterRegistry meterRegistry) {
+		return new MondrianQueryService(newClient(pietConfiguration, meterRegistry), new MdxBuilder(),
+				new QueryAdmissionController(pietConfiguration, meterRegistry), pietConfiguration);
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			bos.write(buffer, 0, read);
+		}
+		return bos.toByteArray();
+	}
+
+}
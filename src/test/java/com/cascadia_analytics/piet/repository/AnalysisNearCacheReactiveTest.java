@@ -0,0 +1,182 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.Query;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * The reactive read path of {@link AnalysisNearCache}, against stub repositories (no change stream is started).
+ */
+public class AnalysisNearCacheReactiveTest {
+
+	private PietConfiguration pietConfiguration;
+	private AtomicInteger loads;
+	private AtomicInteger countedReads;
+	private Map<String, Long> flushedReads;
+	private Runnable duringLoad;
+	private ReactiveAnalysisRepository reactiveRepository;
+	private AnalysisRepository analysisRepository;
+
+	@BeforeEach
+	public void setUp() {
+		pietConfiguration = new PietConfiguration();
+		pietConfiguration.setAnalysisCacheEnabled(true);
+		pietConfiguration.setAnalysisCacheMaxSizeMb(1);
+		pietConfiguration.setAnalysisCacheTtlSeconds(60);
+		loads = new AtomicInteger();
+		countedReads = new AtomicInteger();
+		flushedReads = new HashMap<>();
+		duringLoad = () -> {};
+		reactiveRepository = stub(ReactiveAnalysisRepository.class, (method, args) -> {
+			switch (method) {
+			case "findById":
+				return "missing".equals(args[0]) ? Mono.empty() : Mono.fromCallable(() -> {
+					loads.incrementAndGet();
+					duringLoad.run();
+					return analysis((String) args[0], 5);
+				});
+			case "findAndIncrementReadCounter":
+				return Mono.fromCallable(() -> analysis((String) args[0], 5 + countedReads.incrementAndGet()));
+			default:
+				throw new UnsupportedOperationException(method);
+			}
+		});
+		analysisRepository = stub(AnalysisRepository.class, (method, args) -> {
+			if (method.equals("incrementReadCounters")) {
+				@SuppressWarnings("unchecked")
+				Map<String, Long> increments = (Map<String, Long>) args[0];
+				flushedReads.putAll(increments);
+				return null;
+			}
+			throw new UnsupportedOperationException(method);
+		});
+	}
+
+	@Test
+	public void testReadsCountedInMemory() throws Exception {
+		AnalysisNearCache nearCache = new AnalysisNearCache(analysisRepository, null, pietConfiguration);
+		assertEquals(6, nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block().getReadCounter());
+		assertEquals(7, nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block().getReadCounter());
+		assertEquals(1, loads.get());
+		assertTrue(nearCache.isCached("a1"));
+		assertNull(nearCache.findAndIncrementReadCounter("missing", reactiveRepository).block());
+
+		// reloading after a save keeps the reads not yet written
+		nearCache.invalidate("a1");
+		assertEquals(8, nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block().getReadCounter());
+		assertEquals(2, loads.get());
+		nearCache.flushReadCounters();
+		assertEquals(3L, flushedReads.get("a1"));
+	}
+
+	@Test
+	public void testLoadRacingAnInvalidationNotCached() throws Exception {
+		AnalysisNearCache nearCache = new AnalysisNearCache(analysisRepository, null, pietConfiguration);
+		duringLoad = () -> nearCache.invalidate("a1");
+		assertEquals(6, nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block().getReadCounter());
+		assertFalse(nearCache.isCached("a1"));
+		duringLoad = () -> {};
+		nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block();
+		assertTrue(nearCache.isCached("a1"));
+	}
+
+	@Test
+	public void testReadsDontShareState() throws Exception {
+		AnalysisNearCache nearCache = new AnalysisNearCache(analysisRepository, null, pietConfiguration);
+		Analysis read = nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block();
+		read.getQuery().getLevels()[0].setUniqueName("[Store].[Store].[Store State]");
+		read.getQuery().getMeasures()[0] = null;
+		read.getQuery().getFilters()[0].getLevelMemberNames()[0] = "Canada";
+		read.getDatasetRef().setCube("Warehouse");
+		read.getUpdateDateTime().setTime(0);
+		Analysis reread = nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block();
+		assertEquals(1, loads.get());
+		assertEquals("[Store].[Store].[Store Country]", reread.getQuery().getLevels()[0].getUniqueName());
+		assertEquals("[Measures].[Unit Sales]", reread.getQuery().getMeasures()[0].getUniqueName());
+		assertEquals("USA", reread.getQuery().getFilters()[0].getLevelMemberNames()[0]);
+		assertEquals("Sales", reread.getDatasetRef().getCube());
+		assertNotEquals(0, reread.getUpdateDateTime().getTime());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		pietConfiguration.setAnalysisCacheEnabled(false);
+		AnalysisNearCache nearCache = new AnalysisNearCache(analysisRepository, null, pietConfiguration);
+		assertEquals(6, nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block().getReadCounter());
+		assertEquals(7, nearCache.findAndIncrementReadCounter("a1", reactiveRepository).block().getReadCounter());
+		assertEquals(0, loads.get());
+		assertFalse(nearCache.isCached("a1"));
+	}
+
+	private static Analysis analysis(String id, long readCounter) {
+		Analysis analysis = new Analysis();
+		analysis.setId(id);
+		analysis.setName("Analysis " + id);
+		analysis.setVersion(0L);
+		analysis.setReadCounter(readCounter);
+		analysis.setUpdateDateTime(new Date());
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId("/mondrian-rest/getMetadata?connectionName=foodmart");
+		datasetRef.setCube("Sales");
+		analysis.setDatasetRef(datasetRef);
+		QueryMeasure measure = new QueryMeasure();
+		measure.setUniqueName("[Measures].[Unit Sales]");
+		QueryLevel level = new QueryLevel();
+		level.setUniqueName("[Store].[Store].[Store Country]");
+		level.setRowOrientation(true);
+		QueryFilter filter = new QueryFilter();
+		filter.setLevelUniqueName(level.getUniqueName());
+		filter.setInclude(true);
+		filter.setLevelMemberNames(new String[] { "USA" });
+		Query query = new Query();
+		query.setMeasures(new QueryMeasure[] { measure });
+		query.setLevels(new QueryLevel[] { level });
+		query.setFilters(new QueryFilter[] { filter });
+		analysis.setQuery(query);
+		return analysis;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> repositoryInterface, BiFunction<String, Object[], Object> methods) {
+		return (T) Proxy.newProxyInstance(AnalysisNearCacheReactiveTest.class.getClassLoader(), new Class<?>[] { repositoryInterface },
+				(proxy, method, args) -> method.getName().equals("toString") ? repositoryInterface.getSimpleName() : methods.apply(method.getName(), args));
+	}
+
+}
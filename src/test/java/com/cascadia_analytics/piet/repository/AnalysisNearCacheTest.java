@@ -0,0 +1,259 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cascadia_analytics.piet.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.config.Storage;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+
+/**
+ * Change streams need a replica set, which Boot's embedded mongo isn't, so this starts its own single-member replica set.
+ * Two caches over the same database stand in for two Piet replicas.
+ */
+public class AnalysisNearCacheTest {
+
+	private static final String REPLICA_SET = "rs0";
+	private static final long TIMEOUT_MILLIS = 15000;
+
+	private static MongodExecutable mongodExecutable;
+	private static MongoClient mongoClient;
+
+	private MongoTemplate mongoTemplate;
+	private AnalysisRepository analysisRepository;
+	private AnalysisNearCache cacheA;
+	private AnalysisNearCache cacheB;
+	// run on either side of each write of the read counters
+	private Runnable beforeCounterWrite;
+	private Runnable afterCounterWrite;
+
+	@BeforeAll
+	public static void startReplicaSet() throws Exception {
+		int port = Network.getFreeServerPort();
+		mongodExecutable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+				.version(Version.Main.V4_0)
+				.net(new Net("localhost", port, Network.localhostIsIPv6()))
+				.replication(new Storage(null, REPLICA_SET, 0))
+				.build());
+		mongodExecutable.start();
+		mongoClient = MongoClients.create("mongodb://localhost:" + port);
+		mongoClient.getDatabase("admin").runCommand(new Document("replSetInitiate", new Document("_id", REPLICA_SET)
+				.append("members", Collections.singletonList(new Document("_id", 0).append("host", "localhost:" + port)))));
+		awaitTrue(() -> Boolean.TRUE.equals(mongoClient.getDatabase("admin").runCommand(new Document("isMaster", 1)).getBoolean("ismaster")));
+	}
+
+	@AfterAll
+	public static void stopReplicaSet() {
+		mongoClient.close();
+		mongodExecutable.stop();
+	}
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		mongoTemplate = new MongoTemplate(mongoClient, "piet");
+		mongoTemplate.dropCollection(Analysis.class);
+		mongoTemplate.createCollection(Analysis.class);
+		beforeCounterWrite = () -> {};
+		afterCounterWrite = () -> {};
+		analysisRepository = new MongoRepositoryFactory(mongoTemplate).getRepository(AnalysisRepository.class, new AnalysisRepositoryImpl(mongoTemplate) {
+			@Override
+			public void incrementReadCounters(Map<String, Long> increments) {
+				beforeCounterWrite.run();
+				super.incrementReadCounters(increments);
+				afterCounterWrite.run();
+			}
+		});
+		cacheA = startCache();
+		cacheB = startCache();
+		awaitTrue(() -> cacheA.isChangeStreamActive() && cacheB.isChangeStreamActive());
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		cacheA.stop();
+		cacheB.stop();
+	}
+
+	@Test
+	public void testChangesEvictAcrossReplicas() throws Exception {
+		Analysis analysis = analysisRepository.save(analysis("Version 1"));
+		assertEquals("Version 1", cacheA.findById(analysis.getId()).get().getName());
+		assertEquals("Version 1", cacheB.findById(analysis.getId()).get().getName());
+		// saved by something other than either cache's replica, so neither is told directly
+		analysis.setName("Version 2");
+		analysisRepository.save(analysis);
+		awaitTrue(() -> "Version 2".equals(cacheA.findById(analysis.getId()).get().getName()));
+		awaitTrue(() -> "Version 2".equals(cacheB.findById(analysis.getId()).get().getName()));
+		analysisRepository.deleteById(analysis.getId());
+		awaitTrue(() -> !cacheA.findById(analysis.getId()).isPresent());
+		assertNull(cacheA.findAndIncrementReadCounter(analysis.getId()));
+	}
+
+	@Test
+	public void testChangesEvictOnlyTheChangedAnalysis() throws Exception {
+		Analysis changed = analysisRepository.save(analysis("Changed"));
+		Analysis unchanged = analysisRepository.save(analysis("Unchanged"));
+		cacheA.findById(changed.getId());
+		cacheA.findById(unchanged.getId());
+		assertTrue(cacheA.isCached(changed.getId()) && cacheA.isCached(unchanged.getId()));
+		// ids are stored as ObjectIds, which the change stream reports as such
+		changed.setName("Changed again");
+		analysisRepository.save(changed);
+		awaitTrue(() -> !cacheA.isCached(changed.getId()));
+		assertTrue(cacheA.isCached(unchanged.getId()));
+		// and so are flushed reads, which shouldn't evict anything
+		cacheA.findAndIncrementReadCounter(unchanged.getId());
+		cacheA.flushReadCounters();
+		Thread.sleep(2000);
+		assertTrue(cacheA.isCached(unchanged.getId()));
+	}
+
+	@Test
+	public void testReadCounters() throws Exception {
+		Analysis analysis = analysisRepository.save(analysis("Counted"));
+		assertEquals(1, cacheA.findAndIncrementReadCounter(analysis.getId()).getReadCounter());
+		assertEquals(2, cacheA.findAndIncrementReadCounter(analysis.getId()).getReadCounter());
+		assertEquals(1, cacheB.findAndIncrementReadCounter(analysis.getId()).getReadCounter());
+		// reads are only stored when flushed
+		assertEquals(0, analysisRepository.findById(analysis.getId()).get().getReadCounter());
+		cacheA.flushReadCounters();
+		cacheB.flushReadCounters();
+		assertEquals(3, analysisRepository.findById(analysis.getId()).get().getReadCounter());
+		// the counter updates don't evict anything, so each replica goes on counting from its own view
+		Thread.sleep(2000);
+		assertEquals(3, cacheA.findAndIncrementReadCounter(analysis.getId()).getReadCounter());
+		// saving here forgets the cached copy but not the unflushed read, since saves leave the stored counter alone
+		analysis.setName("Saved");
+		analysisRepository.saveExceptReadCounter(analysis);
+		cacheA.invalidate(analysis.getId());
+		assertEquals(3, analysisRepository.findById(analysis.getId()).get().getReadCounter());
+		assertEquals(5, cacheA.findAndIncrementReadCounter(analysis.getId()).getReadCounter());
+		cacheA.flushReadCounters();
+		assertEquals(5, analysisRepository.findById(analysis.getId()).get().getReadCounter());
+	}
+
+	@Test
+	public void testLoadsDuringCounterWrites() throws Exception {
+		Analysis analysis = analysisRepository.save(analysis("Counted"));
+		String id = analysis.getId();
+		AtomicLong loadedCounter = new AtomicLong();
+		assertEquals(1, cacheA.findAndIncrementReadCounter(id).getReadCounter());
+		cacheA.invalidate(id);
+		// loaded before the flushed read is stored, it's still counted
+		beforeCounterWrite = () -> loadedCounter.set(cacheA.findById(id).get().getReadCounter());
+		cacheA.flushReadCounters();
+		assertEquals(1, loadedCounter.get());
+		assertEquals(1, analysisRepository.findById(id).get().getReadCounter());
+		assertEquals(1, cacheA.findById(id).get().getReadCounter());
+		// loaded after it's stored but while it's still pending, it's counted twice until the flush loads it again
+		beforeCounterWrite = () -> {};
+		assertEquals(2, cacheA.findAndIncrementReadCounter(id).getReadCounter());
+		cacheA.invalidate(id);
+		afterCounterWrite = () -> loadedCounter.set(cacheA.findById(id).get().getReadCounter());
+		cacheA.flushReadCounters();
+		assertEquals(3, loadedCounter.get());
+		assertEquals(2, analysisRepository.findById(id).get().getReadCounter());
+		assertEquals(2, cacheA.findById(id).get().getReadCounter());
+		assertEquals(3, cacheA.findAndIncrementReadCounter(id).getReadCounter());
+	}
+
+	@Test
+	public void testSparseFilters() throws Exception {
+		mongoTemplate.insert(new Document("_id", "sparse").append("name", "Sparse")
+				.append("query", new Document("filters", Arrays.asList(null,
+						new Document("levelUniqueName", "[Time].[Time].[Month]").append("levelMemberNames", Arrays.asList("2019-01", null))))),
+				mongoTemplate.getCollectionName(Analysis.class));
+		Analysis found = cacheA.findById("sparse").get();
+		assertTrue(cacheA.isCached("sparse"));
+		assertNull(found.getQuery().getFilters()[0]);
+		assertNull(found.getQuery().getFilters()[1].getLevelMemberNames()[1]);
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setAnalysisCacheEnabled(false);
+		pietConfiguration.setAnalysisCacheMaxSizeMb(PietConfiguration.DEFAULT_ANALYSIS_CACHE_MAX_SIZE_MB);
+		pietConfiguration.setAnalysisCacheTtlSeconds(PietConfiguration.DEFAULT_ANALYSIS_CACHE_TTL_SECONDS);
+		AnalysisNearCache cache = new AnalysisNearCache(analysisRepository, mongoTemplate, pietConfiguration);
+		cache.start();
+		Analysis analysis = analysisRepository.save(analysis("Uncached"));
+		assertEquals(1, cache.findAndIncrementReadCounter(analysis.getId()).getReadCounter());
+		// counted straight away, as without the cache
+		assertEquals(1, analysisRepository.findById(analysis.getId()).get().getReadCounter());
+		assertFalse(cache.isChangeStreamActive());
+		cache.stop();
+	}
+
+	private AnalysisNearCache startCache() {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setAnalysisCacheEnabled(true);
+		pietConfiguration.setAnalysisCacheMaxSizeMb(PietConfiguration.DEFAULT_ANALYSIS_CACHE_MAX_SIZE_MB);
+		pietConfiguration.setAnalysisCacheTtlSeconds(PietConfiguration.DEFAULT_ANALYSIS_CACHE_TTL_SECONDS);
+		AnalysisNearCache ret = new AnalysisNearCache(analysisRepository, mongoTemplate, pietConfiguration);
+		ret.start();
+		return ret;
+	}
+
+	private static Analysis analysis(String name) {
+		Analysis ret = new Analysis();
+		ret.setName(name);
+		DatasetRef datasetRef = new DatasetRef();
+		datasetRef.setId("DatasetRef1");
+		datasetRef.setCube("Cube 1");
+		ret.setDatasetRef(datasetRef);
+		return ret;
+	}
+
+	private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for condition");
+			Thread.sleep(100);
+		}
+	}
+
+}
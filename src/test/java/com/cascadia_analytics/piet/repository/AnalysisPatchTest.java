@@ -0,0 +1,232 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.cascadia_analytics.piet.domain.Analysis;
+import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.cascadia_analytics.piet.domain.PietConfiguration;
+import com.cascadia_analytics.piet.domain.QueryFilter;
+import com.cascadia_analytics.piet.domain.QueryLevel;
+import com.cascadia_analytics.piet.domain.QueryMeasure;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+
+public class AnalysisPatchTest {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final MappingMongoConverter converter = converter(100);
+
+	@Test
+	public void testSchemaMatchesDomain() throws Exception {
+		Map<Class<?>, Map<String, String>> schema = AnalysisPatch.schema();
+		assertEquals(new HashSet<>(Arrays.asList(Analysis.class, DatasetRef.class, com.cascadia_analytics.piet.domain.Query.class,
+				QueryMeasure.class, QueryLevel.class, QueryFilter.class)), schema.keySet());
+		// a plain mapping context, since the stored conversions make filters a simple type (QueryFilterWriteConverter writes them
+		// with the same names)
+		MongoMappingContext mappingContext = new MongoMappingContext();
+		for (Map.Entry<Class<?>, Map<String, String>> entry : schema.entrySet()) {
+			Class<?> type = entry.getKey();
+			MongoPersistentEntity<?> entity = mappingContext.getRequiredPersistentEntity(type);
+			BeanDescription bean = OBJECT_MAPPER.getSerializationConfig().introspect(OBJECT_MAPPER.constructType(type));
+			Map<String, String> expected = new TreeMap<>();
+			for (BeanPropertyDefinition property : bean.findProperties()) {
+				if (type != Analysis.class || !AnalysisPatch.READ_ONLY_PROPERTIES.contains(property.getName())) {
+					expected.put(property.getName(), entity.getRequiredPersistentProperty(property.getInternalName()).getFieldName());
+				}
+			}
+			assertEquals(expected, new TreeMap<>(entry.getValue()), "Properties of " + type.getSimpleName() + " that patches may address");
+		}
+	}
+
+	@Test
+	public void testMergePatch() throws Exception {
+		AnalysisPatch patch = AnalysisPatch.mergePatch(json("{'name':'Renamed','description':null,'_query':{'nonEmpty':true}}"));
+		AnalysisPatch.TargetedUpdate targeted = patch.targeted();
+		assertNotNull(targeted);
+		assertTrue(targeted.getKeyFields().isEmpty());
+		Document update = mapped(targeted.toUpdate(null, converter));
+		assertEquals(new Document("name", "Renamed").append("query.nonEmpty", true), update.get("$set"));
+		assertEquals(Collections.singleton("description"), update.get("$unset", Document.class).keySet());
+		// setting a field of the query requires that there is one to set it in
+		assertEquals(new Document("query", new Document("$ne", null)), targeted.guard(new Query()).getQueryObject());
+
+		Analysis patched = patch.applyTo(analysis());
+		assertEquals("Renamed", patched.getName());
+		assertNull(patched.getDescription());
+		assertTrue(patched.getQuery().isNonEmpty());
+		assertEquals(3, patched.getQuery().getFilters().length);
+	}
+
+	@Test
+	public void testFilterUpdates() throws Exception {
+		String manyNames = OBJECT_MAPPER.writeValueAsString(names(500));
+		AnalysisPatch patch = AnalysisPatch.jsonPatch(json("["
+				+ "{'op':'replace','path':'/_query/_filters/1/levelMemberNames','value':" + manyNames.replace('"', '\'') + "},"
+				+ "{'op':'replace','path':'/_query/_filters/2/_include','value':false},"
+				+ "{'op':'add','path':'/_query/_levels/-','value':{'_uniqueName':'[D].[D]','_rowOrientation':true}}]"));
+		AnalysisPatch.TargetedUpdate targeted = patch.targeted();
+		Document update = mapped(targeted.toUpdate(null, converter));
+		// the large list is compacted, just as a save of the whole analysis would compact it
+		assertTrue(update.get("$set", Document.class).get("query.filters.1.compactMemberNames") instanceof Binary);
+		assertEquals(false, update.get("$set", Document.class).get("query.filters.2.include"));
+		assertEquals(Collections.singleton("query.filters.1.levelMemberNames"), update.get("$unset", Document.class).keySet());
+		assertEquals(new Document("uniqueName", "[D].[D]").append("rowOrientation", true), update.get("$push", Document.class).get("query.levels"));
+		assertEquals(Arrays.asList("query", "query.filters", "query.filters.1", "query.filters.2", "query.levels"),
+				Arrays.asList(targeted.guard(new Query()).getQueryObject().keySet().toArray()));
+
+		Document inserted = mapped(AnalysisPatch.jsonPatch(json("[{'op':'add','path':'/_query/_filters/0','value':{'_levelUniqueName':'[D].[D]','levelMemberNames':"
+				+ manyNames.replace('"', '\'') + "}}]")).targeted().toUpdate(null, converter));
+		Document push = inserted.get("$push", Document.class).get("query.filters", Document.class);
+		assertEquals(0, push.get("$position"));
+		assertTrue(push.getList("$each", Document.class).get(0).containsKey("compactMemberNames"));
+	}
+
+	@Test
+	public void testRemoveByIndex() throws Exception {
+		AnalysisPatch patch = AnalysisPatch.jsonPatch(json("[{'op':'remove','path':'/_query/_filters/1'}]"));
+		AnalysisPatch.TargetedUpdate targeted = patch.targeted();
+		assertEquals(Collections.singleton("query.filters.levelUniqueName"), targeted.getKeyFields());
+		Document keys = storedKeys("[A].[A]", "[B].[B]", "[C].[C]");
+		assertEquals(new Document("$pull", new Document("query.filters", new Document("levelUniqueName", "[B].[B]"))),
+				mapped(targeted.toUpdate(keys, converter)));
+		// an element that can't be identified by its key has to be removed by rewriting the analysis
+		assertNull(targeted.toUpdate(storedKeys("[A].[A]", "[B].[B]", "[B].[B]"), converter));
+		assertThrows(AnalysisPatch.NotApplicableException.class, () -> targeted.toUpdate(storedKeys("[A].[A]"), converter));
+		assertArrayEquals(new String[] { "[A].[A]", "[C].[C]" }, Arrays.stream(patch.applyTo(analysis()).getQuery().getFilters())
+				.map(QueryFilter::getLevelUniqueName).toArray());
+	}
+
+	@Test
+	public void testUntargetedPatches() throws Exception {
+		// indexes shift after the removal, so the second operation depends on the first
+		AnalysisPatch dependent = AnalysisPatch.jsonPatch(json("[{'op':'remove','path':'/_query/_filters/0'},"
+				+ "{'op':'replace','path':'/_query/_filters/1/_include','value':false}]"));
+		assertNull(dependent.targeted());
+		Analysis patched = dependent.applyTo(analysis());
+		assertEquals(2, patched.getQuery().getFilters().length);
+		assertFalse(patched.getQuery().getFilters()[1].isInclude());
+		assertEquals("[C].[C]", patched.getQuery().getFilters()[1].getLevelUniqueName());
+
+		AnalysisPatch memberAdded = AnalysisPatch.jsonPatch(json("[{'op':'test','path':'/name','value':'Analysis'},"
+				+ "{'op':'add','path':'/_query/_filters/0/levelMemberNames/-','value':'a3'}]"));
+		assertNull(memberAdded.targeted());
+		assertArrayEquals(new String[] { "a1", "a2", "a3" }, memberAdded.applyTo(analysis()).getQuery().getFilters()[0].getLevelMemberNames());
+
+		AnalysisPatch failedTest = AnalysisPatch.jsonPatch(json("[{'op':'test','path':'/name','value':'Other'}]"));
+		assertThrows(AnalysisPatch.NotApplicableException.class, () -> failedTest.applyTo(analysis()));
+		AnalysisPatch missing = AnalysisPatch.jsonPatch(json("[{'op':'replace','path':'/_query/_filters/7/_include','value':true}]"));
+		assertThrows(AnalysisPatch.NotApplicableException.class, () -> missing.applyTo(analysis()));
+	}
+
+	@Test
+	public void testInvalidPatches() throws Exception {
+		assertThrows(IllegalArgumentException.class, () -> AnalysisPatch.jsonPatch(json("{'op':'remove','path':'/name'}")));
+		assertThrows(IllegalArgumentException.class, () -> AnalysisPatch.jsonPatch(json("[{'op':'remove','path':'/version'}]")));
+		assertThrows(IllegalArgumentException.class, () -> AnalysisPatch.jsonPatch(json("[{'op':'add','path':'/_query/_colors','value':1}]")));
+		assertThrows(IllegalArgumentException.class, () -> AnalysisPatch.jsonPatch(json("[{'op':'replace','path':'/_query/_filters/01','value':{}}]")));
+		assertThrows(IllegalArgumentException.class, () -> AnalysisPatch.jsonPatch(json("[{'op':'replace','path':'/_query/nonEmpty','value':[]}]")));
+		assertThrows(IllegalArgumentException.class, () -> AnalysisPatch.mergePatch(json("{'readCounter':0}")));
+		assertThrows(IllegalArgumentException.class, () -> AnalysisPatch.jsonPatch(json("[{'op':'replace','path':'','value':{'id':'other'}}]")).applyTo(analysis()));
+	}
+
+	// as MongoTemplate maps updates before sending them
+	private Document mapped(Update update) {
+		return new UpdateMapper(converter).getMappedObject(update.getUpdateObject(), converter.getMappingContext().getPersistentEntity(Analysis.class));
+	}
+
+	private static Analysis analysis() {
+		com.cascadia_analytics.piet.domain.Query query = new com.cascadia_analytics.piet.domain.Query();
+		query.setFilters(new QueryFilter[] { filter("[A].[A]", "a1", "a2"), filter("[B].[B]", "b1"), filter("[C].[C]", "c1") });
+		Analysis ret = new Analysis();
+		ret.setId("analysis1");
+		ret.setVersion(3L);
+		ret.setName("Analysis");
+		ret.setDescription("Description");
+		ret.setQuery(query);
+		return ret;
+	}
+
+	private static QueryFilter filter(String levelUniqueName, String... names) {
+		QueryFilter ret = new QueryFilter();
+		ret.setLevelUniqueName(levelUniqueName);
+		ret.setInclude(true);
+		ret.setLevelMemberNames(names);
+		return ret;
+	}
+
+	private static Document storedKeys(String... levelUniqueNames) {
+		return new Document("query", new Document("filters", Arrays.stream(levelUniqueNames)
+				.map(name -> new Document("levelUniqueName", name))
+				.collect(Collectors.toList()))).append("_id", "analysis1");
+	}
+
+	private static String[] names(int count) {
+		String[] ret = new String[count];
+		for (int i = 0; i < count; i++) {
+			ret[i] = String.format("Member %04d", i);
+		}
+		return ret;
+	}
+
+	private static JsonNode json(String json) throws Exception {
+		return OBJECT_MAPPER.readTree(json.replace('\'', '"'));
+	}
+
+	private static MappingMongoConverter converter(int minSize) {
+		PietConfiguration pietConfiguration = new PietConfiguration();
+		pietConfiguration.setStorageCompactMemberNamesMinSize(minSize);
+		MongoCustomConversions conversions = new MongoConversionsConfiguration().mongoCustomConversions(pietConfiguration);
+		MongoMappingContext mappingContext = new MongoMappingContext();
+		mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+		mappingContext.setInitialEntitySet(Collections.singleton(Analysis.class));
+		mappingContext.afterPropertiesSet();
+		MappingMongoConverter ret = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+		ret.setCustomConversions(conversions);
+		ret.afterPropertiesSet();
+		return ret;
+	}
+
+}
@@ -17,18 +17,27 @@ package com.cascadia_analytics.piet.repository;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 
+import org.bson.Document;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.BasicQuery;
 
 import com.cascadia_analytics.piet.domain.Analysis;
 import com.cascadia_analytics.piet.domain.DatasetRef;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @DataMongoTest
 public class AnalysisRepositoryTest {
@@ -83,4 +92,131 @@ public class AnalysisRepositoryTest {
 
     }
 
+    @Test
+    public void testFindAndIncrementReadCounter() throws Exception {
+
+    	Analysis analysis = new Analysis();
+    	analysis.setName("Analysis 1");
+    	Analysis dbAnalysis = analysisRepository.save(analysis);
+    	assertEquals(0, dbAnalysis.getReadCounter());
+
+    	assertEquals(1, analysisRepository.findAndIncrementReadCounter(dbAnalysis.getId()).getReadCounter());
+    	assertEquals(2, analysisRepository.findAndIncrementReadCounter(dbAnalysis.getId()).getReadCounter());
+    	assertEquals(2, analysisRepository.findById(dbAnalysis.getId()).get().getReadCounter());
+    	assertNull(analysisRepository.findAndIncrementReadCounter("no-such-id"));
+
+    }
+
+    @Test
+    public void testSavesKeepReadCounter() throws Exception {
+
+    	Analysis analysis = new Analysis();
+    	analysis.setName("Analysis 1");
+    	analysis.setDescription("Description for Analysis 1");
+    	analysis.setReadCounter(5);
+    	analysisRepository.saveExceptReadCounter(analysis);
+    	assertEquals(0, analysis.getVersion());
+    	// the counter is written on insert only
+    	assertEquals(5, analysisRepository.findById(analysis.getId()).get().getReadCounter());
+    	analysisRepository.findAndIncrementReadCounter(analysis.getId());
+
+    	// a client's save with its stale counter doesn't lose the read, but does replace everything else
+    	analysis.setName("Analysis 2");
+    	analysis.setDescription(null);
+    	analysisRepository.saveExceptReadCounter(analysis);
+    	Analysis found = analysisRepository.findById(analysis.getId()).get();
+    	assertEquals(6, found.getReadCounter());
+    	assertEquals("Analysis 2", found.getName());
+    	assertNull(found.getDescription());
+    	assertEquals(1, found.getVersion());
+    	assertThrows(OptimisticLockingFailureException.class, () -> {
+    		found.setVersion(0L);
+    		analysisRepository.saveExceptReadCounter(found);
+    	});
+
+    	analysis.setVersion(null);
+    	assertNull(analysisRepository.bulkSave(Collections.singletonList(analysis)).get(0));
+    	assertEquals(6, analysisRepository.findById(analysis.getId()).get().getReadCounter());
+    	assertEquals(2, analysisRepository.findById(analysis.getId()).get().getVersion());
+
+    }
+
+    @Test
+    public void testNewIdDoesNotReplace() throws Exception {
+
+    	Analysis analysis = new Analysis();
+    	analysis.setId("client-id");
+    	analysis.setName("Analysis 1");
+    	analysisRepository.saveExceptReadCounter(analysis);
+    	analysisRepository.saveExceptReadCounter(analysis);
+    	assertEquals(1, analysisRepository.findById("client-id").get().getVersion());
+
+    	// another client creating the same id conflicts, rather than overwriting the stored analysis
+    	Analysis other = new Analysis();
+    	other.setId("client-id");
+    	other.setName("Analysis 2");
+    	assertThrows(OptimisticLockingFailureException.class, () -> analysisRepository.saveExceptReadCounter(other));
+    	Analysis found = analysisRepository.findById("client-id").get();
+    	assertEquals("Analysis 1", found.getName());
+    	assertEquals(1, found.getVersion());
+
+    	// in a batch, only the analyses that are saved get new versions (and ids)
+    	other.setVersion(0L);
+    	Analysis created = new Analysis();
+    	created.setName("Analysis 3");
+    	List<String> errors = analysisRepository.bulkSave(Arrays.asList(other, created));
+    	assertNotNull(errors.get(0));
+    	assertEquals(0, other.getVersion());
+    	assertNull(errors.get(1));
+    	assertNotNull(created.getId());
+    	assertEquals(0, created.getVersion());
+
+    }
+
+    @Test
+    public void testUnversionedAnalysesCanBeSaved() throws Exception {
+
+    	// analyses saved by earlier releases that the version backfill hasn't reached are saved as version 0
+    	String collection = mongoTemplate.getCollectionName(Analysis.class);
+    	mongoTemplate.insert(new Document("_id", "legacy-1").append("name", "Legacy 1"), collection);
+    	mongoTemplate.insert(new Document("_id", "legacy-2").append("name", "Legacy 2"), collection);
+
+    	Analysis analysis = analysisRepository.findById("legacy-1").get();
+    	analysis.setVersion(AnalysisRepositoryCustom.storedVersion(analysis));
+    	analysis.setName("Analysis 1");
+    	analysisRepository.saveExceptReadCounter(analysis);
+    	assertEquals(1, analysisRepository.findById("legacy-1").get().getVersion());
+
+    	Analysis other = new Analysis();
+    	other.setId("legacy-2");
+    	other.setName("Analysis 2");
+    	assertNull(analysisRepository.bulkSave(Collections.singletonList(other)).get(0));
+    	Analysis found = analysisRepository.findById("legacy-2").get();
+    	assertEquals("Analysis 2", found.getName());
+    	assertEquals(1, found.getVersion());
+
+    }
+
+    @Test
+    public void testPatch() throws Exception {
+
+    	Analysis analysis = new Analysis();
+    	analysis.setName("Analysis 1");
+    	analysis.setDescription("Description for Analysis 1");
+    	Analysis dbAnalysis = analysisRepository.save(analysis);
+    	long version = dbAnalysis.getVersion();
+
+    	AnalysisPatch rename = AnalysisPatch.mergePatch(new ObjectMapper().readTree("{\"name\":\"Analysis 2\",\"description\":null}"));
+    	Analysis patched = analysisRepository.patch(dbAnalysis.getId(), version, rename, new Date());
+    	assertEquals(version + 1, patched.getVersion());
+    	// a stale version doesn't apply
+    	assertNull(analysisRepository.patch(dbAnalysis.getId(), version, rename, new Date()));
+
+    	Analysis found = analysisRepository.findById(dbAnalysis.getId()).get();
+    	assertEquals("Analysis 2", found.getName());
+    	assertNull(found.getDescription());
+    	assertEquals(version + 1, found.getVersion());
+
+    }
+
 }
@@ -0,0 +1,110 @@
+// Copyright 2020 National Police Foundation
+// Copyright 2020 Scott Came Consulting LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cascadia_analytics.piet.repository;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+
+import com.cascadia_analytics.piet.domain.ResultSnapshot;
+
+@DataMongoTest
+public class ResultSnapshotRepositoryTest {
+
+	@Autowired
+	private ResultSnapshotRepository snapshotRepository;
+
+	@BeforeEach
+	public void setUp() {
+		snapshotRepository.deleteAll();
+	}
+
+	@Test
+	public void testFindDue() throws Exception {
+		long now = System.currentTimeMillis();
+		snapshotRepository.save(snapshot("due", "c1", "v1", new Date(now - 1000)));
+		snapshotRepository.save(snapshot("notDue", "c1", "v1", new Date(now + 60000)));
+		snapshotRepository.save(snapshot("onRequest", "c1", "v1", null));
+		List<ResultSnapshot> due = snapshotRepository.findByNextRefreshDateTimeLessThanEqual(new Date(now));
+		assertEquals(1, due.size());
+		assertEquals("due", due.get(0).getId());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, due.get(0).getCompressedResult());
+	}
+
+	@Test
+	public void testFindStale() throws Exception {
+		snapshotRepository.save(snapshot("current", "c1", "v2", null));
+		snapshotRepository.save(snapshot("stale", "c1", "v1", null));
+		snapshotRepository.save(snapshot("unversioned", "c1", null, null));
+		snapshotRepository.save(snapshot("otherConnection", "c2", "v1", null));
+		assertEquals("[stale, unversioned]", ids(snapshotRepository.findByConnectionNameAndDataVersionNot("c1", "v2")));
+		assertEquals("[otherConnection, stale, unversioned]", ids(snapshotRepository.findByDataVersionNot("v2")));
+	}
+
+	@Test
+	public void testDeleteByIdIn() throws Exception {
+		snapshotRepository.save(snapshot("s1", "c1", "v1", null));
+		snapshotRepository.save(snapshot("s2", "c1", "v1", null));
+		snapshotRepository.save(snapshot("s3", "c1", "v1", null));
+		assertEquals(2, snapshotRepository.deleteByIdIn(Arrays.asList("s1", "s3", "missing")));
+		assertEquals("[s2]", ids(snapshotRepository.findAll()));
+	}
+
+	@Test
+	public void testUpdateNextRefreshDateTime() throws Exception {
+		ResultSnapshot read = snapshotRepository.save(snapshot("s1", "c1", "v1", null));
+		Date next = new Date(System.currentTimeMillis() + 60000);
+		assertTrue(snapshotRepository.updateNextRefreshDateTime("s1", read.getCreateDateTime(), next));
+		ResultSnapshot found = snapshotRepository.findById("s1").get();
+		assertEquals(next, found.getNextRefreshDateTime());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, found.getCompressedResult());
+		// a snapshot retaken since it was read is left alone
+		ResultSnapshot retaken = snapshot("s1", "c1", "v2", null);
+		retaken.setCreateDateTime(new Date(read.getCreateDateTime().getTime() + 1000));
+		snapshotRepository.save(retaken);
+		assertFalse(snapshotRepository.updateNextRefreshDateTime("s1", read.getCreateDateTime(), new Date()));
+		assertNull(snapshotRepository.findById("s1").get().getNextRefreshDateTime());
+		assertFalse(snapshotRepository.updateNextRefreshDateTime("missing", read.getCreateDateTime(), next));
+	}
+
+	private static ResultSnapshot snapshot(String id, String connectionName, String dataVersion, Date nextRefreshDateTime) {
+		ResultSnapshot ret = new ResultSnapshot();
+		ret.setId(id);
+		ret.setConnectionName(connectionName);
+		ret.setDataVersion(dataVersion);
+		ret.setCompressedResult(new byte[] { 1, 2, 3 });
+		ret.setCreateDateTime(new Date());
+		ret.setNextRefreshDateTime(nextRefreshDateTime);
+		return ret;
+	}
+
+	private static String ids(List<ResultSnapshot> snapshots) {
+		return snapshots.stream().map(ResultSnapshot::getId).sorted().collect(Collectors.toList()).toString();
+	}
+
+}
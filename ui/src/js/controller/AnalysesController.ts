@@ -26,7 +26,7 @@ import { AnalysisAdapterFactory } from "../ui/adapters/AnalysisAdapterFactory";
 import { TableModel } from "../ui/model/Table";
 import { EditEventListener, EditEvent, PropertyEditEvent } from "../model/Persistence";
 import { DefaultObservableChangeEventListener, ObservableChangeEvent } from "../util/Observable";
-import { MondrianResult } from "../model/MondrianResult";
+import { MondrianResult, MondrianResultPage } from "../model/MondrianResult";
 import { MondrianResultTableModel } from "../ui/model/MondrianResultTable";
 import { QueryFilterTableModel } from "../ui/model/QueryFilterTableModel";
 import { MondrianResultVizModel } from "../ui/model/MondrianResultVegaViz";
@@ -57,6 +57,9 @@ export class AnalysesController {
   static EDIT_METADATA_MENU_ITEM_LABEL = "Properties...";
   static CLOSE_MENU_ITEM_LABEL = "Close";
 
+  // rows of the result fetched for (and shown in) the table at a time
+  static RESULT_PAGE_ROWS = 100;
+
   readonly repository: Repository;
   private readonly workspace: Workspace;
 
@@ -73,6 +76,8 @@ export class AnalysesController {
   datasets: List<Dataset>;
 
   private currentAnalysisEditListener: EditEventListener;
+  // the viz needs the whole result; when the table's first page isn't all of it, the viz's is only fetched when it's shown
+  private vizResultLoaded = false;
 
   menuItems = [
     { label: AnalysesController.EDIT_METADATA_MENU_ITEM_LABEL, action: (_e: MouseEvent): void => { this.openEditAnalysisMetadataModal(); }, enabled: true },
@@ -429,32 +434,67 @@ export class AnalysesController {
   async executeQuery(): Promise<void> {
     let ret = Promise.resolve();
     if (this.currentAnalysis) {
+      ret = this.showResultPage(0);
+    } else {
+      this.mondrianResultTableModel.result = null;
+      this.mondrianResultVegaViz.result = null;
+      this.vizResultLoaded = true;
+    }
+    return ret;
+  }
+
+  async showResultPage(rowOffset: number): Promise<void> {
+    const mdx = this.currentAnalysis.query.asMDX();
+    const dataset = this.currentAnalysis.dataset;
+    this.viewPropertyUpdater.update("executingQuery", true);
+    return this.repository.executeQueryPage(mdx, dataset, rowOffset, AnalysesController.RESULT_PAGE_ROWS).then((page: MondrianResultPage): void => {
+      this.mondrianResultTableModel.page = page;
+      if (rowOffset === 0) {
+        // the first page of a small result is all of it, and the viz can use it as it is
+        this.vizResultLoaded = !page || page.rowCount <= AnalysesController.RESULT_PAGE_ROWS;
+        this.mondrianResultVegaViz.result = page && this.vizResultLoaded ? page.result : null;
+      }
+    }).catch((error: RepositoryError) => {
+      this.mondrianResultTableModel.result = null;
+      this.mondrianResultVegaViz.result = null;
+      this.vizResultLoaded = true;
+      this.showQueryError(error);
+    }).finally(() => {
+      this.viewPropertyUpdater.update("executingQuery", false);
+    });
+  }
+
+  async loadVizResult(): Promise<void> {
+    let ret = Promise.resolve();
+    if (this.currentAnalysis && !this.vizResultLoaded) {
       const mdx = this.currentAnalysis.query.asMDX();
       const dataset = this.currentAnalysis.dataset;
       this.viewPropertyUpdater.update("executingQuery", true);
       ret = this.repository.executeQuery(mdx, dataset).then((result: MondrianResult): void => {
-        this.mondrianResultTableModel.result = result;
         this.mondrianResultVegaViz.result = result;
+        this.vizResultLoaded = true;
       }).catch((error: RepositoryError) => {
-        this.mondrianResultTableModel.result = null;
+        // not retried until the query is next executed
         this.mondrianResultVegaViz.result = null;
-        if (error.type === RepositoryErrorType.QUERY_TIMEOUT) {
-          this.viewPropertyUpdater.update("executeQueryErrorModalType", "timeout");
-        } else if (error.type === RepositoryErrorType.QUERY_ERROR) {
-          this.viewPropertyUpdater.update("executeQueryErrorModalType", "parse");
-        } else {
-          this.viewPropertyUpdater.update("errorModalMessage", error.message);
-        }
+        this.vizResultLoaded = true;
+        this.showQueryError(error);
       }).finally(() => {
         this.viewPropertyUpdater.update("executingQuery", false);
       });
-    } else {
-      this.mondrianResultTableModel.result = null;
-      this.mondrianResultVegaViz.result = null;
     }
     return ret;
   }
 
+  private showQueryError(error: RepositoryError): void {
+    if (error.type === RepositoryErrorType.QUERY_TIMEOUT) {
+      this.viewPropertyUpdater.update("executeQueryErrorModalType", "timeout");
+    } else if (error.type === RepositoryErrorType.QUERY_ERROR) {
+      this.viewPropertyUpdater.update("executeQueryErrorModalType", "parse");
+    } else {
+      this.viewPropertyUpdater.update("errorModalMessage", error.message);
+    }
+  }
+
   async undoLastAnalysisEdit(): Promise<void> {
     if (this.currentAnalysis.undoAvailable) {
       return this.currentAnalysis.undo().then(async () => {
@@ -24,6 +24,7 @@ import { Query, QueryMeasure, QueryLevel, QueryFilter } from "./Query";
 export class Analysis implements Identifiable, Serializable<Analysis>, Editable {
 
   id: string;
+  version: number;
   dataset: Dataset;
   private _name: string = null;
   private _description: string = null;
@@ -80,6 +81,9 @@ export class Analysis implements Identifiable, Serializable<Analysis>, Editable
     if (this.id !== undefined) {
       ret.id = this.id;
     }
+    if (this.version !== undefined) {
+      ret.version = this.version;
+    }
     return ret;
   }
 
@@ -105,6 +109,7 @@ export class Analysis implements Identifiable, Serializable<Analysis>, Editable
 
       this._name = o.name;
       this.id = o.id;
+      this.version = o.version;
       this.dataset = d;
       this._description = o.description;
 
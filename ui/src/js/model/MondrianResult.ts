@@ -202,3 +202,54 @@ export class MondrianResultAxisPositionMember {
     return ret;
   }
 }
+
+export class MondrianResultPage {
+  // the page's rows of the result, with all of its columns
+  result: MondrianResult;
+  rowOffset: number;
+  // of the whole result
+  rowCount: number;
+  static fromResult(result: MondrianResult, rowOffset: number, rowLimit: number): MondrianResultPage {
+    // the page's rows keep the headers of the whole row axis, so paging doesn't reshape the table
+    const ret = new MondrianResultPage();
+    ret.rowOffset = rowOffset;
+    ret.rowCount = result.rowAxis ? result.rowAxis.positions.length : 1;
+    ret.result = result;
+    if (result.rowAxis && (rowOffset > 0 || rowLimit < ret.rowCount)) {
+      const columnCount = result.columnAxis.positions.length;
+      const rowAxis = Object.assign(new MondrianResultAxis(), result.rowAxis);
+      rowAxis.positions = result.rowAxis.positions.slice(rowOffset, rowOffset + rowLimit);
+      ret.result = Object.assign(new MondrianResult(), result);
+      ret.result.rowAxis = rowAxis;
+      ret.result.axes = result.axes.map((axis: MondrianResultAxis): MondrianResultAxis => {
+        return axis === result.rowAxis ? rowAxis : axis;
+      });
+      ret.result.cells = result.cells.slice(rowOffset * columnCount, (rowOffset + rowAxis.positions.length) * columnCount);
+    }
+    return ret;
+  }
+  static fromResultWindow(rawWindow: any): MondrianResultPage {
+    // a window of a result held by the piet server (GET /result/{handle}), with all of its columns. cell values come column-major;
+    // a result without a row axis comes back with a single, empty row position
+    const ret = new MondrianResultPage();
+    ret.rowOffset = rawWindow.rowOffset;
+    ret.rowCount = rawWindow.rowCount;
+    const rawAxes: any[] = [{ ordinal: 0, name: "COLUMNS", positions: rawWindow.columnPositions }];
+    if (rawWindow.rowPositions.length !== 1 || rawWindow.rowPositions[0].positionMembers) {
+      rawAxes.push({ ordinal: 1, name: "ROWS", positions: rawWindow.rowPositions });
+    }
+    const rawCells: any[] = [];
+    rawWindow.rowPositions.forEach((_position: any, r: number): void => {
+      rawWindow.columnPositions.forEach((_position: any, c: number): void => {
+        rawCells.push({
+          ordinal: (rawWindow.rowOffset + r) * rawWindow.columnCount + c,
+          coordinates: [c, rawWindow.rowOffset + r],
+          value: rawWindow.values[c][r],
+          formattedValue: rawWindow.formattedValues[c][r]
+        });
+      });
+    });
+    ret.result = MondrianResult.fromJSON({ cells: rawCells, axes: rawAxes });
+    return ret;
+  }
+}
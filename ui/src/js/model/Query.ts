@@ -473,9 +473,18 @@ export class QueryFilter extends AbstractQueryObject implements Cloneable<QueryF
     ret._include = o._include;
     ret._filterOnlyHierarchy = o._filterOnlyHierarchy;
     const newNames: string[] = [];
-    o.levelMemberNames.forEach((name: any): void => {
-      newNames.push(name);
-    });
+    if (Array.isArray(o.levelMemberNames)) {
+      o.levelMemberNames.forEach((name: any): void => {
+        newNames.push(name);
+      });
+    } else {
+      // front-coded (see CompactMemberNames on the server): each name shares a prefix of the given length with the previous one
+      let previous = "";
+      o.levelMemberNames.suffixes.forEach((suffix: string, i: number): void => {
+        previous = previous.substring(0, o.levelMemberNames.sharedPrefixLengths[i]) + suffix;
+        newNames.push(previous);
+      });
+    }
     ret.levelMemberNames.set(newNames);
     return Promise.resolve(ret);
   }
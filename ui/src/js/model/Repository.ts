@@ -20,7 +20,7 @@ import Dexie from 'dexie';
 
 import * as testDatasetMetadata from '../../../test/_data/test-metadata.json';
 import * as testAnalyses from '../../../test/_data/test-analyses.json';
-import { MondrianResult } from "./MondrianResult";
+import { MondrianResult, MondrianResultPage } from "./MondrianResult";
 
 import * as testResult1m1r0c from '../../../test/_data/mondrian-results-1m1r0c.json';
 import * as testResult2m1r2c from '../../../test/_data/mondrian-results-2m1r2c.json';
@@ -60,6 +60,7 @@ export interface Repository {
   saveWorkspace(): Promise<void>;
   clearWorkspace(): Promise<void>;
   executeQuery(mdx: string, dataset: Dataset): Promise<MondrianResult>;
+  executeQueryPage(mdx: string, dataset: Dataset, rowOffset: number, rowLimit: number): Promise<MondrianResultPage>;
 }
 
 /* eslint-disable @typescript-eslint/no-explicit-any */
@@ -164,6 +165,13 @@ export abstract class AbstractBaseRepository implements Repository {
   abstract saveAnalysis(analysis: Analysis): Promise<string>;
   abstract deleteAnalysis(analysis: Analysis): Promise<string>;
   abstract executeQuery(mdx: string, dataset: Dataset): Promise<MondrianResult>;
+
+  async executeQueryPage(mdx: string, dataset: Dataset, rowOffset: number, rowLimit: number): Promise<MondrianResultPage> {
+    // without results held on a server, pages are cut from the whole result
+    return this.executeQuery(mdx, dataset).then((result: MondrianResult): MondrianResultPage => {
+      return result ? MondrianResultPage.fromResult(result, rowOffset, rowLimit) : null;
+    });
+  }
   protected abstract repositoryLabel: string;
 
 }
@@ -327,10 +335,14 @@ export class LocalRepository extends AbstractBaseRepository implements Repositor
 
 export class RemoteRepository extends AbstractBaseRepository {
 
-  private mondrianRestUrl: string;
+  // times a query the server is too busy to admit is retried, after the Retry-After delay
+  static readonly QUERY_BUSY_RETRIES = 2;
+
   private remoteRepositoryUrl: string;
   private datasets: Dataset[];
   private inflightBrowseDatasetsPromise: Promise<Dataset[]> = null;
+  // the result last opened for paging, by connection and query
+  private heldResult: { key: string; handle: string } = null;
   protected readonly repositoryLabel: string;
 
   constructor(remoteRepositoryUrl: string) {
@@ -345,7 +357,6 @@ export class RemoteRepository extends AbstractBaseRepository {
       this._log.always("Setting log level to " + config.logLevel + " from remote config");
       this._pietConfiguration = config;
       this._log.level = LoggerFactory.getLevelForString(config.logLevel);
-      this.mondrianRestUrl = config.mondrianRestUrl;
       return super.init().then(async () => {
         return this.browseDatasets().then(async (_ds) => {
           return Promise.resolve();
@@ -386,7 +397,8 @@ export class RemoteRepository extends AbstractBaseRepository {
       if (this.inflightBrowseDatasetsPromise) {
         ret = this.inflightBrowseDatasetsPromise;
       } else {
-        ret = fetch(this.mondrianRestUrl + "/getConnections").then(async (response: Response) => {
+        // the server caches the metadata of every mondrian-rest connection, trimmed to what loadFromMetadata reads
+        ret = fetch(this.remoteRepositoryUrl + "datasets").then(async (response: Response) => {
           if (response.redirected) {
             location.reload(true);
             return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Your session has timed out. Reloading application."));
@@ -394,22 +406,12 @@ export class RemoteRepository extends AbstractBaseRepository {
           if (!response.ok) {
             return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Analytics server appears to be unavailable; please contact an administrator."));
           }
-          return response.json().then(async (json: any): Promise<any> => {
-            const promises: Promise<Dataset[]>[] = Object.getOwnPropertyNames(json).map(async (connectionName): Promise<Dataset[]> => {
-              const metadataUrl = this.mondrianRestUrl + "/getMetadata?connectionName=" + connectionName;
-              return fetch(metadataUrl).then(async (response: Response): Promise<any> => {
-                return response.json().then(async (mdJson: any): Promise<any> => {
-                  return Promise.resolve(Dataset.loadFromMetadata(mdJson, metadataUrl));
-                });
-              });
-            });
-            return Promise.all(promises).then((value: Dataset[][]): Promise<Dataset[]> => {
-              this.datasets = [];
-              value.forEach((connectionDatasets: Dataset[]): void => {
-                this.datasets = this.datasets.concat(connectionDatasets);
-              });
-              return Promise.resolve(this.datasets);
+          return response.json().then(async (json: any): Promise<Dataset[]> => {
+            this.datasets = [];
+            json.forEach((connection: any): void => {
+              this.datasets = this.datasets.concat(Dataset.loadFromMetadata(connection.metadata, connection.metadataUrl));
             });
+            return Promise.resolve(this.datasets);
           });
         });
         this.inflightBrowseDatasetsPromise = ret;
@@ -436,8 +438,48 @@ export class RemoteRepository extends AbstractBaseRepository {
     });
   }
 
-  searchAnalyses(_query: RepositoryQuery): Promise<Analysis[]> {
-    return this.browseAnalyses();
+  async searchAnalyses(query: RepositoryQuery): Promise<Analysis[]> {
+    // the server returns ranked summaries; we then fetch the matching analyses themselves in one batch, without counting
+    // the fetch as reads of each one (which would skew the most-read ranking)
+    return fetch(this.remoteRepositoryUrl + "analyses/search?q=" + encodeURIComponent(query.query), {
+      method: "GET"
+    }).then(async (response: Response) => {
+      if (response.redirected) {
+        location.reload(true);
+        return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Your session has timed out. Reloading application."));
+      }
+      if (!response.ok) {
+        return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Analytics server appears to be unavailable; please contact an administrator."));
+      }
+      return response.json().then(async (json: any): Promise<any> => {
+        const ids: string[] = json.summaries.map((summary: any): string => {
+          return summary.id;
+        });
+        if (!ids.length) {
+          return Promise.resolve([]);
+        }
+        return fetch(this.remoteRepositoryUrl + "analyses:batchGet?countReads=false", {
+          method: "POST",
+          headers: {
+            'Content-Type': 'application/json'
+          },
+          body: JSON.stringify({ ids: ids })
+        }).then(async (batchResponse: Response) => {
+          if (!batchResponse.ok) {
+            return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Analytics server appears to be unavailable; please contact an administrator."));
+          }
+          return batchResponse.json().then(async (batchJson: any): Promise<any> => {
+            const promises: Promise<Analysis>[] = [];
+            batchJson.forEach((result: any): void => {
+              if (result.analysis) {
+                promises.push(new Analysis().deserialize(result.analysis, this));
+              }
+            });
+            return Promise.all(promises);
+          });
+        });
+      });
+    });
   }
 
   async saveAnalysis(analysis: Analysis): Promise<string> {
@@ -453,7 +495,11 @@ export class RemoteRepository extends AbstractBaseRepository {
         location.reload(true);
         return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Your session has timed out. Once application reloads, save the analysis again."));
       }
+      if (response.status === 409) {
+        return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "This analysis was changed by someone else after you opened it. Reopen it to see their changes."));
+      }
       return response.json().then(async (json: any): Promise<string> => {
+        analysis.version = json.version;
         return Promise.resolve(json.id);
       });
     });
@@ -474,39 +520,109 @@ export class RemoteRepository extends AbstractBaseRepository {
   async executeQuery(mdx: string, dataset: Dataset): Promise<MondrianResult> {
     let ret = Promise.resolve(null);
     if (mdx) {
-      ret = fetch(this.mondrianRestUrl + "/query", {
-        method: 'POST',
-        headers: {
-          'Content-Type': 'application/json'
-        },
-        body: JSON.stringify({
-          connectionName: dataset.connectionName,
-          query: mdx
-        })
+      ret = this.postQuery("query", mdx, dataset, RemoteRepository.QUERY_BUSY_RETRIES).then(async (json: any): Promise<MondrianResult> => {
+        return Promise.resolve(MondrianResult.fromJSON(json));
+      });
+    }
+    return ret;
+  }
+
+  async executeQueryPage(mdx: string, dataset: Dataset, rowOffset: number, rowLimit: number): Promise<MondrianResultPage> {
+    let ret = Promise.resolve(null);
+    if (mdx) {
+      ret = this.getResultPage(mdx, dataset, rowOffset, rowLimit, true);
+    }
+    return ret;
+  }
+
+  private async getResultPage(mdx: string, dataset: Dataset, rowOffset: number, rowLimit: number, reopen: boolean): Promise<MondrianResultPage> {
+    // the server holds the result of the query we're paging through, so only the rows on the page come to the browser
+    const key = dataset.connectionName + "\n" + mdx;
+    let handle: Promise<string>;
+    if (this.heldResult && this.heldResult.key === key) {
+      handle = Promise.resolve(this.heldResult.handle);
+    } else {
+      handle = this.postQuery("result", mdx, dataset, RemoteRepository.QUERY_BUSY_RETRIES).then(async (json: any): Promise<string> => {
+        if (this.heldResult) {
+          // we're done paging through the previous result; the server would release it eventually, but needn't hold it until then
+          fetch(this.remoteRepositoryUrl + "result/" + encodeURIComponent(this.heldResult.handle), { method: 'DELETE' }).catch(() => undefined);
+        }
+        this.heldResult = { key: key, handle: json.handle };
+        return Promise.resolve(json.handle);
+      });
+    }
+    return handle.then(async (h: string) => {
+      return fetch(this.remoteRepositoryUrl + "result/" + encodeURIComponent(h) + "?rowOffset=" + rowOffset + "&rowLimit=" + rowLimit, {
+        method: 'GET'
       }).then(async (response: Response) => {
         if (response.redirected) {
           location.reload(true);
           return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Your session has timed out. Reloading application."));
         }
+        if (response.status === 404 && reopen) {
+          // the server released the result while it sat unread; run the query again
+          this.heldResult = null;
+          return this.getResultPage(mdx, dataset, rowOffset, rowLimit, false);
+        }
         if (!response.ok) {
-          return response.json().then(async (json: any): Promise<any> => {
-            if (json.reason) {
-              if (/.+while parsing.+/.test(json.reason)) {
-                return Promise.reject(new RepositoryError(RepositoryErrorType.QUERY_ERROR, "Invalid query"));
-              } else if (/.+Query timeout of.+reached/.test(json.reason)) {
-                return Promise.reject(new RepositoryError(RepositoryErrorType.QUERY_TIMEOUT, "Query timeout"));
-              }
-            } else {
-              return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Analytics server appears to be unavailable; please contact an administrator."));
-            }
+          return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Analytics server appears to be unavailable; please contact an administrator."));
+        }
+        return response.json().then(async (json: any): Promise<MondrianResultPage> => {
+          return Promise.resolve(MondrianResultPage.fromResultWindow(json));
+        });
+      });
+    });
+  }
+
+  private async postQuery(path: string, mdx: string, dataset: Dataset, busyRetries: number): Promise<any> {
+    // queries go through the piet server, which caches results across users
+    return fetch(this.remoteRepositoryUrl + path, {
+      method: 'POST',
+      headers: {
+        'Content-Type': 'application/json'
+      },
+      body: JSON.stringify({
+        connectionName: dataset.connectionName,
+        query: mdx
+      })
+    }).then(async (response: Response) => {
+      if (response.redirected) {
+        location.reload(true);
+        return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Your session has timed out. Reloading application."));
+      }
+      if (response.status === 429 || response.status === 503) {
+        // not admitted (too many queries running); the server says when it's worth trying again
+        const retryAfterSeconds = Number(response.headers.get("Retry-After"));
+        if (busyRetries > 0 && retryAfterSeconds > 0) {
+          return new Promise<void>((resolve) => setTimeout(resolve, retryAfterSeconds * 1000)).then(async () => {
+            return this.postQuery(path, mdx, dataset, busyRetries - 1);
           });
         }
+        return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "The analytics server is busy; please try again in a few moments."));
+      }
+      if (response.status === 504) {
+        // waited too long for someone else's identical query
+        return Promise.reject(new RepositoryError(RepositoryErrorType.QUERY_TIMEOUT, "Query timeout"));
+      }
+      if (response.status === 422) {
+        // the result is too large for the server to hold for paging
+        return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "The results of this analysis are too large to display; please narrow it with filters."));
+      }
+      if (!response.ok) {
         return response.json().then(async (json: any): Promise<any> => {
-          return Promise.resolve(MondrianResult.fromJSON(json));
+          if (json.reason) {
+            if (/.+while parsing.+/.test(json.reason)) {
+              return Promise.reject(new RepositoryError(RepositoryErrorType.QUERY_ERROR, "Invalid query"));
+            } else if (/.+Query timeout of.+reached/.test(json.reason)) {
+              return Promise.reject(new RepositoryError(RepositoryErrorType.QUERY_TIMEOUT, "Query timeout"));
+            }
+          } else {
+            return Promise.reject(new RepositoryError(RepositoryErrorType.GENERIC, "Analytics server appears to be unavailable; please contact an administrator."));
+          }
         });
-      });
-    }
-    return ret;
+      }
+      return response.json();
+    });
   }
 
 }
@@ -13,7 +13,7 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
-import { MondrianResult, MondrianResultAxisPosition, MondrianResultCell } from "../../model/MondrianResult";
+import { MondrianResult, MondrianResultAxisPosition, MondrianResultCell, MondrianResultPage } from "../../model/MondrianResult";
 
 export class MondrianResultTableModel {
 
@@ -22,9 +22,22 @@ export class MondrianResultTableModel {
   private _mondrianResult: MondrianResult;
   private _headerRows: string[][];
   private  _topLeftEmptyColumnCount = 0;
+  private _firstDataRowIndex = 0;
+  private _totalDataRowCount: number = null;
 
   set result(mondrianResult: MondrianResult) {
+    this.setResult(mondrianResult, 0, null);
+  }
+
+  // a page of the rows of a larger result; the table shows only those rows
+  set page(page: MondrianResultPage) {
+    this.setResult(page ? page.result : null, page ? page.rowOffset : 0, page ? page.rowCount : null);
+  }
+
+  private setResult(mondrianResult: MondrianResult, firstDataRowIndex: number, totalDataRowCount: number): void {
     this._mondrianResult = mondrianResult;
+    this._firstDataRowIndex = firstDataRowIndex;
+    this._totalDataRowCount = totalDataRowCount;
     this.populateHeaderRows();
     this.changeListeners.forEach((listener: MondrianTableModelChangeListener): void => {
       listener.mondrianTableModelChanged(new MondrianTableModelChangeEvent(this));
@@ -71,6 +84,16 @@ export class MondrianResultTableModel {
     return this._mondrianResult ? (this._mondrianResult.rowAxis ? this._mondrianResult.rowAxis.positions.length : 1) : 0;
   }
 
+  // the index, in the whole result, of the first data row in the table
+  get firstDataRowIndex(): number {
+    return this._firstDataRowIndex;
+  }
+
+  // the data rows of the whole result, of which the table shows dataRowCount
+  get totalDataRowCount(): number {
+    return this._totalDataRowCount === null ? this.dataRowCount : this._totalDataRowCount;
+  }
+
   private getCellAt(rowIndex: number, columnIndex: number): MondrianResultCell {
     // note that mondrian result cells have coordinates as (column, row) because that's the order of the axes
     return this._mondrianResult ? this._mondrianResult.cells[rowIndex*this.dataColumnCount + columnIndex] : null;
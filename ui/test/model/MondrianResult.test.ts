@@ -13,7 +13,7 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
-import { MondrianResult, MondrianResultAxis } from "../../src/js/model/MondrianResult";
+import { MondrianResult, MondrianResultAxis, MondrianResultCell, MondrianResultPage } from "../../src/js/model/MondrianResult";
 import { TestData } from "../_data/TestData";
 
 test('2 measures 1 row 1 column', () => {
@@ -60,3 +60,63 @@ test('Empty results', () => {
   expect(result.rowAxis).not.toBeNull();
   expect(result.measureCaptions).toHaveLength(0);
 });
+
+/* eslint-disable @typescript-eslint/no-explicit-any */
+
+// a window of a mondrian-rest result, as the piet server returns it from GET /result/{handle}
+function resultWindow(rawResult: any, rowOffset: number, rowLimit: number): any {
+  const columnPositions = rawResult.axes[0].positions;
+  const rowPositions = rawResult.axes.length > 1 ? rawResult.axes[1].positions.slice(rowOffset, rowOffset + rowLimit) : [{}];
+  const cellAt = (c: number, r: number): any => {
+    return rawResult.cells.find((cell: any): boolean => cell.ordinal === (rowOffset + r) * columnPositions.length + c);
+  };
+  return {
+    handle: "h1",
+    rowCount: rawResult.axes.length > 1 ? rawResult.axes[1].positions.length : 1,
+    columnCount: columnPositions.length,
+    rowOffset: rowOffset,
+    columnOffset: 0,
+    columnPositions: columnPositions,
+    rowPositions: rowPositions,
+    values: columnPositions.map((_p: any, c: number): number[] => rowPositions.map((_p: any, r: number): number => cellAt(c, r).value)),
+    formattedValues: columnPositions.map((_p: any, c: number): string[] => rowPositions.map((_p: any, r: number): string => cellAt(c, r).formattedValue))
+  };
+}
+
+test('Result pages', () => {
+  const result = MondrianResult.fromJSON(TestData.TEST_RESULT_2M1R1C);
+  const page = MondrianResultPage.fromResult(result, 1, 2);
+  expect(page.rowOffset).toBe(1);
+  expect(page.rowCount).toBe(3);
+  expect(page.result.rowAxis.positions).toHaveLength(2);
+  expect(page.result.rowAxis.positions[0]).toBe(result.rowAxis.positions[1]);
+  expect(page.result.rowCaptions).toMatchObject(result.rowCaptions);
+  expect(page.result.cells).toHaveLength(20);
+  expect(page.result.cells[0]).toBe(result.cells[10]);
+  // the whole result is its own first page
+  expect(MondrianResultPage.fromResult(result, 0, 100).result).toBe(result);
+  expect(MondrianResultPage.fromResult(MondrianResult.fromJSON(TestData.TEST_RESULT_1M0R1C), 0, 100).rowCount).toBe(1);
+});
+
+test('Result pages from server-held windows', () => {
+  const result = MondrianResult.fromJSON(TestData.TEST_RESULT_2M1R1C);
+  const page = MondrianResultPage.fromResultWindow(resultWindow(TestData.TEST_RESULT_2M1R1C, 1, 2));
+  const expected = MondrianResultPage.fromResult(result, 1, 2);
+  expect(page.rowOffset).toBe(1);
+  expect(page.rowCount).toBe(3);
+  expect(page.result.columnCaptions).toMatchObject(result.columnCaptions);
+  expect(page.result.rowCaptions).toMatchObject(result.rowCaptions);
+  expect(page.result.rowAxis.positions).toHaveLength(2);
+  expect(page.result.cells).toHaveLength(20);
+  page.result.cells.forEach((cell: MondrianResultCell, i: number): void => {
+    expect(cell).toMatchObject({ ordinal: expected.result.cells[i].ordinal, value: expected.result.cells[i].value, formattedValue: expected.result.cells[i].formattedValue });
+  });
+  // a result without a row axis comes back with a single empty row position
+  const columnsOnly = MondrianResultPage.fromResultWindow(resultWindow(TestData.TEST_RESULT_1M0R1C, 0, 100));
+  expect(columnsOnly.result.rowAxis).toBeNull();
+  expect(columnsOnly.result.cells).toHaveLength(TestData.TEST_RESULT_1M0R1C.cells.length);
+  // an empty result keeps its (empty) row axis
+  const empty = MondrianResultPage.fromResultWindow(resultWindow(TestData.TEST_RESULT_EMPTY, 0, 100));
+  expect(empty.rowCount).toBe(0);
+  expect(empty.result.rowAxis).not.toBeNull();
+});
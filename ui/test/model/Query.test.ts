@@ -133,6 +133,21 @@ test('query filters', async () => {
   });
 });
 
+test('query filter front-coded member names', async () => {
+  const analysis = new Analysis(testDatasets.get(0), "test-name");
+  const queryFilter = await new QueryFilter(null, analysis.query).deserialize({
+    _levelUniqueName: "[Time].[Time].[Month]",
+    _filterOnlyHierarchy: false,
+    _include: true,
+    levelMemberNames: {
+      sharedPrefixLengths: [0, 6, 5, 0],
+      suffixes: ["2019-01", "2", "10", "Other"]
+    }
+  }, repository);
+  expect(queryFilter.levelMemberNames.asArray()).toEqual(["2019-01", "2019-02", "2019-10", "Other"]);
+  expect(queryFilter.serialize(repository).levelMemberNames).toEqual(["2019-01", "2019-02", "2019-10", "Other"]);
+});
+
 // import * as stringify from 'json-stringify-safe';
 
 test('query MDX 1 measure 1 row dim', async () => {
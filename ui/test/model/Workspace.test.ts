@@ -18,7 +18,7 @@ import { LocalRepository, Repository, RepositoryQuery, PietConfiguration } from
 import { List } from '../../src/js/collections/List';
 import { Analysis } from '../../src/js/model/Analysis';
 import { Dataset } from '../../src/js/model/Dataset';
-import { MondrianResult } from '../../src/js/model/MondrianResult';
+import { MondrianResult, MondrianResultPage } from '../../src/js/model/MondrianResult';
 import { LoggerFactory } from '../../src/js/util/LoggerFactory';
 
 test('model initialization', () => {
@@ -113,6 +113,9 @@ class MockRepository implements Repository {
   executeQuery(_mdx: string): Promise<MondrianResult> {
     throw new Error("Method not implemented.");
   }
+  executeQueryPage(_mdx: string): Promise<MondrianResultPage> {
+    throw new Error("Method not implemented.");
+  }
   clearWorkspace(): Promise<void> {
     throw new Error("Method not implemented.");
   }
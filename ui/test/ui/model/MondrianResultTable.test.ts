@@ -13,7 +13,7 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
-import { MondrianResult } from "../../../src/js/model/MondrianResult";
+import { MondrianResult, MondrianResultPage } from "../../../src/js/model/MondrianResult";
 import { TestData } from "../../_data/TestData";
 import { MondrianResultTableModel } from "../../../src/js/ui/model/MondrianResultTable";
 
@@ -268,3 +268,21 @@ test('1 measure 2 separate sets of 2 hierarchical rows, 0 columns', () => {
   expect(tableModel.getValueAt(2,0)).toBe(5182);
   expect(tableModel.getValueAt(3,0)).toBe(12308);
 });
+
+test('result page', () => {
+  const result = MondrianResult.fromJSON(TestData.TEST_RESULT_1M2X2HR1C);
+  const tableModel = new MondrianResultTableModel();
+  tableModel.result = result;
+  expect(tableModel.firstDataRowIndex).toBe(0);
+  expect(tableModel.totalDataRowCount).toBe(104);
+  tableModel.page = MondrianResultPage.fromResult(result, 2, 100);
+  expect(tableModel.firstDataRowIndex).toBe(2);
+  expect(tableModel.dataRowCount).toBe(100);
+  expect(tableModel.totalDataRowCount).toBe(104);
+  expect(tableModel.headerRows[0][4]).toBe("Units Ordered");
+  expect(tableModel.getValueAt(0,0)).toBe(5182);
+  expect(tableModel.getValueAt(1,0)).toBe(12308);
+  tableModel.page = null;
+  expect(tableModel.dataRowCount).toBe(0);
+  expect(tableModel.totalDataRowCount).toBe(0);
+});